@@ -2,6 +2,7 @@ package com.choicemaker.utilcopy01;
 
 import org.jasypt.encryption.StringEncryptor;
 import org.jasypt.encryption.pbe.PBEStringCleanablePasswordEncryptor;
+import org.jasypt.encryption.pbe.PooledPBEStringEncryptor;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
 
 /**
@@ -31,6 +32,21 @@ public class ConfigurationUtils {
 		return retVal;
 	}
 
+	/**
+	 * Creates an encryptor that may be used by several threads at once, each
+	 * borrowing one of a pool of standard encryptors.
+	 */
+	public static StringEncryptor createPooledTextEncryptor(char[] password,
+			int poolSize) {
+		Precondition.assertBoolean("null or empty password", password != null
+				&& password.length > 0);
+		Precondition.assertBoolean("non-positive pool size", poolSize > 0);
+		PooledPBEStringEncryptor retVal = new PooledPBEStringEncryptor();
+		retVal.setPoolSize(poolSize);
+		retVal.setPasswordCharArray(password);
+		return retVal;
+	}
+
 	public static String decryptText(final String s, StringEncryptor encryptor) {
 		String retVal = s;
 		if (encryptor != null && s != null && s.startsWith(ENC_START)
@@ -18,46 +18,44 @@
  */
 package com.choicemaker.utilcopy01;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 /**
  * Copied from the Apache cxf-core-3.1.6-sources.jar and then repackaged and
  * pruned to reduce santuario-kms dependencies. This class is originally from
  * the Jakarta Commons Modeler. For internal use only.
+ * <p/>
+ * DocumentBuilders are borrowed from a {@link DocumentBuilderPool} for each
+ * operation, rather than shared, because a DocumentBuilder is not
+ * thread-safe. There is one pool per context class loader, so that each
+ * loader uses the JAXP implementation it can see; threads whose context class
+ * loader is the loader of this class use the default pool without a lookup.
  */
 public final class DOMUtils {
-	private static final Map<ClassLoader, DocumentBuilder> DOCUMENT_BUILDERS =
-		Collections
-				.synchronizedMap(new WeakHashMap<ClassLoader, DocumentBuilder>());
+	private static final Map<ClassLoader, DocumentBuilderPool> BUILDER_POOLS =
+		Collections.synchronizedMap(new WeakHashMap<>());
 
 	private DOMUtils() {
 	}
 
-	private static DocumentBuilder getDocumentBuilder()
-			throws ParserConfigurationException {
+	private static DocumentBuilderPool getDocumentBuilderPool() {
 		ClassLoader loader = Thread.currentThread().getContextClassLoader();
-		if (loader == null) {
-			loader = DOMUtils.class.getClassLoader();
+		if (loader == null || loader == DOMUtils.class.getClassLoader()) {
+			return DocumentBuilderPool.getDefault();
 		}
-		if (loader == null) {
-			return DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		}
-		DocumentBuilder factory = DOCUMENT_BUILDERS.get(loader);
-		if (factory == null) {
-			DocumentBuilderFactory f2 = DocumentBuilderFactory.newInstance();
-			f2.setNamespaceAware(true);
-			factory = f2.newDocumentBuilder();
-			DOCUMENT_BUILDERS.put(loader, factory);
-		}
-		return factory;
+		return BUILDER_POOLS.computeIfAbsent(loader,
+				k -> DocumentBuilderPool.createDefaultPool());
 	}
 
 	/**
@@ -70,10 +68,38 @@ public final class DOMUtils {
 	}
 
 	public static Document createDocument() {
+		final DocumentBuilderPool pool = getDocumentBuilderPool();
+		DocumentBuilder builder = null;
+		try {
+			builder = pool.acquire();
+			return builder.newDocument();
+		} catch (ParserConfigurationException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pool.release(builder);
+		}
+	}
+
+	/** Parses a namespace-aware Document from a stream */
+	public static Document parse(InputStream is) throws SAXException,
+			IOException {
+		Precondition.assertNonNullArgument("null input stream", is);
+		return parse(new InputSource(is));
+	}
+
+	/** Parses a namespace-aware Document from an input source */
+	public static Document parse(InputSource is) throws SAXException,
+			IOException {
+		Precondition.assertNonNullArgument("null input source", is);
+		final DocumentBuilderPool pool = getDocumentBuilderPool();
+		DocumentBuilder builder = null;
 		try {
-			return getDocumentBuilder().newDocument();
+			builder = pool.acquire();
+			return builder.parse(is);
 		} catch (ParserConfigurationException e) {
 			throw new RuntimeException(e);
+		} finally {
+			pool.release(builder);
 		}
 	}
 
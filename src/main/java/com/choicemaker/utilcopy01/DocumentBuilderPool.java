@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.utilcopy01;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * A pool of namespace-aware DocumentBuilders. A DocumentBuilder is not
+ * thread-safe, so each thread borrows a builder for the duration of one parse
+ * and returns it, after which the builder is {@link DocumentBuilder#reset()
+ * reset} and may be borrowed by another thread. Builders are created from a
+ * factory owned by the pool, so threads do not contend for a shared builder,
+ * and idle builders are kept up to a fixed limit.
+ * <p/>
+ * The parser features of the {@link #getDefault() default pool} are read from
+ * the System properties {@link #PN_DEFER_NODE_EXPANSION} and
+ * {@link #PN_SECURE_PROCESSING}. For internal use only.
+ */
+public final class DocumentBuilderPool {
+
+	private static final Logger logger = Logger
+			.getLogger(DocumentBuilderPool.class.getName());
+
+	/**
+	 * The name of a System property that specifies whether parsers defer the
+	 * creation of DOM nodes until they are visited. Deferred expansion speeds
+	 * up parsing when only part of a document is visited, and slows it down
+	 * when every node is. The default is "true", as it is for the JDK parser.
+	 */
+	public static final String PN_DEFER_NODE_EXPANSION =
+		"domDeferNodeExpansion";
+
+	/**
+	 * The name of a System property that specifies whether parsers enforce
+	 * the JAXP secure processing limits and reject DOCTYPE declarations. The
+	 * default is "true".
+	 */
+	public static final String PN_SECURE_PROCESSING = "domSecureProcessing";
+
+	/** The Xerces feature that controls deferred node expansion */
+	public static final String FEATURE_DEFER_NODE_EXPANSION =
+		"http://apache.org/xml/features/dom/defer-node-expansion";
+
+	/** The Xerces feature that rejects DOCTYPE declarations */
+	public static final String FEATURE_DISALLOW_DOCTYPE =
+		"http://apache.org/xml/features/disallow-doctype-decl";
+
+	/**
+	 * Default maximum number of idle builders, which should be at least the
+	 * number of threads that parse at the same time
+	 */
+	public static final int DEFAULT_MAX_IDLE = 32;
+
+	private static final DocumentBuilderPool DEFAULT_POOL =
+		new DocumentBuilderPool(
+				getBooleanProperty(PN_DEFER_NODE_EXPANSION, true),
+				getBooleanProperty(PN_SECURE_PROCESSING, true),
+				DEFAULT_MAX_IDLE);
+
+	private static boolean getBooleanProperty(String pn, boolean defaultValue) {
+		String value = System.getProperty(pn);
+		return StringUtils.nonEmptyString(value) ? Boolean.parseBoolean(value
+				.trim()) : defaultValue;
+	}
+
+	/**
+	 * Returns a pool configured by System properties, whose builders are
+	 * created by the JAXP implementation found when this class was loaded
+	 */
+	public static DocumentBuilderPool getDefault() {
+		return DEFAULT_POOL;
+	}
+
+	/**
+	 * Creates a pool configured like the default pool, whose builders are
+	 * created by the JAXP implementation found by the context class loader of
+	 * the calling thread
+	 */
+	public static DocumentBuilderPool createDefaultPool() {
+		return new DocumentBuilderPool(DEFAULT_POOL.deferNodeExpansion,
+				DEFAULT_POOL.secureProcessing, DEFAULT_MAX_IDLE);
+	}
+
+	private final DocumentBuilderFactory factory;
+	private final boolean deferNodeExpansion;
+	private final boolean secureProcessing;
+	private final int maxIdle;
+	private final Queue<DocumentBuilder> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicInteger createdCount = new AtomicInteger();
+
+	/**
+	 * @param deferNodeExpansion
+	 *            whether DOM nodes are created only when they are visited;
+	 *            ignored by parsers that do not support the feature
+	 * @param secureProcessing
+	 *            whether the JAXP secure processing limits are enforced and
+	 *            DOCTYPE declarations rejected
+	 * @param maxIdle
+	 *            a non-negative maximum number of idle builders
+	 */
+	public DocumentBuilderPool(boolean deferNodeExpansion,
+			boolean secureProcessing, int maxIdle) {
+		Precondition.assertBoolean("negative idle limit", maxIdle >= 0);
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		setFeature(factory, FEATURE_DEFER_NODE_EXPANSION, deferNodeExpansion);
+		if (secureProcessing) {
+			setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			setFeature(factory, FEATURE_DISALLOW_DOCTYPE, true);
+		}
+		this.factory = factory;
+		this.deferNodeExpansion = deferNodeExpansion;
+		this.secureProcessing = secureProcessing;
+		this.maxIdle = maxIdle;
+	}
+
+	private static void setFeature(DocumentBuilderFactory factory,
+			String feature, boolean value) {
+		try {
+			factory.setFeature(feature, value);
+		} catch (ParserConfigurationException e) {
+			logger.fine("Parser does not support " + feature + ": " + e);
+		}
+	}
+
+	/**
+	 * Borrows a builder, which the caller must {@link #release(DocumentBuilder)
+	 * return} when it has finished parsing.
+	 */
+	public DocumentBuilder acquire() throws ParserConfigurationException {
+		DocumentBuilder retVal = idle.poll();
+		if (retVal != null) {
+			idleCount.decrementAndGet();
+		} else {
+			// A factory is not thread-safe either
+			synchronized (factory) {
+				retVal = factory.newDocumentBuilder();
+			}
+			createdCount.incrementAndGet();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Resets a builder and, if there is room, returns it to this pool. A null
+	 * builder is ignored.
+	 */
+	public void release(DocumentBuilder builder) {
+		if (builder != null) {
+			builder.reset();
+			if (idleCount.incrementAndGet() <= maxIdle) {
+				idle.offer(builder);
+			} else {
+				idleCount.decrementAndGet();
+			}
+		}
+	}
+
+	public boolean isDeferNodeExpansion() {
+		return deferNodeExpansion;
+	}
+
+	public boolean isSecureProcessing() {
+		return secureProcessing;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/** Returns the number of builders this pool has created */
+	public int getCreatedCount() {
+		return createdCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DocumentBuilderPool [deferNodeExpansion=" + deferNodeExpansion
+				+ ", secureProcessing=" + secureProcessing + ", maxIdle="
+				+ maxIdle + ", created=" + getCreatedCount() + "]";
+	}
+
+}
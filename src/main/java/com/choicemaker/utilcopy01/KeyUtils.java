@@ -53,6 +53,23 @@ public final class KeyUtils {
 	 * Convert the raw key bytes into a SecretKey object of type algorithm.
 	 */
 	public static SecretKey prepareSecretKey(String algorithm, byte[] rawKey) {
+		String keyAlgorithm = JCEMapper.getJCEKeyAlgorithmFromURI(algorithm);
+		final int length = getSecretKeyLength(algorithm, rawKey.length);
+		SecretKeySpec keySpec;
+		if (length < rawKey.length) {
+			keySpec = new SecretKeySpec(rawKey, 0, length, keyAlgorithm);
+		} else {
+			keySpec = new SecretKeySpec(rawKey, keyAlgorithm);
+		}
+		return keySpec;
+	}
+
+	/**
+	 * Returns the number of leading raw key bytes that
+	 * {@link #prepareSecretKey(String, byte[])} uses for the specified
+	 * algorithm.
+	 */
+	public static int getSecretKeyLength(String algorithm, int rawLength) {
 		// Do an additional check on the keysize required by the encryption
 		// algorithm
 		int size = 0;
@@ -64,22 +81,15 @@ public final class KeyUtils {
 				LOG.debug(e.getMessage());
 			}
 		}
-		String keyAlgorithm = JCEMapper.getJCEKeyAlgorithmFromURI(algorithm);
-		SecretKeySpec keySpec;
+		int retVal = rawLength;
 		if (size > 0 && !algorithm.endsWith("gcm")
 				&& !algorithm.contains("hmac-")) {
-			keySpec =
-				new SecretKeySpec(rawKey, 0, rawKey.length > size ? size
-						: rawKey.length, keyAlgorithm);
-		} else if (rawKey.length > MAX_SYMMETRIC_KEY_SIZE) {
+			retVal = rawLength > size ? size : rawLength;
+		} else if (rawLength > MAX_SYMMETRIC_KEY_SIZE) {
 			// Prevent a possible attack where a huge secret key is specified
-			keySpec =
-				new SecretKeySpec(rawKey, 0, MAX_SYMMETRIC_KEY_SIZE,
-						keyAlgorithm);
-		} else {
-			keySpec = new SecretKeySpec(rawKey, keyAlgorithm);
+			retVal = MAX_SYMMETRIC_KEY_SIZE;
 		}
-		return keySpec;
+		return retVal;
 	}
 
 }
@@ -37,6 +37,7 @@ public class WSS4JConstants {
 
 	public static final String ENC_KEY_LN = "EncryptedKey";
 	public static final String KEYINFO_LN = "KeyInfo";
+	public static final String KEYNAME_LN = "KeyName";
 	public static final String SIG_PREFIX = "ds";
 	public static final String ENC_PREFIX = "xenc";
 }
\ No newline at end of file
@@ -87,6 +87,10 @@ public abstract class AbstractAwsKmsEncryptionScheme implements
 
 		SecretKeyInfoFactory retVal =
 			new AwsKmsSecretKeyInfoFactory(ec, algorithmName);
+		final Properties p = ec.getProperties();
+		if (CachingSecretKeyInfoFactory.hasReuseProperties(p)) {
+			retVal = new CachingSecretKeyInfoFactory(retVal, p);
+		}
 		return retVal;
 	}
 
@@ -112,7 +116,14 @@ public abstract class AbstractAwsKmsEncryptionScheme implements
 	}
 
 	public AWSCredentials getAwsKmsCredentials(CredentialSet ec) {
-		return AwsKmsCredentialSet.createAWSCredentials(ec.getProperties());
+		AWSCredentials retVal;
+		if (ec instanceof AwsKmsCredentialSet) {
+			retVal = ((AwsKmsCredentialSet) ec).getAWSCredentials();
+		} else {
+			retVal =
+				AwsKmsCredentialSet.createAWSCredentials(ec.getProperties());
+		}
+		return retVal;
 	}
 
 	public String getMasterKeyId(CredentialSet ec) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A token-bucket rate limiter whose rate adapts to throttling responses. The
+ * rate starts at a maximum; it is halved when a request is throttled, and is
+ * increased by a small constant after each successful request, up to the
+ * maximum (additive increase, multiplicative decrease). Over time the rate
+ * settles near the sustainable request rate, so that a busy client sends
+ * requests at a pace the service accepts instead of failing them.
+ * <p/>
+ * Throttling responses that arrive together are usually caused by the same
+ * burst, so the rate is decreased at most once per
+ * {@link #DECREASE_INTERVAL}. The bucket holds at most one second of tokens,
+ * which bounds the size of a burst after an idle period.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public class AdaptiveRateLimiter {
+
+	private static final Logger logger = Logger
+			.getLogger(AdaptiveRateLimiter.class.getName());
+
+	/** Minimum time between rate decreases (milliseconds) */
+	public static final long DECREASE_INTERVAL = 100L;
+
+	/** Factor applied to the rate when a request is throttled */
+	public static final double DECREASE_FACTOR = 0.5;
+
+	/** Requests per second added to the rate by a successful request */
+	public static final double INCREASE_STEP = 1.0;
+
+	private final double maxRate;
+	private final double minRate;
+
+	// Guarded by this
+	private double rate;
+	private double tokens;
+	private long lastRefill;
+	private long lastDecrease;
+
+	/**
+	 * @param maxRate
+	 *            the maximum and initial rate, in requests per second
+	 * @param minRate
+	 *            the minimum rate, in requests per second
+	 */
+	public AdaptiveRateLimiter(double maxRate, double minRate) {
+		Precondition.assertBoolean("non-positive minimum rate", minRate > 0);
+		Precondition.assertBoolean("maximum rate less than minimum rate",
+				maxRate >= minRate);
+		this.maxRate = maxRate;
+		this.minRate = minRate;
+		this.rate = maxRate;
+		this.tokens = Math.max(1.0, maxRate);
+		this.lastRefill = System.nanoTime();
+		this.lastDecrease = lastRefill - TimeUnit.MILLISECONDS.toNanos(
+				DECREASE_INTERVAL);
+	}
+
+	/**
+	 * Waits until a request may be sent. A token is reserved before waiting,
+	 * so waiting callers are served in the order in which they arrive.
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		final long waitNanos;
+		synchronized (this) {
+			refill();
+			tokens -= 1.0;
+			waitNanos =
+				tokens >= 0 ? 0 : (long) (-tokens / rate
+						* TimeUnit.SECONDS.toNanos(1));
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Waits until a request may be sent, unless that would take longer than
+	 * a timeout. If it would, this method returns at once without reserving a
+	 * token.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait; zero or negative to not wait
+	 * @return true if a request may be sent, false if the wait would exceed
+	 *         the timeout
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		Precondition.assertNonNullArgument("null unit", unit);
+		final long waitNanos;
+		synchronized (this) {
+			refill();
+			final double remaining = tokens - 1.0;
+			waitNanos =
+				remaining >= 0 ? 0 : (long) (-remaining / rate
+						* TimeUnit.SECONDS.toNanos(1));
+			if (waitNanos > Math.max(0, unit.toNanos(timeout))) {
+				return false;
+			}
+			tokens = remaining;
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		return true;
+	}
+
+	/** Reports that a request succeeded */
+	public synchronized void onSuccess() {
+		rate = Math.min(maxRate, rate + INCREASE_STEP);
+	}
+
+	/** Reports that a request was throttled */
+	public synchronized void onThrottle() {
+		final long now = System.nanoTime();
+		if (now - lastDecrease >= TimeUnit.MILLISECONDS
+				.toNanos(DECREASE_INTERVAL)) {
+			refill();
+			final double previous = rate;
+			rate = Math.max(minRate, rate * DECREASE_FACTOR);
+			tokens = Math.min(tokens, capacity());
+			lastDecrease = now;
+			logger.fine("Throttled: rate reduced from " + previous + " to "
+					+ rate + " requests/second");
+		}
+	}
+
+	private double capacity() {
+		return Math.max(1.0, rate);
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		final double elapsed =
+			(now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+		tokens = Math.min(capacity(), tokens + elapsed * rate);
+		lastRefill = now;
+	}
+
+	/** Returns the current rate, in requests per second */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	public double getMaxRate() {
+		return maxRate;
+	}
+
+	public double getMinRate() {
+		return minRate;
+	}
+
+	@Override
+	public String toString() {
+		return "AdaptiveRateLimiter [rate=" + getRate() + ", maxRate="
+				+ maxRate + ", minRate=" + minRate + "]";
+	}
+
+}
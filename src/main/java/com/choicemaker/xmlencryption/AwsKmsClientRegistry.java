@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.AWSKMSClient;
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A registry of long-lived, thread-safe AWS KMS clients. Clients are keyed by
+ * credentials and endpoint, so that every encryption and decryption that uses
+ * the same credentials and endpoint shares one client, and therefore one pool
+ * of HTTP connections. This avoids client construction, connection setup and a
+ * TLS handshake for every document.
+ * <p/>
+ * The HTTP connection pool of a client is configured when the client is
+ * created, either from a {@link #createClientConfiguration(Properties) set of
+ * properties} or from the {@link #getDefaultConfiguration() default
+ * configuration}. A client that has not been used for longer than the
+ * {@link #getClientMaxIdleMillis() client idle limit} is shut down and removed
+ * from the registry; it is transparently recreated by the next request. All
+ * clients are shut down by a JVM shutdown hook, or explicitly by
+ * {@link #shutdown()}.
+ * <p/>
+ * An endpoint that starts with {@link LocalKms#ENDPOINT_SCHEME} selects an
+ * in-process {@link LocalKms} rather than an AWS client.
+ */
+public final class AwsKmsClientRegistry {
+
+	private static final Logger logger = Logger
+			.getLogger(AwsKmsClientRegistry.class.getName());
+
+	/** Default maximum number of pooled HTTP connections per client */
+	public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+	/**
+	 * Default maximum lifetime of a pooled HTTP connection (milliseconds). A
+	 * negative value means connections do not expire because of age.
+	 */
+	public static final long DEFAULT_CONNECTION_TTL = -1L;
+
+	/** Default idle time after which a pooled connection is closed (msec) */
+	public static final long DEFAULT_CONNECTION_MAX_IDLE = 60 * 1000L;
+
+	/** By default, TCP keep-alive is enabled on pooled connections */
+	public static final boolean DEFAULT_TCP_KEEPALIVE = true;
+
+	/** Default idle time after which an unused client is shut down (msec) */
+	public static final long DEFAULT_CLIENT_MAX_IDLE = 10 * 60 * 1000L;
+
+	private static final ConcurrentMap<ClientKey, ClientEntry> CLIENTS =
+		new ConcurrentHashMap<>();
+
+	private static final AtomicReference<ClientConfiguration> DEFAULT_CONFIGURATION =
+		new AtomicReference<>(createClientConfiguration(null));
+
+	private static final AtomicLong CLIENT_MAX_IDLE = new AtomicLong(
+			DEFAULT_CLIENT_MAX_IDLE);
+
+	private static final AtomicLong LAST_SWEEP = new AtomicLong(
+			System.currentTimeMillis());
+
+	static {
+		Thread hook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, AwsKmsClientRegistry.class.getSimpleName() + "-shutdown");
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+	/**
+	 * Creates a client configuration from the optional
+	 * {@link AwsKmsProperties#PN_CLIENT_MAX_CONNECTIONS connection pool},
+	 * {@link AwsKmsProperties#PN_CLIENT_CONNECTION_TTL connection lifetime},
+	 * {@link AwsKmsProperties#PN_CLIENT_CONNECTION_MAX_IDLE idle eviction} and
+	 * {@link AwsKmsProperties#PN_CLIENT_TCP_KEEPALIVE keep-alive} properties.
+	 * Properties that are not defined take the defaults declared by this
+	 * class.
+	 *
+	 * @param p
+	 *            a set of properties, possibly null
+	 * @return a non-null client configuration
+	 */
+	public static ClientConfiguration createClientConfiguration(Properties p) {
+		final int maxConnections =
+			(int) AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_CLIENT_MAX_CONNECTIONS,
+					DEFAULT_MAX_CONNECTIONS);
+		Precondition.assertBoolean("non-positive maximum connection count",
+				maxConnections > 0);
+		final long connectionTTL =
+			AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_CLIENT_CONNECTION_TTL,
+					DEFAULT_CONNECTION_TTL);
+		final long maxIdle =
+			AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_CLIENT_CONNECTION_MAX_IDLE,
+					DEFAULT_CONNECTION_MAX_IDLE);
+		Precondition.assertBoolean("non-positive connection idle limit",
+				maxIdle > 0);
+		final boolean keepAlive =
+			AwsKmsProperties.getBooleanProperty(p,
+					AwsKmsProperties.PN_CLIENT_TCP_KEEPALIVE,
+					DEFAULT_TCP_KEEPALIVE);
+
+		ClientConfiguration retVal = new ClientConfiguration();
+		retVal.setMaxConnections(maxConnections);
+		retVal.setConnectionTTL(connectionTTL);
+		retVal.setConnectionMaxIdleMillis(maxIdle);
+		retVal.setUseTcpKeepAlive(keepAlive);
+		retVal.setUseReaper(true);
+		// Retries are handled, with rate limiting, by AwsKmsRetryHandler
+		retVal.setMaxErrorRetry(0);
+		return retVal;
+	}
+
+	/**
+	 * Returns the configuration used for clients that are created without an
+	 * explicit configuration.
+	 */
+	public static ClientConfiguration getDefaultConfiguration() {
+		return DEFAULT_CONFIGURATION.get();
+	}
+
+	/**
+	 * Sets the configuration used for clients that are created without an
+	 * explicit configuration. Clients that already exist are not affected.
+	 */
+	public static void setDefaultConfiguration(ClientConfiguration config) {
+		Precondition.assertNonNullArgument("null configuration", config);
+		DEFAULT_CONFIGURATION.set(config);
+	}
+
+	/**
+	 * Returns the time, in milliseconds, after which an unused client is shut
+	 * down and removed from the registry.
+	 */
+	public static long getClientMaxIdleMillis() {
+		return CLIENT_MAX_IDLE.get();
+	}
+
+	public static void setClientMaxIdleMillis(long millis) {
+		Precondition.assertBoolean("non-positive client idle limit",
+				millis > 0);
+		CLIENT_MAX_IDLE.set(millis);
+	}
+
+	/**
+	 * Equivalent to <code>getClient(creds, endpoint, null)</code>
+	 */
+	public static AWSKMS getClient(AWSCredentials creds, String endpoint) {
+		return getClient(creds, endpoint, null);
+	}
+
+	/**
+	 * Returns the shared client for the specified credentials and endpoint,
+	 * creating it if necessary. The client should not be cached by callers,
+	 * because an idle client may be shut down by the registry; the lookup is
+	 * cheap enough to perform on every request.
+	 *
+	 * @param creds
+	 *            non-null credentials
+	 * @param endpoint
+	 *            a KMS endpoint, possibly null
+	 * @param config
+	 *            the configuration used if a client must be created. If null,
+	 *            the {@link #getDefaultConfiguration() default configuration}
+	 *            is used. The configuration of an existing client is not
+	 *            changed.
+	 * @return a non-null, thread-safe client
+	 */
+	public static AWSKMS getClient(final AWSCredentials creds,
+			final String endpoint, final ClientConfiguration config) {
+		Precondition.assertNonNullArgument("null credentials", creds);
+		sweepIdleClients();
+
+		final long now = System.currentTimeMillis();
+		final ClientKey key = new ClientKey(creds, endpoint);
+		// Touch the entry atomically, so that a concurrent sweep can not shut
+		// down a client between lookup and use
+		ClientEntry entry = CLIENTS.compute(key, (k, e) -> {
+			ClientEntry retVal = e;
+			if (retVal == null) {
+				ClientConfiguration cc =
+					config == null ? getDefaultConfiguration() : config;
+				AWSKMS client = createClient(creds, endpoint, cc);
+				retVal = new ClientEntry(client, now);
+			}
+			retVal.lastUsed = now;
+			return retVal;
+		});
+		return entry.client;
+	}
+
+	private static AWSKMS createClient(AWSCredentials creds, String endpoint,
+			ClientConfiguration config) {
+		if (LocalKms.isLocalEndpoint(endpoint)) {
+			logger.fine("Created local KMS: endpoint=" + endpoint);
+			return LocalKms.fromEndpoint(endpoint);
+		}
+		AWSKMSClient retVal = new AWSKMSClient(creds, config);
+		if (endpoint != null) {
+			retVal.setEndpoint(endpoint);
+		}
+		logger.fine("Created KMS client: endpoint=" + endpoint
+				+ ", maxConnections=" + config.getMaxConnections());
+		return retVal;
+	}
+
+	/**
+	 * Shuts down clients that have not been used for longer than the
+	 * {@link #getClientMaxIdleMillis() client idle limit}. The sweep runs at
+	 * most once per idle interval, so the check is cheap on the request path.
+	 */
+	static void sweepIdleClients() {
+		final long now = System.currentTimeMillis();
+		final long maxIdle = getClientMaxIdleMillis();
+		final long last = LAST_SWEEP.get();
+		if (now - last < maxIdle || !LAST_SWEEP.compareAndSet(last, now)) {
+			return;
+		}
+		for (ClientKey key : CLIENTS.keySet()) {
+			CLIENTS.computeIfPresent(key, (k, e) -> {
+				ClientEntry retVal = e;
+				if (now - e.lastUsed > maxIdle) {
+					logger.fine("Evicting idle KMS client: endpoint="
+							+ k.endpoint);
+					e.client.shutdown();
+					retVal = null;
+				}
+				return retVal;
+			});
+		}
+	}
+
+	/** Returns the number of clients currently held by the registry */
+	public static int size() {
+		return CLIENTS.size();
+	}
+
+	/**
+	 * Shuts down and removes every client in the registry. Clients requested
+	 * after this method returns are created anew, so this method may also be
+	 * used to reset the registry.
+	 */
+	public static void shutdown() {
+		for (Map.Entry<ClientKey, ClientEntry> e : CLIENTS.entrySet()) {
+			if (CLIENTS.remove(e.getKey(), e.getValue())) {
+				try {
+					e.getValue().client.shutdown();
+				} catch (RuntimeException x) {
+					logger.warning("Failed to shut down KMS client: " + x);
+				}
+			}
+		}
+	}
+
+	private AwsKmsClientRegistry() {
+	}
+
+	private static final class ClientEntry {
+		final AWSKMS client;
+		volatile long lastUsed;
+
+		ClientEntry(AWSKMS client, long created) {
+			this.client = client;
+			this.lastUsed = created;
+		}
+	}
+
+	/**
+	 * Clients are keyed by the identity of credentials rather than by
+	 * credential instances, because callers such as {@link DocumentDecryptor}
+	 * create a new credential object for each credential set. The session
+	 * token of temporary credentials is part of the identity, so that a
+	 * rotated token gets a client built with the new credentials.
+	 */
+	private static final class ClientKey {
+		final String accessKey;
+		final String secretKey;
+		final String sessionToken;
+		final String endpoint;
+
+		ClientKey(AWSCredentials creds, String endpoint) {
+			this.accessKey = creds.getAWSAccessKeyId();
+			this.secretKey = creds.getAWSSecretKey();
+			this.sessionToken =
+				creds instanceof AWSSessionCredentials
+						? ((AWSSessionCredentials) creds).getSessionToken()
+						: null;
+			this.endpoint = endpoint;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result =
+				prime * result
+						+ ((accessKey == null) ? 0 : accessKey.hashCode());
+			result =
+				prime * result + ((endpoint == null) ? 0 : endpoint.hashCode());
+			result =
+				prime * result
+						+ ((secretKey == null) ? 0 : secretKey.hashCode());
+			result =
+				prime
+						* result
+						+ ((sessionToken == null) ? 0 : sessionToken
+								.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			ClientKey other = (ClientKey) obj;
+			if (accessKey == null) {
+				if (other.accessKey != null)
+					return false;
+			} else if (!accessKey.equals(other.accessKey))
+				return false;
+			if (endpoint == null) {
+				if (other.endpoint != null)
+					return false;
+			} else if (!endpoint.equals(other.endpoint))
+				return false;
+			if (secretKey == null) {
+				if (other.secretKey != null)
+					return false;
+			} else if (!secretKey.equals(other.secretKey))
+				return false;
+			if (sessionToken == null) {
+				if (other.sessionToken != null)
+					return false;
+			} else if (!sessionToken.equals(other.sessionToken))
+				return false;
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "ClientKey [accessKey=" + accessKey + ", endpoint="
+					+ endpoint + "]";
+		}
+	}
+
+}
@@ -52,6 +52,9 @@ public class AwsKmsCredentialSet extends CredentialSet {
 		return retVal;
 	}
 
+	// Built from the current property values when first requested
+	private volatile AWSCredentials credentials;
+
 	/**
 	 * Creates a credential set with the specified name from properties loaded
 	 * by AwsKmsProperties.loadAwsKmsProperties(). Equivalent to
@@ -89,4 +92,26 @@ public class AwsKmsCredentialSet extends CredentialSet {
 		this.putAll(p);
 	}
 
+	/**
+	 * Returns the AWS credentials defined by this credential set. Unlike
+	 * {@link #createAWSCredentials(Properties)}, the credentials are built
+	 * once, and rebuilt only if the access key or secret key is changed.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the access key or secret key is not defined
+	 */
+	public AWSCredentials getAWSCredentials() {
+		final Properties p = getProperties();
+		AWSCredentials retVal = credentials;
+		if (retVal == null
+				|| !retVal.getAWSAccessKeyId().equals(
+						AwsKmsProperties.getAccessKey(p))
+				|| !retVal.getAWSSecretKey().equals(
+						AwsKmsProperties.getSecretKey(p))) {
+			retVal = createAWSCredentials(p);
+			credentials = retVal;
+		}
+		return retVal;
+	}
+
 }
@@ -15,6 +15,41 @@ public class AwsKmsEncryptionScheme extends AbstractAwsKmsEncryptionScheme {
 	public static final String DEFAULT_SCHEME_ID =
 		AwsKmsEncryptionScheme.class.getName();
 
+	/** Identifies the scheme returned by {@link #createAes128GcmScheme()} */
+	public static final String AES128_GCM_SCHEME_ID = DEFAULT_SCHEME_ID
+			+ ".aes128-gcm";
+
+	/** Identifies the scheme returned by {@link #createAes256GcmScheme()} */
+	public static final String AES256_GCM_SCHEME_ID = DEFAULT_SCHEME_ID
+			+ ".aes256-gcm";
+
+	/**
+	 * Creates a scheme that encrypts documents with AES-GCM under 128-bit
+	 * data keys.
+	 *
+	 * @see DefaultAlgorithms#AES128_GCM_DOC_ENCRYPT_ALGO
+	 */
+	public static AwsKmsEncryptionScheme createAes128GcmScheme() {
+		return new AwsKmsEncryptionScheme(
+				DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM,
+				DefaultAlgorithms.AES128_GCM_DOC_ENCRYPT_ALGO,
+				AES128_GCM_SCHEME_ID);
+	}
+
+	/**
+	 * Creates a scheme that encrypts documents with AES-GCM under 256-bit
+	 * data keys. The data key size matches the cipher, because the key of a
+	 * GCM algorithm is not truncated to the size the algorithm names.
+	 *
+	 * @see DefaultAlgorithms#AES256_GCM_DOC_ENCRYPT_ALGO
+	 */
+	public static AwsKmsEncryptionScheme createAes256GcmScheme() {
+		return new AwsKmsEncryptionScheme(
+				DefaultAlgorithms.STRONG_AWS_KEY_ENCRYPTION_ALGORITHM,
+				DefaultAlgorithms.AES256_GCM_DOC_ENCRYPT_ALGO,
+				AES256_GCM_SCHEME_ID);
+	}
+
 	public AwsKmsEncryptionScheme() {
 		this(DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM,
 				DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO,
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A dedicated, bounded executor for blocking AWS KMS requests. The
+ * asynchronous methods of {@link AwsKmsUtils}, {@link DocumentEncryptor} and
+ * {@link DocumentDecryptor} submit their KMS calls to this executor, so that a
+ * request thread can overlap KMS latency with other work instead of blocking.
+ * <p/>
+ * The executor has a fixed number of daemon threads and a bounded queue, so a
+ * burst of requests can not create an unbounded number of threads or pending
+ * tasks. A request that is submitted when the queue is full is not run; the
+ * future returned for it completes exceptionally with a
+ * {@link RejectedExecutionException}, which callers may treat as back
+ * pressure.
+ * <p/>
+ * The default executor is created when it is first used and is shut down by a
+ * JVM shutdown hook. It may be replaced by an application-managed executor,
+ * which this class never shuts down.
+ */
+public final class AwsKmsExecutor {
+
+	private static final Logger logger = Logger.getLogger(AwsKmsExecutor.class
+			.getName());
+
+	/** Default number of threads that run KMS requests */
+	public static final int DEFAULT_THREAD_COUNT = 16;
+
+	/** Default number of KMS requests that may wait for a thread */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger();
+
+	// Written while holding AwsKmsExecutor.class, read without it
+	private static volatile ExecutorService executor;
+
+	// Whether the current executor was created by this class; guarded by
+	// AwsKmsExecutor.class
+	private static boolean isDefault;
+
+	static {
+		Thread hook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, AwsKmsExecutor.class.getSimpleName() + "-shutdown");
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+	/**
+	 * Creates a bounded executor suitable for KMS requests. The executor is
+	 * not managed by this class; the caller is responsible for shutting it
+	 * down.
+	 *
+	 * @param threadCount
+	 *            a positive number of threads
+	 * @param queueCapacity
+	 *            a positive number of tasks that may wait for a thread
+	 */
+	public static ExecutorService createExecutor(int threadCount,
+			int queueCapacity) {
+		Precondition.assertBoolean("non-positive thread count",
+				threadCount > 0);
+		Precondition.assertBoolean("non-positive queue capacity",
+				queueCapacity > 0);
+		final String prefix = "kms-" + INSTANCE_COUNT.incrementAndGet() + "-";
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory tf = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread retVal =
+					new Thread(r, prefix + threadNumber.incrementAndGet());
+				retVal.setDaemon(true);
+				return retVal;
+			}
+		};
+		ThreadPoolExecutor retVal =
+			new ThreadPoolExecutor(threadCount, threadCount, 60L,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+					tf, new ThreadPoolExecutor.AbortPolicy());
+		retVal.allowCoreThreadTimeOut(true);
+		return retVal;
+	}
+
+	/**
+	 * Returns the executor used for asynchronous KMS requests, creating the
+	 * default executor if necessary.
+	 */
+	public static ExecutorService getExecutor() {
+		ExecutorService retVal = executor;
+		if (retVal == null || retVal.isShutdown()) {
+			synchronized (AwsKmsExecutor.class) {
+				retVal = executor;
+				if (retVal == null || retVal.isShutdown()) {
+					retVal =
+						createExecutor(DEFAULT_THREAD_COUNT,
+								DEFAULT_QUEUE_CAPACITY);
+					executor = retVal;
+					isDefault = true;
+					logger.fine("Created KMS executor: threads="
+							+ DEFAULT_THREAD_COUNT + ", queue="
+							+ DEFAULT_QUEUE_CAPACITY);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Replaces the executor used for asynchronous KMS requests. The previous
+	 * executor is not shut down, since it may be managed by the application,
+	 * and the new executor is not shut down by {@link #shutdown()}.
+	 */
+	public static synchronized void setExecutor(ExecutorService es) {
+		Precondition.assertNonNullArgument("null executor", es);
+		executor = es;
+		isDefault = false;
+	}
+
+	/**
+	 * Runs a blocking operation on the {@link #getExecutor() KMS executor}.
+	 * If the executor rejects the operation, the returned future completes
+	 * exceptionally rather than this method throwing.
+	 */
+	public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+		Precondition.assertNonNullArgument("null supplier", supplier);
+		CompletableFuture<T> retVal;
+		try {
+			retVal = CompletableFuture.supplyAsync(supplier, getExecutor());
+		} catch (RejectedExecutionException x) {
+			logger.warning("KMS request rejected: " + x);
+			retVal = new CompletableFuture<>();
+			retVal.completeExceptionally(new CompletionException(x));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Shuts down the default executor, if it exists. An executor set by
+	 * {@link #setExecutor(ExecutorService)} is released but not shut down,
+	 * since it is managed by the application. Requests submitted after this
+	 * method returns cause a new default executor to be created.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null && isDefault) {
+			executor.shutdown();
+		}
+		executor = null;
+		isDefault = false;
+	}
+
+	private AwsKmsExecutor() {
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.Map;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * An AWS KMS encryption scheme that derives a key for each document locally
+ * from a data key obtained from KMS once per period, instead of requesting a
+ * data key from KMS for each document.
+ *
+ * @see KeyDerivingSecretKeyInfoFactory
+ */
+public class AwsKmsKeyDerivationScheme extends AwsKmsEncryptionScheme {
+
+	public static final String DEFAULT_SCHEME_ID =
+		AwsKmsKeyDerivationScheme.class.getName();
+
+	public AwsKmsKeyDerivationScheme() {
+		this(DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM,
+				DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, DEFAULT_SCHEME_ID);
+	}
+
+	public AwsKmsKeyDerivationScheme(String keyAlgo, String docAlgo,
+			String schemeId) {
+		super(keyAlgo, docAlgo, schemeId);
+	}
+
+	/**
+	 * Returns a {@link KeyDerivingSecretKeyInfoFactory} whose base keys, and
+	 * therefore document keys, have the specified KMS key spec.
+	 */
+	@Override
+	public SecretKeyInfoFactory getSecretKeyInfoFactory(CredentialSet ec,
+			String algorithmName, Map<String, String> unused) {
+		Precondition.assertNonNullArgument("null credential", ec);
+		Precondition.assertBoolean(isConsistentWithEncryption(ec));
+		Precondition.assertNonEmptyString("null or blank algorithm name",
+				algorithmName);
+
+		SecretKeyInfoFactory baseKeyFactory =
+			new AwsKmsSecretKeyInfoFactory(ec, algorithmName);
+		return new KeyDerivingSecretKeyInfoFactory(baseKeyFactory,
+				ec.getProperties());
+	}
+
+}
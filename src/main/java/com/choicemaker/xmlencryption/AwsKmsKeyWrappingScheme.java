@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.Map;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * An AWS KMS encryption scheme that wraps a new key for each document locally
+ * under a key-encryption key obtained from KMS, instead of requesting a data
+ * key from KMS for each document.
+ *
+ * @see KeyWrappingSecretKeyInfoFactory
+ */
+public class AwsKmsKeyWrappingScheme extends AwsKmsEncryptionScheme {
+
+	public static final String DEFAULT_SCHEME_ID =
+		AwsKmsKeyWrappingScheme.class.getName();
+
+	/**
+	 * Returns the length in bytes of a key with the specified KMS key spec,
+	 * either {@link DefaultAlgorithms#DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM
+	 * AES_128} or {@link DefaultAlgorithms#STRONG_AWS_KEY_ENCRYPTION_ALGORITHM
+	 * AES_256}.
+	 */
+	public static int getKeyLength(String keySpec) {
+		int retVal;
+		if (DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM
+				.equals(keySpec)) {
+			retVal = 16;
+		} else if (DefaultAlgorithms.STRONG_AWS_KEY_ENCRYPTION_ALGORITHM
+				.equals(keySpec)) {
+			retVal = 32;
+		} else {
+			throw new IllegalArgumentException("Unknown key spec: " + keySpec);
+		}
+		return retVal;
+	}
+
+	public AwsKmsKeyWrappingScheme() {
+		this(DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM,
+				DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, DEFAULT_SCHEME_ID);
+	}
+
+	public AwsKmsKeyWrappingScheme(String keyAlgo, String docAlgo,
+			String schemeId) {
+		super(keyAlgo, docAlgo, schemeId);
+	}
+
+	/**
+	 * Returns a {@link KeyWrappingSecretKeyInfoFactory} whose KEKs and
+	 * document keys both have the specified KMS key spec.
+	 */
+	@Override
+	public SecretKeyInfoFactory getSecretKeyInfoFactory(CredentialSet ec,
+			String algorithmName, Map<String, String> unused) {
+		Precondition.assertNonNullArgument("null credential", ec);
+		Precondition.assertBoolean(isConsistentWithEncryption(ec));
+		Precondition.assertNonEmptyString("null or blank algorithm name",
+				algorithmName);
+
+		SecretKeyInfoFactory kekFactory =
+			new AwsKmsSecretKeyInfoFactory(ec, algorithmName);
+		return new KeyWrappingSecretKeyInfoFactory(kekFactory,
+				getKeyLength(algorithmName), ec.getProperties());
+	}
+
+}
@@ -13,9 +13,6 @@ package com.choicemaker.xmlencryption;
 import static com.choicemaker.utilcopy01.SystemPropertyUtils.PV_FILE_SEPARATOR;
 import static com.choicemaker.utilcopy01.SystemPropertyUtils.PV_USER_HOME;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
@@ -76,10 +73,198 @@ public class AwsKmsProperties {
 
 	/**
 	 * Optional AWS KMS parameter -- a region-specific URL for the AWS KMS
-	 * service intended to reduce service latency.
+	 * service intended to reduce service latency. An endpoint that starts with
+	 * {@link LocalKms#ENDPOINT_SCHEME} selects an in-process KMS stand-in. A
+	 * comma-separated list of equivalent endpoints selects
+	 * {@link KmsEndpointRouter latency-aware routing} among them.
 	 */
 	public static final String PN_ENDPOINT = "aws.endpoint";
 
+	/**
+	 * Optional routing parameter -- the percentile, between 0 and 100, of an
+	 * endpoint's recent latencies after which a Decrypt request is also sent
+	 * to the next endpoint in a list of endpoints. The value may have a
+	 * fractional part; for example, 99.5. The parameter applies to the
+	 * decryptor created from the properties. If it is not defined or is 0,
+	 * the hedge percentile of the router applies, and hedging is disabled by
+	 * default.
+	 *
+	 * @see KmsEndpointRouter
+	 * @see KmsRetryPolicy#getHedgePercentile()
+	 */
+	public static final String PN_HEDGE_PERCENTILE = "aws.kms.hedge.percentile";
+
+	/**
+	 * Optional AWS KMS client parameter -- the maximum number of open HTTP
+	 * connections held by a shared KMS client.
+	 *
+	 * @see AwsKmsClientRegistry
+	 */
+	public static final String PN_CLIENT_MAX_CONNECTIONS =
+		"aws.kms.client.maxConnections";
+
+	/**
+	 * Optional AWS KMS client parameter -- the maximum lifetime, in
+	 * milliseconds, of a pooled HTTP connection. A negative value means
+	 * connections are never expired because of age.
+	 *
+	 * @see AwsKmsClientRegistry
+	 */
+	public static final String PN_CLIENT_CONNECTION_TTL =
+		"aws.kms.client.connectionTTL";
+
+	/**
+	 * Optional AWS KMS client parameter -- the time, in milliseconds, after
+	 * which an idle pooled HTTP connection is closed.
+	 *
+	 * @see AwsKmsClientRegistry
+	 */
+	public static final String PN_CLIENT_CONNECTION_MAX_IDLE =
+		"aws.kms.client.connectionMaxIdle";
+
+	/**
+	 * Optional AWS KMS client parameter -- <code>true</code> or
+	 * <code>false</code>, whether TCP keep-alive is enabled on pooled HTTP
+	 * connections.
+	 *
+	 * @see AwsKmsClientRegistry
+	 */
+	public static final String PN_CLIENT_TCP_KEEPALIVE =
+		"aws.kms.client.tcpKeepAlive";
+
+	/**
+	 * Optional data-key reuse parameter -- the maximum number of documents
+	 * encrypted with one data key. If any data-key reuse parameter is defined,
+	 * encryption schemes reuse data keys rather than requesting a new key for
+	 * every document.
+	 *
+	 * @see CachingSecretKeyInfoFactory
+	 */
+	public static final String PN_DATAKEY_MAX_MESSAGES =
+		"aws.kms.dataKey.maxMessages";
+
+	/**
+	 * Optional data-key reuse parameter -- the maximum number of bytes
+	 * encrypted with one data key.
+	 *
+	 * @see CachingSecretKeyInfoFactory
+	 */
+	public static final String PN_DATAKEY_MAX_BYTES =
+		"aws.kms.dataKey.maxBytes";
+
+	/**
+	 * Optional data-key reuse parameter -- the maximum age, in milliseconds,
+	 * of a reused data key.
+	 *
+	 * @see CachingSecretKeyInfoFactory
+	 */
+	public static final String PN_DATAKEY_MAX_AGE = "aws.kms.dataKey.maxAge";
+
+	/**
+	 * Optional key-wrapping parameter -- the maximum age, in milliseconds, of
+	 * a key-encryption key.
+	 *
+	 * @see KeyWrappingSecretKeyInfoFactory
+	 */
+	public static final String PN_KEK_MAX_AGE = "aws.kms.kek.maxAge";
+
+	/**
+	 * Optional key-wrapping parameter -- the maximum number of document keys
+	 * wrapped under one key-encryption key.
+	 *
+	 * @see KeyWrappingSecretKeyInfoFactory
+	 */
+	public static final String PN_KEK_MAX_WRAPS = "aws.kms.kek.maxWraps";
+
+	/**
+	 * Optional key-derivation parameter -- the maximum age, in milliseconds,
+	 * of the KMS data key from which document keys are derived.
+	 *
+	 * @see KeyDerivingSecretKeyInfoFactory
+	 */
+	public static final String PN_BASE_KEY_MAX_AGE = "aws.kms.baseKey.maxAge";
+
+	/**
+	 * Optional key-derivation parameter -- the maximum number of document keys
+	 * derived from one KMS data key.
+	 *
+	 * @see KeyDerivingSecretKeyInfoFactory
+	 */
+	public static final String PN_BASE_KEY_MAX_DERIVATIONS =
+		"aws.kms.baseKey.maxDerivations";
+
+	/**
+	 * Optional retry parameter -- the maximum number of attempts of a KMS
+	 * request, including the first attempt.
+	 *
+	 * @see KmsRetryPolicy
+	 */
+	public static final String PN_RETRY_MAX_ATTEMPTS =
+		"aws.kms.retry.maxAttempts";
+
+	/**
+	 * Optional retry parameter -- the base delay, in milliseconds, of the
+	 * exponential backoff between attempts of a KMS request.
+	 *
+	 * @see KmsRetryPolicy
+	 */
+	public static final String PN_RETRY_BASE_DELAY = "aws.kms.retry.baseDelay";
+
+	/**
+	 * Optional retry parameter -- the maximum delay, in milliseconds, between
+	 * attempts of a KMS request.
+	 *
+	 * @see KmsRetryPolicy
+	 */
+	public static final String PN_RETRY_MAX_DELAY = "aws.kms.retry.maxDelay";
+
+	/**
+	 * Optional rate-limit parameter -- the maximum number of KMS requests per
+	 * second sent to one endpoint. This is also the initial rate, which is
+	 * reduced when KMS throttles requests.
+	 *
+	 * @see AdaptiveRateLimiter
+	 */
+	public static final String PN_RATE_LIMIT_MAX = "aws.kms.rateLimit.max";
+
+	/**
+	 * Optional rate-limit parameter -- the rate, in requests per second, below
+	 * which throttling does not further reduce the request rate.
+	 *
+	 * @see AdaptiveRateLimiter
+	 */
+	public static final String PN_RATE_LIMIT_MIN = "aws.kms.rateLimit.min";
+
+	/**
+	 * Optional circuit-breaker parameter -- the number of consecutive failed
+	 * KMS requests to one endpoint under one master key that opens the
+	 * circuit breaker for that endpoint and key.
+	 *
+	 * @see KmsCircuitBreaker
+	 */
+	public static final String PN_BREAKER_FAILURE_THRESHOLD =
+		"aws.kms.breaker.failureThreshold";
+
+	/**
+	 * Optional circuit-breaker parameter -- the time, in milliseconds, for
+	 * which an open circuit breaker fails requests before it admits a trial
+	 * request.
+	 *
+	 * @see KmsCircuitBreaker
+	 */
+	public static final String PN_BREAKER_OPEN_DURATION =
+		"aws.kms.breaker.openDuration";
+
+	/**
+	 * Optional deadline parameter -- the time, in milliseconds, within which
+	 * the KMS requests of one encryption or decryption must complete when the
+	 * caller does not pass an explicit deadline. There is no default
+	 * deadline if this parameter is not defined or is 0.
+	 *
+	 * @see KmsDeadline
+	 */
+	public static final String PN_KMS_TIMEOUT = "aws.kms.timeout";
+
 	/**
 	 * The default name of a file defining AWS KMS property values.
 	 */
@@ -205,6 +390,94 @@ public class AwsKmsProperties {
 		return p == null ? null : p.getProperty(AwsKmsProperties.PN_ENDPOINT);
 	}
 
+	/**
+	 * Returns the value of an optional numeric property.
+	 *
+	 * @param p
+	 *            set of properties, possibly null
+	 * @param pn
+	 *            a non-null, non-blank property name
+	 * @param defaultValue
+	 *            the value returned if the property is not defined
+	 * @return the property value, or the default value if the property is not
+	 *         defined
+	 * @throws IllegalArgumentException
+	 *             if the property is defined but is not a valid number
+	 */
+	public static long getLongProperty(Properties p, String pn,
+			long defaultValue) {
+		Precondition.assertNonEmptyString("null or blank property name", pn);
+		long retVal = defaultValue;
+		String value = p == null ? null : p.getProperty(pn);
+		if (StringUtils.nonEmptyString(value)) {
+			try {
+				retVal = Long.parseLong(value.trim());
+			} catch (NumberFormatException x) {
+				String msg =
+					"Invalid value for property '" + pn + "': '" + value
+							+ "'";
+				throw new IllegalArgumentException(msg);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the value of an optional property that may have a fractional
+	 * part.
+	 *
+	 * @param p
+	 *            set of properties, possibly null
+	 * @param pn
+	 *            a non-null, non-blank property name
+	 * @param defaultValue
+	 *            the value returned if the property is not defined
+	 * @return the property value, or the default value if the property is not
+	 *         defined
+	 * @throws IllegalArgumentException
+	 *             if the property is defined but is not a valid number
+	 */
+	public static double getDoubleProperty(Properties p, String pn,
+			double defaultValue) {
+		Precondition.assertNonEmptyString("null or blank property name", pn);
+		double retVal = defaultValue;
+		String value = p == null ? null : p.getProperty(pn);
+		if (StringUtils.nonEmptyString(value)) {
+			try {
+				retVal = Double.parseDouble(value.trim());
+			} catch (NumberFormatException x) {
+				String msg =
+					"Invalid value for property '" + pn + "': '" + value
+							+ "'";
+				throw new IllegalArgumentException(msg);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the value of an optional boolean property.
+	 *
+	 * @param p
+	 *            set of properties, possibly null
+	 * @param pn
+	 *            a non-null, non-blank property name
+	 * @param defaultValue
+	 *            the value returned if the property is not defined
+	 * @return the property value, or the default value if the property is not
+	 *         defined
+	 */
+	public static boolean getBooleanProperty(Properties p, String pn,
+			boolean defaultValue) {
+		Precondition.assertNonEmptyString("null or blank property name", pn);
+		boolean retVal = defaultValue;
+		String value = p == null ? null : p.getProperty(pn);
+		if (StringUtils.nonEmptyString(value)) {
+			retVal = Boolean.parseBoolean(value.trim());
+		}
+		return retVal;
+	}
+
 	/**
 	 * Load the properties defined by a file specified by the System property
 	 * {@link #PN_AWS_KMS_PROPERTIES}, or if this property is not set, by the
@@ -235,6 +508,10 @@ public class AwsKmsProperties {
 	 * exits at the specified path, a FileNotFound exception is thrown. If
 	 * properties can not be loaded from the specified file, an IOException is
 	 * thrown.
+	 * <p/>
+	 * The file is read, and its encrypted values decrypted, only when it is
+	 * first loaded or after it changes; the returned properties are a copy of
+	 * a cached {@link AwsKmsPropertiesSnapshot snapshot}.
 	 * 
 	 * @param path
 	 *            a non-null, non-blank path to a properties file.
@@ -247,15 +524,7 @@ public class AwsKmsProperties {
 	public static Properties loadAwsKmsProperties(String path)
 			throws IOException {
 		Precondition.assertNonEmptyString("null or blank file path", path);
-		File f = new File(path);
-		if (!f.exists()) {
-			throw new FileNotFoundException("File does not exist: '" + path
-					+ "'");
-		}
-		Properties p = new Properties();
-		FileReader fr = new FileReader(f);
-		p.load(fr);
-		return p;
+		return AwsKmsPropertiesSnapshot.get(path).getProperties();
 	}
 
 	// public static ByteBuffer computeSecretBytes(AWSCredentials creds,
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.jasypt.encryption.StringEncryptor;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.choicemaker.utilcopy01.ConfigurationUtils;
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.StringUtils;
+
+/**
+ * An immutable copy of the AWS KMS properties loaded from a file, with
+ * encrypted values already decrypted and the AWS credentials already built.
+ * <p/>
+ * Snapshots are cached by file path, so that a file is read, and its
+ * encrypted values decrypted, once rather than every time a credential set,
+ * encryptor or decryptor is created. A cached snapshot is replaced when the
+ * modification time or the length of its file changes; the file is checked at
+ * most once per {@link #getCheckInterval() check interval}.
+ * <p/>
+ * Values enclosed by the {@link AwsKmsProperties#PN_ENC_START_MARKER start}
+ * and {@link AwsKmsProperties#PN_ENC_END_MARKER end} markers are decrypted
+ * with the password specified by the System property
+ * {@link AwsKmsProperties#PN_AWS_KMS_PROPERTIES_PASSWORD}, if it is set. Many
+ * values are decrypted in parallel by a pooled encryptor, because each
+ * decryption pays for a password-based key derivation.
+ */
+public final class AwsKmsPropertiesSnapshot {
+
+	private static final Logger logger = Logger
+			.getLogger(AwsKmsPropertiesSnapshot.class.getName());
+
+	/**
+	 * The number of encrypted values at or above which values are decrypted in
+	 * parallel by a pooled encryptor
+	 */
+	public static final int POOLED_DECRYPTION_THRESHOLD = 4;
+
+	/** Default minimum time between checks of a file for changes (msec) */
+	public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+	private static final ConcurrentMap<String, CacheEntry> SNAPSHOTS =
+		new ConcurrentHashMap<>();
+
+	private static volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+	/**
+	 * Returns the snapshot of the file specified by the System property
+	 * {@link AwsKmsProperties#PN_AWS_KMS_PROPERTIES}, or if this property is
+	 * not set, by the file at the default location
+	 * {@link AwsKmsProperties#DEFAULT_PROPERTY_PATH}.
+	 *
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 */
+	public static AwsKmsPropertiesSnapshot get() throws IOException {
+		String path =
+			System.getProperty(AwsKmsProperties.PN_AWS_KMS_PROPERTIES,
+					AwsKmsProperties.DEFAULT_PROPERTY_PATH);
+		return get(path);
+	}
+
+	/**
+	 * Returns the cached snapshot of a file, loading it if it has not been
+	 * loaded or has changed since it was loaded.
+	 *
+	 * @param path
+	 *            a non-null, non-blank path to a properties file
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IOException
+	 *             if properties can not be loaded from the file
+	 * @throws IllegalStateException
+	 *             if an encrypted value can not be decrypted
+	 */
+	public static AwsKmsPropertiesSnapshot get(String path) throws IOException {
+		Precondition.assertNonEmptyString("null or blank file path", path);
+		final File f = new File(path).getAbsoluteFile();
+		CacheEntry entry =
+			SNAPSHOTS.computeIfAbsent(f.getPath(), k -> new CacheEntry(f));
+		return entry.get();
+	}
+
+	/**
+	 * Loads a snapshot without caching it.
+	 *
+	 * @param password
+	 *            the password for encrypted values, or null if values are not
+	 *            encrypted
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 * @throws IllegalStateException
+	 *             if an encrypted value can not be decrypted
+	 */
+	public static AwsKmsPropertiesSnapshot load(File f, char[] password)
+			throws IOException {
+		Precondition.assertNonNullArgument("null file", f);
+		if (!f.exists()) {
+			throw new FileNotFoundException("File does not exist: '" + f
+					+ "'");
+		}
+		// Stat before reading, so a concurrent change triggers a reload
+		final long lastModified = f.lastModified();
+		final long length = f.length();
+		Properties raw = new Properties();
+		try (Reader r = new FileReader(f)) {
+			raw.load(r);
+		}
+		return new AwsKmsPropertiesSnapshot(f, lastModified, length, decrypt(
+				raw, password));
+	}
+
+	/**
+	 * Returns a copy of a set of properties in which encrypted values are
+	 * decrypted.
+	 *
+	 * @param password
+	 *            the password for encrypted values, or null to copy values
+	 *            unchanged
+	 */
+	static Properties decrypt(final Properties raw, char[] password) {
+		Properties retVal = new Properties();
+		List<String> encrypted = new ArrayList<>();
+		for (String pn : raw.stringPropertyNames()) {
+			String value = raw.getProperty(pn);
+			if (password != null && isEncrypted(value)) {
+				encrypted.add(pn);
+			} else {
+				retVal.setProperty(pn, value);
+			}
+		}
+		final int count = encrypted.size();
+		final int cores = Runtime.getRuntime().availableProcessors();
+		if (count >= POOLED_DECRYPTION_THRESHOLD && cores > 1) {
+			final StringEncryptor se =
+				ConfigurationUtils.createPooledTextEncryptor(password,
+						Math.min(count, cores));
+			Map<String, String> decrypted =
+				encrypted.parallelStream().collect(
+						Collectors.toMap(pn -> pn,
+								pn -> decrypt(pn, raw.getProperty(pn), se)));
+			retVal.putAll(decrypted);
+		} else if (count > 0) {
+			final StringEncryptor se =
+				ConfigurationUtils.createTextEncryptor(password);
+			for (String pn : encrypted) {
+				retVal.setProperty(pn, decrypt(pn, raw.getProperty(pn), se));
+			}
+		}
+		logger.fine("Decrypted " + count + " property values");
+		return retVal;
+	}
+
+	private static String decrypt(String pn, String value, StringEncryptor se) {
+		try {
+			return ConfigurationUtils.decryptText(value, se);
+		} catch (RuntimeException e) {
+			String msg =
+				"Unable to decrypt the value of property '" + pn + "': "
+						+ e.toString();
+			logger.severe(msg);
+			throw new IllegalStateException(msg, e);
+		}
+	}
+
+	private static boolean isEncrypted(String value) {
+		return value != null
+				&& value.startsWith(AwsKmsProperties.PN_ENC_START_MARKER)
+				&& value.endsWith(AwsKmsProperties.PN_ENC_END_MARKER);
+	}
+
+	private static char[] getSystemPassword() {
+		String s =
+			System.getProperty(AwsKmsProperties.PN_AWS_KMS_PROPERTIES_PASSWORD);
+		return StringUtils.nonEmptyString(s) ? s.toCharArray() : null;
+	}
+
+	/**
+	 * Returns the minimum time, in milliseconds, between checks of a file for
+	 * changes
+	 */
+	public static long getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * Sets the minimum time between checks of a file for changes. An interval
+	 * of zero checks a file every time its snapshot is requested.
+	 */
+	public static void setCheckInterval(long msecs) {
+		Precondition.assertBoolean("negative check interval", msecs >= 0);
+		checkInterval = msecs;
+	}
+
+	/**
+	 * Discards cached snapshots; for example, after the password System
+	 * property is changed.
+	 */
+	public static void clear() {
+		SNAPSHOTS.clear();
+	}
+
+	/** The cached snapshot of one file */
+	private static class CacheEntry {
+
+		private final File file;
+
+		// Written while holding the lock on this entry
+		private volatile AwsKmsPropertiesSnapshot snapshot;
+		private volatile long checked;
+
+		CacheEntry(File file) {
+			this.file = file;
+		}
+
+		AwsKmsPropertiesSnapshot get() throws IOException {
+			AwsKmsPropertiesSnapshot retVal = snapshot;
+			if (retVal == null
+					|| System.currentTimeMillis() - checked >= checkInterval) {
+				retVal = refresh();
+			}
+			return retVal;
+		}
+
+		private synchronized AwsKmsPropertiesSnapshot refresh()
+				throws IOException {
+			if (snapshot == null || snapshot.isModified()) {
+				if (snapshot != null) {
+					logger.info("Reloading modified properties: " + file);
+				}
+				snapshot = load(file, getSystemPassword());
+			}
+			checked = System.currentTimeMillis();
+			return snapshot;
+		}
+	}
+
+	private final File file;
+	private final long lastModified;
+	private final long length;
+	private final Properties properties;
+	private final AWSCredentials credentials;
+
+	private AwsKmsPropertiesSnapshot(File file, long lastModified,
+			long length, Properties properties) {
+		this.file = file;
+		this.lastModified = lastModified;
+		this.length = length;
+		this.properties = properties;
+		this.credentials = createCredentials(properties);
+	}
+
+	private static AWSCredentials createCredentials(Properties p) {
+		AWSCredentials retVal = null;
+		final String accessKey = AwsKmsProperties.getAccessKey(p);
+		final String secretKey = AwsKmsProperties.getSecretKey(p);
+		if (StringUtils.nonEmptyString(accessKey)
+				&& StringUtils.nonEmptyString(secretKey)) {
+			retVal = AwsKmsCredentialSet.createAWSCredentials(p);
+		}
+		return retVal;
+	}
+
+	/** Checks whether the file has changed since this snapshot was loaded */
+	public boolean isModified() {
+		return !file.exists() || file.lastModified() != lastModified
+				|| file.length() != length;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Returns a modifiable copy of the properties of this snapshot */
+	public Properties getProperties() {
+		Properties retVal = new Properties();
+		retVal.putAll(properties);
+		return retVal;
+	}
+
+	public String getProperty(String pn) {
+		Precondition.assertNonEmptyString("null or blank property name", pn);
+		return properties.getProperty(pn);
+	}
+
+	/**
+	 * Returns the AWS credentials defined by this snapshot, or null if the
+	 * access key or secret key is not defined.
+	 */
+	public AWSCredentials getCredentials() {
+		return credentials;
+	}
+
+	@Override
+	public String toString() {
+		return "AwsKmsPropertiesSnapshot [file=" + file + ", lastModified="
+				+ lastModified + ", length=" + length + "]";
+	}
+
+}
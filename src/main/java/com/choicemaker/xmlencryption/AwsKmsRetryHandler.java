@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Sends KMS requests under a {@link KmsRetryPolicy retry policy} and an
+ * {@link AdaptiveRateLimiter adaptive rate limit}, and keeps
+ * {@link KmsOperationMetrics metrics} for each kind of operation. Requests
+ * may also be subject to a {@link KmsDeadline deadline} and to a
+ * {@link KmsCircuitBreaker circuit breaker} for each endpoint and master key.
+ * <p/>
+ * Every KMS request made by {@link AwsKmsUtils} passes through this class.
+ * A request is sent under the policy passed by its caller -- for example, a
+ * policy {@link KmsRetryPolicy#createRetryPolicy(java.util.Properties) built
+ * from the properties} of an encryptor or decryptor -- or else under the
+ * process-wide {@link #getRetryPolicy() current policy}. Each endpoint has
+ * its own rate limiter, which is created when the endpoint is first used,
+ * with bounds taken from the policy of that first request. Since
+ * retries are handled here, the client configurations created by
+ * {@link AwsKmsClientRegistry#createClientConfiguration(java.util.Properties)}
+ * disable the AWS SDK's own retries.
+ */
+public final class AwsKmsRetryHandler {
+
+	private static final Logger logger = Logger
+			.getLogger(AwsKmsRetryHandler.class.getName());
+
+	/** Operation name used for GenerateDataKey requests */
+	public static final String OP_GENERATE_DATA_KEY = "GenerateDataKey";
+
+	/** Operation name used for Decrypt requests */
+	public static final String OP_DECRYPT = "Decrypt";
+
+	/**
+	 * Maximum number of circuit breakers that are kept. Master key ids are
+	 * read from the documents being decrypted, so the number of distinct
+	 * keys is not under the control of the application.
+	 */
+	public static final int MAX_CIRCUIT_BREAKERS = 1024;
+
+	/** Rate-limiter key used for the default endpoint */
+	private static final String DEFAULT_ENDPOINT = "";
+
+	private static final AtomicReference<KmsRetryPolicy> POLICY =
+		new AtomicReference<>(KmsRetryPolicy.DEFAULT);
+
+	private static final ConcurrentMap<String, AdaptiveRateLimiter> LIMITERS =
+		new ConcurrentHashMap<>();
+
+	private static final ConcurrentMap<String, KmsOperationMetrics> METRICS =
+		new ConcurrentHashMap<>();
+
+	/** Circuit breakers keyed by endpoint and master key */
+	private static final ConcurrentMap<List<String>, KmsCircuitBreaker> BREAKERS =
+		new ConcurrentHashMap<>();
+
+	public static KmsRetryPolicy getRetryPolicy() {
+		return POLICY.get();
+	}
+
+	/**
+	 * Sets the policy used for subsequent requests. Rate limiters that
+	 * already exist keep their bounds; call {@link #resetRateLimiters()} to
+	 * apply new bounds to every endpoint.
+	 */
+	public static void setRetryPolicy(KmsRetryPolicy policy) {
+		Precondition.assertNonNullArgument("null policy", policy);
+		POLICY.set(policy);
+	}
+
+	/** Returns the rate limiter for an endpoint, creating it if necessary */
+	public static AdaptiveRateLimiter getRateLimiter(String endpoint) {
+		return getRateLimiter(endpoint, getRetryPolicy());
+	}
+
+	private static AdaptiveRateLimiter getRateLimiter(String endpoint,
+			final KmsRetryPolicy policy) {
+		final String key = endpoint == null ? DEFAULT_ENDPOINT : endpoint;
+		return LIMITERS.computeIfAbsent(key,
+				k -> new AdaptiveRateLimiter(policy.getMaxRate(), policy
+						.getMinRate()));
+	}
+
+	/** Discards every rate limiter, and with it the learned request rates */
+	public static void resetRateLimiters() {
+		LIMITERS.clear();
+	}
+
+	/**
+	 * Returns the circuit breaker for an endpoint and master key, creating it
+	 * if necessary with parameters taken from the current retry policy.
+	 * <p/>
+	 * At most {@link #MAX_CIRCUIT_BREAKERS} breakers are kept. When that many
+	 * exist, {@link KmsCircuitBreaker#isIdle() idle} breakers are discarded,
+	 * since a new breaker would behave the same. If no breaker is idle, the
+	 * returned breaker is not kept, so failures under a new endpoint and
+	 * master key do not accumulate until some breaker becomes idle.
+	 */
+	public static KmsCircuitBreaker getCircuitBreaker(String endpoint,
+			String masterKeyId) {
+		return getCircuitBreaker(endpoint, masterKeyId, getRetryPolicy());
+	}
+
+	private static KmsCircuitBreaker getCircuitBreaker(final String endpoint,
+			final String masterKeyId, final KmsRetryPolicy policy) {
+		final List<String> key =
+			Arrays.asList(endpoint == null ? DEFAULT_ENDPOINT : endpoint,
+					masterKeyId);
+		KmsCircuitBreaker retVal = BREAKERS.get(key);
+		if (retVal == null) {
+			if (BREAKERS.size() >= MAX_CIRCUIT_BREAKERS) {
+				removeIdleCircuitBreakers();
+			}
+			final Function<List<String>, KmsCircuitBreaker> create =
+				k -> new KmsCircuitBreaker(endpoint, masterKeyId, policy
+						.getBreakerThreshold(), policy
+						.getBreakerOpenDuration());
+			if (BREAKERS.size() < MAX_CIRCUIT_BREAKERS) {
+				retVal = BREAKERS.computeIfAbsent(key, create);
+			} else {
+				logger.fine("Too many circuit breakers; not keeping " + key);
+				retVal = create.apply(key);
+			}
+		}
+		return retVal;
+	}
+
+	private static void removeIdleCircuitBreakers() {
+		for (Iterator<KmsCircuitBreaker> it = BREAKERS.values().iterator(); it
+				.hasNext();) {
+			if (it.next().isIdle()) {
+				it.remove();
+			}
+		}
+	}
+
+	/** Returns every circuit breaker that has been created */
+	public static List<KmsCircuitBreaker> getAllCircuitBreakers() {
+		return new ArrayList<>(BREAKERS.values());
+	}
+
+	/** Discards every circuit breaker, closing any that are open */
+	public static void resetCircuitBreakers() {
+		BREAKERS.clear();
+	}
+
+	/** Returns the metrics for an operation, creating them if necessary */
+	public static KmsOperationMetrics getMetrics(String operation) {
+		Precondition.assertNonEmptyString("null or blank operation", operation);
+		return METRICS.computeIfAbsent(operation,
+				op -> new KmsOperationMetrics(op));
+	}
+
+	/** Returns the metrics of every operation that has been requested */
+	public static List<KmsOperationMetrics> getAllMetrics() {
+		return new ArrayList<>(METRICS.values());
+	}
+
+	/**
+	 * Logs the metrics of every operation, and the state of every circuit
+	 * breaker, at INFO level
+	 */
+	public static void logMetrics() {
+		for (KmsOperationMetrics m : METRICS.values()) {
+			logger.info(m.toString());
+		}
+		for (KmsCircuitBreaker b : BREAKERS.values()) {
+			logger.info(b.toString());
+		}
+	}
+
+	/**
+	 * Sends a request, waiting for the endpoint's rate limiter before each
+	 * attempt, and retrying retryable failures with jittered exponential
+	 * backoff. The request is not subject to a deadline or to a circuit
+	 * breaker.
+	 *
+	 * @param operation
+	 *            the name under which metrics are recorded
+	 * @param endpoint
+	 *            the KMS endpoint, or null for the default endpoint
+	 * @param request
+	 *            sends one attempt of the request
+	 * @return the result of the first successful attempt
+	 * @throws AmazonClientException
+	 *             the failure of the last attempt, if every allowed attempt
+	 *             fails or a failure is not retryable. If the thread is
+	 *             interrupted while waiting, the most recent failure is
+	 *             thrown, or an AmazonClientException if there was none, and
+	 *             the interrupt status of the thread is set.
+	 */
+	public static <T> T execute(String operation, String endpoint,
+			Supplier<T> request) {
+		Precondition.assertNonNullArgument("null request", request);
+		return execute(operation, endpoint, getRetryPolicy(), null,
+				KmsDeadline.NONE, timeout -> request.get());
+	}
+
+	/**
+	 * Sends a KMS request like {@link #execute(String, String, Supplier)},
+	 * subject to a deadline and to the
+	 * {@link #getCircuitBreaker(String, String) circuit breaker} of the
+	 * endpoint and master key. Before each attempt, the client execution
+	 * timeout of the request is set to the time that remains before the
+	 * deadline. Neither a retry nor a wait for the rate limiter is scheduled
+	 * that could not end before the deadline.
+	 *
+	 * @param masterKeyId
+	 *            the master key named by the request
+	 * @param deadline
+	 *            the deadline of the request, or {@link KmsDeadline#NONE}
+	 * @param request
+	 *            the request, whose client execution timeout is set by this
+	 *            method
+	 * @param call
+	 *            sends one attempt of the request
+	 * @throws KmsCircuitOpenException
+	 *             if the circuit breaker is open, in which case no attempt is
+	 *             made
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires before an attempt succeeds
+	 */
+	public static <R extends AmazonWebServiceRequest, T> T execute(
+			String operation, String endpoint, String masterKeyId,
+			KmsDeadline deadline, R request, Function<R, T> call) {
+		return execute(operation, endpoint, masterKeyId, null, deadline,
+				request, call);
+	}
+
+	/**
+	 * Sends a KMS request like {@link #execute(String, String, String,
+	 * KmsDeadline, AmazonWebServiceRequest, Function)}, under a specified
+	 * retry policy.
+	 *
+	 * @param policy
+	 *            the retry policy of the request, or null for the
+	 *            {@link #getRetryPolicy() current policy}. If the request is
+	 *            the first to the endpoint, or to the endpoint and master key,
+	 *            the policy also sets the bounds of the endpoint's rate
+	 *            limiter, or the parameters of the circuit breaker.
+	 */
+	public static <R extends AmazonWebServiceRequest, T> T execute(
+			String operation, String endpoint, String masterKeyId,
+			KmsRetryPolicy policy, KmsDeadline deadline, final R request,
+			final Function<R, T> call) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		Precondition.assertNonNullArgument("null request", request);
+		Precondition.assertNonNullArgument("null call", call);
+		if (policy == null) {
+			policy = getRetryPolicy();
+		}
+		final KmsCircuitBreaker breaker =
+			getCircuitBreaker(endpoint, masterKeyId, policy);
+		return execute(operation, endpoint, policy, breaker, deadline,
+				timeout -> {
+					if (timeout > 0) {
+						request.setSdkClientExecutionTimeout(timeout);
+					}
+					return call.apply(request);
+				});
+	}
+
+	private static <T> T execute(String operation, String endpoint,
+			KmsRetryPolicy policy, KmsCircuitBreaker breaker,
+			KmsDeadline deadline, IntFunction<T> attempt) {
+		final KmsOperationMetrics metrics = getMetrics(operation);
+		metrics.recordRequest();
+		if (breaker == null) {
+			return sendWithRetries(operation, endpoint, policy, metrics,
+					deadline, attempt);
+		}
+
+		if (!breaker.tryAcquire()) {
+			metrics.recordRejection();
+			throw new KmsCircuitOpenException(operation
+					+ " rejected: circuit breaker open for endpoint "
+					+ endpoint + ", master key " + breaker.getMasterKeyId());
+		}
+		try {
+			T retVal =
+				sendWithRetries(operation, endpoint, policy, metrics,
+						deadline, attempt);
+			breaker.onSuccess();
+			return retVal;
+		} catch (KmsDeadlineExceededException x) {
+			// An expired caller deadline says nothing about the endpoint,
+			// unless an attempt was sent and failed, for example by timing
+			// out on the wire
+			if (x.getCause() instanceof AmazonClientException) {
+				breaker.onFailure();
+			} else {
+				breaker.onIgnored();
+			}
+			throw x;
+		} catch (AmazonClientException x) {
+			if (Thread.currentThread().isInterrupted()) {
+				breaker.onIgnored();
+			} else if (policy.isRetryable(x)) {
+				breaker.onFailure();
+			} else {
+				// The endpoint answered; the request itself was bad
+				breaker.onSuccess();
+			}
+			throw x;
+		} catch (RuntimeException | Error x) {
+			breaker.onIgnored();
+			throw x;
+		}
+	}
+
+	/**
+	 * @param attempt
+	 *            sends one attempt, given its timeout in milliseconds, or 0
+	 *            if the attempt has no timeout
+	 */
+	private static <T> T sendWithRetries(String operation, String endpoint,
+			KmsRetryPolicy policy, KmsOperationMetrics metrics,
+			KmsDeadline deadline, IntFunction<T> attempt) {
+		final AdaptiveRateLimiter limiter = getRateLimiter(endpoint, policy);
+		AmazonClientException failure = null;
+		for (int count = 1;; count++) {
+			try {
+				if (!deadline.isBounded()) {
+					limiter.acquire();
+				} else if (!limiter.tryAcquire(deadline
+						.remaining(TimeUnit.MILLISECONDS),
+						TimeUnit.MILLISECONDS)) {
+					throw deadlineExceeded(operation, metrics, failure);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				metrics.recordFailure();
+				throw interrupted(operation, failure, e);
+			}
+			int timeout = 0;
+			if (deadline.isBounded()) {
+				final long remaining =
+					deadline.remaining(TimeUnit.MILLISECONDS);
+				if (remaining <= 0) {
+					throw deadlineExceeded(operation, metrics, failure);
+				}
+				timeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+			}
+			metrics.recordAttempt();
+			try {
+				T retVal = attempt.apply(timeout);
+				limiter.onSuccess();
+				return retVal;
+			} catch (AmazonClientException x) {
+				failure = x;
+				if (KmsRetryPolicy.isThrottle(x)) {
+					metrics.recordThrottle();
+					limiter.onThrottle();
+				}
+				if (deadline.isExpired() && policy.isRetryable(x)) {
+					throw deadlineExceeded(operation, metrics, x);
+				}
+				if (count >= policy.getMaxAttempts()
+						|| !policy.isRetryable(x)) {
+					metrics.recordFailure();
+					throw x;
+				}
+			}
+			final long delay = policy.computeDelay(count);
+			if (deadline.isBounded()
+					&& delay >= deadline.remaining(TimeUnit.MILLISECONDS)) {
+				throw deadlineExceeded(operation, metrics, failure);
+			}
+			metrics.recordRetry(delay);
+			logger.fine(operation + " attempt " + count + " failed ("
+					+ failure + "); retrying in " + delay + " msec");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				metrics.recordFailure();
+				throw interrupted(operation, failure, e);
+			}
+		}
+	}
+
+	private static KmsDeadlineExceededException deadlineExceeded(
+			String operation, KmsOperationMetrics metrics,
+			AmazonClientException failure) {
+		metrics.recordDeadlineExceeded();
+		metrics.recordFailure();
+		final String msg =
+			operation + " did not complete before its deadline";
+		return failure == null ? new KmsDeadlineExceededException(msg)
+				: new KmsDeadlineExceededException(msg, failure);
+	}
+
+	private static AmazonClientException interrupted(String operation,
+			AmazonClientException failure, InterruptedException e) {
+		AmazonClientException retVal = failure;
+		if (retVal == null) {
+			retVal =
+				new AmazonClientException(operation
+						+ " interrupted before it was sent", e);
+		}
+		return retVal;
+	}
+
+	private AwsKmsRetryHandler() {
+	}
+
+}
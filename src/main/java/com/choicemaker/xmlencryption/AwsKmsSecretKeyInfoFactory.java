@@ -15,16 +15,13 @@ import static com.choicemaker.xmlencryption.DefaultAlgorithms.DEFAULT_AWS_KEY_EN
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.kms.model.GenerateDataKeyResult;
-import com.choicemaker.utilcopy01.DOMUtils;
 import com.choicemaker.utilcopy01.Precondition;
-import com.choicemaker.utilcopy01.WSS4JConstants;
 
 public class AwsKmsSecretKeyInfoFactory implements SecretKeyInfoFactory {
 
@@ -65,6 +62,10 @@ public class AwsKmsSecretKeyInfoFactory implements SecretKeyInfoFactory {
 	private final String masterKeyId;
 	private final String algorithm;
 	private final AWSCredentials creds;
+	private final ClientConfiguration clientConfig;
+
+	/** The policy built from the properties, or null if none is defined */
+	private final KmsRetryPolicy retryPolicy;
 
 	public AwsKmsSecretKeyInfoFactory() throws IOException {
 		this(DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM);
@@ -79,7 +80,9 @@ public class AwsKmsSecretKeyInfoFactory implements SecretKeyInfoFactory {
 	}
 
 	public AwsKmsSecretKeyInfoFactory(CredentialSet cs, String algorithm) {
-		this(cs.getProperties(), algorithm);
+		this(cs.getProperties(), algorithm,
+				cs instanceof AwsKmsCredentialSet ? ((AwsKmsCredentialSet) cs)
+						.getAWSCredentials() : null);
 	}
 
 	public AwsKmsSecretKeyInfoFactory(Properties p) {
@@ -87,49 +90,106 @@ public class AwsKmsSecretKeyInfoFactory implements SecretKeyInfoFactory {
 	}
 
 	public AwsKmsSecretKeyInfoFactory(Properties p, String algorithm) {
+		this(p, algorithm, null);
+	}
+
+	/**
+	 * @param creds
+	 *            credentials already built from the properties, or null
+	 */
+	private AwsKmsSecretKeyInfoFactory(Properties p, String algorithm,
+			AWSCredentials creds) {
 		Precondition.assertNonEmptyString("null or blank algorithm", algorithm);
 		Precondition.assertBoolean("invalid AWS KMS credentials",
 				AwsKmsProperties.hasAwsParameters(p));
 
 		this.masterKeyId = AwsKmsProperties.getMasterKeyId(p);
 		this.endpoint = AwsKmsProperties.getEndpoint(p);
-		this.creds = AwsKmsCredentialSet.createAWSCredentials(p);
+		this.creds =
+			creds != null ? creds : AwsKmsCredentialSet.createAWSCredentials(p);
+		this.clientConfig = AwsKmsClientRegistry.createClientConfiguration(p);
+		this.retryPolicy =
+			KmsRetryPolicy.hasRetryProperties(p) ? KmsRetryPolicy
+					.createRetryPolicy(p) : null;
 		this.algorithm = algorithm;
 	}
 
 	@Override
 	public SecretKeyInfo createSessionKey() {
-		return createSessionKey(creds, masterKeyId, algorithm, endpoint);
+		return createSessionKey(KmsDeadline.NONE);
+	}
+
+	@Override
+	public SecretKeyInfo createSessionKey(KmsDeadline deadline) {
+		return createSessionKey(creds, masterKeyId, algorithm, endpoint,
+				clientConfig, deadline, retryPolicy);
 	}
 
 	public static SecretKeyInfo createSessionKey(AWSCredentials creds,
 			String masterKeyId, String algorithm, String endpoint) {
+		return createSessionKey(creds, masterKeyId, algorithm, endpoint, null);
+	}
+
+	/**
+	 * Generates a data key using a shared KMS client.
+	 *
+	 * @param config
+	 *            the configuration of the shared client, used only if the
+	 *            client must be created; may be null.
+	 * @see AwsKmsClientRegistry#getClient(AWSCredentials, String,
+	 *      ClientConfiguration)
+	 */
+	public static SecretKeyInfo createSessionKey(AWSCredentials creds,
+			String masterKeyId, String algorithm, String endpoint,
+			ClientConfiguration config) {
+		return createSessionKey(creds, masterKeyId, algorithm, endpoint,
+				config, KmsDeadline.NONE);
+	}
+
+	/**
+	 * Generates a data key using a shared KMS client, within a deadline.
+	 *
+	 * @param deadline
+	 *            a deadline, or {@link KmsDeadline#NONE}
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires before KMS answers
+	 */
+	public static SecretKeyInfo createSessionKey(AWSCredentials creds,
+			String masterKeyId, String algorithm, String endpoint,
+			ClientConfiguration config, KmsDeadline deadline) {
+		return createSessionKey(creds, masterKeyId, algorithm, endpoint,
+				config, deadline, null);
+	}
+
+	/**
+	 * Generates a data key using a shared KMS client, within a deadline and
+	 * under a retry policy.
+	 *
+	 * @param policy
+	 *            a retry policy, or null for the
+	 *            {@link AwsKmsRetryHandler#getRetryPolicy() current policy}
+	 */
+	public static SecretKeyInfo createSessionKey(AWSCredentials creds,
+			String masterKeyId, String algorithm, String endpoint,
+			ClientConfiguration config, KmsDeadline deadline,
+			KmsRetryPolicy policy) {
 		GenerateDataKeyResult dataKeyResult =
-			AwsKmsUtils
-					.generateDataKey(creds, masterKeyId, algorithm, endpoint);
+			AwsKmsUtils.generateDataKey(creds, masterKeyId, algorithm,
+					endpoint, config, deadline, policy);
 
+		// Copy the plaintext key straight into pooled key material, and
+		// clear the copy held by the result
 		ByteBuffer plaintextKey = dataKeyResult.getPlaintext();
-		final byte[] key = new byte[plaintextKey.remaining()];
-		plaintextKey.get(key);
+		final KeyMaterial key = KeyMaterial.copyOf(plaintextKey);
+		KeyMaterialPool.zeroize(plaintextKey);
 
 		ByteBuffer encryptedKey = dataKeyResult.getCiphertextBlob();
 		final byte[] encKey = new byte[encryptedKey.remaining()];
 		encryptedKey.get(encKey);
 
-		Document doc = DOMUtils.newDocument();
-		final Element keyInfoElement =
-			doc.createElementNS(WSS4JConstants.SIG_NS,
-					WSS4JConstants.SIG_PREFIX + ":" + WSS4JConstants.KEYINFO_LN);
-		keyInfoElement.setAttributeNS(WSS4JConstants.XMLNS_NS, "xmlns:"
-				+ WSS4JConstants.SIG_PREFIX, WSS4JConstants.SIG_NS);
-		Element keyNameElement =
-			doc.createElementNS(WSS4JConstants.SIG_NS,
-					WSS4JConstants.SIG_PREFIX + ":KeyName");
-		keyNameElement.setTextContent(masterKeyId);
-		keyInfoElement.appendChild(keyNameElement);
-
-		SecretKeyInfo retVal = new SecretKeyInfo(key, encKey, keyInfoElement);
-		logger.fine(retVal.toString());
+		// The KeyInfo is built from the master key id in each document
+		SecretKeyInfo retVal = new SecretKeyInfo(key, encKey, masterKeyId);
+		logger.log(Level.FINE, "Created session key: {0}", retVal);
 
 		return retVal;
 	}
@@ -11,12 +11,20 @@
 package com.choicemaker.xmlencryption;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.xml.security.exceptions.Base64DecodingException;
 import org.apache.xml.security.utils.Base64;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.services.kms.AWSKMSClient;
+import com.amazonaws.services.kms.AWSKMS;
 import com.amazonaws.services.kms.model.DecryptRequest;
 import com.amazonaws.services.kms.model.DecryptResult;
 import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
@@ -26,9 +34,102 @@ import com.choicemaker.utilcopy01.StringUtils;
 
 public class AwsKmsUtils {
 
+	/** In-flight Decrypt requests, keyed by the request parameters */
+	private static final SingleFlight<DecryptKey, byte[]> DECRYPTS =
+		new SingleFlight<>();
+
 	public static ByteBuffer computeSecretBytes(AWSCredentials creds,
 			String masterKeyId, String algorithm, String encValueSecretKey,
 			String endpoint) throws Base64DecodingException {
+		return computeSecretBytes(creds, masterKeyId, algorithm,
+				encValueSecretKey, endpoint, null);
+	}
+
+	/**
+	 * Decrypts an encrypted data key using a shared KMS client.
+	 *
+	 * @param config
+	 *            the configuration of the shared client, used only if the
+	 *            client must be created; may be null.
+	 * @see AwsKmsClientRegistry#getClient(AWSCredentials, String,
+	 *      ClientConfiguration)
+	 */
+	public static ByteBuffer computeSecretBytes(AWSCredentials creds,
+			String masterKeyId, String algorithm, String encValueSecretKey,
+			String endpoint, ClientConfiguration config)
+			throws Base64DecodingException {
+		return computeSecretBytes(creds, masterKeyId, algorithm,
+				encValueSecretKey, endpoint, config, null);
+	}
+
+	/**
+	 * Decrypts an encrypted data key, using a cache of previously decrypted
+	 * keys to avoid a KMS Decrypt request when possible. Concurrent requests
+	 * to decrypt the same encrypted key under the same master key, with the
+	 * same credentials and endpoint, are coalesced into a single KMS request
+	 * whose result is shared.
+	 *
+	 * @param config
+	 *            the configuration of the shared client, used only if the
+	 *            client must be created; may be null.
+	 * @param cache
+	 *            a cache of plaintext data keys; may be null, in which case
+	 *            every call that is not coalesced with a concurrent call
+	 *            results in a KMS request. A key returned by KMS, to the
+	 *            caller that sent the request or to callers coalesced with
+	 *            it, is cached but not counted as a use of the cached entry.
+	 * @return a buffer holding the plaintext data key. The buffer does not
+	 *         share storage with the cache or with other callers.
+	 */
+	public static ByteBuffer computeSecretBytes(final AWSCredentials creds,
+			final String masterKeyId, String algorithm,
+			String encValueSecretKey, final String endpoint,
+			final ClientConfiguration config, final DataKeyCache cache)
+			throws Base64DecodingException {
+		return computeSecretBytes(creds, masterKeyId, algorithm,
+				encValueSecretKey, endpoint, config, cache, KmsDeadline.NONE);
+	}
+
+	/**
+	 * Decrypts an encrypted data key like the method without a deadline,
+	 * except that the KMS request, or the wait for a concurrent request for
+	 * the same key, must complete before a deadline.
+	 *
+	 * @param deadline
+	 *            the deadline, or {@link KmsDeadline#NONE}
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires first
+	 * @throws KmsCircuitOpenException
+	 *             if the circuit breaker of the endpoint and master key is
+	 *             open
+	 * @see #computeSecretBytes(AWSCredentials, String, String, String, String,
+	 *      ClientConfiguration, DataKeyCache)
+	 */
+	public static ByteBuffer computeSecretBytes(AWSCredentials creds,
+			String masterKeyId, String algorithm, String encValueSecretKey,
+			String endpoint, ClientConfiguration config, DataKeyCache cache,
+			KmsDeadline deadline) throws Base64DecodingException {
+		return computeSecretBytes(creds, masterKeyId, algorithm,
+				encValueSecretKey, endpoint, config, cache, deadline, null);
+	}
+
+	/**
+	 * Decrypts an encrypted data key like the method without a retry policy,
+	 * except that the KMS request is retried under a specified policy.
+	 *
+	 * @param policy
+	 *            the retry policy, or null for the
+	 *            {@link AwsKmsRetryHandler#getRetryPolicy() current policy}
+	 * @see #computeSecretBytes(AWSCredentials, String, String, String, String,
+	 *      ClientConfiguration, DataKeyCache, KmsDeadline)
+	 */
+	public static ByteBuffer computeSecretBytes(final AWSCredentials creds,
+			final String masterKeyId, String algorithm,
+			String encValueSecretKey, final String endpoint,
+			final ClientConfiguration config, final DataKeyCache cache,
+			final KmsDeadline deadline, final KmsRetryPolicy policy)
+			throws Base64DecodingException {
+		Precondition.assertNonNullArgument("null deadline", deadline);
 		Precondition.assertNonNullArgument("null credentials", creds);
 		Precondition.assertNonEmptyString("null or blank master key id",
 				masterKeyId);
@@ -38,19 +139,227 @@ public class AwsKmsUtils {
 			algorithm = DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM;
 		}
 
-		AWSKMSClient kms = new AWSKMSClient(creds);
-		if (endpoint != null) {
-			kms.setEndpoint(endpoint);
+		byte[] encBase64 = encValueSecretKey.getBytes();
+		final byte[] encBytes = Base64.decode(encBase64);
+		if (cache != null) {
+			byte[] cached = cache.get(creds, endpoint, masterKeyId, encBytes);
+			if (cached != null) {
+				return ByteBuffer.wrap(cached);
+			}
 		}
 
-		byte[] encBase64 = encValueSecretKey.getBytes();
-		byte[] encBytes = Base64.decode(encBase64);
-		ByteBuffer encryptedKey = ByteBuffer.wrap(encBytes);
-		DecryptRequest request =
-			new DecryptRequest().withCiphertextBlob(encryptedKey);
-		DecryptResult result = kms.decrypt(request);
-		ByteBuffer retVal = result.getPlaintext();
+		final DecryptKey key =
+			new DecryptKey(creds, endpoint, masterKeyId, encBytes);
+		final Supplier<byte[]> operation =
+			() -> decrypt(creds, masterKeyId, encBytes, endpoint, config,
+					cache, deadline, policy);
+		byte[] plaintext;
+		if (deadline.isBounded()) {
+			try {
+				plaintext =
+					DECRYPTS.execute(key, operation,
+							deadline.remaining(TimeUnit.MILLISECONDS),
+							TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				throw new KmsDeadlineExceededException(
+						"Concurrent Decrypt did not complete before the "
+								+ "deadline", e);
+			}
+		} else {
+			plaintext = DECRYPTS.execute(key, operation);
+		}
+		return ByteBuffer.wrap(plaintext.clone());
+	}
+
+	/**
+	 * Decrypts an encrypted data key on the {@link AwsKmsExecutor KMS
+	 * executor}. A cached key is returned without a KMS request, and without
+	 * using the executor. Concurrent requests for the same key are coalesced,
+	 * as they are by the synchronous method, and a coalesced request does not
+	 * occupy an executor thread while it waits.
+	 *
+	 * @return a future that completes with the plaintext data key, or
+	 *         completes exceptionally with a {@link CompletionException} that
+	 *         wraps the cause of failure; for example, a
+	 *         {@link Base64DecodingException}
+	 * @see #computeSecretBytes(AWSCredentials, String, String, String, String,
+	 *      ClientConfiguration, DataKeyCache)
+	 */
+	public static CompletableFuture<ByteBuffer> computeSecretBytesAsync(
+			final AWSCredentials creds, final String masterKeyId,
+			final String algorithm, final String encValueSecretKey,
+			final String endpoint, final ClientConfiguration config,
+			final DataKeyCache cache) {
+		return computeSecretBytesAsync(creds, masterKeyId, algorithm,
+				encValueSecretKey, endpoint, config, cache, KmsDeadline.NONE);
+	}
+
+	/**
+	 * Decrypts an encrypted data key on the KMS executor, subject to a
+	 * deadline. The deadline applies to the KMS request; a caller whose
+	 * request is coalesced with a concurrent request shares the deadline of
+	 * that request.
+	 *
+	 * @param deadline
+	 *            the deadline, or {@link KmsDeadline#NONE}
+	 * @see #computeSecretBytesAsync(AWSCredentials, String, String, String,
+	 *      String, ClientConfiguration, DataKeyCache)
+	 */
+	public static CompletableFuture<ByteBuffer> computeSecretBytesAsync(
+			AWSCredentials creds, String masterKeyId, String algorithm,
+			String encValueSecretKey, String endpoint,
+			ClientConfiguration config, DataKeyCache cache,
+			KmsDeadline deadline) {
+		return computeSecretBytesAsync(creds, masterKeyId, algorithm,
+				encValueSecretKey, endpoint, config, cache, deadline, null);
+	}
+
+	/**
+	 * Decrypts an encrypted data key on the KMS executor, subject to a
+	 * deadline and to a retry policy.
+	 *
+	 * @param policy
+	 *            the retry policy, or null for the
+	 *            {@link AwsKmsRetryHandler#getRetryPolicy() current policy}
+	 * @see #computeSecretBytesAsync(AWSCredentials, String, String, String,
+	 *      String, ClientConfiguration, DataKeyCache, KmsDeadline)
+	 */
+	public static CompletableFuture<ByteBuffer> computeSecretBytesAsync(
+			final AWSCredentials creds, final String masterKeyId,
+			final String algorithm, final String encValueSecretKey,
+			final String endpoint, final ClientConfiguration config,
+			final DataKeyCache cache, final KmsDeadline deadline,
+			final KmsRetryPolicy policy) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		Precondition.assertNonNullArgument("null credentials", creds);
+		Precondition.assertNonEmptyString("null or blank master key id",
+				masterKeyId);
+		Precondition.assertNonEmptyString("null or blank encrypted value",
+				encValueSecretKey);
 
+		final byte[] encBytes;
+		try {
+			encBytes = Base64.decode(encValueSecretKey.getBytes());
+		} catch (Base64DecodingException e) {
+			CompletableFuture<ByteBuffer> retVal = new CompletableFuture<>();
+			retVal.completeExceptionally(new CompletionException(e));
+			return retVal;
+		}
+		if (cache != null) {
+			byte[] cached = cache.get(creds, endpoint, masterKeyId, encBytes);
+			if (cached != null) {
+				return CompletableFuture.completedFuture(ByteBuffer
+						.wrap(cached));
+			}
+		}
+
+		final DecryptKey key =
+			new DecryptKey(creds, endpoint, masterKeyId, encBytes);
+		return DECRYPTS.executeAsync(
+				key,
+				() -> decryptAsync(creds, masterKeyId, encBytes, endpoint,
+						config, cache, deadline, policy)).thenApply(
+				plaintext -> ByteBuffer.wrap(plaintext.clone()));
+	}
+
+	/**
+	 * Returns the number of decrypt requests that were satisfied by sharing a
+	 * concurrent KMS request for the same encrypted key.
+	 */
+	public static long getCoalescedDecryptCount() {
+		return DECRYPTS.getFollowerCount();
+	}
+
+	/**
+	 * Sends a Decrypt request to KMS and caches the result. The returned
+	 * array may be shared by coalesced callers, so it must not be modified.
+	 */
+	private static byte[] decrypt(AWSCredentials creds, String masterKeyId,
+			byte[] encBytes, String endpoint, ClientConfiguration config,
+			DataKeyCache cache, KmsDeadline deadline, KmsRetryPolicy policy) {
+		// The previous request for this key may have completed, and cached
+		// its result, after the caller missed the cache
+		if (cache != null) {
+			byte[] cached = cache.recheck(creds, endpoint, masterKeyId,
+					encBytes);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		final Function<String, DecryptResult> request =
+			decryptRequest(creds, masterKeyId, encBytes, config, deadline,
+					policy);
+		DecryptResult result =
+			KmsEndpointRouter.isEndpointList(endpoint) ? KmsEndpointRouter
+					.getRouter(endpoint).executeHedged(request, deadline,
+							hedgePercentile(policy)) : request.apply(endpoint);
+		return toPlaintext(result, creds, endpoint, masterKeyId, encBytes,
+				cache);
+	}
+
+	/**
+	 * Sends a Decrypt request on the KMS executor, like
+	 * {@link #decrypt(AWSCredentials, String, byte[], String,
+	 * ClientConfiguration, DataKeyCache, KmsDeadline, KmsRetryPolicy)}.
+	 * Hedged requests are composed without blocking a thread of the
+	 * executor.
+	 */
+	private static CompletableFuture<byte[]> decryptAsync(
+			AWSCredentials creds, final String masterKeyId,
+			final byte[] encBytes, String endpoint,
+			ClientConfiguration config, final DataKeyCache cache,
+			KmsDeadline deadline, KmsRetryPolicy policy) {
+		if (cache != null) {
+			byte[] cached = cache.recheck(creds, endpoint, masterKeyId,
+					encBytes);
+			if (cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+		}
+		final Function<String, DecryptResult> request =
+			decryptRequest(creds, masterKeyId, encBytes, config, deadline,
+					policy);
+		CompletableFuture<DecryptResult> result =
+			KmsEndpointRouter.isEndpointList(endpoint) ? KmsEndpointRouter
+					.getRouter(endpoint).executeHedgedAsync(request, deadline,
+							hedgePercentile(policy)) : AwsKmsExecutor
+					.supplyAsync(() -> request.apply(endpoint));
+		return result.thenApply(r -> toPlaintext(r, creds, endpoint,
+				masterKeyId, encBytes, cache));
+	}
+
+	private static double hedgePercentile(KmsRetryPolicy policy) {
+		return (policy != null ? policy : AwsKmsRetryHandler.getRetryPolicy())
+				.getHedgePercentile();
+	}
+
+	/** Returns a function that sends a Decrypt request to an endpoint */
+	private static Function<String, DecryptResult> decryptRequest(
+			final AWSCredentials creds, final String masterKeyId,
+			final byte[] encBytes, final ClientConfiguration config,
+			final KmsDeadline deadline, final KmsRetryPolicy policy) {
+		return ep -> {
+			final AWSKMS kms =
+				AwsKmsClientRegistry.getClient(creds, ep, config);
+			// A new request per attempt, since hedged attempts may overlap
+			final DecryptRequest dr =
+				new DecryptRequest().withCiphertextBlob(ByteBuffer
+						.wrap(encBytes));
+			return AwsKmsRetryHandler.execute(AwsKmsRetryHandler.OP_DECRYPT,
+					ep, masterKeyId, policy, deadline, dr, kms::decrypt);
+		};
+	}
+
+	private static byte[] toPlaintext(DecryptResult result,
+			AWSCredentials creds, String endpoint, String masterKeyId,
+			byte[] encBytes, DataKeyCache cache) {
+		ByteBuffer plaintextKey = result.getPlaintext();
+		final byte[] retVal = new byte[plaintextKey.remaining()];
+		plaintextKey.get(retVal);
+
+		if (cache != null) {
+			cache.put(creds, endpoint, masterKeyId, encBytes, retVal);
+		}
 		return retVal;
 	}
 
@@ -74,6 +383,43 @@ public class AwsKmsUtils {
 
 	static GenerateDataKeyResult generateDataKey(AWSCredentials creds,
 			String masterKeyId, String algorithm, String endpoint) {
+		return generateDataKey(creds, masterKeyId, algorithm, endpoint, null);
+	}
+
+	static GenerateDataKeyResult generateDataKey(AWSCredentials creds,
+			String masterKeyId, String algorithm, String endpoint,
+			ClientConfiguration config) {
+		return generateDataKey(creds, masterKeyId, algorithm, endpoint,
+				config, KmsDeadline.NONE);
+	}
+
+	/**
+	 * Generates a data key, subject to a deadline and to the circuit breaker
+	 * of the endpoint and master key.
+	 *
+	 * @param deadline
+	 *            the deadline, or {@link KmsDeadline#NONE}
+	 */
+	static GenerateDataKeyResult generateDataKey(AWSCredentials creds,
+			String masterKeyId, String algorithm, String endpoint,
+			ClientConfiguration config, KmsDeadline deadline) {
+		return generateDataKey(creds, masterKeyId, algorithm, endpoint,
+				config, deadline, null);
+	}
+
+	/**
+	 * Generates a data key, subject to a deadline, to a retry policy, and to
+	 * the circuit breaker of the endpoint and master key.
+	 *
+	 * @param policy
+	 *            the retry policy, or null for the
+	 *            {@link AwsKmsRetryHandler#getRetryPolicy() current policy}
+	 */
+	static GenerateDataKeyResult generateDataKey(AWSCredentials creds,
+			final String masterKeyId, String algorithm, String endpoint,
+			ClientConfiguration config, final KmsDeadline deadline,
+			final KmsRetryPolicy policy) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
 		Precondition.assertNonNullArgument("null credentials", creds);
 		Precondition.assertNonEmptyString("null or blank master key id",
 				masterKeyId);
@@ -81,19 +427,120 @@ public class AwsKmsUtils {
 			algorithm = DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM;
 		}
 
-		AWSKMSClient kms = new AWSKMSClient(creds);
-		if (endpoint != null) {
-			kms.setEndpoint(endpoint);
-		}
-
-		GenerateDataKeyRequest dataKeyRequest = new GenerateDataKeyRequest();
-		dataKeyRequest.setKeyId(masterKeyId);
-		dataKeyRequest.setKeySpec(algorithm);
-
-		GenerateDataKeyResult retVal = kms.generateDataKey(dataKeyRequest);
+		final String keySpec = algorithm;
+		final Function<String, GenerateDataKeyResult> request = ep -> {
+			final AWSKMS kms =
+				AwsKmsClientRegistry.getClient(creds, ep, config);
+			final GenerateDataKeyRequest dataKeyRequest =
+				new GenerateDataKeyRequest();
+			dataKeyRequest.setKeyId(masterKeyId);
+			dataKeyRequest.setKeySpec(keySpec);
+			return AwsKmsRetryHandler.execute(
+					AwsKmsRetryHandler.OP_GENERATE_DATA_KEY, ep, masterKeyId,
+					policy, deadline, dataKeyRequest, kms::generateDataKey);
+		};
+		GenerateDataKeyResult retVal =
+			KmsEndpointRouter.isEndpointList(endpoint) ? KmsEndpointRouter
+					.getRouter(endpoint).execute(request) : request
+					.apply(endpoint);
 		return retVal;
 	}
 
+	/**
+	 * Generates a data key on the {@link AwsKmsExecutor KMS executor}.
+	 *
+	 * @return a future that completes with the plaintext and encrypted data
+	 *         key, or completes exceptionally if the request fails or is
+	 *         rejected by the executor
+	 */
+	public static CompletableFuture<GenerateDataKeyResult> generateDataKeyAsync(
+			final AWSCredentials creds, final String masterKeyId,
+			final String algorithm, final String endpoint,
+			final ClientConfiguration config) {
+		Precondition.assertNonNullArgument("null credentials", creds);
+		Precondition.assertNonEmptyString("null or blank master key id",
+				masterKeyId);
+		return AwsKmsExecutor.supplyAsync(() -> generateDataKey(creds,
+				masterKeyId, algorithm, endpoint, config));
+	}
+
 	private AwsKmsUtils() {
 	}
+
+	/**
+	 * Identifies equivalent Decrypt requests. Credentials, including the
+	 * secret key, are part of the key so that a caller never shares a result
+	 * obtained with credentials that it does not hold.
+	 */
+	private static final class DecryptKey {
+		final String accessKey;
+		final String secretKey;
+		final String endpoint;
+		final String masterKeyId;
+		final byte[] encryptedKey;
+		final int hash;
+
+		DecryptKey(AWSCredentials creds, String endpoint, String masterKeyId,
+				byte[] encryptedKey) {
+			this.accessKey = creds.getAWSAccessKeyId();
+			this.secretKey = creds.getAWSSecretKey();
+			this.endpoint = endpoint;
+			this.masterKeyId = masterKeyId;
+			this.encryptedKey = encryptedKey;
+			final int prime = 31;
+			int result = 1;
+			result =
+				prime * result
+						+ ((accessKey == null) ? 0 : accessKey.hashCode());
+			result =
+				prime * result + ((endpoint == null) ? 0 : endpoint.hashCode());
+			result =
+				prime * result
+						+ ((masterKeyId == null) ? 0 : masterKeyId.hashCode());
+			result =
+				prime * result
+						+ ((secretKey == null) ? 0 : secretKey.hashCode());
+			result = prime * result + Arrays.hashCode(encryptedKey);
+			this.hash = result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			DecryptKey other = (DecryptKey) obj;
+			if (accessKey == null) {
+				if (other.accessKey != null)
+					return false;
+			} else if (!accessKey.equals(other.accessKey))
+				return false;
+			if (endpoint == null) {
+				if (other.endpoint != null)
+					return false;
+			} else if (!endpoint.equals(other.endpoint))
+				return false;
+			if (masterKeyId == null) {
+				if (other.masterKeyId != null)
+					return false;
+			} else if (!masterKeyId.equals(other.masterKeyId))
+				return false;
+			if (secretKey == null) {
+				if (other.secretKey != null)
+					return false;
+			} else if (!secretKey.equals(other.secretKey))
+				return false;
+			if (!Arrays.equals(encryptedKey, other.encryptedKey))
+				return false;
+			return true;
+		}
+	}
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import org.w3c.dom.Document;
+
+/**
+ * The outcome of encrypting or decrypting one document of a batch. A failed
+ * document does not stop the rest of its batch; its failure is reported here
+ * instead.
+ *
+ * @see DocumentEncryptor#encryptAll(java.util.Collection)
+ * @see DocumentDecryptor#decryptAll(java.util.Collection)
+ */
+public final class BatchResult {
+
+	private final int index;
+	private final Document document;
+	private final Throwable failure;
+
+	BatchResult(int index, Document document, Throwable failure) {
+		this.index = index;
+		this.document = document;
+		this.failure = failure;
+	}
+
+	/** Returns the zero-based position of the document in its batch */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the document, which is encrypted or decrypted in place if the
+	 * operation succeeded
+	 */
+	public Document getDocument() {
+		return document;
+	}
+
+	/** Returns the cause of failure, or null if the operation succeeded */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public boolean isSuccess() {
+		return failure == null;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult [index=" + index + ", failure=" + failure + "]";
+	}
+
+}
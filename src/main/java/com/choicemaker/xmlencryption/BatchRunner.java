@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import org.w3c.dom.Document;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Delivers the results of a batch of documents whose work runs on an
+ * executor. Documents are submitted, and results are delivered, by the one
+ * thread that runs the batch, so callbacks run on that thread and need no
+ * synchronization.
+ * <p/>
+ * No more than a maximum number of documents are in flight, counting
+ * documents that have finished but whose results are held back so that
+ * results are delivered in order. A submitting thread that reaches the limit
+ * delivers results until there is room.
+ */
+final class BatchRunner implements AutoCloseable {
+
+	/** Default maximum number of documents in flight */
+	static final int DEFAULT_MAX_IN_FLIGHT =
+		2 * ForkJoinPool.getCommonPoolParallelism();
+
+	/** A finished document, queued for the submitting thread */
+	private static final class Completion {
+		final int index;
+		final Document document;
+		final Throwable failure;
+		final Runnable onDone;
+
+		Completion(int index, Document document, Throwable failure,
+				Runnable onDone) {
+			this.index = index;
+			this.document = document;
+			this.failure = failure;
+			this.onDone = onDone;
+		}
+	}
+
+	private static Throwable unwrap(Throwable x) {
+		Throwable retVal = x;
+		while (retVal instanceof CompletionException
+				&& retVal.getCause() != null) {
+			retVal = retVal.getCause();
+		}
+		return retVal;
+	}
+
+	private final int maxInFlight;
+	private final boolean ordered;
+	private final Consumer<? super BatchResult> consumer;
+	private final BlockingQueue<Completion> completions =
+		new LinkedBlockingQueue<>();
+	private final Map<Integer, BatchResult> heldBack = new HashMap<>();
+	private int submitted;
+	private int observed;
+	private int delivered;
+	private int failed;
+
+	/**
+	 * @param maxInFlight
+	 *            a positive maximum number of documents in flight
+	 * @param ordered
+	 *            whether results are delivered in the order in which
+	 *            documents were submitted, or as soon as they finish
+	 * @param consumer
+	 *            receives the result of each document
+	 */
+	BatchRunner(int maxInFlight, boolean ordered,
+			Consumer<? super BatchResult> consumer) {
+		Precondition.assertBoolean("non-positive in-flight limit",
+				maxInFlight > 0);
+		Precondition.assertNonNullArgument("null consumer", consumer);
+		this.maxInFlight = maxInFlight;
+		this.ordered = ordered;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Delivers results until another document may be submitted
+	 */
+	void awaitCapacity() throws InterruptedException {
+		Completion c;
+		while ((c = completions.poll()) != null) {
+			observe(c);
+		}
+		while (submitted - delivered >= maxInFlight) {
+			observe(completions.take());
+		}
+	}
+
+	/**
+	 * Submits a document whose work has started.
+	 *
+	 * @param work
+	 *            completes when the document is encrypted or decrypted
+	 * @param onDone
+	 *            run by the submitting thread once the work has completed
+	 *            and before its result is delivered, or null
+	 */
+	void submit(final Document doc, CompletableFuture<?> work,
+			final Runnable onDone) throws InterruptedException {
+		awaitCapacity();
+		final int index = submitted++;
+		work.whenComplete((v, x) -> completions.add(new Completion(index,
+				doc, unwrap(x), onDone)));
+	}
+
+	/**
+	 * Submits a document that failed before its work could start
+	 */
+	void fail(Document doc, Throwable failure) throws InterruptedException {
+		awaitCapacity();
+		final int index = submitted++;
+		completions.add(new Completion(index, doc, unwrap(failure), null));
+	}
+
+	/**
+	 * Delivers the results of every submitted document
+	 */
+	void finish() throws InterruptedException {
+		while (observed < submitted) {
+			observe(completions.take());
+		}
+	}
+
+	/** Returns the number of documents that failed so far */
+	int getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * Waits for documents still in flight, if the batch was abandoned, and
+	 * runs their callbacks without delivering their results
+	 */
+	@Override
+	public void close() {
+		boolean interrupted = false;
+		while (observed < submitted) {
+			try {
+				Completion c = completions.take();
+				observed++;
+				if (c.onDone != null) {
+					c.onDone.run();
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void observe(Completion c) {
+		observed++;
+		if (c.onDone != null) {
+			c.onDone.run();
+		}
+		if (c.failure != null) {
+			failed++;
+		}
+		BatchResult r = new BatchResult(c.index, c.document, c.failure);
+		if (ordered) {
+			heldBack.put(c.index, r);
+			while ((r = heldBack.remove(delivered)) != null) {
+				deliver(r);
+			}
+		} else {
+			deliver(r);
+		}
+	}
+
+	private void deliver(BatchResult r) {
+		delivered++;
+		consumer.accept(r);
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.StringUtils;
+
+/**
+ * A SecretKeyInfoFactory that reuses one data key for several documents. A new
+ * data key is requested from the delegate factory when the current key has
+ * been returned a maximum number of times, has protected a maximum number of
+ * bytes, or has reached a maximum age, whichever comes first.
+ * <p/>
+ * The byte count is reported by encryptors through
+ * {@link #recordUsage(SecretKeyInfo, long)} after a document is encrypted, so
+ * the byte limit is checked when the next key is requested, and the last
+ * document encrypted with a key may take the count past the limit.
+ * <p/>
+ * This factory keeps its own reference to the current key, and closes it when
+ * the key is replaced, so the key is zeroized once every caller has closed
+ * the reference it was given.
+ * <p/>
+ * A new key is requested without holding the lock of this factory, and
+ * concurrent callers that need a new key share one request to the delegate.
+ * While a key is being replaced, a caller waits no longer than its deadline.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public class CachingSecretKeyInfoFactory implements SecretKeyInfoFactory {
+
+	private static final Logger logger = Logger
+			.getLogger(CachingSecretKeyInfoFactory.class.getName());
+
+	/** Default maximum number of documents encrypted with one data key */
+	public static final long DEFAULT_MAX_MESSAGES = 1000L;
+
+	/** Default maximum number of bytes encrypted with one data key */
+	public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+	/** Default maximum age of a data key (milliseconds) */
+	public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000L;
+
+	private static final String[] REUSE_PROPERTY_NAMES = new String[] {
+			AwsKmsProperties.PN_DATAKEY_MAX_MESSAGES,
+			AwsKmsProperties.PN_DATAKEY_MAX_BYTES,
+			AwsKmsProperties.PN_DATAKEY_MAX_AGE };
+
+	/**
+	 * Checks whether any of the optional data-key reuse properties
+	 * {@link AwsKmsProperties#PN_DATAKEY_MAX_MESSAGES},
+	 * {@link AwsKmsProperties#PN_DATAKEY_MAX_BYTES} or
+	 * {@link AwsKmsProperties#PN_DATAKEY_MAX_AGE} is defined.
+	 */
+	public static boolean hasReuseProperties(Properties p) {
+		boolean retVal = false;
+		if (p != null) {
+			for (String pn : REUSE_PROPERTY_NAMES) {
+				if (StringUtils.nonEmptyString(p.getProperty(pn))) {
+					retVal = true;
+					break;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private final SecretKeyInfoFactory delegate;
+	private final long maxMessages;
+	private final long maxBytes;
+	private final long maxAge;
+
+	/** Coalesces the requests for a replacement of one key generation */
+	private final SingleFlight<Long, Long> replacements =
+		new SingleFlight<>();
+
+	// Guarded by this
+	private SecretKeyInfo current;
+	private long generation;
+	private long created;
+	private long messages;
+	private long bytes;
+	private long rotations;
+
+	/**
+	 * Creates a caching factory with limits read from the optional data-key
+	 * reuse properties. Limits that are not defined take the defaults declared
+	 * by this class.
+	 */
+	public CachingSecretKeyInfoFactory(SecretKeyInfoFactory delegate,
+			Properties p) {
+		this(delegate, AwsKmsProperties.getLongProperty(p,
+				AwsKmsProperties.PN_DATAKEY_MAX_MESSAGES, DEFAULT_MAX_MESSAGES),
+				AwsKmsProperties.getLongProperty(p,
+						AwsKmsProperties.PN_DATAKEY_MAX_BYTES,
+						DEFAULT_MAX_BYTES),
+				AwsKmsProperties.getLongProperty(p,
+						AwsKmsProperties.PN_DATAKEY_MAX_AGE, DEFAULT_MAX_AGE));
+	}
+
+	/**
+	 * @param delegate
+	 *            the factory that creates new data keys
+	 * @param maxMessages
+	 *            a positive number of documents per data key
+	 * @param maxBytes
+	 *            a positive number of encrypted bytes per data key
+	 * @param maxAge
+	 *            a positive data key lifetime, in milliseconds
+	 */
+	public CachingSecretKeyInfoFactory(SecretKeyInfoFactory delegate,
+			long maxMessages, long maxBytes, long maxAge) {
+		Precondition.assertNonNullArgument("null delegate", delegate);
+		Precondition.assertBoolean("non-positive message limit",
+				maxMessages > 0);
+		Precondition.assertBoolean("non-positive byte limit", maxBytes > 0);
+		Precondition.assertBoolean("non-positive age limit", maxAge > 0);
+		this.delegate = delegate;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+	}
+
+	@Override
+	public SecretKeyInfo createSessionKey() {
+		return createSessionKey(KmsDeadline.NONE);
+	}
+
+	/**
+	 * Returns the current key, or a new key from the delegate, which is
+	 * passed the deadline, if the current key has reached a limit.
+	 *
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires while a concurrent caller is
+	 *             obtaining a new key
+	 */
+	@Override
+	public SecretKeyInfo createSessionKey(final KmsDeadline deadline) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		for (;;) {
+			final long expected;
+			synchronized (this) {
+				final long now = System.currentTimeMillis();
+				if (current != null && messages < maxMessages
+						&& bytes < maxBytes && now - created < maxAge) {
+					++messages;
+					return current.retain();
+				}
+				if (current != null) {
+					logger.fine("Rotating data key: messages=" + messages
+							+ ", bytes=" + bytes + ", age=" + (now - created));
+				}
+				expected = generation;
+			}
+			replace(expected, deadline);
+		}
+	}
+
+	/**
+	 * Requests a key to replace the specified generation, outside the lock of
+	 * this factory, unless a concurrent caller is already doing so, in which
+	 * case this method waits for that request.
+	 */
+	private void replace(final long expected, final KmsDeadline deadline) {
+		final Long key = expected;
+		final Supplier<Long> operation =
+			() -> install(expected, delegate.createSessionKey(deadline));
+		if (deadline.isBounded()) {
+			try {
+				replacements.execute(key, operation,
+						deadline.remaining(TimeUnit.MILLISECONDS),
+						TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				throw new KmsDeadlineExceededException(
+						"Concurrent data key request did not complete "
+								+ "before the deadline", e);
+			}
+		} else {
+			replacements.execute(key, operation);
+		}
+	}
+
+	/**
+	 * Makes a new key current, if the key it replaces is still current.
+	 * Otherwise, the key was rotated meanwhile, and the new key is discarded.
+	 *
+	 * @return the current generation
+	 */
+	private synchronized long install(long expected, SecretKeyInfo ski) {
+		if (generation == expected) {
+			final SecretKeyInfo replaced = current;
+			current = ski;
+			if (replaced != null) {
+				replaced.close();
+			}
+			created = System.currentTimeMillis();
+			messages = 0;
+			bytes = 0;
+			++rotations;
+			++generation;
+		} else {
+			ski.close();
+		}
+		return generation;
+	}
+
+	@Override
+	public synchronized void recordUsage(SecretKeyInfo ski, long byteCount) {
+		if (ski != null && ski == current && byteCount > 0) {
+			bytes += byteCount;
+		}
+	}
+
+	/**
+	 * Discards the current data key, so that the next request creates a new
+	 * one.
+	 */
+	public synchronized void rotate() {
+		if (current != null) {
+			current.close();
+		}
+		current = null;
+		++generation;
+	}
+
+	public SecretKeyInfoFactory getDelegate() {
+		return delegate;
+	}
+
+	public long getMaxMessages() {
+		return maxMessages;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/** Returns the number of data keys requested from the delegate */
+	public synchronized long getRotationCount() {
+		return rotations;
+	}
+
+	@Override
+	public String toString() {
+		return "CachingSecretKeyInfoFactory [delegate=" + delegate
+				+ ", maxMessages=" + maxMessages + ", maxBytes=" + maxBytes
+				+ ", maxAge=" + maxAge + "]";
+	}
+
+}
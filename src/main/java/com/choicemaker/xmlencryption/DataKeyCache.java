@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A bounded cache of plaintext data keys, keyed by the credentials and
+ * endpoint that decrypted a key, the master key id and the encrypted data key
+ * (the ciphertext blob returned by KMS). When many documents share the same
+ * encrypted data key, a cache hit replaces a KMS Decrypt request. Because
+ * entries are scoped by credentials and endpoint, a cache may be shared by
+ * decryptors with different credentials without returning a key to a caller
+ * whose credentials KMS has not authorized to decrypt it.
+ * <p/>
+ * Entries are evicted in least-recently-used order when the cache is full, and
+ * are also evicted when they are older than a maximum age or have been returned
+ * a maximum number of times. Expired entries are removed by
+ * {@link #put(AWSCredentials, String, String, byte[], byte[]) put} and by a
+ * background sweep that runs at least once a minute, so an expired key does not
+ * stay in memory until it is looked up again. The plaintext key held by an
+ * evicted entry is overwritten with zeros. Callers receive copies of cached
+ * keys, so a key returned by a lookup is unaffected by a later eviction.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public class DataKeyCache {
+
+	private static final Logger logger = Logger.getLogger(DataKeyCache.class
+			.getName());
+
+	/** Default maximum number of cached keys */
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	/** Default maximum age of a cached key (milliseconds) */
+	public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000L;
+
+	/** Default maximum number of times a cached key is returned */
+	public static final long DEFAULT_MAX_USES = Long.MAX_VALUE;
+
+	/** Minimum interval between background sweeps (milliseconds) */
+	static final long MIN_SWEEP_INTERVAL = 1000L;
+
+	/** Maximum interval between background sweeps (milliseconds) */
+	static final long MAX_SWEEP_INTERVAL = 60 * 1000L;
+
+	private final int maxEntries;
+	private final long maxAge;
+	private final long maxUses;
+
+	/** Access-ordered, guarded by <code>this</code> */
+	private final LinkedHashMap<CacheKey, CacheEntry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public DataKeyCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE, DEFAULT_MAX_USES);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            a positive number of keys
+	 * @param maxAge
+	 *            a positive age, in milliseconds
+	 * @param maxUses
+	 *            a positive number of times an entry may be returned
+	 */
+	public DataKeyCache(int maxEntries, long maxAge, long maxUses) {
+		Precondition.assertBoolean("non-positive maximum entry count",
+				maxEntries > 0);
+		Precondition.assertBoolean("non-positive maximum age", maxAge > 0);
+		Precondition.assertBoolean("non-positive maximum use count",
+				maxUses > 0);
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.maxUses = maxUses;
+		final boolean accessOrder = true;
+		this.entries = new LinkedHashMap<>(16, 0.75f, accessOrder);
+		Sweeper.schedule(this);
+	}
+
+	/**
+	 * Equivalent to <code>get(null, null, masterKeyId, encryptedKey)</code>.
+	 * Entries that are not scoped by credentials are visible only to lookups
+	 * that are not scoped by credentials.
+	 */
+	public byte[] get(String masterKeyId, byte[] encryptedKey) {
+		return get(null, null, masterKeyId, encryptedKey);
+	}
+
+	/**
+	 * Returns a copy of the plaintext key cached for the specified
+	 * credentials, endpoint, master key and encrypted key, or null if no
+	 * valid entry is cached.
+	 *
+	 * @param creds
+	 *            the credentials that decrypt the key; may be null
+	 * @param endpoint
+	 *            the KMS endpoint that decrypts the key; may be null
+	 */
+	public byte[] get(AWSCredentials creds, String endpoint,
+			String masterKeyId, byte[] encryptedKey) {
+		return get(new CacheKey(creds, endpoint, masterKeyId, encryptedKey),
+				true);
+	}
+
+	/**
+	 * Looks up a key again for a caller whose earlier lookup missed, just
+	 * before it sends a KMS request. A miss is not counted twice.
+	 */
+	byte[] recheck(AWSCredentials creds, String endpoint, String masterKeyId,
+			byte[] encryptedKey) {
+		return get(new CacheKey(creds, endpoint, masterKeyId, encryptedKey),
+				false);
+	}
+
+	private byte[] get(CacheKey key, boolean countMiss) {
+		final long now = System.currentTimeMillis();
+		byte[] retVal = null;
+		synchronized (this) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null) {
+				if (isExpired(entry, now)) {
+					entries.remove(key);
+					evict(entry);
+				} else {
+					retVal = entry.plaintext.clone();
+					// Do not hold a key that may not be returned again
+					if (++entry.uses >= maxUses) {
+						entries.remove(key);
+						evict(entry);
+					}
+				}
+			}
+		}
+		if (retVal == null) {
+			if (countMiss) {
+				misses.incrementAndGet();
+			}
+		} else {
+			hits.incrementAndGet();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Equivalent to
+	 * <code>put(null, null, masterKeyId, encryptedKey, plaintext)</code>
+	 */
+	public void put(String masterKeyId, byte[] encryptedKey, byte[] plaintext) {
+		put(null, null, masterKeyId, encryptedKey, plaintext);
+	}
+
+	/**
+	 * Caches a copy of a plaintext key that was decrypted with the specified
+	 * credentials at the specified endpoint. An existing entry for the same
+	 * key is replaced, and expired entries are removed. If the cache is still
+	 * full, the least recently used entry is evicted.
+	 *
+	 * @param creds
+	 *            the credentials that decrypted the key; may be null
+	 * @param endpoint
+	 *            the KMS endpoint that decrypted the key; may be null
+	 */
+	public void put(AWSCredentials creds, String endpoint, String masterKeyId,
+			byte[] encryptedKey, byte[] plaintext) {
+		Precondition.assertNonNullArgument("null encrypted key", encryptedKey);
+		Precondition.assertNonNullArgument("null plaintext key", plaintext);
+		final CacheKey key =
+			new CacheKey(creds, endpoint, masterKeyId, encryptedKey.clone());
+		final long now = System.currentTimeMillis();
+		final CacheEntry entry = new CacheEntry(plaintext.clone(), now);
+		synchronized (this) {
+			CacheEntry previous = entries.put(key, entry);
+			if (previous != null) {
+				evict(previous);
+			}
+			removeExpired(now);
+			Iterator<CacheEntry> it = entries.values().iterator();
+			while (entries.size() > maxEntries && it.hasNext()) {
+				CacheEntry eldest = it.next();
+				it.remove();
+				evict(eldest);
+			}
+		}
+	}
+
+	/** Removes expired entries and zeroizes their keys */
+	public void removeExpired() {
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			removeExpired(now);
+		}
+	}
+
+	// Guarded by this
+	private void removeExpired(long now) {
+		Iterator<CacheEntry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			CacheEntry entry = it.next();
+			if (isExpired(entry, now)) {
+				it.remove();
+				evict(entry);
+			}
+		}
+	}
+
+	private boolean isExpired(CacheEntry entry, long now) {
+		return now - entry.created > maxAge || entry.uses >= maxUses;
+	}
+
+	/** Removes every entry and zeroizes the cached keys */
+	public void clear() {
+		synchronized (this) {
+			for (CacheEntry entry : entries.values()) {
+				evict(entry);
+			}
+			entries.clear();
+		}
+	}
+
+	private void evict(CacheEntry entry) {
+		Arrays.fill(entry.plaintext, (byte) 0);
+		evictions.incrementAndGet();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public long getMaxUses() {
+		return maxUses;
+	}
+
+	/** Number of lookups that returned a cached key */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/** Number of lookups that did not return a cached key */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** Number of entries evicted because of size, age, use or clearing */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/** Logs the current counter values at INFO level */
+	public void logStatistics() {
+		logger.info(toString());
+	}
+
+	@Override
+	public String toString() {
+		return "DataKeyCache [size=" + size() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount() + "]";
+	}
+
+	private static final class CacheEntry {
+		final byte[] plaintext;
+		final long created;
+		long uses;
+
+		CacheEntry(byte[] plaintext, long created) {
+			this.plaintext = plaintext;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Sweeps expired entries from caches in the background. A sweep holds a
+	 * weak reference to its cache, and is cancelled once the cache is no
+	 * longer in use.
+	 */
+	private static final class Sweeper implements Runnable {
+		static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+		private static ScheduledThreadPoolExecutor createTimer() {
+			ScheduledThreadPoolExecutor retVal =
+				new ScheduledThreadPoolExecutor(1, r -> {
+					Thread t = new Thread(r, "data-key-cache-sweeper");
+					t.setDaemon(true);
+					return t;
+				});
+			retVal.setRemoveOnCancelPolicy(true);
+			return retVal;
+		}
+
+		static void schedule(DataKeyCache cache) {
+			final long interval =
+				Math.max(MIN_SWEEP_INTERVAL,
+						Math.min(MAX_SWEEP_INTERVAL, cache.maxAge));
+			Sweeper sweeper = new Sweeper(cache);
+			sweeper.future =
+				TIMER.scheduleWithFixedDelay(sweeper, interval, interval,
+						TimeUnit.MILLISECONDS);
+		}
+
+		private final WeakReference<DataKeyCache> cache;
+		private volatile ScheduledFuture<?> future;
+
+		private Sweeper(DataKeyCache cache) {
+			this.cache = new WeakReference<>(cache);
+		}
+
+		@Override
+		public void run() {
+			DataKeyCache c = cache.get();
+			if (c != null) {
+				c.removeExpired();
+			} else if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Entries are keyed by the identity of credentials rather than by
+	 * credential instances, because callers such as {@link DocumentDecryptor}
+	 * create a new credential object for each credential set.
+	 */
+	private static final class CacheKey {
+		final String accessKey;
+		final String secretKey;
+		final String endpoint;
+		final String masterKeyId;
+		final byte[] encryptedKey;
+		final int hash;
+
+		CacheKey(AWSCredentials creds, String endpoint, String masterKeyId,
+				byte[] encryptedKey) {
+			Precondition.assertNonNullArgument("null encrypted key",
+					encryptedKey);
+			this.accessKey = creds == null ? null : creds.getAWSAccessKeyId();
+			this.secretKey = creds == null ? null : creds.getAWSSecretKey();
+			this.endpoint = endpoint;
+			this.masterKeyId = masterKeyId;
+			this.encryptedKey = encryptedKey;
+			final int prime = 31;
+			int result = 1;
+			result =
+				prime * result
+						+ ((accessKey == null) ? 0 : accessKey.hashCode());
+			result =
+				prime * result + ((endpoint == null) ? 0 : endpoint.hashCode());
+			result =
+				prime * result
+						+ ((masterKeyId == null) ? 0 : masterKeyId.hashCode());
+			result =
+				prime * result
+						+ ((secretKey == null) ? 0 : secretKey.hashCode());
+			result = prime * result + Arrays.hashCode(encryptedKey);
+			this.hash = result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			CacheKey other = (CacheKey) obj;
+			if (accessKey == null) {
+				if (other.accessKey != null)
+					return false;
+			} else if (!accessKey.equals(other.accessKey))
+				return false;
+			if (endpoint == null) {
+				if (other.endpoint != null)
+					return false;
+			} else if (!endpoint.equals(other.endpoint))
+				return false;
+			if (masterKeyId == null) {
+				if (other.masterKeyId != null)
+					return false;
+			} else if (!masterKeyId.equals(other.masterKeyId))
+				return false;
+			if (secretKey == null) {
+				if (other.secretKey != null)
+					return false;
+			} else if (!secretKey.equals(other.secretKey))
+				return false;
+			if (!Arrays.equals(encryptedKey, other.encryptedKey))
+				return false;
+			return true;
+		}
+	}
+
+}
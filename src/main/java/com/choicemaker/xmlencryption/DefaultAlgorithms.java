@@ -68,6 +68,31 @@ public class DefaultAlgorithms {
 	public static final String STRONG_DOC_ENCRYPT_ALGORITHM =
 		"http://www.w3.org/2001/04/xmlenc#aes256-cbc";
 
+	/**
+	 * This value appears as the value of the Algorithm attribute of the
+	 * EncryptionMethod element within the EncryptedData element, for
+	 * documents encrypted with AES-GCM under a 128-bit key. Unlike CBC, GCM
+	 * authenticates the encrypted content, so a document that has been
+	 * altered fails to decrypt, and its blocks may be encrypted in parallel
+	 * by the JCE provider.
+	 *
+	 * @see AwsKmsEncryptionScheme#createAes128GcmScheme()
+	 */
+	public static final String AES128_GCM_DOC_ENCRYPT_ALGO =
+		"http://www.w3.org/2009/xmlenc11#aes128-gcm";
+
+	/**
+	 * <strong>This value requires the Java Cryptography Extension (JCE)
+	 * Unlimited Strength Jurisdiction Policy Files to be installed in host
+	 * JVM.</strong>
+	 * <p/>
+	 * The AES-GCM counterpart of {@link #STRONG_DOC_ENCRYPT_ALGORITHM}.
+	 *
+	 * @see AwsKmsEncryptionScheme#createAes256GcmScheme()
+	 */
+	public static final String AES256_GCM_DOC_ENCRYPT_ALGO =
+		"http://www.w3.org/2009/xmlenc11#aes256-gcm";
+
 	private DefaultAlgorithms() {
 	}
 
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import org.apache.xml.security.utils.Constants;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Short, redacted previews of DOM nodes for log messages. A preview is built
+ * by walking the node, not by serializing it, and the walk stops as soon as
+ * the preview reaches its length limit, so the cost of a preview does not
+ * depend on the size of a document.
+ * <p/>
+ * {@link #preview(Node)} returns an object that builds its preview only when
+ * its <code>toString()</code> method is called, which lets a message be
+ * passed as a log record parameter and formatted only by a handler that
+ * publishes it:
+ *
+ * <pre>
+ * if (logger.isLoggable(Level.FINE)) {
+ * 	logger.log(Level.FINE, &quot;Before encryption: {0}&quot;,
+ * 			Diagnostics.preview(element));
+ * }
+ * </pre>
+ *
+ * Previews redact content that may be sensitive:
+ * <ul>
+ * <li>the text and attribute values of elements outside the XML Encryption
+ * and XML Signature namespaces are replaced by their length, unless the
+ * System property {@link #PN_SHOW_TEXT} is "true";</li>
+ * <li>cipher values are always replaced by their length;</li>
+ * <li>comments and processing instructions are omitted.</li>
+ * </ul>
+ */
+public final class Diagnostics {
+
+	/**
+	 * The name of a System property that specifies the maximum length, in
+	 * characters, of a preview. The default is
+	 * {@link #DEFAULT_PREVIEW_LENGTH}.
+	 */
+	public static final String PN_PREVIEW_LENGTH = "diagnosticPreviewLength";
+
+	/**
+	 * The name of a System property that, if it is "true", specifies that
+	 * previews show the text and attribute values of document content
+	 */
+	public static final String PN_SHOW_TEXT = "diagnosticShowText";
+
+	/** Default maximum length, in characters, of a preview */
+	public static final int DEFAULT_PREVIEW_LENGTH = 1024;
+
+	/** Appended to a preview that reached its length limit */
+	public static final String TRUNCATED = "...[truncated]";
+
+	private static final int PREVIEW_LENGTH = Math.max(0,
+			Integer.getInteger(PN_PREVIEW_LENGTH, DEFAULT_PREVIEW_LENGTH));
+
+	private static final boolean SHOW_TEXT = Boolean.getBoolean(PN_SHOW_TEXT);
+
+	/**
+	 * Returns an object whose <code>toString()</code> method returns a
+	 * preview of a node, using the limit and redaction configured by System
+	 * properties. The node is not visited until then, so the preview shows
+	 * the node as it is when the preview is formatted.
+	 */
+	public static Object preview(Node n) {
+		return new Preview(n, PREVIEW_LENGTH, SHOW_TEXT);
+	}
+
+	/**
+	 * Returns a preview of a node, using the limit and redaction configured
+	 * by System properties
+	 */
+	public static String toPreview(Node n) {
+		return toPreview(n, PREVIEW_LENGTH, SHOW_TEXT);
+	}
+
+	/**
+	 * Returns a preview of a node.
+	 *
+	 * @param n
+	 *            a node, which may be null
+	 * @param maxLength
+	 *            a non-negative maximum number of characters, not counting
+	 *            the {@link #TRUNCATED truncation marker}
+	 * @param showText
+	 *            whether the text and attribute values of document content
+	 *            are shown
+	 */
+	public static String toPreview(Node n, int maxLength, boolean showText) {
+		Precondition.assertBoolean("negative preview length", maxLength >= 0);
+		String retVal;
+		if (n == null) {
+			retVal = null;
+		} else {
+			PreviewBuilder pb = new PreviewBuilder(maxLength, showText);
+			pb.append(n);
+			retVal = pb.toString();
+		}
+		return retVal;
+	}
+
+	private static boolean isSecurityMarkup(Node n) {
+		final String ns = n == null ? null : n.getNamespaceURI();
+		return EncryptionConstants.EncryptionSpecNS.equals(ns)
+				|| EncryptionConstants.EncryptionSpec11NS.equals(ns)
+				|| Constants.SignatureSpecNS.equals(ns)
+				|| Constants.SignatureSpec11NS.equals(ns);
+	}
+
+	private static boolean isCipherValue(Node n) {
+		return n != null
+				&& EncryptionConstants._TAG_CIPHERVALUE.equals(n.getLocalName())
+				&& isSecurityMarkup(n);
+	}
+
+	private static boolean isNamespaceDeclaration(Attr a) {
+		return Constants.NamespaceSpecNS.equals(a.getNamespaceURI());
+	}
+
+	private Diagnostics() {
+	}
+
+	/** Defers a preview until it is formatted */
+	private static final class Preview {
+
+		private final Node node;
+		private final int maxLength;
+		private final boolean showText;
+
+		Preview(Node node, int maxLength, boolean showText) {
+			this.node = node;
+			this.maxLength = maxLength;
+			this.showText = showText;
+		}
+
+		@Override
+		public String toString() {
+			return toPreview(node, maxLength, showText);
+		}
+	}
+
+	/** Appends markup until the limit is reached */
+	private static final class PreviewBuilder {
+
+		private final StringBuilder sb = new StringBuilder();
+		private final int maxLength;
+		private final boolean showText;
+		private boolean truncated;
+
+		PreviewBuilder(int maxLength, boolean showText) {
+			this.maxLength = maxLength;
+			this.showText = showText;
+		}
+
+		/** Returns false once the limit has been reached */
+		boolean append(Node n) {
+			switch (n.getNodeType()) {
+			case Node.DOCUMENT_NODE:
+			case Node.DOCUMENT_FRAGMENT_NODE:
+				return appendChildren(n);
+			case Node.ELEMENT_NODE:
+				return appendElement(n);
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				return appendText(n);
+			default:
+				return !truncated;
+			}
+		}
+
+		private boolean appendChildren(Node n) {
+			Node c = n.getFirstChild();
+			while (c != null) {
+				if (!append(c)) {
+					return false;
+				}
+				c = c.getNextSibling();
+			}
+			return true;
+		}
+
+		private boolean appendElement(Node e) {
+			final boolean visible = showText || isSecurityMarkup(e);
+			if (!appendRaw("<") || !appendRaw(e.getNodeName())) {
+				return false;
+			}
+			NamedNodeMap attributes = e.getAttributes();
+			final int count = attributes == null ? 0 : attributes.getLength();
+			for (int i = 0; i < count; i++) {
+				Attr a = (Attr) attributes.item(i);
+				String value = a.getValue();
+				if (!visible && !isNamespaceDeclaration(a)) {
+					value = redact(value);
+				}
+				if (!appendRaw(" ") || !appendRaw(a.getName())
+						|| !appendRaw("=\"") || !appendEscaped(value)
+						|| !appendRaw("\"")) {
+					return false;
+				}
+			}
+			if (e.getFirstChild() == null) {
+				return appendRaw("/>");
+			}
+			return appendRaw(">") && appendChildren(e) && appendRaw("</")
+					&& appendRaw(e.getNodeName()) && appendRaw(">");
+		}
+
+		private boolean appendText(Node t) {
+			final Node parent = t.getParentNode();
+			String value = t.getNodeValue();
+			if (isCipherValue(parent)) {
+				value = redact(value.trim());
+			} else if (!showText && !isSecurityMarkup(parent)
+					&& !value.trim().isEmpty()) {
+				value = redact(value);
+			}
+			return appendEscaped(value);
+		}
+
+		private static String redact(String value) {
+			return "[" + (value == null ? 0 : value.length()) + " chars]";
+		}
+
+		private boolean appendEscaped(String s) {
+			final int length = s == null ? 0 : s.length();
+			for (int i = 0; i < length; i++) {
+				final char c = s.charAt(i);
+				final String escaped;
+				switch (c) {
+				case '<':
+					escaped = "&lt;";
+					break;
+				case '>':
+					escaped = "&gt;";
+					break;
+				case '&':
+					escaped = "&amp;";
+					break;
+				case '"':
+					escaped = "&quot;";
+					break;
+				default:
+					escaped = null;
+				}
+				if (escaped != null ? !appendRaw(escaped) : !appendChar(c)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean appendRaw(String s) {
+			for (int i = 0; i < s.length(); i++) {
+				if (!appendChar(s.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean appendChar(char c) {
+			if (truncated) {
+				return false;
+			}
+			if (sb.length() >= maxLength) {
+				sb.append(TRUNCATED);
+				truncated = true;
+				return false;
+			}
+			sb.append(c);
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return sb.toString();
+		}
+	}
+
+}
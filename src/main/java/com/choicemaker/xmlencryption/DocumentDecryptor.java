@@ -11,25 +11,43 @@
 package com.choicemaker.xmlencryption;
 
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.crypto.SecretKey;
 
 import org.apache.xml.security.encryption.XMLCipher;
 import org.apache.xml.security.encryption.XMLEncryptionException;
 import org.apache.xml.security.exceptions.Base64DecodingException;
+import org.apache.xml.security.utils.Base64;
+import org.apache.xml.security.utils.Constants;
 import org.apache.xml.security.utils.EncryptionConstants;
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
-import com.choicemaker.utilcopy01.KeyUtils;
 import com.choicemaker.utilcopy01.Precondition;
-import com.choicemaker.utilcopy01.SystemPropertyUtils;
 import com.choicemaker.utilcopy01.WSS4JConstants;
 
 public class DocumentDecryptor {
@@ -37,9 +55,11 @@ public class DocumentDecryptor {
 	private static final Logger logger = Logger
 			.getLogger(DocumentDecryptor.class.getName());
 
-	private static final String KEYNAME_LN = "KeyName";
-	private static final String CIPHERDATA_LN = "CipherData";
-	private static final String CIPHERVALUE_LN = "CipherValue";
+	/** The name of the element that holds a copy of an encrypted part */
+	private static final String CONTEXT_LN = "context";
+
+	/** The maximum number of decrypted keys held by a batch */
+	private static final int MAX_BATCH_KEYS = 16;
 
 	static {
 		// Security.addProvider(new
@@ -51,63 +71,35 @@ public class DocumentDecryptor {
 			String encAlgoRootContent, SecretKey secretKey)
 			throws XMLEncryptionException {
 
-		XMLCipher xmlCipher = XMLCipher.getInstance(encAlgoRootContent);
-		xmlCipher.init(XMLCipher.DECRYPT_MODE, secretKey);
+		final XMLCipherPool pool = XMLCipherPool.getDefault();
+		final XMLCipher xmlCipher =
+			pool.acquire(encAlgoRootContent, XMLCipher.DECRYPT_MODE,
+					secretKey);
 		final boolean content = true;
 
-		logger.fine("Before decryption: "
-				+ SystemPropertyUtils.PV_LINE_SEPARATOR
-				+ XMLPrettyPrint.print(elementToDecrypt));
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Before decryption: {0}",
+					Diagnostics.preview(elementToDecrypt));
+		}
 		try {
 			xmlCipher.doFinal(doc, elementToDecrypt, content);
 		} catch (XMLEncryptionException e) {
+			pool.discard(xmlCipher);
 			logger.severe(e.toString());
 			throw e;
 		} catch (Exception e) {
+			pool.discard(xmlCipher);
 			logger.severe(e.toString());
 			String msg =
 				"Failed to decrypt element '" + elementToDecrypt + "': "
 						+ e.getClass().getSimpleName();
 			throw new XMLEncryptionException(msg, e);
 		}
-		logger.fine("After decryption: "
-				+ SystemPropertyUtils.PV_LINE_SEPARATOR
-				+ XMLPrettyPrint.print(elementToDecrypt));
-	}
-
-	private static String determineEncryptionMethod(Element e) {
-		Element ek =
-			findSingleChildElementByTagNameNS(e,
-					EncryptionConstants.EncryptionSpecNS,
-					WSS4JConstants.ENC_PREFIX + ":"
-							+ EncryptionConstants._TAG_ENCRYPTIONMETHOD);
-		String retVal =
-			ek.getAttributeNS(null, EncryptionConstants._ATT_ALGORITHM);
-		if (retVal == null || retVal.trim().isEmpty()) {
-			String msg = "Missing algorithm attribute";
-			throw new IllegalArgumentException(msg);
+		pool.release(encAlgoRootContent, xmlCipher);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "After decryption: {0}",
+					Diagnostics.preview(elementToDecrypt));
 		}
-		return retVal;
-	}
-
-	private static String determineMasterKeyId(Element e) {
-		Element ki =
-			findSingleChildElementByTagNameNS(e, WSS4JConstants.SIG_NS,
-					WSS4JConstants.SIG_PREFIX + ":" + WSS4JConstants.KEYINFO_LN);
-		Element kn =
-			findSingleChildElementByTagNameNS(ki, WSS4JConstants.SIG_NS,
-					WSS4JConstants.SIG_PREFIX + ":" + KEYNAME_LN);
-		String retVal = kn.getTextContent();
-		return retVal;
-	}
-
-	private static Element findEncryptedContent(Element e) {
-		Element retVal =
-			findSingleChildElementByTagNameNS(e,
-					EncryptionConstants.EncryptionSpecNS,
-					WSS4JConstants.ENC_PREFIX + ":"
-							+ EncryptionConstants._TAG_ENCRYPTEDDATA);
-		return retVal;
 	}
 
 	protected static Element findSingleChildElementByTagNameNS(Element e,
@@ -145,17 +137,6 @@ public class DocumentDecryptor {
 		return retVal;
 	}
 
-	private static String getCipherValue(Element e) {
-		Element cd =
-			findSingleChildElementByTagNameNS(e, WSS4JConstants.ENC_NS,
-					WSS4JConstants.ENC_PREFIX + ":" + CIPHERDATA_LN);
-		Element cv =
-			findSingleChildElementByTagNameNS(cd, WSS4JConstants.ENC_NS,
-					WSS4JConstants.ENC_PREFIX + ":" + CIPHERVALUE_LN);
-		String retVal = cv.getTextContent();
-		return retVal;
-	}
-
 	private static Element getDocumentElement(Document doc) {
 		Element retVal = doc.getDocumentElement();
 		if (retVal == null) {
@@ -170,7 +151,69 @@ public class DocumentDecryptor {
 
 	private final AWSCredentials creds;
 
+	private final ClientConfiguration clientConfig;
+
+	/** The policy built from the properties, or null if none is defined */
+	private final KmsRetryPolicy retryPolicy;
+
+	private final DataKeyCache dataKeyCache;
+
+	private final long defaultTimeout;
+
+	private final PrivateKey escrowKey;
+
 	public DocumentDecryptor(EncryptionScheme es, CredentialSet ec) {
+		this(es, ec, null);
+	}
+
+	/**
+	 * Creates a decryptor that does not use KMS. It decrypts the session key
+	 * of a document from the escrow EncryptedKey written by an encryptor with
+	 * an escrow public key, and fails for documents without one.
+	 *
+	 * @param escrowKey
+	 *            the private RSA key that matches the escrow public key
+	 * @see EscrowKeys
+	 */
+	public DocumentDecryptor(PrivateKey escrowKey) {
+		Precondition.assertNonNullArgument("null escrow key", escrowKey);
+		this.endpoint = null;
+		this.creds = null;
+		this.clientConfig = null;
+		this.retryPolicy = null;
+		this.dataKeyCache = null;
+		this.defaultTimeout = 0;
+		this.escrowKey = escrowKey;
+	}
+
+	/**
+	 * Creates a decryptor that consults a cache of plaintext data keys before
+	 * it sends a Decrypt request to KMS. A cache may be shared by decryptors
+	 * with different credentials, since cached keys are scoped by credentials
+	 * and endpoint.
+	 *
+	 * @param cache
+	 *            a cache of data keys, or null to decrypt every data key with
+	 *            KMS
+	 */
+	public DocumentDecryptor(EncryptionScheme es, CredentialSet ec,
+			DataKeyCache cache) {
+		this(es, ec, cache, null);
+	}
+
+	/**
+	 * Creates a decryptor that decrypts session keys locally with an escrow
+	 * key when a document has an escrow EncryptedKey, and otherwise with KMS.
+	 *
+	 * @param cache
+	 *            a cache of data keys, or null to decrypt every data key with
+	 *            KMS
+	 * @param escrowKey
+	 *            the private escrow RSA key, or null to decrypt every session
+	 *            key with KMS
+	 */
+	public DocumentDecryptor(EncryptionScheme es, CredentialSet ec,
+			DataKeyCache cache, PrivateKey escrowKey) {
 		Precondition.assertNonNullArgument("null scheme", es);
 		Precondition.assertNonNullArgument("null credentials", es);
 		if (!(es instanceof AwsKmsEncryptionScheme)) {
@@ -179,44 +222,860 @@ public class DocumentDecryptor {
 		AwsKmsEncryptionScheme awsScheme = (AwsKmsEncryptionScheme) es;
 		this.endpoint = awsScheme.getEndpoint(ec);
 		this.creds = awsScheme.getAwsKmsCredentials(ec);
+		this.clientConfig =
+			AwsKmsClientRegistry.createClientConfiguration(ec.getProperties());
+		this.retryPolicy =
+			KmsRetryPolicy.hasRetryProperties(ec.getProperties())
+					? KmsRetryPolicy.createRetryPolicy(ec.getProperties())
+					: null;
+		this.dataKeyCache = cache;
+		this.escrowKey = escrowKey;
+		this.defaultTimeout =
+			AwsKmsProperties.getLongProperty(ec.getProperties(),
+					AwsKmsProperties.PN_KMS_TIMEOUT, 0);
+	}
+
+	/** Returns the escrow key used by this decryptor, possibly null */
+	public PrivateKey getEscrowKey() {
+		return escrowKey;
+	}
+
+	/** Returns the data key cache used by this decryptor, possibly null */
+	public DataKeyCache getDataKeyCache() {
+		return dataKeyCache;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, allowed for the KMS requests of a
+	 * decryption that is not passed an explicit deadline, or 0 if there is no
+	 * limit.
+	 *
+	 * @see AwsKmsProperties#PN_KMS_TIMEOUT
+	 */
+	public long getDefaultTimeout() {
+		return defaultTimeout;
 	}
 
 	public void decrypt(final Document doc) throws Base64DecodingException,
 			XMLEncryptionException {
+		decrypt(doc, KmsDeadline.afterMillis(defaultTimeout));
+	}
+
+	/**
+	 * Decrypts a document, failing if its data key can not be decrypted by
+	 * KMS before a deadline.
+	 *
+	 * @param deadline
+	 *            the deadline for KMS requests, or {@link KmsDeadline#NONE}
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires before the data key is decrypted
+	 * @throws KmsCircuitOpenException
+	 *             if the circuit breaker for the endpoint and master key is
+	 *             open
+	 */
+	public void decrypt(final Document doc, KmsDeadline deadline)
+			throws Base64DecodingException, XMLEncryptionException {
 		Precondition.assertNonNullArgument("null document", doc);
+		Precondition.assertNonNullArgument("null deadline", deadline);
 
 		// Get encryption components for the root content
 		final Element root = getDocumentElement(doc);
-		final Element edRootContent = findEncryptedContent(root);
-		final String encAlgoRootContent =
-			determineEncryptionMethod(edRootContent);
-		final Element ekRootContent = findEncryptedKey(edRootContent);
-
-		// Get the encryption components for the secret key
-		final String encAlgoSecretKey =
-			determineEncryptionMethod(ekRootContent);
-		final String masterKeyId = determineMasterKeyId(ekRootContent);
-		final String encValueSecretKey = getCipherValue(ekRootContent);
+		final EncryptedDataHeader header =
+			EncryptedDataHeader.parseContent(root);
+		final String encAlgoRootContent = header.getDataAlgorithm();
+
+		// An escrow key decrypts the session key without KMS
+		if (useEscrowKey(header)) {
+			decrypt(doc, root, encAlgoRootContent, unwrapEscrow(header));
+			return;
+		}
+		checkKmsKey(header);
 		ByteBuffer encBuffer =
-			AwsKmsUtils.computeSecretBytes(creds, masterKeyId,
-					encAlgoSecretKey, encValueSecretKey, endpoint);
-		final byte[] encBytes = new byte[encBuffer.remaining()];
-		encBuffer.get(encBytes);
-		final SecretKey secretKey =
-			KeyUtils.prepareSecretKey(encAlgoRootContent, encBytes);
-
-		// Decrypt the content of the root element
-		decryptElement(doc, root, encAlgoRootContent, secretKey);
-	}
-
-	private Element findEncryptedKey(Element e) {
-		Element ki =
-			findSingleChildElementByTagNameNS(e, WSS4JConstants.SIG_NS,
-					WSS4JConstants.SIG_PREFIX + ":" + WSS4JConstants.KEYINFO_LN);
-		Element retVal =
-			findSingleChildElementByTagNameNS(ki, WSS4JConstants.ENC_NS,
-					WSS4JConstants.ENC_PREFIX + ":" + WSS4JConstants.ENC_KEY_LN);
+			AwsKmsUtils.computeSecretBytes(creds, header.getMasterKeyId(),
+					header.getKeyAlgorithm(), header.getEncryptedKey(),
+					endpoint, clientConfig, dataKeyCache, deadline,
+					retryPolicy);
+		decrypt(doc, root, encAlgoRootContent, unwrap(derive(encBuffer,
+				header.getSalt()), header.getWrappedKey()));
+	}
+
+	/**
+	 * Equivalent to <code>decryptAsync(doc, ForkJoinPool.commonPool())</code>
+	 */
+	public CompletableFuture<Document> decryptAsync(Document doc) {
+		return decryptAsync(doc, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Decrypts a document without blocking the calling thread. The document is
+	 * parsed for its encrypted data key by the calling thread; the data key is
+	 * decrypted on the {@link AwsKmsExecutor KMS executor} (unless it is
+	 * cached), and the document is decrypted by the specified executor once
+	 * the data key is available. The document must not be used by the caller
+	 * until the returned future completes.
+	 *
+	 * @param executor
+	 *            the executor that decrypts the document
+	 * @return a future that completes with the decrypted document, or
+	 *         completes exceptionally with a {@link CompletionException} that
+	 *         wraps the cause of failure
+	 * @throws IllegalArgumentException
+	 *             if the document does not contain the elements expected of
+	 *             an encrypted document
+	 * @see #decrypt(Document)
+	 */
+	public CompletableFuture<Document> decryptAsync(final Document doc,
+			final Executor executor) {
+		return decryptAsync(doc, KmsDeadline.afterMillis(defaultTimeout),
+				executor);
+	}
+
+	/**
+	 * Decrypts a document without blocking the calling thread, failing if its
+	 * data key can not be decrypted by KMS before a deadline.
+	 *
+	 * @param deadline
+	 *            the deadline for KMS requests, or {@link KmsDeadline#NONE}
+	 * @see #decryptAsync(Document, Executor)
+	 */
+	public CompletableFuture<Document> decryptAsync(final Document doc,
+			final KmsDeadline deadline, final Executor executor) {
+		Precondition.assertNonNullArgument("null document", doc);
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		Precondition.assertNonNullArgument("null executor", executor);
+
+		// Get encryption components for the root content
+		final Element root = getDocumentElement(doc);
+		final EncryptedDataHeader header =
+			EncryptedDataHeader.parseContent(root);
+		final String encAlgoRootContent = header.getDataAlgorithm();
+
+		// An escrow key decrypts the session key without KMS
+		if (useEscrowKey(header)) {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					decrypt(doc, root, encAlgoRootContent,
+							unwrapEscrow(header));
+				} catch (XMLEncryptionException | Base64DecodingException e) {
+					throw new CompletionException(e);
+				}
+				return doc;
+			}, executor);
+		}
+		checkKmsKey(header);
+		return AwsKmsUtils.computeSecretBytesAsync(creds,
+				header.getMasterKeyId(), header.getKeyAlgorithm(),
+				header.getEncryptedKey(), endpoint, clientConfig, dataKeyCache,
+				deadline, retryPolicy).thenApplyAsync(encBuffer -> {
+			try {
+				decrypt(doc, root, encAlgoRootContent, unwrap(derive(
+						encBuffer, header.getSalt()), header.getWrappedKey()));
+			} catch (XMLEncryptionException | Base64DecodingException e) {
+				throw new CompletionException(e);
+			}
+			return doc;
+		}, executor);
+	}
+
+	/**
+	 * Equivalent to
+	 * <code>decryptAll(doc, KmsDeadline.afterMillis(getDefaultTimeout()),
+	 * ForkJoinPool.commonPool(),
+	 * ForkJoinPool.getCommonPoolParallelism())</code>
+	 */
+	public int decryptAll(Document doc) throws Base64DecodingException,
+			XMLEncryptionException {
+		return decryptAll(doc, KmsDeadline.afterMillis(defaultTimeout),
+				ForkJoinPool.commonPool(),
+				ForkJoinPool.getCommonPoolParallelism());
+	}
+
+	/**
+	 * Decrypts every EncryptedData element of a document, wherever it
+	 * appears, rather than only the EncryptedData under the root element. The
+	 * key of each distinct EncryptedKey is decrypted once, and the keys of
+	 * different EncryptedKeys are decrypted concurrently. The parts of the
+	 * document are then copied by the calling thread, decrypted by at most
+	 * <code>parallelism</code> tasks of the executor, and put back into the
+	 * document by the calling thread in document order.
+	 * <p/>
+	 * Each EncryptedData must carry its key in a KeyInfo of the form written
+	 * by {@link DocumentEncryptor}, or reference an EncryptedKey of that form
+	 * elsewhere in the document, as resolved by
+	 * {@link EncryptedDataHeader#resolve(Element)}. Referenced EncryptedKeys
+	 * are left in the document. If any part can not be decrypted, the
+	 * document is left unchanged.
+	 *
+	 * @param deadline
+	 *            the deadline for KMS requests, or {@link KmsDeadline#NONE}
+	 * @param executor
+	 *            the executor that decrypts the parts of the document
+	 * @param parallelism
+	 *            the maximum number of parts decrypted at the same time
+	 * @return the number of EncryptedData elements that were decrypted, which
+	 *         is zero if the document has none
+	 * @throws IllegalArgumentException
+	 *             if an EncryptedData does not contain the elements expected
+	 *             of an encrypted part, or references an EncryptedKey that
+	 *             the document does not contain
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires before the data keys are decrypted
+	 * @see DocumentEncryptor#encrypt(Document, ElementSelector)
+	 */
+	public int decryptAll(final Document doc, KmsDeadline deadline,
+			Executor executor, int parallelism)
+			throws Base64DecodingException, XMLEncryptionException {
+		Precondition.assertNonNullArgument("null document", doc);
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		Precondition.assertNonNullArgument("null executor", executor);
+		Precondition.assertBoolean("non-positive parallelism",
+				parallelism > 0);
+
+		// Find the parts and their keys before anything is decrypted
+		final List<Element> elements = findEncryptedData(doc);
+		final int count = elements.size();
+		final List<EncryptedDataHeader> headers = new ArrayList<>(count);
+		for (Element e : elements) {
+			headers.add(EncryptedDataHeader.resolve(e));
+		}
+
+		final Map<KeyRef, CompletableFuture<KeyMaterial>> keys =
+			new LinkedHashMap<>();
+		try {
+			final List<CompletableFuture<KeyMaterial>> partKeys =
+				new ArrayList<>(count);
+			for (EncryptedDataHeader header : headers) {
+				final boolean escrow = useEscrowKey(header);
+				final KeyRef ref = new KeyRef(escrow, header);
+				CompletableFuture<KeyMaterial> key = keys.get(ref);
+				if (key == null) {
+					key = resolveKey(escrow, header, deadline);
+					keys.put(ref, key);
+				}
+				partKeys.add(key);
+			}
+			join(CompletableFuture.allOf(keys.values().toArray(
+					new CompletableFuture<?>[keys.size()])));
+
+			// Copy the parts on this thread, because a DOM is not safe for
+			// concurrent reads, and decrypt the copies in parallel
+			final List<DecryptedPart> parts = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				final String algorithm = headers.get(i).getDataAlgorithm();
+				final SecretKey secretKey =
+					partKeys.get(i).join().toSecretKey(algorithm);
+				parts.add(new DecryptedPart(copyPart(elements.get(i)),
+						algorithm, secretKey));
+			}
+			decryptParts(parts, executor, parallelism);
+
+			// Splice the decrypted content back in document order
+			for (int i = 0; i < count; i++) {
+				splice(doc, elements.get(i), parts.get(i).context);
+			}
+		} finally {
+			for (CompletableFuture<KeyMaterial> key : keys.values()) {
+				key.thenAccept(KeyMaterial::close);
+			}
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Decrypted {0} parts with {1} keys",
+					new Object[] { count, keys.size() });
+		}
+		return count;
+	}
+
+	/**
+	 * Decrypts a collection of documents with the fork/join common pool. A
+	 * document that can not be decrypted does not stop the others.
+	 *
+	 * @return the result of each document, in the order of the collection
+	 * @see #decryptAll(Stream, Executor, int, boolean, Consumer)
+	 */
+	public List<BatchResult> decryptAll(Collection<? extends Document> docs)
+			throws InterruptedException {
+		Precondition.assertNonNullArgument("null documents", docs);
+		final List<BatchResult> retVal = new ArrayList<>(docs.size());
+		decryptAll(docs.stream(), ForkJoinPool.commonPool(), true,
+				retVal::add);
 		return retVal;
 	}
 
+	/**
+	 * Equivalent to
+	 * <code>decryptAll(docs, executor, maxInFlight, ordered, consumer)</code>
+	 * , where <code>maxInFlight</code> is twice the parallelism of the common
+	 * pool
+	 */
+	public void decryptAll(Stream<? extends Document> docs,
+			Executor executor, boolean ordered,
+			Consumer<? super BatchResult> consumer)
+			throws InterruptedException {
+		decryptAll(docs, executor, BatchRunner.DEFAULT_MAX_IN_FLIGHT, ordered,
+				consumer);
+	}
+
+	/**
+	 * Decrypts the content of the root element of each document of a batch,
+	 * as {@link #decrypt(Document)} does. Documents are read from the stream
+	 * and parsed for their keys by the calling thread. Documents that share
+	 * an encrypted data key, as documents encrypted by one batch or with a
+	 * {@link CachingSecretKeyInfoFactory caching factory} do, share one
+	 * decrypted key, so KMS is asked to decrypt each data key once while its
+	 * documents are being read. The documents are decrypted by the executor.
+	 * <p/>
+	 * The result of each document is passed to the consumer by the calling
+	 * thread, either in stream order or as soon as the document is
+	 * decrypted. A document that can not be decrypted, including one whose
+	 * data key can not be decrypted, is reported to the consumer with its
+	 * failure and does not stop the batch. An exception thrown by the
+	 * consumer stops the batch.
+	 *
+	 * @param executor
+	 *            the executor that decrypts the documents
+	 * @param maxInFlight
+	 *            the maximum number of documents read from the stream whose
+	 *            results have not yet been delivered
+	 * @param ordered
+	 *            whether results are delivered in stream order
+	 * @param consumer
+	 *            receives the result of each document
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while it waits for a
+	 *             result
+	 */
+	public void decryptAll(Stream<? extends Document> docs,
+			final Executor executor, int maxInFlight, boolean ordered,
+			Consumer<? super BatchResult> consumer)
+			throws InterruptedException {
+		Precondition.assertNonNullArgument("null documents", docs);
+		Precondition.assertNonNullArgument("null executor", executor);
+
+		final Iterator<? extends Document> it = docs.iterator();
+		final Map<KeyRef, KeyGroup> groups =
+			new LinkedHashMap<>(MAX_BATCH_KEYS, 0.75f, true);
+		int keyCount = 0;
+		int failedCount;
+		try {
+			try (BatchRunner runner =
+				new BatchRunner(maxInFlight, ordered, consumer)) {
+				while (it.hasNext()) {
+					final Document doc = it.next();
+					runner.awaitCapacity();
+					final Element root;
+					final EncryptedDataHeader header;
+					final KeyRef ref;
+					KeyGroup group;
+					try {
+						Precondition.assertNonNullArgument("null document",
+								doc);
+						root = getDocumentElement(doc);
+						header = EncryptedDataHeader.parseContent(root);
+						final boolean escrow = useEscrowKey(header);
+						ref = new KeyRef(escrow, header);
+						group = groups.get(ref);
+						if (group == null
+								|| group.key.isCompletedExceptionally()) {
+							final KmsDeadline deadline =
+								KmsDeadline.afterMillis(defaultTimeout);
+							group =
+								new KeyGroup(resolveKey(escrow, header,
+										deadline));
+							evict(groups.put(ref, group));
+							++keyCount;
+						}
+					} catch (Base64DecodingException | XMLEncryptionException
+							| RuntimeException x) {
+						runner.fail(doc, x);
+						continue;
+					}
+					if (groups.size() > MAX_BATCH_KEYS) {
+						Iterator<KeyGroup> eldest = groups.values().iterator();
+						evict(eldest.next());
+						eldest.remove();
+					}
+
+					final String algorithm = header.getDataAlgorithm();
+					final KeyGroup g = group;
+					++g.users;
+					CompletableFuture<Void> work =
+						g.key.thenAcceptAsync(key -> {
+							try {
+								decryptElement(doc, root, algorithm,
+										key.toSecretKey(algorithm));
+							} catch (XMLEncryptionException e) {
+								throw new CompletionException(e);
+							}
+						}, executor);
+					runner.submit(doc, work, () -> {
+						--g.users;
+						if (g.key.isCompletedExceptionally()
+								&& groups.get(ref) == g) {
+							groups.remove(ref);
+							evict(g);
+						}
+						g.closeIfUnused();
+					});
+				}
+				runner.finish();
+				failedCount = runner.getFailedCount();
+			}
+		} finally {
+			for (KeyGroup g : groups.values()) {
+				evict(g);
+			}
+			groups.clear();
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE,
+					"Decrypted batch with {0} data keys, {1} failures",
+					new Object[] { keyCount, failedCount });
+		}
+	}
+
+	/**
+	 * Marks a key that is no longer cached by a batch, so that it is closed
+	 * once no document of the batch is using it. A null group is ignored.
+	 */
+	private static void evict(KeyGroup g) {
+		if (g != null) {
+			g.evicted = true;
+			g.closeIfUnused();
+		}
+	}
+
+	/**
+	 * A key that is shared by the documents of a batch. Used only by the
+	 * thread that runs the batch.
+	 */
+	private static final class KeyGroup {
+		final CompletableFuture<KeyMaterial> key;
+		int users;
+		boolean evicted;
+		boolean closed;
+
+		KeyGroup(CompletableFuture<KeyMaterial> key) {
+			this.key = key;
+		}
+
+		void closeIfUnused() {
+			if (evicted && users == 0 && !closed) {
+				closed = true;
+				key.thenAccept(KeyMaterial::close);
+			}
+		}
+	}
+
+	/**
+	 * Returns the EncryptedData elements of a document in document order,
+	 * skipping any that is nested in another EncryptedData
+	 */
+	private static List<Element> findEncryptedData(Document doc) {
+		NodeList nl =
+			doc.getElementsByTagNameNS(EncryptionConstants.EncryptionSpecNS,
+					EncryptionConstants._TAG_ENCRYPTEDDATA);
+		final int nlCount = nl.getLength();
+		List<Element> retVal = new ArrayList<>(nlCount);
+		for (int i = 0; i < nlCount; i++) {
+			Element e = (Element) nl.item(i);
+			boolean nested = false;
+			for (Node n = e.getParentNode(); n != null && !nested; n =
+				n.getParentNode()) {
+				nested =
+					EncryptionConstants.EncryptionSpecNS.equals(n
+							.getNamespaceURI())
+							&& EncryptionConstants._TAG_ENCRYPTEDDATA.equals(n
+									.getLocalName());
+			}
+			if (!nested) {
+				retVal.add(e);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Starts decrypting the key of a part. An escrow key is decrypted by the
+	 * calling thread; a data key is decrypted by KMS, unless it is cached.
+	 */
+	private CompletableFuture<KeyMaterial> resolveKey(boolean escrow,
+			final EncryptedDataHeader header, KmsDeadline deadline)
+			throws Base64DecodingException, XMLEncryptionException {
+		if (escrow) {
+			return CompletableFuture.completedFuture(toKeyMaterial(
+					unwrapEscrow(header)));
+		}
+		checkKmsKey(header);
+		return AwsKmsUtils.computeSecretBytesAsync(creds,
+				header.getMasterKeyId(), header.getKeyAlgorithm(),
+				header.getEncryptedKey(), endpoint, clientConfig,
+				dataKeyCache, deadline, retryPolicy).thenApply(encBuffer -> {
+			try {
+				return toKeyMaterial(unwrap(derive(encBuffer,
+						header.getSalt()), header.getWrappedKey()));
+			} catch (XMLEncryptionException | Base64DecodingException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/** Moves a private copy of a key into key material */
+	private static KeyMaterial toKeyMaterial(ByteBuffer encBuffer) {
+		KeyMaterial retVal = KeyMaterial.copyOf(encBuffer);
+		KeyMaterialPool.zeroize(encBuffer);
+		return retVal;
+	}
+
+	/**
+	 * Copies an EncryptedData into a document of its own, under an element
+	 * that declares the namespaces in scope of the original, so that its
+	 * content is parsed as it would be in place
+	 */
+	private static Element copyPart(Element encryptedData) {
+		final Document copy =
+			encryptedData.getOwnerDocument().getImplementation()
+					.createDocument(null, CONTEXT_LN, null);
+		final Element retVal = copy.getDocumentElement();
+		for (Node n = encryptedData.getParentNode(); n != null; n =
+			n.getParentNode()) {
+			NamedNodeMap attributes = n.getAttributes();
+			final int count = attributes == null ? 0 : attributes.getLength();
+			for (int i = 0; i < count; i++) {
+				Attr a = (Attr) attributes.item(i);
+				if (Constants.NamespaceSpecNS.equals(a.getNamespaceURI())
+						&& !retVal.hasAttribute(a.getName())) {
+					retVal.setAttributeNS(Constants.NamespaceSpecNS,
+							a.getName(), a.getValue());
+				}
+			}
+		}
+		retVal.appendChild(copy.importNode(encryptedData, true));
+		return retVal;
+	}
+
+	/**
+	 * Decrypts the parts of a document with at most <code>parallelism</code>
+	 * tasks. If any part fails, the remaining parts are skipped and the first
+	 * failure is thrown once every task has finished.
+	 */
+	private static void decryptParts(final List<DecryptedPart> parts,
+			Executor executor, int parallelism)
+			throws Base64DecodingException, XMLEncryptionException {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean failed = new AtomicBoolean();
+		final int taskCount = Math.min(parallelism, parts.size());
+		final CompletableFuture<?>[] tasks =
+			new CompletableFuture<?>[taskCount];
+		for (int t = 0; t < taskCount; t++) {
+			tasks[t] = CompletableFuture.runAsync(() -> {
+				int i;
+				while (!failed.get() && (i = next.getAndIncrement()) < parts
+						.size()) {
+					final DecryptedPart part = parts.get(i);
+					try {
+						decryptElement(part.context.getOwnerDocument(),
+								part.context, part.algorithm, part.secretKey);
+					} catch (XMLEncryptionException | RuntimeException e) {
+						failed.set(true);
+						throw new CompletionException(e);
+					}
+				}
+			}, executor);
+		}
+		join(CompletableFuture.allOf(tasks));
+	}
+
+	/**
+	 * Replaces an EncryptedData with the decrypted content of its copy
+	 */
+	private static void splice(Document doc, Element encryptedData,
+			Element context) {
+		final Node parent = encryptedData.getParentNode();
+		for (Node n = context.getFirstChild(); n != null; n =
+			n.getNextSibling()) {
+			parent.insertBefore(doc.importNode(n, true), encryptedData);
+		}
+		parent.removeChild(encryptedData);
+	}
+
+	/**
+	 * Waits for a future, rethrowing the checked exception or unchecked
+	 * exception that caused it to fail
+	 */
+	private static void join(CompletableFuture<?> f)
+			throws Base64DecodingException, XMLEncryptionException {
+		try {
+			f.join();
+		} catch (CompletionException x) {
+			final Throwable cause = x.getCause();
+			if (cause instanceof XMLEncryptionException) {
+				throw (XMLEncryptionException) cause;
+			} else if (cause instanceof Base64DecodingException) {
+				throw (Base64DecodingException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw x;
+		}
+	}
+
+	/** A copy of an encrypted part and the key that decrypts it */
+	private static final class DecryptedPart {
+		final Element context;
+		final String algorithm;
+		final SecretKey secretKey;
+
+		DecryptedPart(Element context, String algorithm, SecretKey secretKey) {
+			this.context = context;
+			this.algorithm = algorithm;
+			this.secretKey = secretKey;
+		}
+	}
+
+	/**
+	 * The fields of a header that determine the key of a part. Parts with
+	 * equal references share one decrypted key.
+	 */
+	private static final class KeyRef {
+		private final boolean escrow;
+		private final String algorithm;
+		private final String masterKeyId;
+		private final String encryptedKey;
+		private final String salt;
+		private final String wrappedKey;
+
+		KeyRef(boolean escrow, EncryptedDataHeader header) {
+			this.escrow = escrow;
+			if (escrow) {
+				this.algorithm = header.getEscrowAlgorithm();
+				this.masterKeyId = null;
+				this.encryptedKey = header.getEscrowKey();
+				this.salt = null;
+				this.wrappedKey = null;
+			} else {
+				this.algorithm = header.getKeyAlgorithm();
+				this.masterKeyId = header.getMasterKeyId();
+				this.encryptedKey = header.getEncryptedKey();
+				this.salt = header.getSalt();
+				this.wrappedKey = header.getWrappedKey();
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (escrow ? 1231 : 1237);
+			result =
+				prime * result
+						+ ((algorithm == null) ? 0 : algorithm.hashCode());
+			result =
+				prime * result
+						+ ((masterKeyId == null) ? 0 : masterKeyId.hashCode());
+			result =
+				prime * result
+						+ ((encryptedKey == null) ? 0 : encryptedKey
+								.hashCode());
+			result = prime * result + ((salt == null) ? 0 : salt.hashCode());
+			result =
+				prime * result
+						+ ((wrappedKey == null) ? 0 : wrappedKey.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null) {
+				return false;
+			}
+			if (getClass() != obj.getClass()) {
+				return false;
+			}
+			KeyRef other = (KeyRef) obj;
+			if (escrow != other.escrow) {
+				return false;
+			}
+			if (algorithm == null) {
+				if (other.algorithm != null) {
+					return false;
+				}
+			} else if (!algorithm.equals(other.algorithm)) {
+				return false;
+			}
+			if (masterKeyId == null) {
+				if (other.masterKeyId != null) {
+					return false;
+				}
+			} else if (!masterKeyId.equals(other.masterKeyId)) {
+				return false;
+			}
+			if (encryptedKey == null) {
+				if (other.encryptedKey != null) {
+					return false;
+				}
+			} else if (!encryptedKey.equals(other.encryptedKey)) {
+				return false;
+			}
+			if (salt == null) {
+				if (other.salt != null) {
+					return false;
+				}
+			} else if (!salt.equals(other.salt)) {
+				return false;
+			}
+			if (wrappedKey == null) {
+				if (other.wrappedKey != null) {
+					return false;
+				}
+			} else if (!wrappedKey.equals(other.wrappedKey)) {
+				return false;
+			}
+			return true;
+		}
+	}
+
+	private static void decrypt(Document doc, Element root,
+			String encAlgoRootContent, ByteBuffer encBuffer)
+			throws XMLEncryptionException {
+		// The buffer is always a private copy, so it is cleared once the key
+		// is held by key material that is zeroized after decryption
+		try (KeyMaterial key = KeyMaterial.copyOf(encBuffer)) {
+			KeyMaterialPool.zeroize(encBuffer);
+			final SecretKey secretKey = key.toSecretKey(encAlgoRootContent);
+
+			// Decrypt the content of the root element
+			decryptElement(doc, root, encAlgoRootContent, secretKey);
+		}
+	}
+
+	/**
+	 * Unwraps a document key that was wrapped locally under a KEK.
+	 *
+	 * @param key
+	 *            the KEK, if the document key is wrapped; otherwise, the
+	 *            document key
+	 * @param wrappedKey
+	 *            the Base64 encoded wrapped key, or null if the document key
+	 *            is not wrapped
+	 * @see KeyWrappingSecretKeyInfoFactory
+	 */
+	private static ByteBuffer unwrap(ByteBuffer key, String wrappedKey)
+			throws Base64DecodingException, XMLEncryptionException {
+		if (wrappedKey == null) {
+			return key;
+		}
+		final byte[] kek = new byte[key.remaining()];
+		key.get(kek);
+		KeyMaterialPool.zeroize(key);
+		try {
+			return ByteBuffer.wrap(KeyWrappingSecretKeyInfoFactory.unwrap(kek,
+					Base64.decode(wrappedKey.getBytes())));
+		} catch (GeneralSecurityException e) {
+			String msg = "Failed to unwrap document key: " + e.toString();
+			logger.severe(msg);
+			throw new XMLEncryptionException(msg, e);
+		} finally {
+			KeyMaterial.zeroize(kek);
+		}
+	}
+
+	/**
+	 * Derives a document key from a base key.
+	 *
+	 * @param key
+	 *            the base key, if the document key is derived; otherwise, the
+	 *            document key
+	 * @param salt
+	 *            the Base64 encoded salt, or null if the document key is not
+	 *            derived
+	 * @see KeyDerivingSecretKeyInfoFactory
+	 */
+	private static ByteBuffer derive(ByteBuffer key, String salt)
+			throws Base64DecodingException, XMLEncryptionException {
+		if (salt == null) {
+			return key;
+		}
+		final byte[] baseKey = new byte[key.remaining()];
+		key.get(baseKey);
+		KeyMaterialPool.zeroize(key);
+		try {
+			return ByteBuffer.wrap(KeyDerivingSecretKeyInfoFactory.derive(
+					baseKey, Base64.decode(salt.getBytes()), baseKey.length));
+		} catch (GeneralSecurityException e) {
+			String msg = "Failed to derive document key: " + e.toString();
+			logger.severe(msg);
+			throw new XMLEncryptionException(msg, e);
+		} finally {
+			KeyMaterial.zeroize(baseKey);
+		}
+	}
+
+	/**
+	 * Decrypts the session key held by an escrow EncryptedKey.
+	 *
+	 * @see EscrowKeys
+	 */
+	private ByteBuffer unwrapEscrow(EncryptedDataHeader header)
+			throws Base64DecodingException, XMLEncryptionException {
+		assert escrowKey != null;
+		final String algorithm = header.getEscrowAlgorithm();
+		if (!EscrowKeys.KEY_TRANSPORT_ALGORITHM.equals(algorithm)) {
+			String msg = "Unsupported escrow key algorithm: " + algorithm;
+			throw new XMLEncryptionException(msg);
+		}
+		final String wrappedKey = header.getEscrowKey();
+		try {
+			return ByteBuffer.wrap(EscrowKeys.unwrap(escrowKey,
+					Base64.decode(wrappedKey.getBytes())));
+		} catch (GeneralSecurityException e) {
+			String msg = "Failed to decrypt escrow key: " + e.toString();
+			logger.severe(msg);
+			throw new XMLEncryptionException(msg, e);
+		}
+	}
+
+	/**
+	 * Checks whether the session key of a document is decrypted with the
+	 * escrow key of this decryptor rather than by KMS.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if this decryptor does not use KMS and the document has no
+	 *             escrow EncryptedKey
+	 */
+	private boolean useEscrowKey(EncryptedDataHeader header) {
+		final boolean retVal = escrowKey != null && header.hasEscrowKey();
+		if (!retVal && creds == null) {
+			String msg = "Document has no escrow EncryptedKey";
+			throw new IllegalArgumentException(msg);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Checks that a document has the one EncryptedKey, named by a master key
+	 * id, that KMS decrypts.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if it does not
+	 */
+	private static void checkKmsKey(EncryptedDataHeader header) {
+		if (header.getKmsKeyCount() != 1) {
+			String msg =
+				"Invalid number of '" + WSS4JConstants.ENC_KEY_LN
+						+ "' elements: " + header.getKmsKeyCount();
+			throw new IllegalArgumentException(msg);
+		}
+		if (header.getMasterKeyId() == null) {
+			String msg =
+				"Invalid number of '" + WSS4JConstants.KEYNAME_LN
+						+ "' elements: 0";
+			throw new IllegalArgumentException(msg);
+		}
+	}
+
 }
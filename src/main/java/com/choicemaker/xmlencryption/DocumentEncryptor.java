@@ -10,8 +10,23 @@
  */
 package com.choicemaker.xmlencryption;
 
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.crypto.SecretKey;
 
@@ -20,14 +35,13 @@ import org.apache.xml.security.encryption.XMLCipher;
 import org.apache.xml.security.encryption.XMLEncryptionException;
 import org.apache.xml.security.keys.KeyInfo;
 import org.apache.xml.security.stax.impl.util.IDGenerator;
+import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import com.choicemaker.utilcopy01.KeyUtils;
 import com.choicemaker.utilcopy01.Precondition;
-import com.choicemaker.utilcopy01.SystemPropertyUtils;
 import com.choicemaker.utilcopy01.WSS4JConstants;
 
 public class DocumentEncryptor {
@@ -35,40 +49,65 @@ public class DocumentEncryptor {
 	private static final Logger logger = Logger
 			.getLogger(DocumentEncryptor.class.getName());
 
+	/**
+	 * Default maximum number of documents of a batch that are encrypted with
+	 * one session key. Every document requests its own key from the key
+	 * factory of this encryptor, so whether a key is reused is decided by the
+	 * factory; for example, by a {@link CachingSecretKeyInfoFactory} and its
+	 * limits.
+	 */
+	public static final int DEFAULT_BATCH_GROUP_SIZE = 1;
+
 	static {
 		// Security.addProvider(new
 		// org.bouncycastle.jce.provider.BouncyCastleProvider());
 		org.apache.xml.security.Init.init();
 	}
 
-	private static void encryptElement(Document doc, Element elementToEncrypt,
+	/**
+	 * Encrypts the content of an element.
+	 *
+	 * @return the approximate number of encrypted bytes
+	 */
+	private static long encryptElement(Document doc, Element elementToEncrypt,
 			String docEncAlgo, SecretKey secretKey, KeyInfo keyInfo)
 			throws XMLEncryptionException {
-		final XMLCipher xmlCipher = XMLCipher.getInstance(docEncAlgo);
-		xmlCipher.init(XMLCipher.ENCRYPT_MODE, secretKey);
+		final XMLCipherPool pool = XMLCipherPool.getDefault();
+		final XMLCipher xmlCipher =
+			pool.acquire(docEncAlgo, XMLCipher.ENCRYPT_MODE, secretKey);
 		EncryptedData encData = xmlCipher.getEncryptedData();
 		final String xencEncryptedDataId = generateEncryptedDataId();
 		encData.setId(xencEncryptedDataId);
 		encData.setKeyInfo(keyInfo);
 		final boolean content = true;
-		logger.fine("Before encryption: "
-				+ SystemPropertyUtils.PV_LINE_SEPARATOR
-				+ XMLPrettyPrint.print(elementToEncrypt));
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Before encryption: {0}",
+					Diagnostics.preview(elementToEncrypt));
+		}
 		try {
 			xmlCipher.doFinal(doc, elementToEncrypt, content);
 		} catch (XMLEncryptionException e) {
+			pool.discard(xmlCipher);
 			logger.severe(e.toString());
 			throw e;
 		} catch (Exception e) {
+			pool.discard(xmlCipher);
 			logger.severe(e.toString());
 			String msg =
 				"Failed to encrypt element '" + elementToEncrypt + "': "
 						+ e.getClass().getSimpleName();
 			throw new XMLEncryptionException(msg, e);
 		}
-		logger.fine("After encryption: "
-				+ SystemPropertyUtils.PV_LINE_SEPARATOR
-				+ XMLPrettyPrint.print(elementToEncrypt));
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "After encryption: {0}",
+					Diagnostics.preview(elementToEncrypt));
+		}
+
+		// Three bytes per four Base64 characters
+		String cv = encData.getCipherData().getCipherValue().getValue();
+		long retVal = cv == null ? 0 : cv.length() * 3L / 4;
+		pool.release(docEncAlgo, xmlCipher);
+		return retVal;
 	}
 
 	private static String generateEncryptedDataId() {
@@ -76,6 +115,140 @@ public class DocumentEncryptor {
 		return retVal;
 	}
 
+	/** An EncryptedData produced off-thread, and the cipher that made it */
+	private static final class EncryptedPart {
+		final XMLCipher cipher;
+		final EncryptedData data;
+
+		EncryptedPart(XMLCipher cipher, EncryptedData data) {
+			this.cipher = cipher;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Encrypts the content of several elements, each as its own
+	 * EncryptedData. A DOM is not safe for concurrent use, even for reads, so
+	 * the calling thread copies each element into a document of its own; the
+	 * copies are serialized and encrypted in parallel by the executor; and
+	 * the calling thread then replaces the content of each element with its
+	 * EncryptedData. The document is not modified if any element fails.
+	 *
+	 * @return the approximate number of encrypted bytes
+	 */
+	private static long encryptElements(Document doc, List<Element> elements,
+			String docEncAlgo, SecretKey secretKey, KeyInfo keyInfo,
+			Executor executor) throws XMLEncryptionException {
+		final XMLCipherPool pool = XMLCipherPool.getDefault();
+		final DOMImplementation impl = doc.getImplementation();
+		List<CompletableFuture<EncryptedPart>> futures =
+			new ArrayList<>(elements.size());
+		for (Element e : elements) {
+			final Document copy = impl.createDocument(null, null, null);
+			copy.appendChild(copy.importNode(e, true));
+			futures.add(CompletableFuture.supplyAsync(
+					() -> encryptCopy(pool, copy, docEncAlgo, secretKey),
+					executor));
+		}
+
+		// Wait for every part, so that no cipher is left checked out
+		List<EncryptedPart> parts = new ArrayList<>(elements.size());
+		Throwable failure = null;
+		for (CompletableFuture<EncryptedPart> f : futures) {
+			try {
+				parts.add(f.join());
+			} catch (CompletionException x) {
+				if (failure == null) {
+					failure = x.getCause() == null ? x : x.getCause();
+				}
+			}
+		}
+		if (failure != null) {
+			for (EncryptedPart part : parts) {
+				pool.release(docEncAlgo, part.cipher);
+			}
+			logger.severe(failure.toString());
+			if (failure instanceof XMLEncryptionException) {
+				throw (XMLEncryptionException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			String msg =
+				"Failed to encrypt elements: "
+						+ failure.getClass().getSimpleName();
+			throw new XMLEncryptionException(msg, (Exception) failure);
+		}
+
+		// Splice the EncryptedData elements into the document
+		long retVal = 0;
+		for (int i = 0; i < elements.size(); i++) {
+			final Element target = elements.get(i);
+			final EncryptedPart part = parts.get(i);
+			part.data.setId(generateEncryptedDataId());
+			part.data.setKeyInfo(keyInfo);
+			Element encryptedData = part.cipher.martial(doc, part.data);
+			// Each EncryptedData holds its own copy of the shared KeyInfo
+			EncryptedKeyFactory.renewEncryptedKeyIds(encryptedData);
+			while (target.getFirstChild() != null) {
+				target.removeChild(target.getFirstChild());
+			}
+			target.appendChild(encryptedData);
+
+			// Three bytes per four Base64 characters
+			String cv = part.data.getCipherData().getCipherValue().getValue();
+			retVal += cv == null ? 0 : cv.length() * 3L / 4;
+			pool.release(docEncAlgo, part.cipher);
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Encrypted " + elements.size() + " elements");
+		}
+		return retVal;
+	}
+
+	/** Encrypts the content of the root element of a private copy */
+	private static EncryptedPart encryptCopy(XMLCipherPool pool,
+			Document copy, String docEncAlgo, SecretKey secretKey) {
+		XMLCipher xmlCipher = null;
+		try {
+			xmlCipher =
+				pool.acquire(docEncAlgo, XMLCipher.ENCRYPT_MODE, secretKey);
+			final boolean content = true;
+			EncryptedData ed =
+				xmlCipher.encryptData(copy, copy.getDocumentElement(),
+						content);
+			return new EncryptedPart(xmlCipher, ed);
+		} catch (Exception e) {
+			pool.discard(xmlCipher);
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Returns the selected elements that are not descendants of other
+	 * selected elements, whose content is encrypted along with the content
+	 * of their ancestor, in the order in which they were selected
+	 */
+	private static List<Element> outermost(List<Element> selected) {
+		Map<Node, Boolean> all = new IdentityHashMap<>();
+		for (Element e : selected) {
+			all.put(e, Boolean.TRUE);
+		}
+		Map<Node, Boolean> added = new IdentityHashMap<>();
+		List<Element> retVal = new ArrayList<>(all.size());
+		for (Element e : selected) {
+			boolean nested = false;
+			for (Node n = e.getParentNode(); n != null && !nested; n =
+				n.getParentNode()) {
+				nested = all.containsKey(n);
+			}
+			if (!nested && added.put(e, Boolean.TRUE) == null) {
+				retVal.add(e);
+			}
+		}
+		return retVal;
+	}
+
 	private static Element getDocumentElement(Document doc) {
 		Element retVal = doc.getDocumentElement();
 		if (retVal == null) {
@@ -107,17 +280,58 @@ public class DocumentEncryptor {
 	private final CredentialSet credential;
 	private final EncryptionScheme scheme;
 	private final SecretKeyInfoFactory skiFactory;
+	private final PublicKey escrowKey;
+	private final long defaultTimeout;
 	private final EncryptedKeyFactory ekFactory = new EncryptedKeyFactory();
 
 	public DocumentEncryptor(EncryptionScheme es, CredentialSet cs) {
+		this(es, cs, es == null ? null : es.getSecretKeyInfoFactory(cs,
+				es.getKeyEncryptionAlgorithm(), Collections.emptyMap()));
+	}
+
+	/**
+	 * Creates an encryptor that obtains session keys from the specified
+	 * factory rather than from the factory provided by the encryption scheme;
+	 * for example, a {@link CachingSecretKeyInfoFactory} or a
+	 * {@link PrefetchingSecretKeyInfoFactory} that wraps the scheme's factory.
+	 * <p/>
+	 * If the credentials define the optional property
+	 * {@link EncryptionParameters#PN_ESCROWKEY}, session keys are also
+	 * encrypted under the escrow key that it names.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if an escrow key is named but can not be read
+	 */
+	public DocumentEncryptor(EncryptionScheme es, CredentialSet cs,
+			SecretKeyInfoFactory skif) {
+		this(es, cs, skif, cs == null ? null : EscrowKeys
+				.getEscrowPublicKey(cs.getProperties()));
+	}
+
+	/**
+	 * Creates an encryptor that adds a second EncryptedKey to each document,
+	 * holding the session key encrypted under an escrow RSA key, so that the
+	 * document can also be decrypted without KMS by a
+	 * {@link DocumentDecryptor#DocumentDecryptor(java.security.PrivateKey)
+	 * decryptor} that holds the private escrow key.
+	 *
+	 * @param escrowKey
+	 *            a public RSA key, or null to encrypt session keys only with
+	 *            KMS
+	 */
+	public DocumentEncryptor(EncryptionScheme es, CredentialSet cs,
+			SecretKeyInfoFactory skif, PublicKey escrowKey) {
 		Precondition.assertNonNullArgument("null credentials", cs);
 		Precondition.assertNonNullArgument("null scheme", es);
+		Precondition.assertNonNullArgument("null key factory", skif);
 
 		credential = cs;
 		scheme = es;
-		skiFactory =
-			es.getSecretKeyInfoFactory(cs, es.getKeyEncryptionAlgorithm(),
-					Collections.emptyMap());
+		skiFactory = skif;
+		this.escrowKey = escrowKey;
+		defaultTimeout =
+			AwsKmsProperties.getLongProperty(cs.getProperties(),
+					AwsKmsProperties.PN_KMS_TIMEOUT, 0);
 	}
 
 	public CredentialSet getCredential() {
@@ -128,10 +342,34 @@ public class DocumentEncryptor {
 		return scheme;
 	}
 
-	private KeyInfo createKeyInfo(Document document, Element encKey) {
+	public SecretKeyInfoFactory getSecretKeyInfoFactory() {
+		return skiFactory;
+	}
+
+	/** Returns the escrow key of this encryptor, possibly null */
+	public PublicKey getEscrowKey() {
+		return escrowKey;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, allowed for the KMS requests of an
+	 * encryption that is not passed an explicit deadline, or 0 if there is no
+	 * limit.
+	 *
+	 * @see AwsKmsProperties#PN_KMS_TIMEOUT
+	 */
+	public long getDefaultTimeout() {
+		return defaultTimeout;
+	}
+
+	private KeyInfo createKeyInfo(Document document, Element encKey,
+			Element escrowKey) {
 
 		KeyInfo keyInfo = new KeyInfo(document);
 		keyInfo.addUnknownElement(encKey);
+		if (escrowKey != null) {
+			keyInfo.addUnknownElement(escrowKey);
+		}
 		Element keyInfoElement = keyInfo.getElement();
 		keyInfoElement.setAttributeNS(WSS4JConstants.XMLNS_NS, "xmlns:"
 				+ WSS4JConstants.SIG_PREFIX, WSS4JConstants.SIG_NS);
@@ -139,9 +377,14 @@ public class DocumentEncryptor {
 		return keyInfo;
 	}
 
+	/**
+	 * Equivalent to
+	 * <code>encrypt(doc, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+	 * getScheme().getDocumentEncryptionAlgorithm())</code>
+	 */
 	public void encrypt(Document doc) throws XMLEncryptionException {
 		encrypt(doc, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
-				DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO);
+				scheme.getDocumentEncryptionAlgorithm());
 	}
 
 	/**
@@ -164,6 +407,23 @@ public class DocumentEncryptor {
 	 */
 	public void encrypt(final Document doc, String keyEncAlgo, String docEncAlgo)
 			throws XMLEncryptionException {
+		encrypt(doc, keyEncAlgo, docEncAlgo,
+				KmsDeadline.afterMillis(defaultTimeout));
+	}
+
+	/**
+	 * Encrypts the content of the root element of an XML document, failing if
+	 * the session key can not be obtained from KMS before a deadline.
+	 *
+	 * @param deadline
+	 *            the deadline for KMS requests, or {@link KmsDeadline#NONE}
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires before a session key is obtained
+	 * @see #encrypt(Document, String, String)
+	 */
+	public void encrypt(final Document doc, String keyEncAlgo,
+			String docEncAlgo, KmsDeadline deadline)
+			throws XMLEncryptionException {
 
 		// Preconditions
 		Precondition.assertNonNullArgument("null document", doc);
@@ -171,21 +431,362 @@ public class DocumentEncryptor {
 				"null or blank key encryption algorithm", keyEncAlgo);
 		Precondition.assertNonEmptyString(
 				"null or blank document encryption algorithm", docEncAlgo);
+		Precondition.assertNonNullArgument("null deadline", deadline);
 
-		// Find the document's root element and construct an XMLCipher instance
+		// Create the SecretKey that will encrypt the document, and zeroize it
+		// (or release it to the key cache) when the document is encrypted
+		try (SecretKeyInfo ski = skiFactory.createSessionKey(deadline)) {
+			encrypt(doc, keyEncAlgo, docEncAlgo, ski);
+		}
+	}
+
+	/**
+	 * Equivalent to
+	 * <code>encryptAsync(doc, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+	 * getScheme().getDocumentEncryptionAlgorithm(),
+	 * ForkJoinPool.commonPool())</code>
+	 */
+	public CompletableFuture<Document> encryptAsync(Document doc) {
+		return encryptAsync(doc, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+				scheme.getDocumentEncryptionAlgorithm(),
+				ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Encrypts the content of the root element of an XML document without
+	 * blocking the calling thread. The session key is requested on the
+	 * {@link AwsKmsExecutor KMS executor}, and the document is encrypted by
+	 * the specified executor once the key is available. The document must not
+	 * be used by the caller until the returned future completes.
+	 *
+	 * @param executor
+	 *            the executor that encrypts the document
+	 * @return a future that completes with the encrypted document, or
+	 *         completes exceptionally with a {@link CompletionException} that
+	 *         wraps the cause of failure
+	 * @see #encrypt(Document, String, String)
+	 */
+	public CompletableFuture<Document> encryptAsync(final Document doc,
+			final String keyEncAlgo, final String docEncAlgo,
+			final Executor executor) {
+		return encryptAsync(doc, keyEncAlgo, docEncAlgo,
+				KmsDeadline.afterMillis(defaultTimeout), executor);
+	}
+
+	/**
+	 * Encrypts a document without blocking the calling thread, failing if the
+	 * session key can not be obtained from KMS before a deadline. The
+	 * deadline does not limit the time spent waiting for the KMS executor or
+	 * for the encrypting executor.
+	 *
+	 * @param deadline
+	 *            the deadline for KMS requests, or {@link KmsDeadline#NONE}
+	 * @see #encryptAsync(Document, String, String, Executor)
+	 */
+	public CompletableFuture<Document> encryptAsync(final Document doc,
+			final String keyEncAlgo, final String docEncAlgo,
+			final KmsDeadline deadline, final Executor executor) {
+		Precondition.assertNonNullArgument("null document", doc);
+		Precondition.assertNonEmptyString(
+				"null or blank key encryption algorithm", keyEncAlgo);
+		Precondition.assertNonEmptyString(
+				"null or blank document encryption algorithm", docEncAlgo);
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		Precondition.assertNonNullArgument("null executor", executor);
+
+		// The session key is closed by the encrypting task if it runs, or
+		// afterwards if the executor rejects the task
+		final AtomicBoolean started = new AtomicBoolean();
+		final CompletableFuture<SecretKeyInfo> key =
+			AwsKmsExecutor.supplyAsync(
+					() -> skiFactory.createSessionKey(deadline));
+		return key.thenApplyAsync(ski -> {
+			started.set(true);
+			try (SecretKeyInfo k = ski) {
+				encrypt(doc, keyEncAlgo, docEncAlgo, k);
+			} catch (XMLEncryptionException e) {
+				throw new CompletionException(e);
+			}
+			return doc;
+		}, executor).whenComplete((d, x) -> {
+			if (!started.get()) {
+				key.thenAccept(SecretKeyInfo::close);
+			}
+		});
+	}
+
+	/**
+	 * Equivalent to
+	 * <code>encrypt(doc, selector, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+	 * getScheme().getDocumentEncryptionAlgorithm(),
+	 * ForkJoinPool.commonPool())</code>
+	 */
+	public int encrypt(Document doc, ElementSelector selector)
+			throws XMLEncryptionException {
+		return encrypt(doc, selector,
+				DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+				scheme.getDocumentEncryptionAlgorithm(),
+				ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Equivalent to
+	 * <code>encrypt(doc, selector, keyEncAlgo, docEncAlgo,
+	 * KmsDeadline.afterMillis(getDefaultTimeout()), executor)</code>
+	 */
+	public int encrypt(Document doc, ElementSelector selector,
+			String keyEncAlgo, String docEncAlgo, Executor executor)
+			throws XMLEncryptionException {
+		return encrypt(doc, selector, keyEncAlgo, docEncAlgo,
+				KmsDeadline.afterMillis(defaultTimeout), executor);
+	}
+
+	/**
+	 * Encrypts the content of each selected element of a document as an
+	 * EncryptedData of its own, so that the rest of the document stays
+	 * readable. All of the elements are encrypted under one session key, and
+	 * each EncryptedData carries the EncryptedKey of that session key. When
+	 * more than one element is selected, their content is serialized and
+	 * encrypted in parallel by the executor, and is then put back into the
+	 * document by the calling thread. An element nested inside another
+	 * selected element is encrypted as part of its ancestor.
+	 * <p/>
+	 * Selecting the root element is equivalent to
+	 * {@link #encrypt(Document, String, String, KmsDeadline)}.
+	 *
+	 * @param selector
+	 *            selects the elements whose content is encrypted
+	 * @param executor
+	 *            the executor that encrypts the elements; for example, a
+	 *            ForkJoinPool
+	 * @return the number of elements whose content was encrypted, which is
+	 *         zero if no element was selected, in which case no session key
+	 *         is created
+	 * @throws KmsDeadlineExceededException
+	 *             if the deadline expires before a session key is obtained
+	 * @see ElementSelectors
+	 */
+	public int encrypt(final Document doc, ElementSelector selector,
+			String keyEncAlgo, String docEncAlgo, KmsDeadline deadline,
+			Executor executor) throws XMLEncryptionException {
+
+		// Preconditions
+		Precondition.assertNonNullArgument("null document", doc);
+		Precondition.assertNonNullArgument("null selector", selector);
+		Precondition.assertNonEmptyString(
+				"null or blank key encryption algorithm", keyEncAlgo);
+		Precondition.assertNonEmptyString(
+				"null or blank document encryption algorithm", docEncAlgo);
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		Precondition.assertNonNullArgument("null executor", executor);
+
+		final List<Element> elements = outermost(selector.select(doc));
+		if (elements.isEmpty()) {
+			return 0;
+		}
+		try (SecretKeyInfo ski = skiFactory.createSessionKey(deadline)) {
+			final SecretKey secretKey = ski.toSecretKey(docEncAlgo);
+			final KeyInfo keyInfo = createKeyInfo(doc, keyEncAlgo, ski);
+			long byteCount;
+			if (elements.size() == 1) {
+				byteCount =
+					encryptElement(doc, elements.get(0), docEncAlgo,
+							secretKey, keyInfo);
+			} else {
+				byteCount =
+					encryptElements(doc, elements, docEncAlgo, secretKey,
+							keyInfo, executor);
+			}
+			skiFactory.recordUsage(ski, byteCount);
+		}
+		return elements.size();
+	}
+
+	/**
+	 * Encrypts a collection of documents with the algorithm of the scheme of
+	 * this encryptor and the fork/join common pool. A document that can not
+	 * be encrypted does not stop the others.
+	 *
+	 * @return the result of each document, in the order of the collection
+	 * @see #encryptAll(Stream, String, String, int, Executor, int, boolean,
+	 *      Consumer)
+	 */
+	public List<BatchResult> encryptAll(Collection<? extends Document> docs)
+			throws InterruptedException {
+		Precondition.assertNonNullArgument("null documents", docs);
+		final List<BatchResult> retVal = new ArrayList<>(docs.size());
+		encryptAll(docs.stream(), ForkJoinPool.commonPool(), true,
+				retVal::add);
+		return retVal;
+	}
+
+	/**
+	 * Equivalent to
+	 * <code>encryptAll(docs, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+	 * getScheme().getDocumentEncryptionAlgorithm(), DEFAULT_BATCH_GROUP_SIZE,
+	 * executor, maxInFlight, ordered, consumer)</code>, where
+	 * <code>maxInFlight</code> is twice the parallelism of the common pool
+	 */
+	public void encryptAll(Stream<? extends Document> docs,
+			Executor executor, boolean ordered,
+			Consumer<? super BatchResult> consumer)
+			throws InterruptedException {
+		encryptAll(docs, DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+				scheme.getDocumentEncryptionAlgorithm(),
+				DEFAULT_BATCH_GROUP_SIZE, executor,
+				BatchRunner.DEFAULT_MAX_IN_FLIGHT, ordered, consumer);
+	}
+
+	/**
+	 * Encrypts the content of the root element of each document of a batch.
+	 * Documents are read from the stream by the calling thread, which
+	 * requests a session key for each group of <code>groupSize</code>
+	 * documents, and are encrypted by the executor. Every document is
+	 * encrypted under the master key of this encryptor, so a group is simply
+	 * the next <code>groupSize</code> documents of the stream.
+	 * <p/>
+	 * With a group size of 1, each document requests a key from the key
+	 * factory of this encryptor, which decides whether keys are reused. A
+	 * larger group size shares each key among the documents of a group
+	 * regardless of the limits of the factory, which sees one request per
+	 * group, so it should only be used when that reuse is acceptable.
+	 * <p/>
+	 * The result of each document is passed to the consumer by the calling
+	 * thread, either in stream order or as soon as the document is
+	 * encrypted. A document that can not be encrypted, including one whose
+	 * session key can not be obtained, is reported to the consumer with its
+	 * failure and does not stop the batch. An exception thrown by the
+	 * consumer stops the batch.
+	 *
+	 * @param groupSize
+	 *            the maximum number of documents encrypted with one session
+	 *            key; 1 requests a session key from the key factory for every
+	 *            document
+	 * @param executor
+	 *            the executor that encrypts the documents
+	 * @param maxInFlight
+	 *            the maximum number of documents read from the stream whose
+	 *            results have not yet been delivered
+	 * @param ordered
+	 *            whether results are delivered in stream order
+	 * @param consumer
+	 *            receives the result of each document
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while it waits for a
+	 *             result
+	 */
+	public void encryptAll(Stream<? extends Document> docs,
+			final String keyEncAlgo, final String docEncAlgo, int groupSize,
+			Executor executor, int maxInFlight, boolean ordered,
+			Consumer<? super BatchResult> consumer)
+			throws InterruptedException {
+		Precondition.assertNonNullArgument("null documents", docs);
+		Precondition.assertNonEmptyString(
+				"null or blank key encryption algorithm", keyEncAlgo);
+		Precondition.assertNonEmptyString(
+				"null or blank document encryption algorithm", docEncAlgo);
+		Precondition.assertBoolean("non-positive group size", groupSize > 0);
+		Precondition.assertNonNullArgument("null executor", executor);
+
+		final Iterator<? extends Document> it = docs.iterator();
+		SecretKeyInfo group = null;
+		int groupCount = 0;
+		int keyCount = 0;
+		int failedCount;
+		try (BatchRunner runner =
+			new BatchRunner(maxInFlight, ordered, consumer)) {
+			try {
+				while (it.hasNext()) {
+					final Document doc = it.next();
+					runner.awaitCapacity();
+					if (group != null && groupCount == groupSize) {
+						group.close();
+						group = null;
+					}
+					if (group == null) {
+						try {
+							group =
+								skiFactory.createSessionKey(KmsDeadline
+										.afterMillis(defaultTimeout));
+						} catch (RuntimeException x) {
+							runner.fail(doc, x);
+							continue;
+						}
+						groupCount = 0;
+						++keyCount;
+					}
+					++groupCount;
+
+					// Each document holds its own reference to the key
+					final SecretKeyInfo ski = group.retain();
+					CompletableFuture<Void> work;
+					try {
+						work = CompletableFuture.runAsync(() -> {
+							try (SecretKeyInfo k = ski) {
+								encrypt(doc, keyEncAlgo, docEncAlgo, k);
+							} catch (XMLEncryptionException e) {
+								throw new CompletionException(e);
+							}
+						}, executor);
+					} catch (RuntimeException x) {
+						ski.close();
+						throw x;
+					}
+					runner.submit(doc, work, null);
+				}
+				runner.finish();
+			} finally {
+				if (group != null) {
+					group.close();
+				}
+			}
+			failedCount = runner.getFailedCount();
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE,
+					"Encrypted batch with {0} session keys, {1} failures",
+					new Object[] { keyCount, failedCount });
+		}
+	}
+
+	private void encrypt(final Document doc, String keyEncAlgo,
+			String docEncAlgo, SecretKeyInfo ski)
+			throws XMLEncryptionException {
+
+		// Find the document's root element
 		final Element root = getDocumentElement(doc);
 
 		// Create the SecretKey that will encrypt the document
-		SecretKeyInfo ski = skiFactory.createSessionKey();
-		final SecretKey secretKey =
-			KeyUtils.prepareSecretKey(docEncAlgo, ski.getKey());
+		final SecretKey secretKey = ski.toSecretKey(docEncAlgo);
 
-		// Create the encrypted key element that will replace the root content
-		Element ek = ekFactory.createEncryptedKeyElement(doc, keyEncAlgo, ski);
-		final KeyInfo keyInfo = createKeyInfo(doc, ek);
+		// Create the KeyInfo of the EncryptedData that will replace the root
+		// content
+		final KeyInfo keyInfo = createKeyInfo(doc, keyEncAlgo, ski);
 
 		// Encrypt the content of the root element
-		encryptElement(doc, root, docEncAlgo, secretKey, keyInfo);
+		long byteCount =
+			encryptElement(doc, root, docEncAlgo, secretKey, keyInfo);
+		skiFactory.recordUsage(ski, byteCount);
+	}
+
+	/**
+	 * Creates a KeyInfo that holds the EncryptedKey of a session key and, if
+	 * this encryptor has an escrow key, its escrow EncryptedKey
+	 */
+	private KeyInfo createKeyInfo(Document doc, String keyEncAlgo,
+			SecretKeyInfo ski) throws XMLEncryptionException {
+		Element ek = ekFactory.createEncryptedKeyElement(doc, keyEncAlgo, ski);
+		Element escrowEk = null;
+		if (escrowKey != null) {
+			final byte[] key = ski.getKey();
+			try {
+				escrowEk =
+					ekFactory.createEscrowKeyElement(doc, escrowKey, key);
+			} finally {
+				KeyMaterial.zeroize(key);
+			}
+		}
+		return createKeyInfo(doc, ek, escrowEk);
 	}
 
 }
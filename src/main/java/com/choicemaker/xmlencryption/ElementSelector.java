@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Selects the elements of a document whose content is encrypted by
+ * {@link DocumentEncryptor#encrypt(Document, ElementSelector)}.
+ *
+ * @see ElementSelectors
+ */
+public interface ElementSelector {
+
+	/**
+	 * Returns the selected elements of a document, in document order. The
+	 * document must not be modified.
+	 */
+	public abstract List<Element> select(Document doc);
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Factory methods for {@link ElementSelector ElementSelectors}. Selectors are
+ * immutable and may be shared by threads.
+ */
+public final class ElementSelectors {
+
+	/**
+	 * Returns a selector that follows a path of child elements from the root
+	 * of a document. The first name must match the root element, and each
+	 * following name matches the children of the elements matched by the
+	 * name before it. For example, the path <code>{urn:x}doc</code>,
+	 * <code>{urn:x}record</code>, <code>{urn:x}ssn</code> selects every
+	 * <code>ssn</code> child of every <code>record</code> child of the root.
+	 *
+	 * @param steps
+	 *            one or more element names; a name whose namespace URI is
+	 *            empty matches elements in no namespace
+	 */
+	public static ElementSelector path(QName... steps) {
+		Precondition.assertNonNullArgument("null path", steps);
+		Precondition.assertBoolean("empty path", steps.length > 0);
+		for (QName step : steps) {
+			Precondition.assertNonNullArgument("null path step", step);
+		}
+		return new PathSelector(steps.clone());
+	}
+
+	/**
+	 * Returns a selector that evaluates an XPath expression against a
+	 * document, and selects the elements in the resulting node set.
+	 *
+	 * @param expression
+	 *            an XPath expression whose value is a node set
+	 * @param namespaces
+	 *            a map from the prefixes used by the expression to namespace
+	 *            URIs; may be null or empty if the expression uses none
+	 * @throws IllegalArgumentException
+	 *             if the expression is not valid
+	 */
+	public static ElementSelector xpath(String expression,
+			Map<String, String> namespaces) {
+		Precondition.assertNonEmptyString("null or blank expression",
+				expression);
+		XPathSelector retVal =
+			new XPathSelector(expression, namespaces == null ? Collections
+					.<String, String> emptyMap() : new HashMap<>(namespaces));
+		// Fail now, rather than when a document is encrypted
+		retVal.compile();
+		return retVal;
+	}
+
+	private ElementSelectors() {
+	}
+
+	private static boolean matches(Node n, QName name) {
+		final String ns = n.getNamespaceURI();
+		return name.getLocalPart().equals(n.getLocalName())
+				&& name.getNamespaceURI().equals(ns == null ? "" : ns);
+	}
+
+	private static final class PathSelector implements ElementSelector {
+
+		private final QName[] steps;
+
+		PathSelector(QName[] steps) {
+			this.steps = steps;
+		}
+
+		@Override
+		public List<Element> select(Document doc) {
+			Precondition.assertNonNullArgument("null document", doc);
+			List<Element> retVal = new ArrayList<>();
+			final Element root = doc.getDocumentElement();
+			if (root != null && matches(root, steps[0])) {
+				retVal.add(root);
+			}
+			for (int i = 1; i < steps.length && !retVal.isEmpty(); i++) {
+				List<Element> next = new ArrayList<>();
+				for (Element e : retVal) {
+					for (Node c = e.getFirstChild(); c != null; c =
+						c.getNextSibling()) {
+						if (c.getNodeType() == Node.ELEMENT_NODE
+								&& matches(c, steps[i])) {
+							next.add((Element) c);
+						}
+					}
+				}
+				retVal = next;
+			}
+			return retVal;
+		}
+
+		@Override
+		public String toString() {
+			return "PathSelector " + Arrays.toString(steps);
+		}
+	}
+
+	private static final class XPathSelector implements ElementSelector {
+
+		private final String expression;
+		private final Map<String, String> namespaces;
+
+		// An XPathExpression is not thread-safe
+		private final ThreadLocal<XPathExpression> compiled =
+			ThreadLocal.withInitial(this::compile);
+
+		XPathSelector(String expression, Map<String, String> namespaces) {
+			this.expression = expression;
+			this.namespaces = namespaces;
+		}
+
+		XPathExpression compile() {
+			XPath xpath = XPathFactory.newInstance().newXPath();
+			xpath.setNamespaceContext(new MapNamespaceContext(namespaces));
+			try {
+				return xpath.compile(expression);
+			} catch (XPathExpressionException e) {
+				String msg = "Invalid XPath expression '" + expression + "': "
+						+ e.toString();
+				throw new IllegalArgumentException(msg, e);
+			}
+		}
+
+		@Override
+		public List<Element> select(Document doc) {
+			Precondition.assertNonNullArgument("null document", doc);
+			final NodeList nl;
+			try {
+				nl = (NodeList) compiled.get().evaluate(doc,
+						XPathConstants.NODESET);
+			} catch (XPathExpressionException e) {
+				String msg = "Failed to evaluate XPath expression '"
+						+ expression + "': " + e.toString();
+				throw new IllegalArgumentException(msg, e);
+			}
+			final int count = nl.getLength();
+			List<Element> retVal = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				Node n = nl.item(i);
+				if (n.getNodeType() == Node.ELEMENT_NODE) {
+					retVal.add((Element) n);
+				}
+			}
+			return retVal;
+		}
+
+		@Override
+		public String toString() {
+			return "XPathSelector [" + expression + "]";
+		}
+	}
+
+	private static final class MapNamespaceContext implements
+			NamespaceContext {
+
+		private final Map<String, String> namespaces;
+
+		MapNamespaceContext(Map<String, String> namespaces) {
+			this.namespaces = namespaces;
+		}
+
+		@Override
+		public String getNamespaceURI(String prefix) {
+			String retVal = namespaces.get(prefix);
+			return retVal == null ? XMLConstants.NULL_NS_URI : retVal;
+		}
+
+		@Override
+		public String getPrefix(String namespaceURI) {
+			for (Map.Entry<String, String> e : namespaces.entrySet()) {
+				if (e.getValue().equals(namespaceURI)) {
+					return e.getKey();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public Iterator<String> getPrefixes(String namespaceURI) {
+			List<String> retVal = new ArrayList<>();
+			for (Map.Entry<String, String> e : namespaces.entrySet()) {
+				if (e.getValue().equals(namespaceURI)) {
+					retVal.add(e.getKey());
+				}
+			}
+			return retVal.iterator();
+		}
+	}
+
+}
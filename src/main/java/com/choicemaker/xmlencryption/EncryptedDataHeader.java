@@ -0,0 +1,791 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xml.security.utils.Constants;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.WSS4JConstants;
+
+/**
+ * The fields of an EncryptedData element that determine which key decrypts
+ * it: the data encryption algorithm, and the EncryptedKeys in its KeyInfo.
+ * A header is read in one pass over the EncryptedData, either from a DOM
+ * element or from the start of a stream; in a stream, reading stops at the
+ * CipherData of the EncryptedData, so the encrypted content is not read.
+ * <p/>
+ * A header tells what key a document needs without decrypting it:
+ * <ul>
+ * <li>the data key is encrypted by the KMS master key named by
+ * {@link #getMasterKeyId()}, unless the document has only an escrow key;</li>
+ * <li>if {@link #isWrapped()}, the KMS key is a KEK that wraps the data
+ * key;</li>
+ * <li>if {@link #isDerived()}, the KMS key is a base key from which the data
+ * key is derived;</li>
+ * <li>if {@link #hasEscrowKey()}, the data key is also encrypted under an
+ * escrow RSA key.</li>
+ * </ul>
+ * Instances are immutable.
+ */
+public final class EncryptedDataHeader {
+
+	private static final String ENC_NS = WSS4JConstants.ENC_NS;
+	private static final String SIG_NS = WSS4JConstants.SIG_NS;
+	private static final String KDF_NS = KeyDerivingSecretKeyInfoFactory.KDF_NS;
+	private static final String ENCRYPTED_DATA_LN =
+		EncryptionConstants._TAG_ENCRYPTEDDATA;
+	private static final String ENCRYPTION_METHOD_LN =
+		EncryptionConstants._TAG_ENCRYPTIONMETHOD;
+	private static final String KEY_DERIVATION_LN =
+		KeyDerivingSecretKeyInfoFactory.KEY_DERIVATION_LN;
+	private static final String ALGORITHM_ATT =
+		EncryptionConstants._ATT_ALGORITHM;
+	private static final String ENCRYPTED_KEY_TYPE =
+		ENC_NS + WSS4JConstants.ENC_KEY_LN;
+
+	private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory retVal = XMLInputFactory.newInstance();
+		retVal.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		retVal.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				false);
+		return retVal;
+	}
+
+	/**
+	 * Reads the header of an EncryptedData element.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the element is not an EncryptedData, or lacks the
+	 *             elements expected of one
+	 */
+	public static EncryptedDataHeader parse(Element encryptedData) {
+		return parse(encryptedData, false);
+	}
+
+	/**
+	 * Reads the header of an EncryptedData element of a document, like
+	 * {@link #parse(Element)}, and also resolves the EncryptedKeys that its
+	 * KeyInfo references rather than contains, as documents encrypted by
+	 * other tools may:
+	 * <ul>
+	 * <li>a RetrievalMethod of type EncryptedKey whose URI is a same-document
+	 * reference, <code>#id</code>, to the Id of an EncryptedKey;</li>
+	 * <li>a KeyName that matches the CarriedKeyName of an EncryptedKey of the
+	 * document.</li>
+	 * </ul>
+	 * A KeyName that matches no CarriedKeyName is ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the element is not an EncryptedData, lacks the elements
+	 *             expected of one, or has a RetrievalMethod that does not
+	 *             reference an EncryptedKey of the document
+	 */
+	public static EncryptedDataHeader resolve(Element encryptedData) {
+		return parse(encryptedData, true);
+	}
+
+	private static EncryptedDataHeader parse(Element encryptedData,
+			boolean resolve) {
+		Precondition.assertNonNullArgument("null element", encryptedData);
+		if (!is(encryptedData, ENC_NS, ENCRYPTED_DATA_LN)) {
+			String msg =
+				"Not an EncryptedData element: " + encryptedData.getTagName();
+			throw new IllegalArgumentException(msg);
+		}
+		Builder b = new Builder();
+		for (Element c = firstChild(encryptedData); c != null; c =
+			nextSibling(c)) {
+			if (is(c, ENC_NS, ENCRYPTION_METHOD_LN)) {
+				b.setDataAlgorithm(c.getAttributeNS(null, ALGORITHM_ATT));
+			} else if (is(c, SIG_NS, WSS4JConstants.KEYINFO_LN)) {
+				b.countKeyInfo();
+				// A key may be both contained and referenced
+				final Set<Element> keys =
+					Collections.newSetFromMap(new IdentityHashMap<>());
+				for (Element k = firstChild(c); k != null; k = nextSibling(k)) {
+					Element ek = null;
+					if (is(k, ENC_NS, WSS4JConstants.ENC_KEY_LN)) {
+						ek = k;
+					} else if (resolve) {
+						ek = findReferencedKey(k);
+					}
+					if (ek != null && keys.add(ek)) {
+						b.addEncryptedKey(parseEncryptedKey(ek));
+					}
+				}
+			}
+		}
+		return b.build();
+	}
+
+	/**
+	 * Returns the EncryptedKey of the document that a child of a KeyInfo
+	 * references, or null if the child is not a reference to an EncryptedKey
+	 */
+	private static Element findReferencedKey(Element k) {
+		Element retVal = null;
+		if (is(k, SIG_NS, Constants._TAG_RETRIEVALMETHOD)) {
+			final String type = k.getAttributeNS(null, Constants._ATT_TYPE);
+			if (type.isEmpty() || ENCRYPTED_KEY_TYPE.equals(type)) {
+				final String uri = k.getAttributeNS(null, Constants._ATT_URI);
+				if (!uri.startsWith("#") || firstChild(k) != null) {
+					String msg =
+						"Unsupported RetrievalMethod: URI '" + uri
+								+ "' is not a same-document reference "
+								+ "without transforms";
+					throw new IllegalArgumentException(msg);
+				}
+				final String id = uri.substring(1);
+				retVal = findEncryptedKey(k, id, null);
+				if (retVal == null) {
+					String msg = "No EncryptedKey with Id '" + id + "'";
+					throw new IllegalArgumentException(msg);
+				}
+			}
+		} else if (is(k, SIG_NS, WSS4JConstants.KEYNAME_LN)) {
+			retVal = findEncryptedKey(k, null, getText(k).trim());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the first EncryptedKey of the document, in document order, with
+	 * the specified Id or CarriedKeyName, or null if there is none
+	 */
+	private static Element findEncryptedKey(Element from, String id,
+			String carriedKeyName) {
+		final NodeList nl =
+			from.getOwnerDocument().getElementsByTagNameNS(ENC_NS,
+					WSS4JConstants.ENC_KEY_LN);
+		final int count = nl.getLength();
+		for (int i = 0; i < count; i++) {
+			final Element ek = (Element) nl.item(i);
+			if (id != null) {
+				if (id.equals(ek.getAttributeNS(null,
+						EncryptionConstants._ATT_ID))) {
+					return ek;
+				}
+			} else {
+				for (Element c = firstChild(ek); c != null; c =
+					nextSibling(c)) {
+					if (is(c, ENC_NS, EncryptionConstants._TAG_CARRIEDKEYNAME)
+							&& carriedKeyName.equals(getText(c).trim())) {
+						return ek;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the header of the EncryptedData child of the root element of a
+	 * DOM encrypted document.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the root element does not have exactly one EncryptedData
+	 *             child, or the EncryptedData lacks the elements expected of
+	 *             one
+	 */
+	public static EncryptedDataHeader parseContent(Element root) {
+		Precondition.assertNonNullArgument("null element", root);
+		Element encryptedData = null;
+		int count = 0;
+		for (Element c = firstChild(root); c != null; c = nextSibling(c)) {
+			if (is(c, ENC_NS, ENCRYPTED_DATA_LN)) {
+				encryptedData = c;
+				++count;
+			}
+		}
+		if (count != 1) {
+			String msg =
+				"Invalid number of '" + ENCRYPTED_DATA_LN
+						+ "' elements: " + count;
+			throw new IllegalArgumentException(msg);
+		}
+		return parse(encryptedData);
+	}
+
+	/**
+	 * Reads the header of the first EncryptedData in a stream. The stream is
+	 * read up to the CipherData of the EncryptedData, plus whatever the
+	 * parser buffers ahead, and is not closed.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the stream has no EncryptedData, or the EncryptedData
+	 *             lacks the elements expected of one
+	 * @throws XMLStreamException
+	 *             if the stream is not well-formed XML
+	 */
+	public static EncryptedDataHeader read(InputStream is)
+			throws XMLStreamException {
+		Precondition.assertNonNullArgument("null input stream", is);
+		XMLStreamReader r = INPUT_FACTORY.createXMLStreamReader(is);
+		try {
+			while (r.hasNext()) {
+				if (r.next() == XMLStreamConstants.START_ELEMENT
+						&& is(r, ENC_NS, ENCRYPTED_DATA_LN)) {
+					return readEncryptedData(r);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		String msg = "No EncryptedData element";
+		throw new IllegalArgumentException(msg);
+	}
+
+	private static EncryptedDataHeader readEncryptedData(XMLStreamReader r)
+			throws XMLStreamException {
+		Builder b = new Builder();
+		while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (is(r, ENC_NS, ENCRYPTION_METHOD_LN)) {
+				b.setDataAlgorithm(r.getAttributeValue(null, ALGORITHM_ATT));
+				skipElement(r);
+			} else if (is(r, SIG_NS, WSS4JConstants.KEYINFO_LN)) {
+				b.countKeyInfo();
+				while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (is(r, ENC_NS, WSS4JConstants.ENC_KEY_LN)) {
+						b.addEncryptedKey(readEncryptedKey(r));
+					} else {
+						skipElement(r);
+					}
+				}
+			} else if (is(r, ENC_NS, EncryptionConstants._TAG_CIPHERDATA)) {
+				// The encrypted content is not part of the header
+				break;
+			} else {
+				skipElement(r);
+			}
+		}
+		return b.build();
+	}
+
+	/** Parts of an EncryptedKey, collected while it is parsed */
+	private static final class KeyParts {
+		String recipient;
+		String algorithm;
+		String keyName;
+		String salt;
+		String cipherValue;
+		KeyParts kek;
+		int keyInfoCount;
+		int cipherValueCount;
+
+		void setAlgorithm(String algorithm) {
+			if (this.algorithm != null) {
+				throw duplicate(ENCRYPTION_METHOD_LN);
+			}
+			this.algorithm = requireAlgorithm(algorithm);
+		}
+
+		void setKeyName(String keyName) {
+			if (this.keyName != null) {
+				throw duplicate(WSS4JConstants.KEYNAME_LN);
+			}
+			this.keyName = keyName;
+		}
+
+		void setSalt(String algorithm, String salt) {
+			if (!KeyDerivingSecretKeyInfoFactory.HKDF_ALGORITHM
+					.equals(algorithm)) {
+				String msg =
+					"Unsupported key derivation algorithm: " + algorithm;
+				throw new IllegalArgumentException(msg);
+			}
+			if (this.salt == null) {
+				this.salt = salt.trim();
+			}
+		}
+
+		void setKek(KeyParts kek) {
+			if (this.kek != null) {
+				throw duplicate(WSS4JConstants.ENC_KEY_LN);
+			}
+			this.kek = kek;
+		}
+
+		void setCipherValue(String cipherValue) {
+			++cipherValueCount;
+			this.cipherValue = cipherValue;
+		}
+
+		KeyParts check() {
+			if (algorithm == null) {
+				throw invalidCount(ENCRYPTION_METHOD_LN, 0);
+			}
+			if (keyInfoCount > 1) {
+				throw invalidCount(WSS4JConstants.KEYINFO_LN, keyInfoCount);
+			}
+			if (cipherValueCount != 1) {
+				throw invalidCount(EncryptionConstants._TAG_CIPHERVALUE,
+						cipherValueCount);
+			}
+			return this;
+		}
+
+		/**
+		 * The DOM encryptor marks an escrow key by its Recipient; the StAX
+		 * encryptor writes an unmarked key, which is told from a KMS key by
+		 * its algorithm and its lack of a master key id
+		 */
+		boolean isEscrow() {
+			return EscrowKeys.ESCROW_RECIPIENT.equals(recipient)
+					|| (keyName == null && kek == null
+							&& EscrowKeys.KEY_TRANSPORT_ALGORITHM
+									.equals(algorithm));
+		}
+	}
+
+	private static KeyParts parseEncryptedKey(Element ek) {
+		KeyParts retVal = new KeyParts();
+		retVal.recipient =
+			ek.getAttributeNS(null, EncryptionConstants._ATT_RECIPIENT);
+		for (Element c = firstChild(ek); c != null; c = nextSibling(c)) {
+			if (is(c, ENC_NS, ENCRYPTION_METHOD_LN)) {
+				retVal.setAlgorithm(c.getAttributeNS(null, ALGORITHM_ATT));
+			} else if (is(c, SIG_NS, WSS4JConstants.KEYINFO_LN)) {
+				++retVal.keyInfoCount;
+				for (Element k = firstChild(c); k != null; k = nextSibling(k)) {
+					if (is(k, SIG_NS, WSS4JConstants.KEYNAME_LN)) {
+						retVal.setKeyName(getText(k));
+					} else if (is(k, KDF_NS, KEY_DERIVATION_LN)) {
+						retVal.setSalt(k.getAttributeNS(null, ALGORITHM_ATT),
+								getText(k));
+					} else if (is(k, ENC_NS, WSS4JConstants.ENC_KEY_LN)) {
+						retVal.setKek(parseEncryptedKey(k));
+					}
+				}
+			} else if (is(c, ENC_NS, EncryptionConstants._TAG_CIPHERDATA)) {
+				for (Element v = firstChild(c); v != null; v = nextSibling(v)) {
+					if (is(v, ENC_NS, EncryptionConstants._TAG_CIPHERVALUE)) {
+						retVal.setCipherValue(getText(v));
+					}
+				}
+			}
+		}
+		return retVal.check();
+	}
+
+	private static KeyParts readEncryptedKey(XMLStreamReader r)
+			throws XMLStreamException {
+		KeyParts retVal = new KeyParts();
+		retVal.recipient =
+			r.getAttributeValue(null, EncryptionConstants._ATT_RECIPIENT);
+		while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (is(r, ENC_NS, ENCRYPTION_METHOD_LN)) {
+				retVal.setAlgorithm(r.getAttributeValue(null, ALGORITHM_ATT));
+				skipElement(r);
+			} else if (is(r, SIG_NS, WSS4JConstants.KEYINFO_LN)) {
+				++retVal.keyInfoCount;
+				while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (is(r, SIG_NS, WSS4JConstants.KEYNAME_LN)) {
+						retVal.setKeyName(r.getElementText());
+					} else if (is(r, KDF_NS, KEY_DERIVATION_LN)) {
+						String algorithm =
+							r.getAttributeValue(null, ALGORITHM_ATT);
+						retVal.setSalt(algorithm, r.getElementText());
+					} else if (is(r, ENC_NS, WSS4JConstants.ENC_KEY_LN)) {
+						retVal.setKek(readEncryptedKey(r));
+					} else {
+						skipElement(r);
+					}
+				}
+			} else if (is(r, ENC_NS, EncryptionConstants._TAG_CIPHERDATA)) {
+				while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (is(r, ENC_NS, EncryptionConstants._TAG_CIPHERVALUE)) {
+						retVal.setCipherValue(r.getElementText());
+					} else {
+						skipElement(r);
+					}
+				}
+			} else {
+				skipElement(r);
+			}
+		}
+		return retVal.check();
+	}
+
+	/** Collects the parts of a header */
+	private static final class Builder {
+		String dataAlgorithm;
+		int keyInfoCount;
+		KeyParts kmsKey;
+		int kmsKeyCount;
+		KeyParts escrowKey;
+
+		void setDataAlgorithm(String algorithm) {
+			if (dataAlgorithm != null) {
+				throw duplicate(ENCRYPTION_METHOD_LN);
+			}
+			dataAlgorithm = requireAlgorithm(algorithm);
+		}
+
+		void countKeyInfo() {
+			++keyInfoCount;
+		}
+
+		void addEncryptedKey(KeyParts ek) {
+			if (ek.isEscrow()) {
+				// Like the decryptor, use the first escrow key
+				if (escrowKey == null) {
+					escrowKey = ek;
+				}
+			} else {
+				kmsKey = ek;
+				++kmsKeyCount;
+			}
+		}
+
+		EncryptedDataHeader build() {
+			if (dataAlgorithm == null) {
+				throw invalidCount(ENCRYPTION_METHOD_LN, 0);
+			}
+			if (keyInfoCount > 1) {
+				throw invalidCount(WSS4JConstants.KEYINFO_LN, keyInfoCount);
+			}
+			if (kmsKeyCount > 1) {
+				throw invalidCount(WSS4JConstants.ENC_KEY_LN, kmsKeyCount);
+			}
+			return new EncryptedDataHeader(this);
+		}
+	}
+
+	private static String requireAlgorithm(String algorithm) {
+		if (algorithm == null || algorithm.trim().isEmpty()) {
+			String msg = "Missing algorithm attribute";
+			throw new IllegalArgumentException(msg);
+		}
+		return algorithm;
+	}
+
+	private static IllegalArgumentException duplicate(String localName) {
+		String msg = "Duplicate '" + localName + "' element";
+		return new IllegalArgumentException(msg);
+	}
+
+	private static IllegalArgumentException invalidCount(String localName,
+			int count) {
+		String msg =
+			"Invalid number of '" + localName + "' elements: " + count;
+		return new IllegalArgumentException(msg);
+	}
+
+	private static boolean is(Node n, String namespaceURI, String localName) {
+		return localName.equals(n.getLocalName())
+				&& namespaceURI.equals(n.getNamespaceURI());
+	}
+
+	private static boolean is(XMLStreamReader r, String namespaceURI,
+			String localName) {
+		return localName.equals(r.getLocalName())
+				&& namespaceURI.equals(r.getNamespaceURI());
+	}
+
+	private static Element firstChild(Node n) {
+		Node c = n.getFirstChild();
+		while (c != null && c.getNodeType() != Node.ELEMENT_NODE) {
+			c = c.getNextSibling();
+		}
+		return (Element) c;
+	}
+
+	private static Element nextSibling(Node n) {
+		Node c = n.getNextSibling();
+		while (c != null && c.getNodeType() != Node.ELEMENT_NODE) {
+			c = c.getNextSibling();
+		}
+		return (Element) c;
+	}
+
+	/**
+	 * Returns the text of an element, without the intermediate buffer of
+	 * <code>getTextContent()</code> when the text is a single node
+	 */
+	private static String getText(Element e) {
+		final Node first = e.getFirstChild();
+		if (first != null && first.getNextSibling() == null
+				&& first.getNodeType() == Node.TEXT_NODE) {
+			return first.getNodeValue();
+		}
+		return e.getTextContent();
+	}
+
+	/** Skips the element at which a reader is positioned */
+	private static void skipElement(XMLStreamReader r)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = r.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				++depth;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				--depth;
+			}
+		}
+	}
+
+	private final String dataAlgorithm;
+	private final String keyAlgorithm;
+	private final String masterKeyId;
+	private final String encryptedKey;
+	private final String wrappedKey;
+	private final String salt;
+	private final int kmsKeyCount;
+	private final String escrowAlgorithm;
+	private final String escrowKey;
+
+	private EncryptedDataHeader(Builder b) {
+		this.dataAlgorithm = b.dataAlgorithm;
+		this.kmsKeyCount = b.kmsKeyCount;
+
+		// A locally wrapped key names the EncryptedKey of its KEK, which is
+		// the key that KMS decrypts
+		final KeyParts ek = b.kmsKey;
+		final KeyParts kms = ek == null || ek.kek == null ? ek : ek.kek;
+		this.keyAlgorithm = kms == null ? null : kms.algorithm;
+		this.masterKeyId = kms == null ? null : kms.keyName;
+		this.encryptedKey = kms == null ? null : kms.cipherValue;
+		this.salt = kms == null ? null : kms.salt;
+		this.wrappedKey = kms == ek ? null : ek.cipherValue;
+
+		final KeyParts escrow = b.escrowKey;
+		this.escrowAlgorithm = escrow == null ? null : escrow.algorithm;
+		this.escrowKey = escrow == null ? null : escrow.cipherValue;
+	}
+
+	/** Returns the URI of the algorithm that encrypts the content */
+	public String getDataAlgorithm() {
+		return dataAlgorithm;
+	}
+
+	/**
+	 * Checks whether the EncryptedData has exactly one EncryptedKey, other
+	 * than an escrow key, whose KMS key is named by a master key id
+	 */
+	public boolean hasKmsKey() {
+		return kmsKeyCount == 1 && masterKeyId != null;
+	}
+
+	/**
+	 * Returns the number of EncryptedKeys of the EncryptedData, not counting
+	 * escrow keys; a document encrypted for KMS has exactly one
+	 */
+	public int getKmsKeyCount() {
+		return kmsKeyCount;
+	}
+
+	/**
+	 * Returns the URI of the algorithm of the EncryptedKey that KMS decrypts,
+	 * or null if there is none
+	 */
+	public String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+
+	/**
+	 * Returns the id of the master key that decrypts the KMS EncryptedKey, or
+	 * null if there is none
+	 */
+	public String getMasterKeyId() {
+		return masterKeyId;
+	}
+
+	/**
+	 * Returns the Base64 cipher value of the EncryptedKey that KMS decrypts,
+	 * or null if there is none
+	 */
+	public String getEncryptedKey() {
+		return encryptedKey;
+	}
+
+	/** Checks whether the data key is wrapped under a KMS-encrypted KEK */
+	public boolean isWrapped() {
+		return wrappedKey != null;
+	}
+
+	/**
+	 * Returns the Base64 data key wrapped under the KEK, or null if the data
+	 * key is not wrapped
+	 *
+	 * @see KeyWrappingSecretKeyInfoFactory
+	 */
+	public String getWrappedKey() {
+		return wrappedKey;
+	}
+
+	/** Checks whether the data key is derived from a KMS-encrypted key */
+	public boolean isDerived() {
+		return salt != null;
+	}
+
+	/**
+	 * Returns the Base64 salt from which the data key is derived, or null if
+	 * the data key is not derived
+	 *
+	 * @see KeyDerivingSecretKeyInfoFactory
+	 */
+	public String getSalt() {
+		return salt;
+	}
+
+	/** Checks whether the data key is also encrypted under an escrow key */
+	public boolean hasEscrowKey() {
+		return escrowKey != null;
+	}
+
+	/**
+	 * Returns the URI of the algorithm of the escrow EncryptedKey, or null if
+	 * there is none
+	 */
+	public String getEscrowAlgorithm() {
+		return escrowAlgorithm;
+	}
+
+	/**
+	 * Returns the Base64 cipher value of the escrow EncryptedKey, or null if
+	 * there is none
+	 *
+	 * @see EscrowKeys
+	 */
+	public String getEscrowKey() {
+		return escrowKey;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result =
+			prime * result
+					+ ((dataAlgorithm == null) ? 0 : dataAlgorithm.hashCode());
+		result =
+			prime * result
+					+ ((encryptedKey == null) ? 0 : encryptedKey.hashCode());
+		result =
+			prime
+					* result
+					+ ((escrowAlgorithm == null) ? 0 : escrowAlgorithm
+							.hashCode());
+		result =
+			prime * result + ((escrowKey == null) ? 0 : escrowKey.hashCode());
+		result =
+			prime * result
+					+ ((keyAlgorithm == null) ? 0 : keyAlgorithm.hashCode());
+		result = prime * result + kmsKeyCount;
+		result =
+			prime * result
+					+ ((masterKeyId == null) ? 0 : masterKeyId.hashCode());
+		result = prime * result + ((salt == null) ? 0 : salt.hashCode());
+		result =
+			prime * result + ((wrappedKey == null) ? 0 : wrappedKey.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		EncryptedDataHeader other = (EncryptedDataHeader) obj;
+		if (dataAlgorithm == null) {
+			if (other.dataAlgorithm != null) {
+				return false;
+			}
+		} else if (!dataAlgorithm.equals(other.dataAlgorithm)) {
+			return false;
+		}
+		if (encryptedKey == null) {
+			if (other.encryptedKey != null) {
+				return false;
+			}
+		} else if (!encryptedKey.equals(other.encryptedKey)) {
+			return false;
+		}
+		if (escrowAlgorithm == null) {
+			if (other.escrowAlgorithm != null) {
+				return false;
+			}
+		} else if (!escrowAlgorithm.equals(other.escrowAlgorithm)) {
+			return false;
+		}
+		if (escrowKey == null) {
+			if (other.escrowKey != null) {
+				return false;
+			}
+		} else if (!escrowKey.equals(other.escrowKey)) {
+			return false;
+		}
+		if (keyAlgorithm == null) {
+			if (other.keyAlgorithm != null) {
+				return false;
+			}
+		} else if (!keyAlgorithm.equals(other.keyAlgorithm)) {
+			return false;
+		}
+		if (kmsKeyCount != other.kmsKeyCount) {
+			return false;
+		}
+		if (masterKeyId == null) {
+			if (other.masterKeyId != null) {
+				return false;
+			}
+		} else if (!masterKeyId.equals(other.masterKeyId)) {
+			return false;
+		}
+		if (salt == null) {
+			if (other.salt != null) {
+				return false;
+			}
+		} else if (!salt.equals(other.salt)) {
+			return false;
+		}
+		if (wrappedKey == null) {
+			if (other.wrappedKey != null) {
+				return false;
+			}
+		} else if (!wrappedKey.equals(other.wrappedKey)) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "EncryptedDataHeader [dataAlgorithm=" + dataAlgorithm
+				+ ", keyAlgorithm=" + keyAlgorithm + ", masterKeyId="
+				+ masterKeyId + ", wrapped=" + isWrapped() + ", derived="
+				+ isDerived() + ", escrowAlgorithm=" + escrowAlgorithm + "]";
+	}
+
+}
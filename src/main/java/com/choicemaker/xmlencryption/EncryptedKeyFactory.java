@@ -10,16 +10,20 @@
  */
 package com.choicemaker.xmlencryption;
 
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.xml.security.encryption.XMLEncryptionException;
 import org.apache.xml.security.stax.impl.util.IDGenerator;
 import org.apache.xml.security.utils.Base64;
 import org.apache.xml.security.utils.EncryptionConstants;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
 
-import com.choicemaker.utilcopy01.SystemPropertyUtils;
 import com.choicemaker.utilcopy01.WSS4JConstants;
 import com.choicemaker.utilcopy01.XMLUtils;
 
@@ -28,6 +32,30 @@ public class EncryptedKeyFactory {
 	private static final Logger logger = Logger
 			.getLogger(EncryptedKeyFactory.class.getName());
 
+	/** Name of the attribute that identifies an EncryptedKey */
+	private static final String ID_ATTRIBUTE = "Id";
+
+	private static String generateEncryptedKeyId() {
+		return IDGenerator.generateID("EK-");
+	}
+
+	/**
+	 * Gives every identified EncryptedKey within an element a new Id. A
+	 * KeyInfo that is shared by several EncryptedData elements is copied into
+	 * each of them, while an XML ID must be unique within a document.
+	 */
+	public static void renewEncryptedKeyIds(Element element) {
+		NodeList keys =
+			element.getElementsByTagNameNS(WSS4JConstants.ENC_NS,
+					EncryptionConstants._TAG_ENCRYPTEDKEY);
+		for (int i = 0; i < keys.getLength(); i++) {
+			Element ek = (Element) keys.item(i);
+			if (ek.hasAttributeNS(null, ID_ATTRIBUTE)) {
+				ek.setAttributeNS(null, ID_ATTRIBUTE, generateEncryptedKeyId());
+			}
+		}
+	}
+
 	protected Text createBase64EncodedTextNode(Document doc, byte[] data) {
 		return doc.createTextNode(Base64.encode(data));
 	}
@@ -71,15 +99,45 @@ public class EncryptedKeyFactory {
 	public Element createEncryptedKeyElement(Document document,
 			String keyEncAlgo, SecretKeyInfo ski) {
 		Element retVal = createEncryptedKey(document, keyEncAlgo);
-		String encKeyId = IDGenerator.generateID("EK-");
-		retVal.setAttributeNS(null, "Id", encKeyId);
-		retVal.appendChild(document.adoptNode(ski.getKeyInfoReference()));
+		String encKeyId = generateEncryptedKeyId();
+		retVal.setAttributeNS(null, ID_ATTRIBUTE, encKeyId);
+		retVal.appendChild(ski.createKeyInfo(document));
 		Element cipherValue = createCipherValue(document, retVal);
 		Text keyText =
 			createBase64EncodedTextNode(document, ski.getEncryptedSecret());
 		cipherValue.appendChild(keyText);
-		logger.fine("EncryptedKey: " + SystemPropertyUtils.PV_LINE_SEPARATOR
-				+ XMLPrettyPrint.print(retVal));
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "EncryptedKey: {0}",
+					Diagnostics.preview(retVal));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Creates an EncryptedKey that holds a session key encrypted under an
+	 * escrow RSA key. The element is marked by a Recipient attribute, so that
+	 * decryptors can tell it from the EncryptedKey decrypted by KMS.
+	 *
+	 * @see EscrowKeys
+	 */
+	public Element createEscrowKeyElement(Document document,
+			PublicKey escrowKey, byte[] key) throws XMLEncryptionException {
+		final byte[] wrappedKey;
+		try {
+			wrappedKey = EscrowKeys.wrap(escrowKey, key);
+		} catch (GeneralSecurityException e) {
+			String msg = "Failed to wrap escrow key: " + e.toString();
+			logger.severe(msg);
+			throw new XMLEncryptionException(msg, e);
+		}
+		Element retVal =
+			createEncryptedKey(document, EscrowKeys.KEY_TRANSPORT_ALGORITHM);
+		retVal.setAttributeNS(null, ID_ATTRIBUTE, generateEncryptedKeyId());
+		retVal.setAttributeNS(null, EncryptionConstants._ATT_RECIPIENT,
+				EscrowKeys.ESCROW_RECIPIENT);
+		Element cipherValue = createCipherValue(document, retVal);
+		cipherValue.appendChild(createBase64EncodedTextNode(document,
+				wrappedKey));
 		return retVal;
 	}
 
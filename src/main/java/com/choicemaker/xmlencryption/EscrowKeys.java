@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.exceptions.Base64DecodingException;
+import org.apache.xml.security.utils.Base64;
+
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.StringUtils;
+
+/**
+ * Reads escrow RSA keys from PEM files, and wraps session keys under them. An
+ * escrow key lets a document be decrypted without KMS: documents are
+ * encrypted with the public key named by
+ * {@link EncryptionParameters#PN_ESCROWKEY}, in addition to KMS, and may be
+ * decrypted by a {@link DocumentDecryptor#DocumentDecryptor(PrivateKey)
+ * decryptor} that holds the private key.
+ * <p/>
+ * Keys are read without third-party libraries, so only the PEM formats
+ * written by the <code>openssl rsa</code> and <code>openssl pkcs8</code>
+ * commands without encryption, and the traditional OpenSSL encryption of
+ * RSA private keys (DES-EDE3-CBC or AES-CBC), are supported.
+ */
+public final class EscrowKeys {
+
+	private static final Logger logger = Logger.getLogger(EscrowKeys.class
+			.getName());
+
+	/** The key transport algorithm of escrow EncryptedKeys */
+	public static final String KEY_TRANSPORT_ALGORITHM = XMLCipher.RSA_OAEP;
+
+	/** The Recipient attribute that marks an escrow EncryptedKey */
+	public static final String ESCROW_RECIPIENT = "escrow";
+
+	private static final String RSA_OAEP_TRANSFORMATION =
+		"RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+
+	private static final OAEPParameterSpec OAEP_PARAMETERS =
+		new OAEPParameterSpec("SHA-1", "MGF1", MGF1ParameterSpec.SHA1,
+				PSource.PSpecified.DEFAULT);
+
+	private static final String PEM_PUBLIC_KEY = "PUBLIC KEY";
+	private static final String PEM_PRIVATE_KEY = "PRIVATE KEY";
+	private static final String PEM_RSA_PRIVATE_KEY = "RSA PRIVATE KEY";
+
+	/** DER encoding of the AlgorithmIdentifier of rsaEncryption */
+	private static final byte[] RSA_ALGORITHM_ID = new byte[] {
+			0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86,
+			(byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00 };
+
+	private EscrowKeys() {
+	}
+
+	/**
+	 * Returns the escrow public key named by the optional property
+	 * {@link EncryptionParameters#PN_ESCROWKEY}, or null if the property is
+	 * not defined.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the property is defined but the key can not be read
+	 */
+	public static PublicKey getEscrowPublicKey(Properties p) {
+		PublicKey retVal = null;
+		String fileName =
+			p == null ? null : p.getProperty(EncryptionParameters.PN_ESCROWKEY);
+		if (StringUtils.nonEmptyString(fileName)) {
+			try {
+				retVal = readPublicKey(new File(fileName.trim()));
+			} catch (IOException | GeneralSecurityException e) {
+				String msg =
+					"Unable to read escrow key '" + fileName + "': "
+							+ e.toString();
+				logger.severe(msg);
+				throw new IllegalArgumentException(msg, e);
+			}
+		}
+		return retVal;
+	}
+
+	public static PublicKey readPublicKey(File f) throws IOException,
+			GeneralSecurityException {
+		Precondition.assertNonNullArgument("null file", f);
+		try (InputStream is = new FileInputStream(f)) {
+			return readPublicKey(is);
+		}
+	}
+
+	/**
+	 * Reads an RSA public key in the PEM format written by
+	 * <code>openssl rsa -pubout</code>.
+	 */
+	public static PublicKey readPublicKey(InputStream is) throws IOException,
+			GeneralSecurityException {
+		Precondition.assertNonNullArgument("null input stream", is);
+		Pem pem = Pem.read(is);
+		if (!PEM_PUBLIC_KEY.equals(pem.type)) {
+			throw new GeneralSecurityException("Not a public key: " + pem.type);
+		}
+		return KeyFactory.getInstance("RSA").generatePublic(
+				new X509EncodedKeySpec(pem.content));
+	}
+
+	public static PrivateKey readPrivateKey(File f, char[] password)
+			throws IOException, GeneralSecurityException {
+		Precondition.assertNonNullArgument("null file", f);
+		try (InputStream is = new FileInputStream(f)) {
+			return readPrivateKey(is, password);
+		}
+	}
+
+	/**
+	 * Reads an RSA private key in PKCS #1 or unencrypted PKCS #8 PEM format.
+	 *
+	 * @param password
+	 *            the password of a key encrypted by <code>openssl rsa</code>,
+	 *            or null if the key is not encrypted
+	 */
+	public static PrivateKey readPrivateKey(InputStream is, char[] password)
+			throws IOException, GeneralSecurityException {
+		Precondition.assertNonNullArgument("null input stream", is);
+		Pem pem = Pem.read(is);
+		byte[] der = pem.content;
+		String dekInfo = pem.headers.get("DEK-Info");
+		if (dekInfo != null) {
+			if (password == null) {
+				throw new GeneralSecurityException("Private key is encrypted");
+			}
+			der = decryptTraditional(der, dekInfo, password);
+		}
+		if (PEM_RSA_PRIVATE_KEY.equals(pem.type)) {
+			der = toPkcs8(der);
+		} else if (!PEM_PRIVATE_KEY.equals(pem.type)) {
+			throw new GeneralSecurityException("Unsupported private key type: "
+					+ pem.type);
+		}
+		return KeyFactory.getInstance("RSA").generatePrivate(
+				new PKCS8EncodedKeySpec(der));
+	}
+
+	/** Encrypts a session key with RSA-OAEP (MGF1 with SHA-1) */
+	public static byte[] wrap(PublicKey escrowKey, byte[] key)
+			throws GeneralSecurityException {
+		Precondition.assertNonNullArgument("null escrow key", escrowKey);
+		Precondition.assertNonNullArgument("null key", key);
+		Cipher cipher = Cipher.getInstance(RSA_OAEP_TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, escrowKey, OAEP_PARAMETERS);
+		return cipher.doFinal(key);
+	}
+
+	/** Decrypts a session key encrypted by {@link #wrap(PublicKey, byte[])} */
+	public static byte[] unwrap(PrivateKey escrowKey, byte[] wrappedKey)
+			throws GeneralSecurityException {
+		Precondition.assertNonNullArgument("null escrow key", escrowKey);
+		Precondition.assertNonNullArgument("null wrapped key", wrappedKey);
+		Cipher cipher = Cipher.getInstance(RSA_OAEP_TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, escrowKey, OAEP_PARAMETERS);
+		return cipher.doFinal(wrappedKey);
+	}
+
+	/**
+	 * Decrypts a key encrypted in the traditional OpenSSL format, whose key is
+	 * derived from the password by EVP_BytesToKey with MD5 and one iteration.
+	 */
+	private static byte[] decryptTraditional(byte[] der, String dekInfo,
+			char[] password) throws GeneralSecurityException {
+		final String[] parts = dekInfo.split(",");
+		if (parts.length != 2) {
+			throw new GeneralSecurityException("Invalid DEK-Info: " + dekInfo);
+		}
+		final String cipherName = parts[0].trim();
+		final byte[] iv = fromHex(parts[1].trim());
+		final String transformation;
+		final String keyAlgorithm;
+		final int keyLength;
+		if ("DES-EDE3-CBC".equals(cipherName)) {
+			transformation = "DESede/CBC/PKCS5Padding";
+			keyAlgorithm = "DESede";
+			keyLength = 24;
+		} else if (cipherName.matches("AES-(128|192|256)-CBC")) {
+			transformation = "AES/CBC/PKCS5Padding";
+			keyAlgorithm = "AES";
+			keyLength = Integer.parseInt(cipherName.substring(4, 7)) / 8;
+		} else {
+			throw new GeneralSecurityException("Unsupported PEM encryption: "
+					+ cipherName);
+		}
+
+		final byte[] pw =
+			new String(password).getBytes(StandardCharsets.ISO_8859_1);
+		final byte[] salt = Arrays.copyOf(iv, 8);
+		final MessageDigest md5 = MessageDigest.getInstance("MD5");
+		final byte[] key = new byte[keyLength];
+		byte[] block = new byte[0];
+		for (int offset = 0; offset < keyLength; offset += block.length) {
+			md5.update(block);
+			md5.update(pw);
+			md5.update(salt);
+			block = md5.digest();
+			System.arraycopy(block, 0, key, offset,
+					Math.min(block.length, keyLength - offset));
+		}
+		Arrays.fill(pw, (byte) 0);
+
+		Cipher cipher = Cipher.getInstance(transformation);
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, keyAlgorithm),
+				new IvParameterSpec(iv));
+		Arrays.fill(key, (byte) 0);
+		return cipher.doFinal(der);
+	}
+
+	/** Wraps a PKCS #1 RSAPrivateKey in a PKCS #8 PrivateKeyInfo */
+	private static byte[] toPkcs8(byte[] pkcs1) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(0x02);
+		body.write(0x01);
+		body.write(0x00);
+		body.write(RSA_ALGORITHM_ID, 0, RSA_ALGORITHM_ID.length);
+		writeDer(body, 0x04, pkcs1);
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		writeDer(retVal, 0x30, body.toByteArray());
+		return retVal.toByteArray();
+	}
+
+	private static void writeDer(ByteArrayOutputStream out, int tag,
+			byte[] content) {
+		out.write(tag);
+		final int length = content.length;
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int byteCount = 0;
+			for (int n = length; n > 0; n >>>= 8) {
+				++byteCount;
+			}
+			out.write(0x80 | byteCount);
+			for (int i = byteCount - 1; i >= 0; i--) {
+				out.write(length >>> (8 * i));
+			}
+		}
+		out.write(content, 0, length);
+	}
+
+	private static byte[] fromHex(String hex) throws GeneralSecurityException {
+		if (hex.length() % 2 != 0) {
+			throw new GeneralSecurityException("Invalid hex string: " + hex);
+		}
+		byte[] retVal = new byte[hex.length() / 2];
+		for (int i = 0; i < retVal.length; i++) {
+			retVal[i] =
+				(byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return retVal;
+	}
+
+	/** The type, headers and decoded content of a PEM object */
+	private static class Pem {
+
+		final String type;
+		final Map<String, String> headers;
+		final byte[] content;
+
+		Pem(String type, Map<String, String> headers, byte[] content) {
+			this.type = type;
+			this.headers = headers;
+			this.content = content;
+		}
+
+		/** Reads the first PEM object of a stream */
+		static Pem read(InputStream is) throws IOException,
+				GeneralSecurityException {
+			final BufferedReader reader =
+				new BufferedReader(new InputStreamReader(is,
+						StandardCharsets.US_ASCII));
+			final String begin = "-----BEGIN ";
+			String type = null;
+			Map<String, String> headers = new HashMap<>();
+			StringBuilder base64 = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (type == null) {
+					if (line.startsWith(begin) && line.endsWith("-----")) {
+						type =
+							line.substring(begin.length(), line.length() - 5);
+					}
+				} else if (line.startsWith("-----END ")) {
+					try {
+						return new Pem(type, headers,
+								Base64.decode(base64.toString()));
+					} catch (Base64DecodingException e) {
+						throw new GeneralSecurityException(
+								"Invalid PEM content", e);
+					}
+				} else if (line.indexOf(':') > 0) {
+					int i = line.indexOf(':');
+					headers.put(line.substring(0, i).trim(),
+							line.substring(i + 1).trim());
+				} else {
+					base64.append(line);
+				}
+			}
+			throw new GeneralSecurityException("No PEM object found");
+		}
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.xml.security.utils.Base64;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.WSS4JConstants;
+
+/**
+ * A SecretKeyInfoFactory that derives a new key for every document from a
+ * base key with HKDF (RFC 5869, HMAC-SHA256) and a random salt. The base key
+ * is a data key obtained from another factory, typically from KMS, and is
+ * replaced when it reaches a maximum age or has been used for a maximum
+ * number of derivations. KMS requests are therefore made once per base key
+ * rather than once per document, while every document still has its own key.
+ * <p/>
+ * The EncryptedKey of a document holds the KMS-encrypted base key, and its
+ * KeyInfo records the salt next to the name of the master key:
+ *
+ * <pre>
+ * &lt;xenc:EncryptedKey&gt;
+ *   ...
+ *   &lt;ds:KeyInfo&gt;
+ *     &lt;ds:KeyName&gt;master key&lt;/ds:KeyName&gt;
+ *     &lt;kdf:KeyDerivation xmlns:kdf="urn:choicemaker:xmlencryption:kdf"
+ *         Algorithm="HKDF-HmacSHA256"&gt;...salt...&lt;/kdf:KeyDerivation&gt;
+ *   &lt;/ds:KeyInfo&gt;
+ *   &lt;xenc:CipherData&gt;...KMS ciphertext...&lt;/xenc:CipherData&gt;
+ * &lt;/xenc:EncryptedKey&gt;
+ * </pre>
+ *
+ * {@link DocumentDecryptor} recognizes the salt, decrypts the base key with
+ * KMS (once per base key, if the decryptor has a {@link DataKeyCache}), and
+ * derives the document key locally.
+ * <p/>
+ * Instances are thread-safe.
+ *
+ * @see AwsKmsKeyDerivationScheme
+ */
+public class KeyDerivingSecretKeyInfoFactory implements SecretKeyInfoFactory {
+
+	private static final Logger logger = Logger
+			.getLogger(KeyDerivingSecretKeyInfoFactory.class.getName());
+
+	/** Namespace of the element that records a key derivation */
+	public static final String KDF_NS = "urn:choicemaker:xmlencryption:kdf";
+
+	public static final String KDF_PREFIX = "kdf";
+
+	/** Local name of the element that records a key derivation */
+	public static final String KEY_DERIVATION_LN = "KeyDerivation";
+
+	/** The value of the Algorithm attribute of a key derivation */
+	public static final String HKDF_ALGORITHM = "HKDF-HmacSHA256";
+
+	/** The HKDF context string, which binds derived keys to this use */
+	public static final String HKDF_INFO =
+		"com.choicemaker.xmlencryption document key";
+
+	/** Length in bytes of a random salt */
+	public static final int SALT_LENGTH = 32;
+
+	/** Default maximum age of a base key (milliseconds) */
+	public static final long DEFAULT_BASE_KEY_MAX_AGE = 60 * 60 * 1000L;
+
+	/** Default maximum number of document keys derived from one base key */
+	public static final long DEFAULT_BASE_KEY_MAX_DERIVATIONS = 1000 * 1000L;
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private static final int MAC_LENGTH = 32;
+
+	/**
+	 * Derives a key with HKDF-HMAC-SHA256, using {@link #HKDF_INFO} as the
+	 * context.
+	 *
+	 * @param baseKey
+	 *            the input keying material
+	 * @param salt
+	 *            a non-secret random value
+	 * @param length
+	 *            the length in bytes of the derived key, at most 255 * 32
+	 */
+	public static byte[] derive(byte[] baseKey, byte[] salt, int length)
+			throws GeneralSecurityException {
+		final byte[] info = HKDF_INFO.getBytes(StandardCharsets.UTF_8);
+		return derive(baseKey, salt, info, length);
+	}
+
+	/**
+	 * Derives a key with HKDF-HMAC-SHA256.
+	 *
+	 * @param info
+	 *            the context of the derived key, possibly empty
+	 * @see #derive(byte[], byte[], int)
+	 */
+	public static byte[] derive(byte[] baseKey, byte[] salt, byte[] info,
+			int length) throws GeneralSecurityException {
+		Precondition.assertNonNullArgument("null base key", baseKey);
+		Precondition.assertNonNullArgument("null salt", salt);
+		Precondition.assertNonNullArgument("null info", info);
+		Precondition.assertBoolean("invalid key length: " + length,
+				length > 0 && length <= 255 * MAC_LENGTH);
+
+		// Extract
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(salt.length == 0 ? new byte[MAC_LENGTH]
+				: salt, MAC_ALGORITHM));
+		final byte[] prk = mac.doFinal(baseKey);
+
+		// Expand
+		mac.init(new SecretKeySpec(prk, MAC_ALGORITHM));
+		final byte[] retVal = new byte[length];
+		byte[] t = new byte[0];
+		for (int i = 1, offset = 0; offset < length; i++) {
+			mac.update(t);
+			mac.update(info);
+			mac.update((byte) i);
+			t = mac.doFinal();
+			final int n = Math.min(t.length, length - offset);
+			System.arraycopy(t, 0, retVal, offset, n);
+			offset += n;
+		}
+		return retVal;
+	}
+
+	private final SecretKeyInfoFactory baseKeyFactory;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Creates a factory that obtains base keys from a delegate, replacing a
+	 * base key when it reaches the age or usage limits read from the optional
+	 * properties {@link AwsKmsProperties#PN_BASE_KEY_MAX_AGE} and
+	 * {@link AwsKmsProperties#PN_BASE_KEY_MAX_DERIVATIONS}.
+	 *
+	 * @param delegate
+	 *            creates a new base key on every call; for example, an
+	 *            {@link AwsKmsSecretKeyInfoFactory}
+	 */
+	public KeyDerivingSecretKeyInfoFactory(SecretKeyInfoFactory delegate,
+			Properties p) {
+		this(new CachingSecretKeyInfoFactory(delegate,
+				AwsKmsProperties.getLongProperty(p,
+						AwsKmsProperties.PN_BASE_KEY_MAX_DERIVATIONS,
+						DEFAULT_BASE_KEY_MAX_DERIVATIONS), Long.MAX_VALUE,
+				AwsKmsProperties.getLongProperty(p,
+						AwsKmsProperties.PN_BASE_KEY_MAX_AGE,
+						DEFAULT_BASE_KEY_MAX_AGE)));
+	}
+
+	/**
+	 * @param baseKeyFactory
+	 *            returns the current base key; a factory that returns the
+	 *            same instance until the base key should be replaced, such as
+	 *            a {@link CachingSecretKeyInfoFactory}
+	 */
+	public KeyDerivingSecretKeyInfoFactory(
+			SecretKeyInfoFactory baseKeyFactory) {
+		Precondition.assertNonNullArgument("null base key factory",
+				baseKeyFactory);
+		this.baseKeyFactory = baseKeyFactory;
+	}
+
+	@Override
+	public SecretKeyInfo createSessionKey() {
+		return createSessionKey(KmsDeadline.NONE);
+	}
+
+	/**
+	 * Creates a document key, which has the same length as the base key. The
+	 * deadline applies only if a new base key must be requested.
+	 */
+	@Override
+	public SecretKeyInfo createSessionKey(KmsDeadline deadline) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		final byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		byte[] baseKey = null;
+		byte[] key = null;
+		try (SecretKeyInfo base = baseKeyFactory.createSessionKey(deadline)) {
+			baseKey = base.getKey();
+			key = derive(baseKey, salt, baseKey.length);
+			return new DerivedSecretKeyInfo(KeyMaterial.copyOf(key), base,
+					salt);
+		} catch (GeneralSecurityException e) {
+			String msg = "Failed to derive document key: " + e.toString();
+			logger.severe(msg);
+			throw new IllegalStateException(msg, e);
+		} finally {
+			KeyMaterial.zeroize(baseKey);
+			KeyMaterial.zeroize(key);
+		}
+	}
+
+	/**
+	 * A derived key, whose KeyInfo is the KeyInfo of its base key, extended
+	 * by an element that records the salt. The KeyInfo is built in the
+	 * document where the key is used.
+	 */
+	private static final class DerivedSecretKeyInfo extends SecretKeyInfo {
+
+		private final SecretKeyInfo base;
+		private final byte[] salt;
+
+		DerivedSecretKeyInfo(KeyMaterial key, SecretKeyInfo base, byte[] salt) {
+			super(key, base.getEncryptedSecret(), base.getMasterKeyId(), null);
+			this.base = base;
+			this.salt = salt;
+		}
+
+		@Override
+		public Element createKeyInfo(Document doc) {
+			Element retVal = base.createKeyInfo(doc);
+			Element kd =
+				doc.createElementNS(KDF_NS, KDF_PREFIX + ":"
+						+ KEY_DERIVATION_LN);
+			kd.setAttributeNS(WSS4JConstants.XMLNS_NS, "xmlns:" + KDF_PREFIX,
+					KDF_NS);
+			kd.setAttributeNS(null, "Algorithm", HKDF_ALGORITHM);
+			kd.setTextContent(Base64.encode(salt));
+			retVal.appendChild(kd);
+			return retVal;
+		}
+	}
+
+	public SecretKeyInfoFactory getBaseKeyFactory() {
+		return baseKeyFactory;
+	}
+
+	@Override
+	public String toString() {
+		return "KeyDerivingSecretKeyInfoFactory [baseKeyFactory="
+				+ baseKeyFactory + "]";
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+
+import com.choicemaker.utilcopy01.KeyUtils;
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A plaintext key held in a buffer borrowed from a {@link KeyMaterialPool}.
+ * The buffer is zeroized and returned to its pool when the last reference to
+ * the key is closed.
+ * <p/>
+ * A key starts with one reference, which belongs to its creator. Each call to
+ * {@link #retain()} adds a reference, and each call to {@link #close()}
+ * releases one; a holder must close each reference it owns exactly once.
+ * Keys that are never closed are reclaimed by the garbage collector, as they
+ * were before keys were pooled, but are not zeroized.
+ * <p/>
+ * Ciphers use a key through a {@link #toSecretKey(String) SecretKey view},
+ * which reads the buffer each time a cipher is initialized, rather than
+ * through a copy of the key.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public final class KeyMaterial implements AutoCloseable {
+
+	/** Copies a key into a buffer from the default pool */
+	public static KeyMaterial copyOf(byte[] key) {
+		Precondition.assertNonNullArgument("null key", key);
+		return copyOf(ByteBuffer.wrap(key), KeyMaterialPool.getDefault());
+	}
+
+	/**
+	 * Copies the remaining bytes of a buffer into a buffer from the default
+	 * pool. The position of the source buffer is advanced to its limit.
+	 */
+	public static KeyMaterial copyOf(ByteBuffer key) {
+		return copyOf(key, KeyMaterialPool.getDefault());
+	}
+
+	/**
+	 * Copies the remaining bytes of a buffer into a buffer from the specified
+	 * pool. The position of the source buffer is advanced to its limit.
+	 */
+	public static KeyMaterial copyOf(ByteBuffer key, KeyMaterialPool pool) {
+		Precondition.assertNonNullArgument("null key", key);
+		Precondition.assertNonNullArgument("null pool", pool);
+		ByteBuffer bb = pool.acquire(key.remaining());
+		bb.put(key);
+		bb.flip();
+		return new KeyMaterial(pool, bb);
+	}
+
+	/** Overwrites an array with zeros; a null array is ignored */
+	public static void zeroize(byte[] bytes) {
+		if (bytes != null) {
+			Arrays.fill(bytes, (byte) 0);
+		}
+	}
+
+	private final KeyMaterialPool pool;
+	private final int length;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	// Null once the last reference is closed
+	private volatile ByteBuffer buffer;
+
+	private KeyMaterial(KeyMaterialPool pool, ByteBuffer buffer) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.length = buffer.remaining();
+	}
+
+	/** Returns the length of the key, in bytes */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns a copy of the first bytes of the key. The caller should zeroize
+	 * the copy when it is no longer needed.
+	 *
+	 * @throws IllegalStateException
+	 *             if the key has been closed
+	 */
+	public byte[] getBytes(int count) {
+		Precondition.assertBoolean("invalid byte count: " + count, count >= 0
+				&& count <= length);
+		final ByteBuffer bb = buffer;
+		if (bb == null) {
+			throw new IllegalStateException("key material is closed");
+		}
+		byte[] retVal = new byte[count];
+		bb.duplicate().get(retVal);
+		return retVal;
+	}
+
+	/** Equivalent to <code>getBytes(length())</code> */
+	public byte[] getBytes() {
+		return getBytes(length);
+	}
+
+	/**
+	 * Returns a view of this key for use with the specified XML Encryption
+	 * algorithm. Like {@link KeyUtils#prepareSecretKey(String, byte[])}, the
+	 * view is truncated to the key length of the algorithm, but it does not
+	 * copy the key until a cipher asks for its encoding. The view becomes
+	 * unusable when this key is closed.
+	 *
+	 * @param algorithm
+	 *            the URI of an XML Encryption algorithm
+	 */
+	public SecretKey toSecretKey(String algorithm) {
+		Precondition.assertNonEmptyString("null or blank algorithm",
+				algorithm);
+		String keyAlgorithm = JCEMapper.getJCEKeyAlgorithmFromURI(algorithm);
+		int count = KeyUtils.getSecretKeyLength(algorithm, length);
+		return new KeyView(this, keyAlgorithm, count);
+	}
+
+	/**
+	 * Adds a reference to this key.
+	 *
+	 * @return this key
+	 * @throws IllegalStateException
+	 *             if the last reference has already been closed
+	 */
+	public KeyMaterial retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("key material is closed");
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/**
+	 * Releases a reference to this key. When the last reference is released,
+	 * the key is zeroized and its buffer is returned to its pool.
+	 */
+	@Override
+	public void close() {
+		if (references.decrementAndGet() == 0) {
+			final ByteBuffer bb = buffer;
+			buffer = null;
+			pool.release(bb);
+		}
+	}
+
+	/** Checks whether the last reference to this key has been closed */
+	public boolean isClosed() {
+		return buffer == null;
+	}
+
+	/**
+	 * Compares the content of two keys in time that does not depend on where
+	 * they differ. Closed keys are equal only to themselves.
+	 */
+	public boolean contentEquals(KeyMaterial other) {
+		if (this == other) {
+			return true;
+		}
+		final ByteBuffer bb1 = buffer;
+		final ByteBuffer bb2 = other == null ? null : other.buffer;
+		if (bb1 == null || bb2 == null || length != other.length) {
+			return false;
+		}
+		int diff = 0;
+		for (int i = 0; i < length; i++) {
+			diff |= bb1.get(i) ^ bb2.get(i);
+		}
+		return diff == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "KeyMaterial [length=" + length + ", closed=" + isClosed()
+				+ "]";
+	}
+
+	/** A SecretKey that reads its encoding from a KeyMaterial buffer */
+	private static final class KeyView implements SecretKey {
+
+		private static final long serialVersionUID = 271L;
+
+		private final transient KeyMaterial material;
+		private final String algorithm;
+		private final int count;
+
+		KeyView(KeyMaterial material, String algorithm, int count) {
+			this.material = material;
+			this.algorithm = algorithm;
+			this.count = count;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return algorithm;
+		}
+
+		@Override
+		public String getFormat() {
+			return "RAW";
+		}
+
+		/**
+		 * Returns a new copy of the key, which JCE providers clear after they
+		 * initialize a cipher.
+		 *
+		 * @throws IllegalStateException
+		 *             if the key material has been closed
+		 */
+		@Override
+		public byte[] getEncoded() {
+			return material.getBytes(count);
+		}
+
+		@Override
+		public boolean isDestroyed() {
+			return material.isClosed();
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			throw new NotSerializableException("key material");
+		}
+
+		@Override
+		public String toString() {
+			return "KeyView [algorithm=" + algorithm + ", length=" + count
+					+ "]";
+		}
+	}
+
+}
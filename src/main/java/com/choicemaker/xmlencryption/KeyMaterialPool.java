@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A pool of small buffers that hold plaintext keys. Buffers are zeroized when
+ * they are returned to the pool, so a pooled buffer never holds a key that is
+ * no longer in use. Keys are allocated in slots of {@link #SLOT_SIZE} bytes,
+ * up to {@link #MAX_POOLED_LENGTH} bytes; longer keys get a buffer of their
+ * own, which is zeroized but not pooled.
+ * <p/>
+ * A pool of direct buffers keeps keys outside the Java heap, where the garbage
+ * collector can not leave stale copies of them when it moves objects.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public final class KeyMaterialPool {
+
+	/**
+	 * The name of a System property that, if it is "true", specifies that the
+	 * {@link #getDefault() default pool} allocates direct buffers
+	 */
+	public static final String PN_DIRECT_KEY_BUFFERS = "directKeyBuffers";
+
+	/** The granularity, in bytes, of pooled buffers */
+	public static final int SLOT_SIZE = 16;
+
+	/** The length, in bytes, of the longest key held by a pooled buffer */
+	public static final int MAX_POOLED_LENGTH = 4 * SLOT_SIZE;
+
+	/** Default maximum number of idle buffers of each size */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+	private static final KeyMaterialPool DEFAULT_POOL = new KeyMaterialPool(
+			Boolean.getBoolean(PN_DIRECT_KEY_BUFFERS), DEFAULT_MAX_IDLE);
+
+	/** Returns the pool used by {@link KeyMaterial} unless told otherwise */
+	public static KeyMaterialPool getDefault() {
+		return DEFAULT_POOL;
+	}
+
+	/** Overwrites the content of a buffer, up to its limit, with zeros */
+	public static void zeroize(ByteBuffer bb) {
+		if (bb != null && !bb.isReadOnly()) {
+			for (int i = 0; i < bb.limit(); i++) {
+				bb.put(i, (byte) 0);
+			}
+		}
+	}
+
+	private final boolean direct;
+	private final int maxIdle;
+	private final List<Queue<ByteBuffer>> idle;
+	private final AtomicInteger[] idleCounts;
+	private final AtomicLong allocatedCount = new AtomicLong();
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	/**
+	 * @param direct
+	 *            whether the pool allocates direct buffers
+	 * @param maxIdle
+	 *            a non-negative maximum number of idle buffers of each size
+	 */
+	public KeyMaterialPool(boolean direct, int maxIdle) {
+		Precondition.assertBoolean("negative idle limit", maxIdle >= 0);
+		this.direct = direct;
+		this.maxIdle = maxIdle;
+		final int slotCount = MAX_POOLED_LENGTH / SLOT_SIZE;
+		this.idle = new ArrayList<>(slotCount);
+		this.idleCounts = new AtomicInteger[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			idle.add(new ConcurrentLinkedQueue<>());
+			idleCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns a zeroized buffer whose position is zero and whose limit is the
+	 * specified length.
+	 *
+	 * @param length
+	 *            a positive number of bytes
+	 */
+	ByteBuffer acquire(int length) {
+		Precondition.assertBoolean("non-positive key length", length > 0);
+		ByteBuffer retVal = null;
+		final int slot = slot(length);
+		if (slot >= 0) {
+			retVal = idle.get(slot).poll();
+			if (retVal != null) {
+				idleCounts[slot].decrementAndGet();
+				reusedCount.incrementAndGet();
+			}
+		}
+		if (retVal == null) {
+			final int capacity =
+				slot >= 0 ? (slot + 1) * SLOT_SIZE : length;
+			retVal =
+				direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+						.allocate(capacity);
+			allocatedCount.incrementAndGet();
+		}
+		retVal.clear();
+		retVal.limit(length);
+		return retVal;
+	}
+
+	/** Zeroizes a buffer and, if there is room, returns it to this pool */
+	void release(ByteBuffer bb) {
+		bb.clear();
+		zeroize(bb);
+		int slot = -1;
+		if (bb.isDirect() == direct && bb.capacity() % SLOT_SIZE == 0) {
+			slot = slot(bb.capacity());
+		}
+		if (slot >= 0 && idleCounts[slot].incrementAndGet() <= maxIdle) {
+			idle.get(slot).offer(bb);
+		} else if (slot >= 0) {
+			idleCounts[slot].decrementAndGet();
+		}
+	}
+
+	private static int slot(int length) {
+		return length <= MAX_POOLED_LENGTH ? (length - 1) / SLOT_SIZE : -1;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/** Returns the number of buffers this pool has allocated */
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	/** Returns the number of times an idle buffer has been reused */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "KeyMaterialPool [direct=" + direct + ", maxIdle=" + maxIdle
+				+ ", allocated=" + getAllocatedCount() + ", reused="
+				+ getReusedCount() + "]";
+	}
+
+}
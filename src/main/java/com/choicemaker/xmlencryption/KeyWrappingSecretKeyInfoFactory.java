@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.choicemaker.utilcopy01.DOMUtils;
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.WSS4JConstants;
+
+/**
+ * A SecretKeyInfoFactory that creates a new random key for every document,
+ * and wraps it locally with AES key wrap (RFC 3394) under a key-encryption
+ * key (KEK). The KEK is a data key obtained from another factory, typically
+ * from KMS, and is replaced when it reaches a maximum age or has wrapped a
+ * maximum number of keys. KMS requests are therefore made once per KEK rather
+ * than once per document, while every document still has its own key.
+ * <p/>
+ * The EncryptedKey of a document records both keys: its cipher value is the
+ * wrapped document key, and its KeyInfo holds a nested EncryptedKey whose
+ * cipher value is the KMS-encrypted KEK and whose KeyInfo names the master
+ * key.
+ *
+ * <pre>
+ * &lt;xenc:EncryptedKey&gt;              &lt;!-- document key --&gt;
+ *   &lt;xenc:EncryptionMethod Algorithm="...#kw-aes128"/&gt;
+ *   &lt;ds:KeyInfo&gt;
+ *     &lt;xenc:EncryptedKey&gt;          &lt;!-- KEK --&gt;
+ *       ...
+ *       &lt;ds:KeyInfo&gt;
+ *         &lt;ds:KeyName&gt;master key&lt;/ds:KeyName&gt;
+ *       &lt;/ds:KeyInfo&gt;
+ *       &lt;xenc:CipherData&gt;...KMS ciphertext...&lt;/xenc:CipherData&gt;
+ *     &lt;/xenc:EncryptedKey&gt;
+ *   &lt;/ds:KeyInfo&gt;
+ *   &lt;xenc:CipherData&gt;...wrapped key...&lt;/xenc:CipherData&gt;
+ * &lt;/xenc:EncryptedKey&gt;
+ * </pre>
+ *
+ * {@link DocumentDecryptor} recognizes the nested EncryptedKey, decrypts the
+ * KEK with KMS (once per KEK, if the decryptor has a {@link DataKeyCache}),
+ * and unwraps the document key locally.
+ * <p/>
+ * Instances are thread-safe.
+ *
+ * @see AwsKmsKeyWrappingScheme
+ */
+public class KeyWrappingSecretKeyInfoFactory implements SecretKeyInfoFactory {
+
+	private static final Logger logger = Logger
+			.getLogger(KeyWrappingSecretKeyInfoFactory.class.getName());
+
+	/** JCE name of AES key wrap */
+	public static final String WRAP_ALGORITHM = "AESWrap";
+
+	/** Default maximum age of a KEK (milliseconds) */
+	public static final long DEFAULT_KEK_MAX_AGE = 60 * 60 * 1000L;
+
+	/** Default maximum number of document keys wrapped by one KEK */
+	public static final long DEFAULT_KEK_MAX_WRAPS = 1000 * 1000L;
+
+	/**
+	 * Wraps a key with AES key wrap.
+	 *
+	 * @param kek
+	 *            a 16, 24 or 32 byte AES key-encryption key
+	 * @param key
+	 *            the key to wrap, a multiple of 8 bytes long
+	 */
+	public static byte[] wrap(byte[] kek, byte[] key)
+			throws GeneralSecurityException {
+		Precondition.assertNonNullArgument("null KEK", kek);
+		Precondition.assertNonNullArgument("null key", key);
+		Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+		cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(kek, "AES"));
+		return cipher.wrap(new SecretKeySpec(key, "AES"));
+	}
+
+	/**
+	 * Unwraps a key wrapped by {@link #wrap(byte[], byte[])}.
+	 *
+	 * @throws GeneralSecurityException
+	 *             if the wrapped key was not wrapped with the KEK, or has been
+	 *             modified
+	 */
+	public static byte[] unwrap(byte[] kek, byte[] wrappedKey)
+			throws GeneralSecurityException {
+		Precondition.assertNonNullArgument("null KEK", kek);
+		Precondition.assertNonNullArgument("null wrapped key", wrappedKey);
+		Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+		cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(kek, "AES"));
+		return cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY)
+				.getEncoded();
+	}
+
+	private final SecretKeyInfoFactory kekFactory;
+	private final int keyLength;
+	private final SecureRandom random = new SecureRandom();
+	private final EncryptedKeyFactory ekFactory = new EncryptedKeyFactory();
+
+	// Guarded by this
+	private SecretKeyInfo currentKek;
+	private Element currentKeyInfo;
+
+	/**
+	 * Creates a factory that obtains KEKs from a delegate, replacing a KEK
+	 * when it reaches the age or usage limits read from the optional
+	 * properties {@link AwsKmsProperties#PN_KEK_MAX_AGE} and
+	 * {@link AwsKmsProperties#PN_KEK_MAX_WRAPS}.
+	 *
+	 * @param delegate
+	 *            creates a new KEK on every call; for example, an
+	 *            {@link AwsKmsSecretKeyInfoFactory}
+	 * @param keyLength
+	 *            the length in bytes of document keys: 16, 24 or 32
+	 */
+	public KeyWrappingSecretKeyInfoFactory(SecretKeyInfoFactory delegate,
+			int keyLength, Properties p) {
+		this(new CachingSecretKeyInfoFactory(delegate,
+				AwsKmsProperties.getLongProperty(p,
+						AwsKmsProperties.PN_KEK_MAX_WRAPS,
+						DEFAULT_KEK_MAX_WRAPS), Long.MAX_VALUE,
+				AwsKmsProperties.getLongProperty(p,
+						AwsKmsProperties.PN_KEK_MAX_AGE, DEFAULT_KEK_MAX_AGE)),
+				keyLength);
+	}
+
+	/**
+	 * @param kekFactory
+	 *            returns the current KEK; a factory that returns the same
+	 *            instance until the KEK should be replaced, such as a
+	 *            {@link CachingSecretKeyInfoFactory}
+	 * @param keyLength
+	 *            the length in bytes of document keys: 16, 24 or 32
+	 */
+	public KeyWrappingSecretKeyInfoFactory(SecretKeyInfoFactory kekFactory,
+			int keyLength) {
+		Precondition.assertNonNullArgument("null KEK factory", kekFactory);
+		Precondition.assertBoolean("invalid key length: " + keyLength,
+				keyLength == 16 || keyLength == 24 || keyLength == 32);
+		this.kekFactory = kekFactory;
+		this.keyLength = keyLength;
+	}
+
+	@Override
+	public SecretKeyInfo createSessionKey() {
+		return createSessionKey(KmsDeadline.NONE);
+	}
+
+	/**
+	 * Creates a document key. The deadline applies only if a new KEK must be
+	 * requested.
+	 */
+	@Override
+	public SecretKeyInfo createSessionKey(KmsDeadline deadline) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		final byte[] key = new byte[keyLength];
+		byte[] kekBytes = null;
+		try (SecretKeyInfo kek = kekFactory.createSessionKey(deadline)) {
+			final Element keyInfo = getKeyInfo(kek);
+			random.nextBytes(key);
+			kekBytes = kek.getKey();
+			final byte[] wrapped = wrap(kekBytes, key);
+			return new SecretKeyInfo(key, wrapped, keyInfo);
+		} catch (GeneralSecurityException e) {
+			String msg = "Failed to wrap document key: " + e.toString();
+			logger.severe(msg);
+			throw new IllegalStateException(msg, e);
+		} finally {
+			KeyMaterial.zeroize(key);
+			KeyMaterial.zeroize(kekBytes);
+		}
+	}
+
+	/**
+	 * Returns a KeyInfo element holding the EncryptedKey of a KEK, building
+	 * it only when the KEK changes.
+	 */
+	private synchronized Element getKeyInfo(SecretKeyInfo kek) {
+		if (kek != currentKek) {
+			if (currentKek != null) {
+				logger.fine("Replacing key-encryption key");
+			}
+			Document doc = DOMUtils.newDocument();
+			Element keyInfo =
+				doc.createElementNS(WSS4JConstants.SIG_NS,
+						WSS4JConstants.SIG_PREFIX + ":"
+								+ WSS4JConstants.KEYINFO_LN);
+			keyInfo.setAttributeNS(WSS4JConstants.XMLNS_NS, "xmlns:"
+					+ WSS4JConstants.SIG_PREFIX, WSS4JConstants.SIG_NS);
+			keyInfo.appendChild(ekFactory.createEncryptedKeyElement(doc,
+					DefaultAlgorithms.DECLARED_KEY_ENCRYPTION, kek));
+			doc.appendChild(keyInfo);
+			currentKek = kek;
+			currentKeyInfo = keyInfo;
+		}
+		return currentKeyInfo;
+	}
+
+	public SecretKeyInfoFactory getKekFactory() {
+		return kekFactory;
+	}
+
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	@Override
+	public String toString() {
+		return "KeyWrappingSecretKeyInfoFactory [keyLength=" + keyLength
+				+ ", kekFactory=" + kekFactory + "]";
+	}
+
+}
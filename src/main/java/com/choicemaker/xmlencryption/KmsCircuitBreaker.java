@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.logging.Logger;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A circuit breaker for the KMS requests made to one endpoint under one
+ * master key. The breaker is normally closed, and lets every request through.
+ * After a number of consecutive requests fail -- after retries, or because
+ * their deadline expired -- the breaker opens, and requests fail immediately
+ * with a {@link KmsCircuitOpenException} instead of waiting on an endpoint
+ * that is not answering. After a period the breaker becomes half-open and
+ * lets a single trial request through; the breaker closes if the trial
+ * succeeds and opens again if it fails.
+ * <p/>
+ * Failures that say nothing about the health of the endpoint, such as an
+ * invalid ciphertext, are not counted.
+ * <p/>
+ * Instances are thread-safe.
+ *
+ * @see AwsKmsRetryHandler#getCircuitBreaker(String, String)
+ */
+public class KmsCircuitBreaker {
+
+	private static final Logger logger = Logger
+			.getLogger(KmsCircuitBreaker.class.getName());
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String endpoint;
+	private final String masterKeyId;
+	private final int failureThreshold;
+	private final long openDuration;
+
+	// Guarded by this
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInFlight;
+	private long openCount;
+	private long rejectedCount;
+
+	/**
+	 * @param endpoint
+	 *            the KMS endpoint, or null for the default endpoint
+	 * @param masterKeyId
+	 *            the master key, or null if requests do not name one
+	 * @param failureThreshold
+	 *            a positive number of consecutive failures that opens the
+	 *            breaker
+	 * @param openDuration
+	 *            a non-negative time, in milliseconds, for which the breaker
+	 *            stays open before it admits a trial request
+	 */
+	public KmsCircuitBreaker(String endpoint, String masterKeyId,
+			int failureThreshold, long openDuration) {
+		Precondition.assertBoolean("non-positive failure threshold",
+				failureThreshold > 0);
+		Precondition.assertBoolean("negative open duration",
+				openDuration >= 0);
+		this.endpoint = endpoint;
+		this.masterKeyId = masterKeyId;
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * Checks whether a request may be sent. Every request that is allowed
+	 * must be followed by exactly one call to {@link #onSuccess()},
+	 * {@link #onFailure()} or {@link #onIgnored()}.
+	 *
+	 * @return false if the request should fail immediately
+	 */
+	public synchronized boolean tryAcquire() {
+		boolean retVal = true;
+		if (state == State.OPEN
+				&& System.currentTimeMillis() - openedAt >= openDuration) {
+			state = State.HALF_OPEN;
+		}
+		if (state == State.OPEN
+				|| (state == State.HALF_OPEN && trialInFlight)) {
+			++rejectedCount;
+			retVal = false;
+		} else if (state == State.HALF_OPEN) {
+			trialInFlight = true;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Records a request that succeeded, or that failed for a reason unrelated
+	 * to the health of the endpoint
+	 */
+	public synchronized void onSuccess() {
+		if (state != State.CLOSED) {
+			logger.info("Closing circuit breaker for " + describe());
+		}
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	/** Records a request that failed, or whose deadline expired */
+	public synchronized void onFailure() {
+		++consecutiveFailures;
+		if (state == State.HALF_OPEN
+				|| (state == State.CLOSED
+						&& consecutiveFailures >= failureThreshold)) {
+			logger.warning("Opening circuit breaker for " + describe()
+					+ " after " + consecutiveFailures + " failures");
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			++openCount;
+		}
+		trialInFlight = false;
+	}
+
+	/**
+	 * Records a request whose outcome is unknown; for example, because the
+	 * calling thread was interrupted. The state of the breaker is unchanged,
+	 * except that a trial request may be made again.
+	 */
+	public synchronized void onIgnored() {
+		trialInFlight = false;
+	}
+
+	/**
+	 * Checks whether the breaker is closed, with no recent failures and no
+	 * trial request, in which case it behaves exactly like a new breaker
+	 */
+	public synchronized boolean isIdle() {
+		return state == State.CLOSED && consecutiveFailures == 0
+				&& !trialInFlight;
+	}
+
+	private String describe() {
+		return "endpoint " + endpoint + ", master key " + masterKeyId;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public String getMasterKeyId() {
+		return masterKeyId;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public long getOpenDuration() {
+		return openDuration;
+	}
+
+	/**
+	 * Returns the current state. An open breaker whose open duration has
+	 * elapsed is reported as open until the next request makes it half-open.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/** Number of times the breaker has opened */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/** Number of requests failed immediately because the breaker was open */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "KmsCircuitBreaker [endpoint=" + endpoint + ", masterKeyId="
+				+ masterKeyId + ", state=" + state + ", consecutiveFailures="
+				+ consecutiveFailures + ", opened=" + openCount
+				+ ", rejected=" + rejectedCount + "]";
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Thrown without sending a request when the {@link KmsCircuitBreaker circuit
+ * breaker} for a KMS endpoint and master key is open. This exception is not
+ * retryable, but a request that is routed across several endpoints fails over
+ * to the next endpoint.
+ */
+public class KmsCircuitOpenException extends AmazonClientException {
+
+	private static final long serialVersionUID = 1L;
+
+	public KmsCircuitOpenException(String message) {
+		super(message);
+	}
+
+	@Override
+	public boolean isRetryable() {
+		return false;
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.concurrent.TimeUnit;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * An immutable point in time by which the KMS requests made for one
+ * encryption or decryption must complete. A deadline is passed from the
+ * entry points of {@link DocumentEncryptor} and {@link DocumentDecryptor}
+ * down to {@link AwsKmsRetryHandler}, which stops retrying once the deadline
+ * has passed, and which limits each attempt to the time that remains by
+ * setting the client execution timeout of the KMS request.
+ */
+public final class KmsDeadline {
+
+	/** A deadline that never expires */
+	public static final KmsDeadline NONE = new KmsDeadline(0, false);
+
+	/**
+	 * Returns a deadline that expires after the specified time from now.
+	 *
+	 * @param timeout
+	 *            a non-negative amount of time
+	 */
+	public static KmsDeadline after(long timeout, TimeUnit unit) {
+		Precondition.assertBoolean("negative timeout", timeout >= 0);
+		Precondition.assertNonNullArgument("null unit", unit);
+		return new KmsDeadline(System.nanoTime() + unit.toNanos(timeout),
+				true);
+	}
+
+	/**
+	 * Returns a deadline that expires after the specified number of
+	 * milliseconds, or {@link #NONE} if the number is not positive. This is
+	 * how the {@link AwsKmsProperties#PN_KMS_TIMEOUT default timeout} is
+	 * interpreted.
+	 */
+	public static KmsDeadline afterMillis(long timeout) {
+		return timeout > 0 ? after(timeout, TimeUnit.MILLISECONDS) : NONE;
+	}
+
+	private final long expiry;
+	private final boolean bounded;
+
+	private KmsDeadline(long expiry, boolean bounded) {
+		this.expiry = expiry;
+		this.bounded = bounded;
+	}
+
+	/** Returns false for {@link #NONE} */
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	public boolean isExpired() {
+		return bounded && expiry - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Returns the time remaining before this deadline expires, which is zero
+	 * if it has expired, or Long.MAX_VALUE if it is not bounded.
+	 */
+	public long remaining(TimeUnit unit) {
+		Precondition.assertNonNullArgument("null unit", unit);
+		long retVal = Long.MAX_VALUE;
+		if (bounded) {
+			retVal = unit.convert(Math.max(0, expiry - System.nanoTime()),
+					TimeUnit.NANOSECONDS);
+		}
+		return retVal;
+	}
+
+	@Override
+	public String toString() {
+		return bounded ? "KmsDeadline [remaining="
+				+ remaining(TimeUnit.MILLISECONDS) + " msec]"
+				: "KmsDeadline [none]";
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Thrown when a KMS request does not complete before its
+ * {@link KmsDeadline deadline}. The cause, if any, is the failure of the last
+ * attempt. This exception is not retryable.
+ */
+public class KmsDeadlineExceededException extends AmazonClientException {
+
+	private static final long serialVersionUID = 1L;
+
+	public KmsDeadlineExceededException(String message) {
+		super(message);
+	}
+
+	public KmsDeadlineExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	@Override
+	public boolean isRetryable() {
+		return false;
+	}
+
+}
@@ -0,0 +1,632 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Routes KMS requests across several equivalent endpoints, such as the
+ * regional endpoints of a multi-region key, or local stand-ins. A router is
+ * selected by an {@link AwsKmsProperties#PN_ENDPOINT endpoint} value that
+ * lists several endpoints separated by commas.
+ * <p/>
+ * The router tracks the latency of every request to each endpoint, and
+ * prefers the healthy endpoint with the lowest recent latency. A small
+ * fraction of requests is sent to another healthy endpoint, so that the
+ * latency of every endpoint stays current. An endpoint that fails several
+ * requests in a row is considered unhealthy for a cooldown period, and is
+ * used only if no healthy endpoint remains. A request that fails with a
+ * retryable error, or that is rejected by an open circuit breaker, fails over
+ * to the next endpoint. Other failures -- a bad request, or an expired
+ * deadline -- say nothing about the endpoint, and are thrown at once.
+ * <p/>
+ * Decrypt requests may optionally be hedged: if the preferred endpoint has not
+ * answered after a delay equal to a percentile of its recent latencies, the
+ * same request is sent to the next endpoint, and whichever answers first is
+ * used. Hedging is disabled by default. It is enabled for every request
+ * through a router by {@link #setHedgePercentile(double)}, or for the
+ * requests of one decryptor by the optional property
+ * {@link AwsKmsProperties#PN_HEDGE_PERCENTILE}, which sets the
+ * {@link KmsRetryPolicy#getHedgePercentile() hedge percentile} of the
+ * decryptor's retry policy.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public class KmsEndpointRouter {
+
+	private static final Logger logger = Logger
+			.getLogger(KmsEndpointRouter.class.getName());
+
+	/** Separates the endpoints of an endpoint list */
+	public static final String ENDPOINT_SEPARATOR = ",";
+
+	/** Consecutive failures after which an endpoint is unhealthy */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	/** Default time for which an unhealthy endpoint is avoided (msec) */
+	public static final long DEFAULT_COOLDOWN = 10 * 1000L;
+
+	/** Default fraction of requests used to probe other endpoints */
+	public static final double DEFAULT_PROBE_FRACTION = 0.05;
+
+	/** Hedge delay used until an endpoint has enough samples (msec) */
+	public static final long DEFAULT_HEDGE_DELAY = 200L;
+
+	/** Minimum number of samples from which a percentile is computed */
+	public static final int MIN_SAMPLES = 10;
+
+	/** Number of recent latencies kept for each endpoint */
+	public static final int WINDOW_SIZE = 128;
+
+	/** Weight of the latest sample in the smoothed latency */
+	private static final double EWMA_ALPHA = 0.2;
+
+	private static final ConcurrentMap<String, KmsEndpointRouter> ROUTERS =
+		new ConcurrentHashMap<>();
+
+	/** Checks whether an endpoint value lists several endpoints */
+	public static boolean isEndpointList(String endpoint) {
+		return endpoint != null && endpoint.contains(ENDPOINT_SEPARATOR);
+	}
+
+	/**
+	 * Returns the shared router for an endpoint list, creating it if
+	 * necessary.
+	 */
+	public static KmsEndpointRouter getRouter(String endpointList) {
+		Precondition.assertBoolean("not an endpoint list: " + endpointList,
+				isEndpointList(endpointList));
+		return ROUTERS.computeIfAbsent(endpointList,
+				k -> new KmsEndpointRouter(parseEndpoints(k)));
+	}
+
+	/** Removes every shared router, and with them all latency statistics */
+	public static void resetRouters() {
+		ROUTERS.clear();
+	}
+
+	static List<String> parseEndpoints(String endpointList) {
+		List<String> retVal = new ArrayList<>();
+		for (String s : endpointList.split(ENDPOINT_SEPARATOR)) {
+			if (!s.trim().isEmpty()) {
+				retVal.add(s.trim());
+			}
+		}
+		Precondition.assertBoolean("no endpoints in '" + endpointList + "'",
+				!retVal.isEmpty());
+		return retVal;
+	}
+
+	private final List<EndpointStats> endpoints;
+
+	private volatile double hedgePercentile;
+	private volatile long defaultHedgeDelay = DEFAULT_HEDGE_DELAY;
+	private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private volatile long cooldown = DEFAULT_COOLDOWN;
+	private volatile double probeFraction = DEFAULT_PROBE_FRACTION;
+
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong failoverCount = new AtomicLong();
+
+	public KmsEndpointRouter(List<String> endpoints) {
+		Precondition.assertNonNullArgument("null endpoints", endpoints);
+		Precondition.assertBoolean("no endpoints", !endpoints.isEmpty());
+		List<EndpointStats> list = new ArrayList<>();
+		for (String ep : endpoints) {
+			Precondition.assertNonEmptyString("null or blank endpoint", ep);
+			list.add(new EndpointStats(ep));
+		}
+		this.endpoints = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Returns the endpoints in order of preference: healthy endpoints by
+	 * increasing smoothed latency (endpoints without samples first), then
+	 * unhealthy endpoints. Occasionally a random healthy endpoint is moved to
+	 * the front, to refresh its latency.
+	 */
+	public List<String> getPreferredEndpoints() {
+		final long now = System.currentTimeMillis();
+		List<EndpointStats> healthy = new ArrayList<>();
+		List<EndpointStats> unhealthy = new ArrayList<>();
+		for (EndpointStats es : endpoints) {
+			if (es.isHealthy(now)) {
+				healthy.add(es);
+			} else {
+				unhealthy.add(es);
+			}
+		}
+		Comparator<EndpointStats> byLatency =
+			Comparator.comparingDouble(EndpointStats::getSmoothedLatency);
+		Collections.sort(healthy, byLatency);
+		Collections.sort(unhealthy, byLatency);
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (healthy.size() > 1 && random.nextDouble() < probeFraction) {
+			EndpointStats probe =
+				healthy.remove(1 + random.nextInt(healthy.size() - 1));
+			healthy.add(0, probe);
+		}
+		List<String> retVal = new ArrayList<>(endpoints.size());
+		for (EndpointStats es : healthy) {
+			retVal.add(es.endpoint);
+		}
+		for (EndpointStats es : unhealthy) {
+			retVal.add(es.endpoint);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Sends a request to the preferred endpoint, failing over to the other
+	 * endpoints in order of preference.
+	 *
+	 * @param request
+	 *            sends the request to the endpoint passed as its argument
+	 * @throws AmazonClientException
+	 *             the failure from the last endpoint, if every endpoint fails,
+	 *             or the first failure that does not fail over
+	 */
+	public <T> T execute(Function<String, T> request) {
+		Precondition.assertNonNullArgument("null request", request);
+		AmazonClientException failure = null;
+		for (String ep : getPreferredEndpoints()) {
+			if (failure != null) {
+				failoverCount.incrementAndGet();
+				logger.fine("Failing over to " + ep + " after " + failure);
+			}
+			try {
+				return timed(ep, request);
+			} catch (AmazonClientException x) {
+				if (!isFailover(x)) {
+					throw x;
+				}
+				failure = x;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Checks whether a failure indicates that an endpoint is not answering:
+	 * a retryable error that persisted through the retries of the request.
+	 * A non-retryable error, an expired deadline or an open circuit breaker
+	 * does not.
+	 */
+	private static boolean isEndpointFailure(AmazonClientException x) {
+		return !(x instanceof KmsDeadlineExceededException)
+				&& !(x instanceof KmsCircuitOpenException)
+				&& AwsKmsRetryHandler.getRetryPolicy().isRetryable(x);
+	}
+
+	/**
+	 * Checks whether a request that failed should be sent to the next
+	 * endpoint: after an endpoint failure, or when the circuit breaker of
+	 * the endpoint is open
+	 */
+	private static boolean isFailover(Throwable t) {
+		return t instanceof KmsCircuitOpenException
+				|| (t instanceof AmazonClientException
+						&& isEndpointFailure((AmazonClientException) t));
+	}
+
+	/**
+	 * Sends a request like {@link #execute(Function)}, except that if
+	 * hedging is enabled and the preferred endpoint has not answered within
+	 * the {@link #getHedgeDelay(String) hedge delay}, the request is also sent
+	 * to the next endpoint. The first successful answer is returned. Hedged
+	 * requests run on the {@link AwsKmsExecutor KMS executor}, while the
+	 * calling thread waits; it therefore must not be a thread of that
+	 * executor. Asynchronous callers should use
+	 * {@link #executeHedgedAsync(Function, KmsDeadline)}.
+	 */
+	public <T> T executeHedged(Function<String, T> request) {
+		return executeHedged(request, KmsDeadline.NONE);
+	}
+
+	/**
+	 * Sends a hedged request like {@link #executeHedged(Function)}, waiting
+	 * no longer than a deadline.
+	 *
+	 * @param deadline
+	 *            the deadline of the request, or {@link KmsDeadline#NONE}
+	 * @throws KmsDeadlineExceededException
+	 *             if no endpoint answers before the deadline
+	 */
+	public <T> T executeHedged(Function<String, T> request,
+			KmsDeadline deadline) {
+		return executeHedged(request, deadline, 0);
+	}
+
+	/**
+	 * Sends a hedged request like
+	 * {@link #executeHedged(Function, KmsDeadline)}, at a specified hedge
+	 * percentile.
+	 *
+	 * @param percentile
+	 *            a percentile greater than 0 and at most 100, or 0 to use the
+	 *            {@link #getHedgePercentile() hedge percentile} of this router
+	 */
+	public <T> T executeHedged(Function<String, T> request,
+			KmsDeadline deadline, double percentile) {
+		Precondition.assertNonNullArgument("null request", request);
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		if (effectivePercentile(percentile) <= 0 || endpoints.size() < 2) {
+			return execute(request);
+		}
+		try {
+			return executeHedgedAsync(request, deadline, percentile).get();
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted", x);
+		} catch (ExecutionException x) {
+			throw unwrap(x.getCause());
+		}
+	}
+
+	/**
+	 * Sends a hedged request without blocking the calling thread. Each
+	 * request runs on the {@link AwsKmsExecutor KMS executor}, and the hedge
+	 * delay and deadline are timed by a separate timer thread, so no thread
+	 * of the KMS executor waits for another.
+	 *
+	 * @param deadline
+	 *            the deadline of the request, or {@link KmsDeadline#NONE}
+	 * @return a future that completes with the first successful answer, or
+	 *         completes exceptionally with the failure of the request, or
+	 *         with a {@link KmsDeadlineExceededException} if no endpoint
+	 *         answers before the deadline
+	 */
+	public <T> CompletableFuture<T> executeHedgedAsync(
+			Function<String, T> request, KmsDeadline deadline) {
+		return executeHedgedAsync(request, deadline, 0);
+	}
+
+	/**
+	 * Sends a hedged request like
+	 * {@link #executeHedgedAsync(Function, KmsDeadline)}, at a specified
+	 * hedge percentile.
+	 *
+	 * @param percentile
+	 *            a percentile greater than 0 and at most 100, or 0 to use the
+	 *            {@link #getHedgePercentile() hedge percentile} of this router
+	 */
+	public <T> CompletableFuture<T> executeHedgedAsync(
+			final Function<String, T> request, KmsDeadline deadline,
+			double percentile) {
+		Precondition.assertNonNullArgument("null request", request);
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		final double effective = effectivePercentile(percentile);
+		final List<String> candidates = getPreferredEndpoints();
+		if (effective <= 0 || candidates.size() < 2) {
+			return AwsKmsExecutor.supplyAsync(() -> execute(request));
+		}
+
+		final Race<T> race = new Race<>(candidates, request);
+		race.launchNext();
+		final long delay = getHedgeDelay(candidates.get(0), effective);
+		final ScheduledExecutorService timer = HedgeTimer.INSTANCE;
+		final ScheduledFuture<?> hedge = timer.schedule(() -> {
+			if (race.launchNext()) {
+				hedgeCount.incrementAndGet();
+				logger.fine("Hedging request to " + candidates.get(0)
+						+ " after " + delay + " msec");
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		race.result.whenComplete((v, x) -> hedge.cancel(false));
+		if (deadline.isBounded()) {
+			final Runnable expire =
+				() -> race.result.completeExceptionally(
+						new KmsDeadlineExceededException("Hedged request did "
+								+ "not complete before its deadline"));
+			final ScheduledFuture<?> expiry =
+				timer.schedule(expire,
+						deadline.remaining(TimeUnit.MILLISECONDS),
+						TimeUnit.MILLISECONDS);
+			race.result.whenComplete((v, x) -> expiry.cancel(false));
+		}
+		return race.result;
+	}
+
+	private static RuntimeException unwrap(Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		return new AmazonClientException(String.valueOf(t), t);
+	}
+
+	private <T> T timed(String endpoint, Function<String, T> request) {
+		final EndpointStats es = getStats(endpoint);
+		final long start = System.nanoTime();
+		try {
+			T retVal = request.apply(endpoint);
+			es.recordSuccess(System.nanoTime() - start);
+			return retVal;
+		} catch (AmazonClientException x) {
+			if (isEndpointFailure(x)) {
+				es.recordFailure(System.currentTimeMillis(), failureThreshold,
+						cooldown);
+			}
+			throw x;
+		}
+	}
+
+	/**
+	 * Returns the delay after which a request to an endpoint is hedged: the
+	 * {@link #getHedgePercentile() hedge percentile} of the endpoint's recent
+	 * latencies, or the default hedge delay if there are too few samples.
+	 */
+	public long getHedgeDelay(String endpoint) {
+		return getHedgeDelay(endpoint, hedgePercentile);
+	}
+
+	private long getHedgeDelay(String endpoint, double percentile) {
+		long retVal = defaultHedgeDelay;
+		long[] samples = getStats(endpoint).getSamples();
+		if (samples.length >= MIN_SAMPLES && percentile > 0) {
+			Arrays.sort(samples);
+			int index =
+				(int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+			index = Math.max(0, Math.min(samples.length - 1, index));
+			retVal = TimeUnit.NANOSECONDS.toMillis(samples[index]);
+		}
+		return retVal;
+	}
+
+	private EndpointStats getStats(String endpoint) {
+		for (EndpointStats es : endpoints) {
+			if (es.endpoint.equals(endpoint)) {
+				return es;
+			}
+		}
+		throw new IllegalArgumentException("Unknown endpoint: " + endpoint);
+	}
+
+	public List<String> getEndpoints() {
+		List<String> retVal = new ArrayList<>(endpoints.size());
+		for (EndpointStats es : endpoints) {
+			retVal.add(es.endpoint);
+		}
+		return retVal;
+	}
+
+	/** Returns the smoothed latency of an endpoint, in milliseconds */
+	public double getSmoothedLatency(String endpoint) {
+		return getStats(endpoint).getSmoothedLatency() / 1e6;
+	}
+
+	public boolean isHealthy(String endpoint) {
+		return getStats(endpoint).isHealthy(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the latency percentile, between 0 and 100, after which Decrypt
+	 * requests are hedged; zero if hedging is disabled.
+	 */
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	private double effectivePercentile(double percentile) {
+		Precondition.assertBoolean("invalid hedge percentile: " + percentile,
+				percentile >= 0 && percentile <= 100);
+		return percentile > 0 ? percentile : hedgePercentile;
+	}
+
+	/**
+	 * @param percentile
+	 *            a percentile greater than 0 and at most 100, or 0 to disable
+	 *            hedging
+	 */
+	public void setHedgePercentile(double percentile) {
+		Precondition.assertBoolean("invalid hedge percentile: " + percentile,
+				percentile >= 0 && percentile <= 100);
+		this.hedgePercentile = percentile;
+	}
+
+	public long getDefaultHedgeDelay() {
+		return defaultHedgeDelay;
+	}
+
+	public void setDefaultHedgeDelay(long millis) {
+		Precondition.assertBoolean("negative hedge delay", millis >= 0);
+		this.defaultHedgeDelay = millis;
+	}
+
+	public void setFailureThreshold(int failures) {
+		Precondition.assertBoolean("non-positive failure threshold",
+				failures > 0);
+		this.failureThreshold = failures;
+	}
+
+	public void setCooldown(long millis) {
+		Precondition.assertBoolean("negative cooldown", millis >= 0);
+		this.cooldown = millis;
+	}
+
+	public void setProbeFraction(double fraction) {
+		Precondition.assertBoolean("invalid probe fraction", fraction >= 0
+				&& fraction <= 1);
+		this.probeFraction = fraction;
+	}
+
+	/** Number of requests that were hedged to a second endpoint */
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	/** Number of times a failed request was sent to another endpoint */
+	public long getFailoverCount() {
+		return failoverCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "KmsEndpointRouter [endpoints=" + endpoints + ", hedges="
+				+ getHedgeCount() + ", failovers=" + getFailoverCount() + "]";
+	}
+
+	/**
+	 * Runs a request against candidate endpoints, one launch at a time, and
+	 * completes with the first success, or with the last failure once every
+	 * launched request has failed and no candidates remain. A failure that
+	 * {@link #isFailover(Throwable) fails over} launches the next candidate
+	 * immediately; any other failure ends the race.
+	 */
+	private final class Race<T> {
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final List<String> candidates;
+		final Function<String, T> request;
+
+		// Guarded by this
+		int next;
+		int running;
+
+		Race(List<String> candidates, Function<String, T> request) {
+			this.candidates = candidates;
+			this.request = request;
+		}
+
+		/** Returns false if there is no candidate left to launch */
+		synchronized boolean launchNext() {
+			if (result.isDone() || next >= candidates.size()) {
+				return false;
+			}
+			final String ep = candidates.get(next++);
+			++running;
+			AwsKmsExecutor.supplyAsync(() -> timed(ep, request))
+					.whenComplete((v, x) -> {
+						if (x == null) {
+							result.complete(v);
+						} else {
+							onFailure(x);
+						}
+					});
+			return true;
+		}
+
+		private void onFailure(Throwable x) {
+			if (x instanceof CompletionException && x.getCause() != null) {
+				x = x.getCause();
+			}
+			if (!isFailover(x)) {
+				result.completeExceptionally(x);
+				return;
+			}
+			boolean launched;
+			synchronized (this) {
+				--running;
+				if (running > 0) {
+					return;
+				}
+				launched = launchNext();
+			}
+			if (launched) {
+				failoverCount.incrementAndGet();
+			} else {
+				result.completeExceptionally(x);
+			}
+		}
+	}
+
+	/** Times hedge delays and deadlines, so no request thread waits */
+	private static final class HedgeTimer {
+		static final ScheduledExecutorService INSTANCE = createTimer();
+
+		private static ScheduledExecutorService createTimer() {
+			ScheduledThreadPoolExecutor retVal =
+				new ScheduledThreadPoolExecutor(1, r -> {
+					Thread t = new Thread(r, "kms-hedge-timer");
+					t.setDaemon(true);
+					return t;
+				});
+			retVal.setRemoveOnCancelPolicy(true);
+			return retVal;
+		}
+	}
+
+	/** Latency and health of one endpoint */
+	private static final class EndpointStats {
+		final String endpoint;
+
+		// Guarded by this
+		final long[] window = new long[WINDOW_SIZE];
+		int count;
+		int position;
+		double smoothed;
+		int consecutiveFailures;
+		long unhealthyUntil;
+
+		EndpointStats(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		synchronized void recordSuccess(long nanos) {
+			window[position] = nanos;
+			position = (position + 1) % window.length;
+			count = Math.min(count + 1, window.length);
+			smoothed =
+				smoothed == 0 ? nanos : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA)
+						* smoothed;
+			consecutiveFailures = 0;
+			unhealthyUntil = 0;
+		}
+
+		synchronized void recordFailure(long now, int threshold,
+				long cooldown) {
+			if (++consecutiveFailures >= threshold) {
+				unhealthyUntil = now + cooldown;
+				logger.fine("Endpoint " + endpoint + " unhealthy for "
+						+ cooldown + " msec");
+			}
+		}
+
+		synchronized boolean isHealthy(long now) {
+			return now >= unhealthyUntil;
+		}
+
+		synchronized double getSmoothedLatency() {
+			return smoothed;
+		}
+
+		synchronized long[] getSamples() {
+			return Arrays.copyOf(window, count);
+		}
+
+		@Override
+		public String toString() {
+			return endpoint;
+		}
+	}
+
+}
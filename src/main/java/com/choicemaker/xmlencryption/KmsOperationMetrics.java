@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one kind of KMS operation, such as Decrypt or GenerateDataKey.
+ * Instances are thread-safe.
+ *
+ * @see AwsKmsRetryHandler#getMetrics(String)
+ */
+public class KmsOperationMetrics {
+
+	private final String operation;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong throttles = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong backoffMillis = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private final AtomicLong deadlinesExceeded = new AtomicLong();
+
+	public KmsOperationMetrics(String operation) {
+		this.operation = operation;
+	}
+
+	void recordRequest() {
+		requests.incrementAndGet();
+	}
+
+	void recordAttempt() {
+		attempts.incrementAndGet();
+	}
+
+	void recordRetry(long delay) {
+		retries.incrementAndGet();
+		backoffMillis.addAndGet(delay);
+	}
+
+	void recordThrottle() {
+		throttles.incrementAndGet();
+	}
+
+	void recordFailure() {
+		failures.incrementAndGet();
+	}
+
+	void recordRejection() {
+		rejections.incrementAndGet();
+	}
+
+	void recordDeadlineExceeded() {
+		deadlinesExceeded.incrementAndGet();
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	/** Number of requests made by callers */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** Number of requests sent to KMS, including retries */
+	public long getAttemptCount() {
+		return attempts.get();
+	}
+
+	/** Number of retries */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/** Number of attempts that KMS throttled */
+	public long getThrottleCount() {
+		return throttles.get();
+	}
+
+	/** Number of requests that failed after all allowed attempts */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/** Number of requests failed immediately by an open circuit breaker */
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	/** Number of requests that failed because their deadline expired */
+	public long getDeadlineExceededCount() {
+		return deadlinesExceeded.get();
+	}
+
+	/** Total time spent in backoff before retries (milliseconds) */
+	public long getBackoffMillis() {
+		return backoffMillis.get();
+	}
+
+	@Override
+	public String toString() {
+		return "KmsOperationMetrics [operation=" + operation + ", requests="
+				+ getRequestCount() + ", attempts=" + getAttemptCount()
+				+ ", retries=" + getRetryCount() + ", throttles="
+				+ getThrottleCount() + ", failures=" + getFailureCount()
+				+ ", rejections=" + getRejectionCount() + ", deadlinesExceeded="
+				+ getDeadlineExceededCount() + ", backoffMillis="
+				+ getBackoffMillis() + "]";
+	}
+
+}
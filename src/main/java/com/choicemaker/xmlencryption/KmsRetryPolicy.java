@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.kms.model.LimitExceededException;
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.StringUtils;
+
+/**
+ * An immutable description of how failed KMS requests are retried, and of the
+ * bounds of the adaptive rate limit applied to each KMS endpoint.
+ * <p/>
+ * A request that fails with a throttling error, a server error or a retryable
+ * client error (for example, a connection reset) is retried up to a maximum
+ * number of attempts. The delay before a retry is chosen uniformly at random
+ * between zero and an exponentially increasing ceiling ("full jitter"), so
+ * that clients throttled at the same moment do not retry in lockstep.
+ * <p/>
+ * A policy may also set the latency percentile after which a Decrypt request
+ * routed across several endpoints is hedged to the next endpoint.
+ *
+ * @see AwsKmsRetryHandler
+ * @see AdaptiveRateLimiter
+ * @see KmsEndpointRouter
+ */
+public class KmsRetryPolicy {
+
+	/** Default maximum number of attempts, including the first attempt */
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	/** Default base delay of exponential backoff (milliseconds) */
+	public static final long DEFAULT_BASE_DELAY = 50L;
+
+	/** Default maximum delay between attempts (milliseconds) */
+	public static final long DEFAULT_MAX_DELAY = 5 * 1000L;
+
+	/** Default maximum (and initial) requests per second to one endpoint */
+	public static final double DEFAULT_MAX_RATE = 1000.0;
+
+	/** Default minimum requests per second to one endpoint */
+	public static final double DEFAULT_MIN_RATE = 1.0;
+
+	/** Default number of consecutive failures that opens a circuit breaker */
+	public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+
+	/** Default time for which a circuit breaker stays open (milliseconds) */
+	public static final long DEFAULT_BREAKER_OPEN_DURATION = 30 * 1000L;
+
+	/** The properties read by {@link #createRetryPolicy(Properties)} */
+	private static final String[] PROPERTY_NAMES = {
+			AwsKmsProperties.PN_RETRY_MAX_ATTEMPTS,
+			AwsKmsProperties.PN_RETRY_BASE_DELAY,
+			AwsKmsProperties.PN_RETRY_MAX_DELAY,
+			AwsKmsProperties.PN_RATE_LIMIT_MAX,
+			AwsKmsProperties.PN_RATE_LIMIT_MIN,
+			AwsKmsProperties.PN_BREAKER_FAILURE_THRESHOLD,
+			AwsKmsProperties.PN_BREAKER_OPEN_DURATION,
+			AwsKmsProperties.PN_HEDGE_PERCENTILE };
+
+	/**
+	 * Default hedge percentile: zero, so that the hedge percentile of the
+	 * endpoint router applies
+	 */
+	public static final double DEFAULT_HEDGE_PERCENTILE = 0;
+
+	/** A policy with the default values declared by this class */
+	public static final KmsRetryPolicy DEFAULT = new KmsRetryPolicy(
+			DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY,
+			DEFAULT_MAX_RATE, DEFAULT_MIN_RATE, DEFAULT_BREAKER_THRESHOLD,
+			DEFAULT_BREAKER_OPEN_DURATION, DEFAULT_HEDGE_PERCENTILE);
+
+	/**
+	 * Creates a policy from the optional
+	 * {@link AwsKmsProperties#PN_RETRY_MAX_ATTEMPTS retry},
+	 * {@link AwsKmsProperties#PN_RATE_LIMIT_MAX rate-limit},
+	 * {@link AwsKmsProperties#PN_BREAKER_FAILURE_THRESHOLD circuit-breaker}
+	 * and {@link AwsKmsProperties#PN_HEDGE_PERCENTILE hedging} properties.
+	 * Properties that are not defined take the defaults declared by this
+	 * class.
+	 *
+	 * @param p
+	 *            a set of properties, possibly null
+	 */
+	public static KmsRetryPolicy createRetryPolicy(Properties p) {
+		final int maxAttempts =
+			(int) AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_RETRY_MAX_ATTEMPTS,
+					DEFAULT_MAX_ATTEMPTS);
+		final long baseDelay =
+			AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_RETRY_BASE_DELAY, DEFAULT_BASE_DELAY);
+		final long maxDelay =
+			AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_RETRY_MAX_DELAY, DEFAULT_MAX_DELAY);
+		final double maxRate =
+			AwsKmsProperties.getDoubleProperty(p,
+					AwsKmsProperties.PN_RATE_LIMIT_MAX, DEFAULT_MAX_RATE);
+		final double minRate =
+			AwsKmsProperties.getDoubleProperty(p,
+					AwsKmsProperties.PN_RATE_LIMIT_MIN, DEFAULT_MIN_RATE);
+		final int breakerThreshold =
+			(int) AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_BREAKER_FAILURE_THRESHOLD,
+					DEFAULT_BREAKER_THRESHOLD);
+		final long breakerOpenDuration =
+			AwsKmsProperties.getLongProperty(p,
+					AwsKmsProperties.PN_BREAKER_OPEN_DURATION,
+					DEFAULT_BREAKER_OPEN_DURATION);
+		final double hedgePercentile =
+			AwsKmsProperties.getDoubleProperty(p,
+					AwsKmsProperties.PN_HEDGE_PERCENTILE,
+					DEFAULT_HEDGE_PERCENTILE);
+		return new KmsRetryPolicy(maxAttempts, baseDelay, maxDelay, maxRate,
+				minRate, breakerThreshold, breakerOpenDuration,
+				hedgePercentile);
+	}
+
+	/**
+	 * Checks whether a set of properties defines any of the properties read by
+	 * {@link #createRetryPolicy(Properties)}. Encryptors and decryptors built
+	 * from properties that define none of them use the
+	 * {@link AwsKmsRetryHandler#getRetryPolicy() process-wide policy}.
+	 *
+	 * @param p
+	 *            a set of properties, possibly null
+	 */
+	public static boolean hasRetryProperties(Properties p) {
+		boolean retVal = false;
+		if (p != null) {
+			for (String pn : PROPERTY_NAMES) {
+				if (StringUtils.nonEmptyString(p.getProperty(pn))) {
+					retVal = true;
+					break;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Checks whether an exception indicates that KMS throttled a request.
+	 * Besides the generic throttling error codes recognized by the AWS SDK,
+	 * this includes the KMS-specific {@link LimitExceededException}.
+	 */
+	public static boolean isThrottle(AmazonClientException x) {
+		boolean retVal = false;
+		if (x instanceof LimitExceededException) {
+			retVal = true;
+		} else if (x instanceof AmazonServiceException) {
+			retVal =
+				RetryUtils.isThrottlingException((AmazonServiceException) x);
+		}
+		return retVal;
+	}
+
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final double maxRate;
+	private final double minRate;
+	private final int breakerThreshold;
+	private final long breakerOpenDuration;
+	private final double hedgePercentile;
+
+	/**
+	 * Creates a policy with the default circuit-breaker parameters.
+	 */
+	public KmsRetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+			double maxRate, double minRate) {
+		this(maxAttempts, baseDelay, maxDelay, maxRate, minRate,
+				DEFAULT_BREAKER_THRESHOLD, DEFAULT_BREAKER_OPEN_DURATION);
+	}
+
+	/**
+	 * Creates a policy that does not set a hedge percentile.
+	 */
+	public KmsRetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+			double maxRate, double minRate, int breakerThreshold,
+			long breakerOpenDuration) {
+		this(maxAttempts, baseDelay, maxDelay, maxRate, minRate,
+				breakerThreshold, breakerOpenDuration,
+				DEFAULT_HEDGE_PERCENTILE);
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            a positive number of attempts; 1 disables retries
+	 * @param baseDelay
+	 *            a non-negative delay, in milliseconds
+	 * @param maxDelay
+	 *            a delay, in milliseconds, not less than the base delay
+	 * @param maxRate
+	 *            a positive number of requests per second
+	 * @param minRate
+	 *            a positive number of requests per second, not greater than
+	 *            the maximum rate
+	 * @param breakerThreshold
+	 *            a positive number of consecutive failures that opens a
+	 *            circuit breaker
+	 * @param breakerOpenDuration
+	 *            a non-negative time, in milliseconds, for which a circuit
+	 *            breaker stays open
+	 * @param hedgePercentile
+	 *            a latency percentile greater than 0 and at most 100 after
+	 *            which Decrypt requests are hedged, or 0 to use the hedge
+	 *            percentile of the {@link KmsEndpointRouter router}
+	 */
+	public KmsRetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+			double maxRate, double minRate, int breakerThreshold,
+			long breakerOpenDuration, double hedgePercentile) {
+		Precondition.assertBoolean("non-positive maximum attempts",
+				maxAttempts > 0);
+		Precondition.assertBoolean("negative base delay", baseDelay >= 0);
+		Precondition.assertBoolean("maximum delay less than base delay",
+				maxDelay >= baseDelay);
+		Precondition.assertBoolean("non-positive minimum rate", minRate > 0);
+		Precondition.assertBoolean("maximum rate less than minimum rate",
+				maxRate >= minRate);
+		Precondition.assertBoolean("non-positive breaker threshold",
+				breakerThreshold > 0);
+		Precondition.assertBoolean("negative breaker open duration",
+				breakerOpenDuration >= 0);
+		Precondition.assertBoolean("invalid hedge percentile: "
+				+ hedgePercentile, hedgePercentile >= 0
+				&& hedgePercentile <= 100);
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.maxRate = maxRate;
+		this.minRate = minRate;
+		this.breakerThreshold = breakerThreshold;
+		this.breakerOpenDuration = breakerOpenDuration;
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Checks whether a failed request should be retried, assuming that the
+	 * maximum number of attempts has not been reached. Throttling errors,
+	 * retryable service errors and clock skew errors are retried. Like the
+	 * default retry condition of the AWS SDK, a client-side failure is
+	 * retried only if it was caused by an I/O error, or if the attempt timed
+	 * out; other client-side failures, such as marshalling errors, would
+	 * fail again.
+	 */
+	public boolean isRetryable(AmazonClientException x) {
+		boolean retVal;
+		if (isThrottle(x)) {
+			retVal = true;
+		} else if (x instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) x;
+			retVal =
+				RetryUtils.isRetryableServiceException(ase)
+						|| RetryUtils.isClockSkewError(ase);
+		} else {
+			retVal =
+				x instanceof ClientExecutionTimeoutException
+						|| (x != null && x.getCause() instanceof IOException);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns a random delay before the specified retry.
+	 *
+	 * @param retry
+	 *            the one-based number of the retry
+	 * @return a delay, in milliseconds, between zero and the lesser of the
+	 *         maximum delay and <code>baseDelay * 2^(retry - 1)</code>
+	 */
+	public long computeDelay(int retry) {
+		Precondition.assertBoolean("non-positive retry", retry > 0);
+		final int shift = Math.min(retry - 1, 30);
+		final long ceiling =
+			Math.min(maxDelay, baseDelay * (1L << shift));
+		long retVal =
+			ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(
+					ceiling + 1);
+		return retVal;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public double getMaxRate() {
+		return maxRate;
+	}
+
+	public double getMinRate() {
+		return minRate;
+	}
+
+	public int getBreakerThreshold() {
+		return breakerThreshold;
+	}
+
+	public long getBreakerOpenDuration() {
+		return breakerOpenDuration;
+	}
+
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	@Override
+	public String toString() {
+		return "KmsRetryPolicy [maxAttempts=" + maxAttempts + ", baseDelay="
+				+ baseDelay + ", maxDelay=" + maxDelay + ", maxRate="
+				+ maxRate + ", minRate=" + minRate + ", breakerThreshold="
+				+ breakerThreshold + ", breakerOpenDuration="
+				+ breakerOpenDuration + ", hedgePercentile="
+				+ hedgePercentile + "]";
+	}
+
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.services.kms.AbstractAWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.amazonaws.services.kms.model.InvalidCiphertextException;
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.StringUtils;
+
+/**
+ * An in-process stand-in for AWS KMS that supports the GenerateDataKey and
+ * Decrypt operations used by this library. It allows encryption and
+ * decryption to be tested and benchmarked without AWS credentials or network
+ * access.
+ * <p/>
+ * Data keys are wrapped with AES key wrap (RFC 3394) under a 256-bit master
+ * key that is derived deterministically from a seed and the master key id, so
+ * any master key id is accepted, and separate instances with the same seed
+ * can decrypt each other's data keys. The master key id is carried in the
+ * ciphertext blob and is returned by Decrypt.
+ * <p/>
+ * An instance can inject a fixed latency, a random jitter and random
+ * throttling errors into every request. It can also record the data keys it
+ * generates and replay them later, so that a benchmark or test can be
+ * repeated with identical keys.
+ * <p/>
+ * A local KMS is selected by an {@link AwsKmsProperties#PN_ENDPOINT endpoint}
+ * that starts with {@link #ENDPOINT_SCHEME}, optionally followed by a name and
+ * options; for example:
+ *
+ * <pre>
+ * aws.endpoint=local://bench?latency=20&amp;jitter=5&amp;throttle=0.01&amp;seed=run1
+ * </pre>
+ *
+ * where <code>latency</code> and <code>jitter</code> are milliseconds and
+ * <code>throttle</code> is the probability that a request is throttled.
+ * {@link AwsKmsClientRegistry} creates one instance per endpoint string, so
+ * encryptors and decryptors that use the same endpoint share an instance.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public class LocalKms extends AbstractAWSKMS {
+
+	private static final Logger logger = Logger.getLogger(LocalKms.class
+			.getName());
+
+	/** The prefix of endpoints that select a local KMS */
+	public static final String ENDPOINT_SCHEME = "local:";
+
+	/** Endpoint option: fixed latency of each request (milliseconds) */
+	public static final String OPT_LATENCY = "latency";
+
+	/** Endpoint option: maximum random latency added to each request (msec) */
+	public static final String OPT_JITTER = "jitter";
+
+	/** Endpoint option: probability that a request is throttled */
+	public static final String OPT_THROTTLE = "throttle";
+
+	/** Endpoint option: seed from which master keys are derived */
+	public static final String OPT_SEED = "seed";
+
+	/** Seed used if none is specified */
+	public static final String DEFAULT_SEED = "local-kms";
+
+	private static final byte BLOB_VERSION = 1;
+
+	private static final String WRAP_ALGORITHM = "AESWrap";
+
+	/** Checks whether an endpoint selects a local KMS */
+	public static boolean isLocalEndpoint(String endpoint) {
+		return endpoint != null && endpoint.startsWith(ENDPOINT_SCHEME);
+	}
+
+	/**
+	 * Creates a local KMS configured by the options of a
+	 * {@link #isLocalEndpoint(String) local endpoint}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the endpoint is not local, or has an invalid option
+	 */
+	public static LocalKms fromEndpoint(String endpoint) {
+		Precondition.assertBoolean("not a local endpoint: " + endpoint,
+				isLocalEndpoint(endpoint));
+		long latency = 0;
+		long jitter = 0;
+		double throttle = 0;
+		String seed = DEFAULT_SEED;
+		final int q = endpoint.indexOf('?');
+		if (q >= 0) {
+			for (String option : endpoint.substring(q + 1).split("&")) {
+				if (option.isEmpty()) {
+					continue;
+				}
+				final int eq = option.indexOf('=');
+				final String name = eq < 0 ? option : option.substring(0, eq);
+				final String value = eq < 0 ? "" : option.substring(eq + 1);
+				try {
+					if (OPT_LATENCY.equals(name)) {
+						latency = Long.parseLong(value);
+					} else if (OPT_JITTER.equals(name)) {
+						jitter = Long.parseLong(value);
+					} else if (OPT_THROTTLE.equals(name)) {
+						throttle = Double.parseDouble(value);
+					} else if (OPT_SEED.equals(name)) {
+						seed = value;
+					} else {
+						String msg =
+							"Unknown local KMS option '" + name + "' in '"
+									+ endpoint + "'";
+						throw new IllegalArgumentException(msg);
+					}
+				} catch (NumberFormatException x) {
+					String msg =
+						"Invalid value for local KMS option '" + name
+								+ "': '" + value + "'";
+					throw new IllegalArgumentException(msg);
+				}
+			}
+		}
+		LocalKms retVal = new LocalKms(seed);
+		retVal.setLatency(latency, jitter);
+		retVal.setThrottleProbability(throttle);
+		return retVal;
+	}
+
+	private final byte[] seed;
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	// Guarded by this
+	private final Random random;
+	private long latency;
+	private long jitter;
+	private double throttleProbability;
+	private boolean recording;
+	private final List<RecordedDataKey> recorded = new ArrayList<>();
+	private final Deque<RecordedDataKey> replay = new ArrayDeque<>();
+
+	private final AtomicLong generateDataKeyCount = new AtomicLong();
+	private final AtomicLong decryptCount = new AtomicLong();
+	private final AtomicLong throttleCount = new AtomicLong();
+
+	public LocalKms() {
+		this(DEFAULT_SEED);
+	}
+
+	/**
+	 * @param seed
+	 *            a non-blank seed from which master keys are derived
+	 */
+	public LocalKms(String seed) {
+		Precondition.assertNonEmptyString("null or blank seed", seed);
+		this.seed = seed.getBytes(StandardCharsets.UTF_8);
+		this.random = new Random(seed.hashCode());
+	}
+
+	/**
+	 * Sets the latency injected into each request.
+	 *
+	 * @param latency
+	 *            a non-negative fixed delay, in milliseconds
+	 * @param jitter
+	 *            a non-negative maximum random delay, in milliseconds, added
+	 *            to the fixed delay
+	 */
+	public synchronized void setLatency(long latency, long jitter) {
+		Precondition.assertBoolean("negative latency", latency >= 0);
+		Precondition.assertBoolean("negative jitter", jitter >= 0);
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets the probability, between 0 and 1 inclusive, that a request fails
+	 * with a throttling error.
+	 */
+	public synchronized void setThrottleProbability(double p) {
+		Precondition.assertBoolean("invalid throttle probability", p >= 0
+				&& p <= 1);
+		this.throttleProbability = p;
+	}
+
+	/**
+	 * Starts or stops recording generated data keys. Starting a recording
+	 * discards any previous recording.
+	 */
+	public synchronized void setRecording(boolean recording) {
+		if (recording && !this.recording) {
+			recorded.clear();
+		}
+		this.recording = recording;
+	}
+
+	/** Returns a copy of the data keys recorded so far */
+	public synchronized List<RecordedDataKey> getRecording() {
+		return new ArrayList<>(recorded);
+	}
+
+	/**
+	 * Queues data keys that are returned, in order, by subsequent
+	 * GenerateDataKey requests instead of newly generated keys. Once the queue
+	 * is exhausted, new keys are generated.
+	 */
+	public synchronized void replay(Collection<RecordedDataKey> keys) {
+		Precondition.assertNonNullArgument("null keys", keys);
+		replay.clear();
+		replay.addAll(keys);
+	}
+
+	/** Returns the number of data keys that remain to be replayed */
+	public synchronized int getReplayRemaining() {
+		return replay.size();
+	}
+
+	@Override
+	public GenerateDataKeyResult generateDataKey(
+			GenerateDataKeyRequest request) {
+		Precondition.assertNonNullArgument("null request", request);
+		final String keyId = request.getKeyId();
+		Precondition.assertNonEmptyString("null or blank key id", keyId);
+		generateDataKeyCount.incrementAndGet();
+		simulateNetwork("GenerateDataKey", request);
+
+		final int length = dataKeyLength(request);
+		byte[] plaintext = null;
+		byte[] blob = null;
+		synchronized (this) {
+			RecordedDataKey next = replay.poll();
+			if (next != null) {
+				if (!keyId.equals(next.getKeyId())
+						|| next.getPlaintext().length != length) {
+					String msg =
+						"Replayed data key does not match request: keyId="
+								+ keyId + ", length=" + length;
+					throw new IllegalStateException(msg);
+				}
+				plaintext = next.getPlaintext();
+				blob = next.getCiphertextBlob();
+			}
+		}
+		if (plaintext == null) {
+			plaintext = new byte[length];
+			secureRandom.nextBytes(plaintext);
+			blob = wrap(keyId, plaintext);
+		}
+		synchronized (this) {
+			if (recording) {
+				recorded.add(new RecordedDataKey(keyId, plaintext, blob));
+			}
+		}
+
+		GenerateDataKeyResult retVal = new GenerateDataKeyResult();
+		retVal.setKeyId(keyId);
+		retVal.setPlaintext(ByteBuffer.wrap(plaintext.clone()));
+		retVal.setCiphertextBlob(ByteBuffer.wrap(blob.clone()));
+		return retVal;
+	}
+
+	@Override
+	public DecryptResult decrypt(DecryptRequest request) {
+		Precondition.assertNonNullArgument("null request", request);
+		Precondition.assertNonNullArgument("null ciphertext blob",
+				request.getCiphertextBlob());
+		decryptCount.incrementAndGet();
+		simulateNetwork("Decrypt", request);
+
+		ByteBuffer bb = request.getCiphertextBlob().duplicate();
+		final byte[] blob = new byte[bb.remaining()];
+		bb.get(blob);
+
+		String keyId;
+		byte[] wrapped;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(blob);
+			if (in.get() != BLOB_VERSION) {
+				throw new InvalidCiphertextException("Unknown blob version");
+			}
+			final byte[] id = new byte[in.getShort()];
+			in.get(id);
+			keyId = new String(id, StandardCharsets.UTF_8);
+			wrapped = new byte[in.remaining()];
+			in.get(wrapped);
+		} catch (RuntimeException x) {
+			if (x instanceof InvalidCiphertextException) {
+				throw x;
+			}
+			throw new InvalidCiphertextException("Malformed ciphertext blob");
+		}
+
+		byte[] plaintext;
+		try {
+			Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+			cipher.init(Cipher.UNWRAP_MODE, masterKey(keyId));
+			SecretKey key =
+				(SecretKey) cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+			plaintext = key.getEncoded();
+		} catch (GeneralSecurityException x) {
+			throw new InvalidCiphertextException(
+					"Ciphertext blob could not be decrypted: " + x);
+		}
+
+		DecryptResult retVal = new DecryptResult();
+		retVal.setKeyId(keyId);
+		retVal.setPlaintext(ByteBuffer.wrap(plaintext));
+		return retVal;
+	}
+
+	@Override
+	public void shutdown() {
+		// Nothing to release
+	}
+
+	private static int dataKeyLength(GenerateDataKeyRequest request) {
+		int retVal;
+		final Integer bytes = request.getNumberOfBytes();
+		final String spec = request.getKeySpec();
+		if (bytes != null) {
+			retVal = bytes;
+		} else if ("AES_128".equals(spec)) {
+			retVal = 16;
+		} else if ("AES_256".equals(spec)
+				|| !StringUtils.nonEmptyString(spec)) {
+			retVal = 32;
+		} else {
+			throw new IllegalArgumentException("Unsupported key spec: " + spec);
+		}
+		// AES key wrap requires a multiple of 8 bytes, at least 16
+		Precondition.assertBoolean("unsupported data key length: " + retVal,
+				retVal >= 16 && retVal % 8 == 0);
+		return retVal;
+	}
+
+	private byte[] wrap(String keyId, byte[] plaintext) {
+		byte[] wrapped;
+		try {
+			Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+			cipher.init(Cipher.WRAP_MODE, masterKey(keyId));
+			wrapped = cipher.wrap(new SecretKeySpec(plaintext, "AES"));
+		} catch (GeneralSecurityException x) {
+			throw new AmazonClientException("Failed to wrap data key", x);
+		}
+		final byte[] id = keyId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer retVal = ByteBuffer.allocate(3 + id.length + wrapped.length);
+		retVal.put(BLOB_VERSION);
+		retVal.putShort((short) id.length);
+		retVal.put(id);
+		retVal.put(wrapped);
+		return retVal.array();
+	}
+
+	/** Derives the master key for a key id as SHA-256(seed, 0, keyId) */
+	private SecretKey masterKey(String keyId) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(seed);
+			md.update((byte) 0);
+			md.update(keyId.getBytes(StandardCharsets.UTF_8));
+			return new SecretKeySpec(md.digest(), "AES");
+		} catch (GeneralSecurityException x) {
+			throw new AmazonClientException("Failed to derive master key", x);
+		}
+	}
+
+	/**
+	 * Sleeps for the configured latency, and may throw a throttling error. As
+	 * the AWS SDK does, throws a {@link ClientExecutionTimeoutException} if
+	 * the latency exceeds the client execution timeout of the request.
+	 */
+	private void simulateNetwork(String operation,
+			AmazonWebServiceRequest request) {
+		final long delay;
+		final boolean throttle;
+		synchronized (this) {
+			delay =
+				latency
+						+ (jitter == 0 ? 0 : (long) (random.nextDouble()
+								* (jitter + 1)));
+			throttle =
+				throttleProbability > 0
+						&& random.nextDouble() < throttleProbability;
+		}
+		final Integer timeout = request.getSdkClientExecutionTimeout();
+		final boolean timedOut =
+			timeout != null && timeout > 0 && delay > timeout;
+		if (delay > 0) {
+			try {
+				Thread.sleep(timedOut ? timeout : delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException(operation + " interrupted", e);
+			}
+		}
+		if (timedOut) {
+			throw new ClientExecutionTimeoutException(operation
+					+ " did not complete within " + timeout + " msec");
+		}
+		if (throttle) {
+			throttleCount.incrementAndGet();
+			logger.fine("Throttling " + operation);
+			AmazonServiceException x =
+				new AmazonServiceException("Rate exceeded");
+			x.setErrorCode("ThrottlingException");
+			x.setErrorType(ErrorType.Client);
+			x.setStatusCode(400);
+			x.setServiceName("AWSKMS");
+			throw x;
+		}
+	}
+
+	/** Number of GenerateDataKey requests, including throttled requests */
+	public long getGenerateDataKeyCount() {
+		return generateDataKeyCount.get();
+	}
+
+	/** Number of Decrypt requests, including throttled requests */
+	public long getDecryptCount() {
+		return decryptCount.get();
+	}
+
+	/** Number of requests that failed with an injected throttling error */
+	public long getThrottleCount() {
+		return throttleCount.get();
+	}
+
+	/**
+	 * Writes recorded data keys, one per line, as a tab-separated key id,
+	 * Base64 plaintext key and Base64 ciphertext blob.
+	 */
+	public static void writeRecording(Collection<RecordedDataKey> keys,
+			Writer w) throws IOException {
+		Precondition.assertNonNullArgument("null keys", keys);
+		Precondition.assertNonNullArgument("null writer", w);
+		final Base64.Encoder encoder = Base64.getEncoder();
+		for (RecordedDataKey k : keys) {
+			w.write(k.getKeyId());
+			w.write('\t');
+			w.write(encoder.encodeToString(k.getPlaintext()));
+			w.write('\t');
+			w.write(encoder.encodeToString(k.getCiphertextBlob()));
+			w.write('\n');
+		}
+		w.flush();
+	}
+
+	/**
+	 * Reads data keys written by {@link #writeRecording(Collection, Writer)}
+	 */
+	public static List<RecordedDataKey> readRecording(Reader r)
+			throws IOException {
+		Precondition.assertNonNullArgument("null reader", r);
+		final Base64.Decoder decoder = Base64.getDecoder();
+		List<RecordedDataKey> retVal = new ArrayList<>();
+		BufferedReader br = new BufferedReader(r);
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			if (fields.length != 3) {
+				throw new IOException("Invalid recorded data key: '" + line
+						+ "'");
+			}
+			retVal.add(new RecordedDataKey(fields[0], decoder
+					.decode(fields[1]), decoder.decode(fields[2])));
+		}
+		return retVal;
+	}
+
+	@Override
+	public String toString() {
+		return "LocalKms [generateDataKeyCount=" + getGenerateDataKeyCount()
+				+ ", decryptCount=" + getDecryptCount() + ", throttleCount="
+				+ getThrottleCount() + "]";
+	}
+
+	/** A data key generated by a local KMS */
+	public static final class RecordedDataKey {
+		private final String keyId;
+		private final byte[] plaintext;
+		private final byte[] ciphertextBlob;
+
+		public RecordedDataKey(String keyId, byte[] plaintext,
+				byte[] ciphertextBlob) {
+			Precondition.assertNonEmptyString("null or blank key id", keyId);
+			Precondition.assertNonNullArgument("null plaintext", plaintext);
+			Precondition.assertNonNullArgument("null ciphertext blob",
+					ciphertextBlob);
+			this.keyId = keyId;
+			this.plaintext = plaintext.clone();
+			this.ciphertextBlob = ciphertextBlob.clone();
+		}
+
+		public String getKeyId() {
+			return keyId;
+		}
+
+		public byte[] getPlaintext() {
+			return plaintext.clone();
+		}
+
+		public byte[] getCiphertextBlob() {
+			return ciphertextBlob.clone();
+		}
+	}
+
+}
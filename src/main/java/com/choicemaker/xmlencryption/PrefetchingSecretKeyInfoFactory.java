@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A SecretKeyInfoFactory that keeps a bounded queue of data keys that have
+ * already been generated by a delegate factory, so that under steady load a
+ * request for a session key is satisfied locally rather than by a synchronous
+ * KMS round-trip.
+ * <p/>
+ * Background workers refill the queue up to a high water mark whenever the
+ * number of queued and in-progress keys falls to a low water mark. If the queue
+ * is empty when a key is requested, the caller waits up to a timeout for a
+ * prefetched key, and then falls back to creating a key synchronously with the
+ * delegate factory.
+ * <p/>
+ * When a background request fails, refills are suspended for a backoff
+ * interval that doubles with each consecutive failure, up to a maximum. After
+ * the interval, a single request probes the delegate; normal refills resume
+ * once a request succeeds. This keeps a failing or throttled KMS from
+ * receiving a burst of background requests for every caller.
+ * <p/>
+ * Every key is handed out exactly once. Instances are thread-safe. Worker
+ * threads are daemon threads; {@link #close()} stops them and discards any
+ * queued keys.
+ */
+public class PrefetchingSecretKeyInfoFactory implements SecretKeyInfoFactory,
+		AutoCloseable {
+
+	private static final Logger logger = Logger
+			.getLogger(PrefetchingSecretKeyInfoFactory.class.getName());
+
+	/** Default number of queued keys that triggers a refill */
+	public static final int DEFAULT_LOW_WATER = 4;
+
+	/** Default number of keys held by a full queue */
+	public static final int DEFAULT_HIGH_WATER = 16;
+
+	/** Default number of background workers */
+	public static final int DEFAULT_WORKER_COUNT = 2;
+
+	/** Default time a caller waits for a prefetched key (milliseconds) */
+	public static final long DEFAULT_TIMEOUT = 100L;
+
+	/** Time refills are suspended after a first failure (milliseconds) */
+	public static final long FAILURE_BACKOFF = 1000L;
+
+	/** Maximum time refills are suspended after failures (milliseconds) */
+	public static final long MAX_FAILURE_BACKOFF = 60 * 1000L;
+
+	private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger();
+
+	private final SecretKeyInfoFactory delegate;
+	private final int lowWater;
+	private final int highWater;
+	private final long timeout;
+	private final BlockingQueue<SecretKeyInfo> queue;
+	private final ExecutorService workers;
+
+	/** Number of keys being generated by workers */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final AtomicLong prefetchedCount = new AtomicLong();
+	private final AtomicLong fallbackCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+
+	/** Number of background requests that failed since the last success */
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	/** Time before which refills are suspended after a failure */
+	private volatile long retryAfter;
+
+	private volatile boolean closed;
+
+	public PrefetchingSecretKeyInfoFactory(SecretKeyInfoFactory delegate) {
+		this(delegate, DEFAULT_LOW_WATER, DEFAULT_HIGH_WATER,
+				DEFAULT_WORKER_COUNT, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param delegate
+	 *            the factory that generates data keys
+	 * @param lowWater
+	 *            a non-negative number of available keys at or below which a
+	 *            refill is started
+	 * @param highWater
+	 *            the capacity of the queue; must be greater than the low water
+	 *            mark
+	 * @param workerCount
+	 *            a positive number of background threads
+	 * @param timeout
+	 *            a non-negative time, in milliseconds, that a caller waits for
+	 *            a prefetched key before falling back to a synchronous request
+	 */
+	public PrefetchingSecretKeyInfoFactory(SecretKeyInfoFactory delegate,
+			int lowWater, int highWater, int workerCount, long timeout) {
+		Precondition.assertNonNullArgument("null delegate", delegate);
+		Precondition.assertBoolean("negative low water mark", lowWater >= 0);
+		Precondition.assertBoolean(
+				"high water mark not greater than low water mark",
+				highWater > lowWater);
+		Precondition.assertBoolean("non-positive worker count",
+				workerCount > 0);
+		Precondition.assertBoolean("negative timeout", timeout >= 0);
+		this.delegate = delegate;
+		this.lowWater = lowWater;
+		this.highWater = highWater;
+		this.timeout = timeout;
+		this.queue = new ArrayBlockingQueue<>(highWater);
+		this.workers =
+			Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory(
+					INSTANCE_COUNT.incrementAndGet()));
+		refill();
+	}
+
+	@Override
+	public SecretKeyInfo createSessionKey() {
+		return createSessionKey(KmsDeadline.NONE);
+	}
+
+	/**
+	 * Returns a prefetched key, waiting no longer than the lesser of the
+	 * timeout of this factory and the time left before the deadline. If none
+	 * becomes available, a key is requested from the delegate, which is
+	 * passed the deadline.
+	 */
+	@Override
+	public SecretKeyInfo createSessionKey(KmsDeadline deadline) {
+		Precondition.assertNonNullArgument("null deadline", deadline);
+		if (closed) {
+			throw new IllegalStateException("factory is closed");
+		}
+		SecretKeyInfo retVal = queue.poll();
+		refill();
+		final long wait =
+			Math.min(timeout, deadline.remaining(TimeUnit.MILLISECONDS));
+		if (retVal == null && wait > 0) {
+			try {
+				retVal = queue.poll(wait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (retVal == null) {
+			fallbackCount.incrementAndGet();
+			retVal = delegate.createSessionKey(deadline);
+		} else {
+			prefetchedCount.incrementAndGet();
+		}
+		return retVal;
+	}
+
+	@Override
+	public void recordUsage(SecretKeyInfo ski, long byteCount) {
+		delegate.recordUsage(ski, byteCount);
+	}
+
+	/**
+	 * Schedules enough background requests to bring the number of queued and
+	 * in-progress keys up to the high water mark, if that number has fallen to
+	 * the low water mark. After a failure, nothing is scheduled until the
+	 * backoff interval has passed, and then only one request at a time.
+	 */
+	private synchronized void refill() {
+		if (closed) {
+			return;
+		}
+		final int available = queue.size() + pending.get();
+		if (available > lowWater) {
+			return;
+		}
+		int count = highWater - available;
+		if (consecutiveFailures.get() > 0) {
+			if (pending.get() > 0
+					|| System.currentTimeMillis() < retryAfter) {
+				return;
+			}
+			count = 1;
+		}
+		for (int i = 0; i < count; i++) {
+			pending.incrementAndGet();
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						prefetch();
+					}
+				});
+			} catch (RejectedExecutionException x) {
+				pending.decrementAndGet();
+				break;
+			}
+		}
+	}
+
+	private void prefetch() {
+		try {
+			if (!closed) {
+				SecretKeyInfo ski = delegate.createSessionKey();
+				consecutiveFailures.set(0);
+				if (!queue.offer(ski)) {
+					logger.fine("Prefetch queue full; discarding key");
+					ski.close();
+				} else if (closed && queue.remove(ski)) {
+					// Closed while the key was generated, so close() may
+					// have drained the queue before the key was added
+					ski.close();
+				}
+			}
+		} catch (RuntimeException x) {
+			failureCount.incrementAndGet();
+			final long backoff = recordFailure();
+			logger.warning("Failed to prefetch data key: " + x
+					+ "; suspending refills for " + backoff + " ms");
+		} finally {
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Suspends refills after a failure and returns the time left until they
+	 * resume. Requests that fail together, within one backoff interval, count
+	 * as a single failure, so a failed refill does not exhaust the backoff.
+	 */
+	private synchronized long recordFailure() {
+		final long now = System.currentTimeMillis();
+		if (now >= retryAfter) {
+			final int shift =
+				Math.min(consecutiveFailures.getAndIncrement(), 16);
+			retryAfter =
+				now + Math.min(MAX_FAILURE_BACKOFF, FAILURE_BACKOFF << shift);
+		}
+		return retryAfter - now;
+	}
+
+	/** Stops the background workers and discards queued keys */
+	@Override
+	public void close() {
+		closed = true;
+		workers.shutdownNow();
+		SecretKeyInfo ski;
+		while ((ski = queue.poll()) != null) {
+			ski.close();
+		}
+	}
+
+	/** Returns the number of keys that are ready to be handed out */
+	public int getAvailableCount() {
+		return queue.size();
+	}
+
+	/** Returns the number of requests satisfied by a prefetched key */
+	public long getPrefetchedCount() {
+		return prefetchedCount.get();
+	}
+
+	/** Returns the number of requests satisfied synchronously */
+	public long getFallbackCount() {
+		return fallbackCount.get();
+	}
+
+	/** Returns the number of background requests that failed */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public SecretKeyInfoFactory getDelegate() {
+		return delegate;
+	}
+
+	public int getLowWater() {
+		return lowWater;
+	}
+
+	public int getHighWater() {
+		return highWater;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public String toString() {
+		return "PrefetchingSecretKeyInfoFactory [delegate=" + delegate
+				+ ", lowWater=" + lowWater + ", highWater=" + highWater
+				+ ", available=" + getAvailableCount() + "]";
+	}
+
+	private static final class WorkerThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		WorkerThreadFactory(int instance) {
+			this.prefix = "prefetch-" + instance + "-";
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread retVal =
+				new Thread(r, prefix + threadCount.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	}
+
+}
@@ -12,19 +12,126 @@ package com.choicemaker.xmlencryption;
 
 import java.util.Arrays;
 
+import javax.crypto.SecretKey;
+
 import org.apache.xml.security.utils.Base64;
 //import org.bouncycastle.util.encoders.Base64;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.choicemaker.utilcopy01.DOMUtils;
+import com.choicemaker.utilcopy01.Precondition;
+import com.choicemaker.utilcopy01.WSS4JConstants;
 
-public class SecretKeyInfo {
+/**
+ * A plaintext data key, its encrypted form, and the KeyInfo that identifies
+ * the key that encrypted it.
+ * <p/>
+ * The KeyInfo of a key encrypted by a KMS master key is just the name of the
+ * master key, so such a key holds only the master key id, and builds its
+ * KeyInfo element {@link #createKeyInfo(Document) directly in the document}
+ * that it encrypts. A key whose KeyInfo is more elaborate holds a KeyInfo
+ * element, which is copied into each document.
+ * <p/>
+ * The plaintext key is held by {@link KeyMaterial}, which is zeroized when
+ * the last reference to it is closed. The caller of
+ * {@link SecretKeyInfoFactory#createSessionKey()} owns one reference to the
+ * returned key, and should close it when it has finished encrypting with it;
+ * a factory that hands out the same key more than once keeps a reference of
+ * its own.
+ */
+public class SecretKeyInfo implements AutoCloseable {
+
+	/**
+	 * Creates a KeyInfo element in the specified document that names a master
+	 * key. The element is not appended to the document.
+	 */
+	public static Element createKeyInfo(Document doc, String masterKeyId) {
+		Precondition.assertNonNullArgument("null document", doc);
+		Precondition.assertNonEmptyString("null or blank master key id",
+				masterKeyId);
+		final Element retVal =
+			doc.createElementNS(WSS4JConstants.SIG_NS,
+					WSS4JConstants.SIG_PREFIX + ":" + WSS4JConstants.KEYINFO_LN);
+		retVal.setAttributeNS(WSS4JConstants.XMLNS_NS, "xmlns:"
+				+ WSS4JConstants.SIG_PREFIX, WSS4JConstants.SIG_NS);
+		Element keyNameElement =
+			doc.createElementNS(WSS4JConstants.SIG_NS,
+					WSS4JConstants.SIG_PREFIX + ":"
+							+ WSS4JConstants.KEYNAME_LN);
+		keyNameElement.setTextContent(masterKeyId);
+		retVal.appendChild(keyNameElement);
+		return retVal;
+	}
+
+	/** Returns the content of the KeyName child of a KeyInfo, if any */
+	private static String findKeyName(Element keyInfo) {
+		String retVal = null;
+		if (keyInfo != null) {
+			for (Node n = keyInfo.getFirstChild(); n != null; n =
+				n.getNextSibling()) {
+				if (n.getNodeType() == Node.ELEMENT_NODE
+						&& WSS4JConstants.SIG_NS.equals(n.getNamespaceURI())
+						&& WSS4JConstants.KEYNAME_LN.equals(n.getLocalName())) {
+					retVal = n.getTextContent();
+					break;
+				}
+			}
+		}
+		return retVal;
+	}
 
-	private final byte[] secret;
+	private final KeyMaterial secret;
 	private final byte[] encryptedSecret;
+	private final String masterKeyId;
 	private final Element keyInfoReference;
 
+	// Built on demand when only the master key id is known
+	private volatile Element lazyKeyInfo;
+
+	/**
+	 * Creates a key from a copy of a plaintext key. The caller remains
+	 * responsible for zeroizing the array it passes.
+	 */
 	public SecretKeyInfo(byte[] secret, byte[] encryptedSecret, Element keyInfo) {
+		this(KeyMaterial.copyOf(secret), encryptedSecret, keyInfo);
+	}
+
+	/**
+	 * Creates a key that takes ownership of the caller's reference to a
+	 * plaintext key.
+	 */
+	public SecretKeyInfo(KeyMaterial secret, byte[] encryptedSecret,
+			Element keyInfo) {
+		this(secret, encryptedSecret, findKeyName(keyInfo), keyInfo);
+	}
+
+	/**
+	 * Creates a key encrypted by a master key, whose KeyInfo names the master
+	 * key. The key takes ownership of the caller's reference to the plaintext
+	 * key.
+	 */
+	public SecretKeyInfo(KeyMaterial secret, byte[] encryptedSecret,
+			String masterKeyId) {
+		this(secret, encryptedSecret, masterKeyId, null);
+		Precondition.assertNonEmptyString("null or blank master key id",
+				masterKeyId);
+	}
+
+	/**
+	 * @param masterKeyId
+	 *            the master key id, or null if it is not known
+	 * @param keyInfo
+	 *            a KeyInfo element, or null if the KeyInfo is built from the
+	 *            master key id
+	 */
+	SecretKeyInfo(KeyMaterial secret, byte[] encryptedSecret,
+			String masterKeyId, Element keyInfo) {
+		Precondition.assertNonNullArgument("null secret", secret);
 		this.secret = secret;
 		this.encryptedSecret = encryptedSecret;
+		this.masterKeyId = masterKeyId;
 		this.keyInfoReference = keyInfo;
 	}
 
@@ -44,7 +151,12 @@ public class SecretKeyInfo {
 				return false;
 		} else if (!keyInfoReference.equals(other.keyInfoReference))
 			return false;
-		if (!Arrays.equals(secret, other.secret))
+		if (masterKeyId == null) {
+			if (other.masterKeyId != null)
+				return false;
+		} else if (!masterKeyId.equals(other.masterKeyId))
+			return false;
+		if (!secret.contentEquals(other.secret))
 			return false;
 		return true;
 	}
@@ -53,12 +165,101 @@ public class SecretKeyInfo {
 		return encryptedSecret;
 	}
 
+	/**
+	 * Returns a copy of the plaintext key, which the caller should zeroize
+	 * when it is no longer needed. Use {@link #getKeyMaterial()} to avoid the
+	 * copy.
+	 *
+	 * @throws IllegalStateException
+	 *             if this key has been closed
+	 */
 	public byte[] getKey() {
-		return this.secret;
+		return this.secret.getBytes();
 	}
 
+	public KeyMaterial getKeyMaterial() {
+		return secret;
+	}
+
+	/**
+	 * Returns a view of the plaintext key for the specified XML Encryption
+	 * algorithm.
+	 *
+	 * @see KeyMaterial#toSecretKey(String)
+	 */
+	public SecretKey toSecretKey(String algorithm) {
+		return secret.toSecretKey(algorithm);
+	}
+
+	/**
+	 * Adds a reference to this key.
+	 *
+	 * @return this key
+	 * @throws IllegalStateException
+	 *             if the last reference has already been closed
+	 */
+	public SecretKeyInfo retain() {
+		secret.retain();
+		return this;
+	}
+
+	/**
+	 * Releases a reference to this key, zeroizing the plaintext key if it is
+	 * the last reference.
+	 */
+	@Override
+	public void close() {
+		secret.close();
+	}
+
+	public boolean isClosed() {
+		return secret.isClosed();
+	}
+
+	/**
+	 * Returns the id of the master key that encrypted this key, or null if
+	 * the KeyInfo of this key does not name one.
+	 */
+	public String getMasterKeyId() {
+		return masterKeyId;
+	}
+
+	/**
+	 * Creates a KeyInfo element for this key in the document where it will be
+	 * used. The element is not appended to the document. A KeyInfo element
+	 * held by this key is copied rather than adopted, because a key may be
+	 * reused for several documents.
+	 */
+	public Element createKeyInfo(Document doc) {
+		Precondition.assertNonNullArgument("null document", doc);
+		final Element retVal;
+		if (keyInfoReference != null) {
+			final boolean deep = true;
+			retVal = (Element) doc.importNode(keyInfoReference, deep);
+		} else {
+			retVal = createKeyInfo(doc, masterKeyId);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the KeyInfo element of this key. If this key holds only a
+	 * master key id, the element is built, in a document of its own, the
+	 * first time it is requested; {@link #createKeyInfo(Document)} avoids
+	 * that document.
+	 */
 	public Element getKeyInfoReference() {
-		return keyInfoReference;
+		Element retVal = keyInfoReference;
+		if (retVal == null) {
+			retVal = lazyKeyInfo;
+			if (retVal == null) {
+				Document doc = DOMUtils.newDocument();
+				retVal = createKeyInfo(doc);
+				doc.appendChild(retVal);
+				lazyKeyInfo = retVal;
+			}
+		}
+		return retVal;
 	}
 
 	@Override
@@ -71,7 +272,10 @@ public class SecretKeyInfo {
 					* result
 					+ ((keyInfoReference == null) ? 0 : keyInfoReference
 							.hashCode());
-		result = prime * result + Arrays.hashCode(secret);
+		result =
+			prime * result
+					+ ((masterKeyId == null) ? 0 : masterKeyId.hashCode());
+		result = prime * result + secret.length();
 		return result;
 	}
 
@@ -83,11 +287,10 @@ public class SecretKeyInfo {
 		byte[] trailingBytes = Arrays.copyOfRange(encryptedSecret, from, to);
 		String s =
 			Base64.encode(leadingBytes) + "..." + Base64.encode(trailingBytes);
-		final boolean withLineBreaks = false;
+		String keyInfo = Diagnostics.toPreview(keyInfoReference);
 		String retVal =
-			"SecretKeyInfo [encryptedSecret=" + s + ", keyInfo="
-					+ XMLPrettyPrint.print(keyInfoReference, withLineBreaks)
-					+ "]";
+			"SecretKeyInfo [encryptedSecret=" + s + ", masterKeyId="
+					+ masterKeyId + ", keyInfo=" + keyInfo + "]";
 		return retVal;
 	}
 
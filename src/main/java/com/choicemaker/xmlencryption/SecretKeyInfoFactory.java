@@ -14,4 +14,32 @@ public interface SecretKeyInfoFactory {
 
 	public abstract SecretKeyInfo createSessionKey();
 
+	/**
+	 * Creates a session key, within a deadline if this factory makes remote
+	 * requests. The default implementation ignores the deadline.
+	 *
+	 * @param deadline
+	 *            a deadline, or {@link KmsDeadline#NONE}
+	 * @throws KmsDeadlineExceededException
+	 *             if a factory that honors deadlines could not create a key
+	 *             in time
+	 */
+	public default SecretKeyInfo createSessionKey(KmsDeadline deadline) {
+		return createSessionKey();
+	}
+
+	/**
+	 * Notifies this factory that a key it created has been used to encrypt
+	 * approximately the specified number of bytes. Factories that reuse keys
+	 * may use this information to limit how much data a key protects. The
+	 * default implementation does nothing.
+	 *
+	 * @param ski
+	 *            a key returned by {@link #createSessionKey()}
+	 * @param byteCount
+	 *            a non-negative number of bytes
+	 */
+	public default void recordUsage(SecretKeyInfo ski, long byteCount) {
+	}
+
 }
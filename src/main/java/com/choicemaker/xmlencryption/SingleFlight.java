@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Coalesces concurrent requests for the same key into one in-flight
+ * operation. The first caller for a key (the leader) runs the operation; any
+ * caller that arrives while the operation is in flight (a follower) waits for
+ * and shares its result, or its failure. Once the operation completes, the
+ * key is forgotten, so a later request runs the operation again; results are
+ * not cached.
+ * <p/>
+ * Every caller receives the same result instance, so mutable results must be
+ * copied by callers before they are modified.
+ * <p/>
+ * Instances are thread-safe.
+ *
+ * @param <K>
+ *            the type of request keys, which must implement equals and
+ *            hashCode
+ * @param <V>
+ *            the type of results
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight =
+		new ConcurrentHashMap<>();
+
+	private final AtomicLong leaders = new AtomicLong();
+	private final AtomicLong followers = new AtomicLong();
+
+	/**
+	 * Runs a blocking operation, unless an operation for the same key is
+	 * already in flight, in which case this method waits for its result.
+	 *
+	 * @throws RuntimeException
+	 *             the unchecked exception thrown by the operation, whether it
+	 *             was run by this caller or by a concurrent caller
+	 */
+	public V execute(K key, Supplier<V> operation) {
+		Precondition.assertNonNullArgument("null key", key);
+		Precondition.assertNonNullArgument("null operation", operation);
+		final CompletableFuture<V> f = new CompletableFuture<>();
+		final CompletableFuture<V> existing = inFlight.putIfAbsent(key, f);
+		if (existing != null) {
+			followers.incrementAndGet();
+			return await(existing);
+		}
+		return lead(key, f, operation);
+	}
+
+	/**
+	 * Runs a blocking operation like {@link #execute(Object, Supplier)},
+	 * except that a caller that waits for a concurrent operation waits at
+	 * most for the specified time. The timeout does not apply to an operation
+	 * run by the caller itself, which must bound its own duration.
+	 *
+	 * @throws TimeoutException
+	 *             if the caller waited for a concurrent operation that did not
+	 *             complete in time
+	 */
+	public V execute(K key, Supplier<V> operation, long timeout,
+			TimeUnit unit) throws TimeoutException {
+		Precondition.assertNonNullArgument("null key", key);
+		Precondition.assertNonNullArgument("null operation", operation);
+		Precondition.assertNonNullArgument("null unit", unit);
+		final CompletableFuture<V> f = new CompletableFuture<>();
+		final CompletableFuture<V> existing = inFlight.putIfAbsent(key, f);
+		if (existing != null) {
+			followers.incrementAndGet();
+			try {
+				return await(existing, timeout, unit);
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(x);
+			}
+		}
+		return lead(key, f, operation);
+	}
+
+	private V lead(K key, CompletableFuture<V> f, Supplier<V> operation) {
+		leaders.incrementAndGet();
+		try {
+			V retVal = operation.get();
+			f.complete(retVal);
+			return retVal;
+		} catch (RuntimeException | Error x) {
+			f.completeExceptionally(x);
+			throw x;
+		} finally {
+			inFlight.remove(key, f);
+		}
+	}
+
+	/**
+	 * Starts an asynchronous operation, unless an operation for the same key
+	 * is already in flight, in which case the future of the in-flight
+	 * operation is returned.
+	 */
+	public CompletableFuture<V> executeAsync(final K key,
+			Supplier<CompletableFuture<V>> operation) {
+		Precondition.assertNonNullArgument("null key", key);
+		Precondition.assertNonNullArgument("null operation", operation);
+		final CompletableFuture<V> retVal = new CompletableFuture<>();
+		final CompletableFuture<V> existing = inFlight.putIfAbsent(key, retVal);
+		if (existing != null) {
+			followers.incrementAndGet();
+			return existing;
+		}
+		leaders.incrementAndGet();
+		CompletableFuture<V> source;
+		try {
+			source = operation.get();
+		} catch (RuntimeException x) {
+			source = new CompletableFuture<>();
+			source.completeExceptionally(x);
+		}
+		source.whenComplete((v, x) -> {
+			inFlight.remove(key, retVal);
+			if (x != null) {
+				retVal.completeExceptionally(x);
+			} else {
+				retVal.complete(v);
+			}
+		});
+		return retVal;
+	}
+
+	private static <V> V await(CompletableFuture<V> f) {
+		try {
+			return f.join();
+		} catch (CompletionException x) {
+			Throwable cause = x.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw x;
+		}
+	}
+
+	private static <V> V await(CompletableFuture<V> f, long timeout,
+			TimeUnit unit) throws InterruptedException, TimeoutException {
+		try {
+			return f.get(timeout, unit);
+		} catch (ExecutionException x) {
+			Throwable cause = x.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new CompletionException(cause);
+		}
+	}
+
+	/** Returns the number of operations currently in flight */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/** Returns the number of requests that ran an operation */
+	public long getLeaderCount() {
+		return leaders.get();
+	}
+
+	/** Returns the number of requests that shared an in-flight operation */
+	public long getFollowerCount() {
+		return followers.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SingleFlight [inFlight=" + getInFlightCount() + ", leaders="
+				+ getLeaderCount() + ", followers=" + getFollowerCount() + "]";
+	}
+
+}
@@ -12,9 +12,12 @@ package com.choicemaker.xmlencryption;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.Key;
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -22,6 +25,7 @@ import java.util.List;
 import javax.crypto.SecretKey;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 
@@ -33,7 +37,6 @@ import org.apache.xml.security.stax.ext.XMLSecurityConstants;
 import org.apache.xml.security.stax.ext.XMLSecurityProperties;
 //import org.apache.xml.security.test.stax.utils.XMLSecEventAllocator;
 
-import com.choicemaker.utilcopy01.KeyUtils;
 import com.choicemaker.utilcopy01.Precondition;
 
 public class StreamDecryptor {
@@ -41,6 +44,9 @@ public class StreamDecryptor {
 	// private static final Logger logger =
 	// Logger.getLogger(StreamEncryptor.class.getName());
 
+	/** The maximum number of bytes read by {@link #peekHeader(InputStream)} */
+	public static final int HEADER_READ_LIMIT = 64 * 1024;
+
 	static {
 		org.apache.xml.security.Init.init();
 	}
@@ -76,10 +82,113 @@ public class StreamDecryptor {
 		Precondition.assertNonEmptyString(
 				"null or blank document encryption algorithm", docEncAlgo);
 
-		final SecretKey secretKey =
-				KeyUtils.prepareSecretKey(docEncAlgo, ski.getKey());
+		final SecretKey secretKey = ski.toSecretKey(docEncAlgo);
+		decrypt(is, outputStream, secretKey);
+	}
+
+	/**
+	 * Decrypts a document encrypted with an escrow key, without KMS.
+	 *
+	 * @param escrowKey
+	 *            the private RSA key that matches the escrow public key
+	 * @see StreamEncryptor#encrypt(InputStream, String, String, OutputStream,
+	 *      SecretKeyInfo, boolean, java.security.PublicKey)
+	 */
+	public static void decrypt(final InputStream is,
+			OutputStream outputStream, PrivateKey escrowKey) throws Exception {
+		Precondition.assertNonNullArgument("null input stream", is);
+		Precondition.assertNonNullArgument("null escrow key", escrowKey);
+		// Fail before any output is written, if the stream can be re-read
+		if (is.markSupported() && !peekHeader(is).hasEscrowKey()) {
+			String msg = "Document has no escrow EncryptedKey";
+			throw new IllegalArgumentException(msg);
+		}
+		decrypt(is, outputStream, (Key) escrowKey);
+	}
+
+	/**
+	 * Reads the header of the EncryptedData of an encrypted stream, which
+	 * tells what key decrypts the stream, and then resets the stream to where
+	 * it was. At most {@link #HEADER_READ_LIMIT} bytes are read.
+	 *
+	 * @param is
+	 *            a stream that supports {@link InputStream#mark(int) mark}
+	 * @throws IllegalArgumentException
+	 *             if the stream does not support mark, or no EncryptedData
+	 *             header is found within the limit
+	 */
+	public static EncryptedDataHeader peekHeader(final InputStream is)
+			throws IOException {
+		Precondition.assertNonNullArgument("null input stream", is);
+		Precondition.assertBoolean("mark not supported", is.markSupported());
+		is.mark(HEADER_READ_LIMIT);
+		try {
+			return EncryptedDataHeader.read(new LimitedInputStream(is,
+					HEADER_READ_LIMIT));
+		} catch (XMLStreamException e) {
+			String msg = "Failed to read EncryptedData header: " + e;
+			throw new IllegalArgumentException(msg, e);
+		} finally {
+			is.reset();
+		}
+	}
+
+	/** Ends a stream after a limited number of bytes */
+	private static final class LimitedInputStream extends FilterInputStream {
+
+		private int remaining;
+
+		LimitedInputStream(InputStream in, int limit) {
+			super(in);
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int retVal = in.read();
+			if (retVal >= 0) {
+				--remaining;
+			}
+			return retVal;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int retVal = in.read(b, off, Math.min(len, remaining));
+			if (retVal > 0) {
+				remaining -= retVal;
+			}
+			return retVal;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			final long retVal = in.skip(Math.min(n, remaining));
+			remaining -= (int) retVal;
+			return retVal;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// The underlying stream is reset, not closed
+		}
+	}
+
+	private static void decrypt(final InputStream is,
+			OutputStream outputStream, Key decryptionKey) throws Exception {
 		final XMLSecurityProperties decryptProperties =
-			getDecryptionSecurityProperies(secretKey);
+			getDecryptionSecurityProperies(decryptionKey);
 		final InboundXMLSec inbound =
 			XMLSec.getInboundWSSec(decryptProperties);
 		final XMLInputFactory xmlInputFactory =
@@ -99,8 +208,13 @@ public class StreamDecryptor {
 
 	public static XMLSecurityProperties getDecryptionSecurityProperies(
 			SecretKey secretKey) throws IOException {
+		return getDecryptionSecurityProperies((Key) secretKey);
+	}
+
+	private static XMLSecurityProperties getDecryptionSecurityProperies(
+			Key decryptionKey) {
 		XMLSecurityProperties retVal = new XMLSecurityProperties();
-		retVal.setDecryptionKey(secretKey);
+		retVal.setDecryptionKey(decryptionKey);
 		return retVal;
 	}
 
@@ -12,6 +12,7 @@ package com.choicemaker.xmlencryption;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,7 +28,6 @@ import org.apache.xml.security.stax.ext.XMLSecurityConstants;
 import org.apache.xml.security.stax.ext.XMLSecurityProperties;
 //import org.apache.xml.security.test.stax.utils.XMLSecEventAllocator;
 
-import com.choicemaker.utilcopy01.KeyUtils;
 import com.choicemaker.utilcopy01.Precondition;
 
 public class StreamEncryptor {
@@ -143,6 +143,27 @@ public class StreamEncryptor {
 	public static void encrypt(final InputStream sourceDocument,
 			String keyEncAlgo, String docEncAlgo, OutputStream outputStream,
 			SecretKeyInfo ski, boolean content) throws Exception {
+		encrypt(sourceDocument, keyEncAlgo, docEncAlgo, outputStream, ski,
+				content, null);
+	}
+
+	/**
+	 * Encrypts the content of the root element of an XML document, and
+	 * writes the session key, encrypted under an escrow RSA key, as an
+	 * EncryptedKey in the KeyInfo of the EncryptedData. The document may then
+	 * be decrypted without KMS by the StreamDecryptor method that takes the
+	 * private escrow key.
+	 *
+	 * @param escrowKey
+	 *            a public RSA key, or null to write no KeyInfo
+	 * @see EscrowKeys
+	 * @see StreamDecryptor#decrypt(InputStream, OutputStream,
+	 *      java.security.PrivateKey)
+	 */
+	public static void encrypt(final InputStream sourceDocument,
+			String keyEncAlgo, String docEncAlgo, OutputStream outputStream,
+			SecretKeyInfo ski, boolean content, PublicKey escrowKey)
+			throws Exception {
 
 		// Preconditions
 		Precondition.assertNonNullArgument("null document", sourceDocument);
@@ -160,8 +181,7 @@ public class StreamEncryptor {
 
 		// Create the SecretKey that will encrypt the document
 		// SecretKeyInfo ski = skiFactory.createSessionKey();
-		final SecretKey secretKey =
-			KeyUtils.prepareSecretKey(docEncAlgo, ski.getKey());
+		final SecretKey secretKey = ski.toSecretKey(docEncAlgo);
 
 		// // Create the encrypted key element that will replace the root
 		// content
@@ -173,7 +193,8 @@ public class StreamEncryptor {
 		// encryptElement(sourceDocument, root, docEncAlgo, secretKey, keyInfo);
 
 		final XMLSecurityProperties encryptProperties =
-			StreamEncryptor.getEncryptionSecurityProperies(secretKey);
+			StreamEncryptor.getEncryptionSecurityProperies(secretKey,
+					escrowKey, docEncAlgo);
 		SecurePart.Modifier modifier =
 			content ? SecurePart.Modifier.Content : SecurePart.Modifier.Element;
 		SecurePart securePart = new SecurePart("", modifier);
@@ -193,8 +214,40 @@ public class StreamEncryptor {
 
 	public static XMLSecurityProperties getEncryptionSecurityProperies(
 			SecretKey secretKey) {
+		return getEncryptionSecurityProperies(secretKey, null);
+	}
+
+	/**
+	 * @param escrowKey
+	 *            a public RSA key under which the secret key is transported,
+	 *            or null
+	 */
+	public static XMLSecurityProperties getEncryptionSecurityProperies(
+			SecretKey secretKey, PublicKey escrowKey) {
+		return getEncryptionSecurityProperies(secretKey, escrowKey, null);
+	}
+
+	/**
+	 * @param escrowKey
+	 *            a public RSA key under which the secret key is transported,
+	 *            or null
+	 * @param docEncAlgo
+	 *            the document encryption algorithm, or null for the default
+	 *            of the streaming API, which is AES-256-CBC whatever the size
+	 *            of the secret key
+	 */
+	public static XMLSecurityProperties getEncryptionSecurityProperies(
+			SecretKey secretKey, PublicKey escrowKey, String docEncAlgo) {
 		XMLSecurityProperties retVal = new XMLSecurityProperties();
 		retVal.setEncryptionKey(secretKey);
+		if (docEncAlgo != null) {
+			retVal.setEncryptionSymAlgorithm(docEncAlgo);
+		}
+		if (escrowKey != null) {
+			retVal.setEncryptionTransportKey(escrowKey);
+			retVal.setEncryptionKeyTransportAlgorithm(
+					EscrowKeys.KEY_TRANSPORT_ALGORITHM);
+		}
 		List<XMLSecurityConstants.Action> actions;
 		actions = new ArrayList<XMLSecurityConstants.Action>();
 		actions.add(XMLSecurityConstants.ENCRYPT);
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.security.Key;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.encryption.XMLEncryptionException;
+
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * A pool of XMLCiphers, keyed by the URI of their encryption algorithm. An
+ * XMLCipher is not thread-safe, so each thread borrows a cipher for the
+ * duration of one operation and returns it. Borrowing an idle cipher skips
+ * the JCE provider lookup, cipher construction and canonicalizer setup done
+ * by {@link XMLCipher#getInstance(String)}.
+ * <p/>
+ * A cipher is initialized with the caller's key each time it is borrowed,
+ * because each encryption needs a fresh IV anyway, and its key is cleared
+ * when it is returned, so an idle cipher does not keep a {@link KeyMaterial}
+ * view reachable. A cipher whose operation failed should be
+ * {@link #discard(XMLCipher) discarded} rather than returned.
+ * <p/>
+ * Instances are thread-safe.
+ */
+public final class XMLCipherPool {
+
+	/** Default maximum number of idle ciphers for each algorithm */
+	public static final int DEFAULT_MAX_IDLE = 32;
+
+	private static final XMLCipherPool DEFAULT_POOL = new XMLCipherPool(
+			DEFAULT_MAX_IDLE);
+
+	/** Returns the pool used by the DOM encryptor and decryptor */
+	public static XMLCipherPool getDefault() {
+		return DEFAULT_POOL;
+	}
+
+	/** Idle ciphers for one algorithm */
+	private static final class Slot {
+		final Queue<XMLCipher> idle = new ConcurrentLinkedQueue<>();
+		final AtomicInteger idleCount = new AtomicInteger();
+	}
+
+	private final int maxIdle;
+	private final ConcurrentMap<String, Slot> slots =
+		new ConcurrentHashMap<>();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	/**
+	 * @param maxIdle
+	 *            a non-negative maximum number of idle ciphers for each
+	 *            algorithm
+	 */
+	public XMLCipherPool(int maxIdle) {
+		Precondition.assertBoolean("negative idle limit", maxIdle >= 0);
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Borrows a cipher for an algorithm and initializes it. The caller must
+	 * {@link #release(String, XMLCipher) return} or {@link #discard(XMLCipher)
+	 * discard} the cipher when it has finished with it.
+	 *
+	 * @param algorithm
+	 *            the URI of an XML Encryption algorithm
+	 * @param opmode
+	 *            {@link XMLCipher#ENCRYPT_MODE} or
+	 *            {@link XMLCipher#DECRYPT_MODE}
+	 * @param key
+	 *            the key of the operation
+	 */
+	public XMLCipher acquire(String algorithm, int opmode, Key key)
+			throws XMLEncryptionException {
+		Precondition.assertNonEmptyString("null or blank algorithm",
+				algorithm);
+		XMLCipher retVal = null;
+		final Slot slot = slots.get(algorithm);
+		if (slot != null) {
+			retVal = slot.idle.poll();
+			if (retVal != null) {
+				slot.idleCount.decrementAndGet();
+				reusedCount.incrementAndGet();
+			}
+		}
+		if (retVal == null) {
+			retVal = XMLCipher.getInstance(algorithm);
+			createdCount.incrementAndGet();
+		}
+		retVal.init(opmode, key);
+		return retVal;
+	}
+
+	/**
+	 * Clears the key of a cipher and, if there is room, returns it to this
+	 * pool. A null cipher is ignored.
+	 *
+	 * @param algorithm
+	 *            the algorithm for which the cipher was borrowed
+	 */
+	public void release(String algorithm, XMLCipher cipher) {
+		Precondition.assertNonEmptyString("null or blank algorithm",
+				algorithm);
+		if (cipher != null) {
+			try {
+				// Drops the key and the EncryptedData of the last operation
+				cipher.init(XMLCipher.DECRYPT_MODE, null);
+			} catch (XMLEncryptionException x) {
+				// Not thrown for a valid mode; don't pool the cipher
+				return;
+			}
+			final Slot slot = slots.computeIfAbsent(algorithm, a -> new Slot());
+			if (slot.idleCount.incrementAndGet() <= maxIdle) {
+				slot.idle.offer(cipher);
+			} else {
+				slot.idleCount.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops a cipher that may have been left in an unknown state by a failed
+	 * operation. A null cipher is ignored.
+	 */
+	public void discard(XMLCipher cipher) {
+		if (cipher != null) {
+			try {
+				cipher.init(XMLCipher.DECRYPT_MODE, null);
+			} catch (XMLEncryptionException x) {
+				// Not thrown for a valid mode
+				assert false : x;
+			}
+		}
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/** Returns the number of ciphers this pool has created */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/** Returns the number of times an idle cipher has been reused */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "XMLCipherPool [maxIdle=" + maxIdle + ", created="
+				+ getCreatedCount() + ", reused=" + getReusedCount() + "]";
+	}
+
+}
@@ -10,7 +10,9 @@
  */
 package com.choicemaker.xmlencryption;
 
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.io.Writer;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -21,9 +23,75 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
+import com.choicemaker.utilcopy01.Precondition;
+
+/**
+ * Serializes DOM nodes. Each thread keeps its own Transformers, one per output
+ * style, with the output properties already applied, because a Transformer is
+ * not thread-safe and is costly to create. The <code>print</code> methods
+ * return strings; the <code>write</code> methods stream to a caller's
+ * Writer or OutputStream without building one.
+ */
 public class XMLPrettyPrint {
 
+	/** Output styles, each served by its own cached Transformer */
+	private enum Style {
+		INDENTED("yes", "yes"), COMPACT("yes", "no"), DOCUMENT("no", "yes");
+
+		final String omitXmlDeclaration;
+		final String indent;
+
+		Style(String omitXmlDeclaration, String indent) {
+			this.omitXmlDeclaration = omitXmlDeclaration;
+			this.indent = indent;
+		}
+
+		static Style forElement(boolean withLineBreaks) {
+			return withLineBreaks ? INDENTED : COMPACT;
+		}
+	}
+
+	private static final TransformerFactory TRANSFORMER_FACTORY =
+		TransformerFactory.newInstance();
+
+	private static final ThreadLocal<Transformer[]> TRANSFORMERS =
+		ThreadLocal.withInitial(() -> new Transformer[Style.values().length]);
+
+	private static Transformer getTransformer(Style style)
+			throws TransformerException {
+		final Transformer[] transformers = TRANSFORMERS.get();
+		Transformer retVal = transformers[style.ordinal()];
+		if (retVal == null) {
+			// A TransformerFactory is not thread-safe
+			synchronized (TRANSFORMER_FACTORY) {
+				retVal = TRANSFORMER_FACTORY.newTransformer();
+			}
+			retVal.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
+					style.omitXmlDeclaration);
+			retVal.setOutputProperty(OutputKeys.METHOD, "xml");
+			retVal.setOutputProperty(OutputKeys.INDENT, style.indent);
+			retVal.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			retVal.setOutputProperty(
+					"{http://xml.apache.org/xslt}indent-amount", "1");
+			transformers[style.ordinal()] = retVal;
+		}
+		return retVal;
+	}
+
+	private static void transform(Node n, Style style, StreamResult result)
+			throws TransformerException {
+		final Transformer transformer = getTransformer(style);
+		try {
+			transformer.transform(new DOMSource(n), result);
+		} catch (TransformerException | RuntimeException x) {
+			// Don't reuse a transformer that may have been left mid-document
+			TRANSFORMERS.get()[style.ordinal()] = null;
+			throw x;
+		}
+	}
+
 	public static String print(Element e) {
 		final boolean withLineBreaks = true;
 		return print(e, withLineBreaks);
@@ -36,18 +104,9 @@ public class XMLPrettyPrint {
 
 		} else {
 			try {
-				TransformerFactory tf = TransformerFactory.newInstance();
-				Transformer transformer = tf.newTransformer();
-				transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
-						"yes");
-				transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-				final String indentFlag = withLineBreaks ? "yes" : "no";
-				transformer.setOutputProperty(OutputKeys.INDENT, indentFlag);
-				transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-				transformer.setOutputProperty(
-						"{http://xml.apache.org/xslt}indent-amount", "1");
 				StringWriter out = new StringWriter();
-				transformer.transform(new DOMSource(e), new StreamResult(out));
+				transform(e, Style.forElement(withLineBreaks),
+						new StreamResult(out));
 				retVal = out.toString();
 			} catch (TransformerException e1) {
 				retVal = e.toString();
@@ -67,19 +126,8 @@ public class XMLPrettyPrint {
 
 		} else {
 			try {
-				TransformerFactory tFactory = TransformerFactory.newInstance();
-				Transformer transformer = tFactory.newTransformer();
-				DOMSource source = new DOMSource(d);
-				transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
-						"no");
-				transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-				transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-				transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-				transformer.setOutputProperty(
-						"{http://xml.apache.org/xslt}indent-amount", "1");
 				StringWriter out = new StringWriter();
-				StreamResult result = new StreamResult(out);
-				transformer.transform(source, result);
+				transform(d, Style.DOCUMENT, new StreamResult(out));
 				retVal = out.toString();
 			} catch (TransformerException e1) {
 				retVal = e1.toString();
@@ -89,4 +137,48 @@ public class XMLPrettyPrint {
 		return retVal;
 	}
 
+	/**
+	 * Writes an element, without an XML declaration, to a Writer. The Writer
+	 * is not closed.
+	 */
+	public static void write(Element e, boolean withLineBreaks, Writer out)
+			throws TransformerException {
+		Precondition.assertNonNullArgument("null element", e);
+		Precondition.assertNonNullArgument("null writer", out);
+		transform(e, Style.forElement(withLineBreaks), new StreamResult(out));
+	}
+
+	/**
+	 * Writes an element, without an XML declaration, to an OutputStream in
+	 * UTF-8. The stream is not closed.
+	 */
+	public static void write(Element e, boolean withLineBreaks,
+			OutputStream out) throws TransformerException {
+		Precondition.assertNonNullArgument("null element", e);
+		Precondition.assertNonNullArgument("null output stream", out);
+		transform(e, Style.forElement(withLineBreaks), new StreamResult(out));
+	}
+
+	/**
+	 * Writes an indented document, with an XML declaration, to a Writer. The
+	 * Writer is not closed.
+	 */
+	public static void write(Document d, Writer out)
+			throws TransformerException {
+		Precondition.assertNonNullArgument("null document", d);
+		Precondition.assertNonNullArgument("null writer", out);
+		transform(d, Style.DOCUMENT, new StreamResult(out));
+	}
+
+	/**
+	 * Writes an indented document, with an XML declaration, to an
+	 * OutputStream in UTF-8. The stream is not closed.
+	 */
+	public static void write(Document d, OutputStream out)
+			throws TransformerException {
+		Precondition.assertNonNullArgument("null document", d);
+		Precondition.assertNonNullArgument("null output stream", out);
+		transform(d, Style.DOCUMENT, new StreamResult(out));
+	}
+
 }
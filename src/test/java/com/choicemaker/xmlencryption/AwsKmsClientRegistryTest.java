@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.services.kms.AWSKMS;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class AwsKmsClientRegistryTest {
+
+	// Clients are created but never used, so no requests are sent
+	private static final String ENDPOINT =
+		"https://kms.us-east-1.amazonaws.com";
+
+	private static final String OTHER_ENDPOINT =
+		"https://kms.us-west-2.amazonaws.com";
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.setClientMaxIdleMillis(
+				AwsKmsClientRegistry.DEFAULT_CLIENT_MAX_IDLE);
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testEqualKeysShareClient() {
+		// Distinct but equal credential instances, as DocumentDecryptor uses
+		AWSKMS first =
+			AwsKmsClientRegistry.getClient(new BasicAWSCredentials("a", "s"),
+					ENDPOINT);
+		AWSKMS second =
+			AwsKmsClientRegistry.getClient(new BasicAWSCredentials("a", "s"),
+					ENDPOINT);
+		assertSame(first, second);
+		assertEquals(1, AwsKmsClientRegistry.size());
+	}
+
+	@Test
+	public void testSecretKeySeparatesClients() {
+		AWSKMS first =
+			AwsKmsClientRegistry.getClient(new BasicAWSCredentials("a", "s1"),
+					ENDPOINT);
+		AWSKMS second =
+			AwsKmsClientRegistry.getClient(new BasicAWSCredentials("a", "s2"),
+					ENDPOINT);
+		assertNotSame(first, second);
+		assertEquals(2, AwsKmsClientRegistry.size());
+	}
+
+	@Test
+	public void testSessionTokenSeparatesClients() {
+		AWSKMS first =
+			AwsKmsClientRegistry.getClient(new BasicSessionCredentials("a",
+					"s", "t1"), ENDPOINT);
+		AWSKMS second =
+			AwsKmsClientRegistry.getClient(new BasicSessionCredentials("a",
+					"s", "t2"), ENDPOINT);
+		assertNotSame(first, second);
+		AWSKMS third =
+			AwsKmsClientRegistry.getClient(new BasicSessionCredentials("a",
+					"s", "t2"), ENDPOINT);
+		assertSame(second, third);
+	}
+
+	@Test
+	public void testEndpointSeparatesClients() {
+		AWSCredentials creds = new BasicAWSCredentials("a", "s");
+		AWSKMS first = AwsKmsClientRegistry.getClient(creds, ENDPOINT);
+		AWSKMS second =
+			AwsKmsClientRegistry.getClient(creds, OTHER_ENDPOINT);
+		assertNotSame(first, second);
+		assertEquals(2, AwsKmsClientRegistry.size());
+	}
+
+	@Test
+	public void testIdleClientIsEvicted() throws InterruptedException {
+		AWSCredentials creds = new BasicAWSCredentials("a", "s");
+		AWSKMS idle = AwsKmsClientRegistry.getClient(creds, ENDPOINT);
+		AwsKmsClientRegistry.setClientMaxIdleMillis(50);
+		Thread.sleep(150);
+
+		// Any lookup sweeps the registry once the idle interval has passed
+		AwsKmsClientRegistry.getClient(creds, OTHER_ENDPOINT);
+		assertEquals(1, AwsKmsClientRegistry.size());
+
+		// The evicted client is transparently recreated
+		AWSKMS recreated = AwsKmsClientRegistry.getClient(creds, ENDPOINT);
+		assertNotSame(idle, recreated);
+		assertEquals(2, AwsKmsClientRegistry.size());
+	}
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.choicemaker.utilcopy01.KeyUtils;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class AwsKmsExecutorTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	@After
+	public void tearDown() {
+		AwsKmsExecutor.shutdown();
+	}
+
+	@Test
+	public void testRejectedRequestCompletesExceptionally()
+			throws InterruptedException {
+		ExecutorService es = AwsKmsExecutor.createExecutor(1, 1);
+		AwsKmsExecutor.setExecutor(es);
+		final CountDownLatch latch = new CountDownLatch(1);
+		try {
+			CompletableFuture<Boolean> running =
+				AwsKmsExecutor.supplyAsync(() -> awaitQuietly(latch));
+			CompletableFuture<Boolean> queued =
+				AwsKmsExecutor.supplyAsync(() -> awaitQuietly(latch));
+			CompletableFuture<Boolean> rejected =
+				AwsKmsExecutor.supplyAsync(() -> awaitQuietly(latch));
+			assertTrue(rejected.isCompletedExceptionally());
+			try {
+				rejected.join();
+			} catch (RuntimeException x) {
+				assertTrue(x.getCause() instanceof RejectedExecutionException);
+			}
+			latch.countDown();
+			assertTrue(running.join());
+			assertTrue(queued.join());
+		} finally {
+			latch.countDown();
+			es.shutdown();
+			es.awaitTermination(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testShutdownSparesApplicationExecutor()
+			throws InterruptedException {
+		ExecutorService es = AwsKmsExecutor.createExecutor(1, 1);
+		try {
+			AwsKmsExecutor.setExecutor(es);
+			assertSame(es, AwsKmsExecutor.getExecutor());
+			AwsKmsExecutor.shutdown();
+			assertFalse(es.isShutdown());
+			assertNotSame(es, AwsKmsExecutor.getExecutor());
+		} finally {
+			es.shutdown();
+			es.awaitTermination(1, TimeUnit.SECONDS);
+		}
+
+		ExecutorService defaultExecutor = AwsKmsExecutor.getExecutor();
+		assertSame(defaultExecutor, AwsKmsExecutor.getExecutor());
+		AwsKmsExecutor.shutdown();
+		assertTrue(defaultExecutor.isShutdown());
+	}
+
+	@Test
+	public void testRejectedEncryptAsyncClosesKey() throws Exception {
+		final AtomicReference<SecretKeyInfo> lastKey = new AtomicReference<>();
+		final CountingSecretKeyInfoFactory counting =
+			new CountingSecretKeyInfoFactory();
+		SecretKeyInfoFactory skif = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				SecretKeyInfo retVal = counting.createSessionKey();
+				lastKey.set(retVal);
+				return retVal;
+			}
+		};
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(),
+					TestUtils.createLocalCredentialSet(null), skif);
+		Executor rejecting = r -> {
+			throw new RejectedExecutionException("full");
+		};
+
+		Document doc = TestUtils.parse(PLAINTEXT);
+		try {
+			encryptor.encryptAsync(doc,
+					DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+					DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, rejecting)
+					.get();
+			fail("expected RejectedExecutionException");
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause() instanceof RejectedExecutionException);
+		}
+		assertTrue(lastKey.get().isClosed());
+	}
+
+	@Test
+	public void testEncryptAsync() throws Exception {
+		final AtomicReference<SecretKeyInfo> lastKey = new AtomicReference<>();
+		final CountingSecretKeyInfoFactory counting =
+			new CountingSecretKeyInfoFactory();
+		SecretKeyInfoFactory skif = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				SecretKeyInfo retVal = counting.createSessionKey();
+				// Keep a reference, since the encryptor closes its own
+				lastKey.set(retVal.retain());
+				return retVal;
+			}
+		};
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(),
+					TestUtils.createLocalCredentialSet(null), skif);
+
+		Document doc = TestUtils.parse(PLAINTEXT);
+		Document encrypted = encryptor.encryptAsync(doc).get();
+		assertTrue(encrypted == doc);
+		Element root = doc.getDocumentElement();
+		Element ed = (Element) root.getFirstChild();
+		assertEquals(EncryptionConstants._TAG_ENCRYPTEDDATA, ed.getLocalName());
+
+		SecretKey key =
+			KeyUtils.prepareSecretKey(
+					DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, lastKey.get()
+							.getKey());
+		DocumentDecryptor.decryptElement(doc, root,
+				DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, key);
+		assertEquals("alpha", root.getElementsByTagNameNS("urn:test", "a")
+				.item(0).getTextContent());
+	}
+
+	@Test
+	public void testEncryptAsyncFailure() throws Exception {
+		SecretKeyInfoFactory failing = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				throw new IllegalStateException("KMS unavailable");
+			}
+		};
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(),
+					TestUtils.createLocalCredentialSet(null), failing);
+		try {
+			encryptor.encryptAsync(TestUtils.parse(PLAINTEXT)).get();
+			fail("expected an ExecutionException");
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	private static boolean awaitQuietly(CountDownLatch latch) {
+		try {
+			return latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Properties;
+
+import org.jasypt.encryption.StringEncryptor;
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.choicemaker.utilcopy01.ConfigurationUtils;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class AwsKmsPropertiesSnapshotTest {
+
+	private static final char[] PASSWORD = "secret".toCharArray();
+
+	private static File createFile(Properties p) throws IOException {
+		File retVal = File.createTempFile("santuario-kms", ".properties");
+		retVal.deleteOnExit();
+		write(retVal, p);
+		return retVal;
+	}
+
+	private static void write(File f, Properties p) throws IOException {
+		try (Writer w = new FileWriter(f)) {
+			p.store(w, null);
+		}
+	}
+
+	private static String encrypt(StringEncryptor se, String value) {
+		return ConfigurationUtils.ENC_START + se.encrypt(value)
+				+ ConfigurationUtils.ENC_END;
+	}
+
+	private static Properties createProperties(String accessKey) {
+		Properties retVal = new Properties();
+		retVal.setProperty(AwsKmsProperties.PN_ACCESSKEY, accessKey);
+		retVal.setProperty(AwsKmsProperties.PN_SECRETKEY, "secretKey");
+		retVal.setProperty(AwsKmsProperties.PN_MASTERKEY, "alias/test");
+		return retVal;
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsPropertiesSnapshot.clear();
+		AwsKmsPropertiesSnapshot.setCheckInterval(
+				AwsKmsPropertiesSnapshot.DEFAULT_CHECK_INTERVAL);
+	}
+
+	@Test
+	public void testDecryptValues() throws Exception {
+		StringEncryptor se = ConfigurationUtils.createTextEncryptor(PASSWORD);
+		Properties p = createProperties(encrypt(se, "accessKey"));
+		final int count =
+			2 * AwsKmsPropertiesSnapshot.POOLED_DECRYPTION_THRESHOLD;
+		for (int i = 0; i < count; i++) {
+			p.setProperty("value." + i, encrypt(se, "plain." + i));
+		}
+		File f = createFile(p);
+
+		AwsKmsPropertiesSnapshot snapshot =
+			AwsKmsPropertiesSnapshot.load(f, PASSWORD);
+		assertEquals("accessKey",
+				snapshot.getProperty(AwsKmsProperties.PN_ACCESSKEY));
+		assertEquals("plain.3", snapshot.getProperty("value.3"));
+		assertEquals("alias/test",
+				snapshot.getProperty(AwsKmsProperties.PN_MASTERKEY));
+		AWSCredentials creds = snapshot.getCredentials();
+		assertEquals("accessKey", creds.getAWSAccessKeyId());
+		assertEquals("secretKey", creds.getAWSSecretKey());
+
+		// Without a password, values are used exactly as specified
+		snapshot = AwsKmsPropertiesSnapshot.load(f, null);
+		assertEquals(p.getProperty("value.3"),
+				snapshot.getProperty("value.3"));
+
+		try {
+			AwsKmsPropertiesSnapshot.load(f, "wrong".toCharArray());
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReloadWhenModified() throws Exception {
+		AwsKmsPropertiesSnapshot.setCheckInterval(0);
+		File f = createFile(createProperties("first"));
+		final String path = f.getPath();
+
+		AwsKmsPropertiesSnapshot first = AwsKmsPropertiesSnapshot.get(path);
+		assertSame(first, AwsKmsPropertiesSnapshot.get(path));
+		assertFalse(first.isModified());
+
+		// Properties are copies of the cached snapshot
+		Properties p = AwsKmsProperties.loadAwsKmsProperties(path);
+		p.setProperty(AwsKmsProperties.PN_ACCESSKEY, "changed");
+		assertEquals("first",
+				first.getProperty(AwsKmsProperties.PN_ACCESSKEY));
+
+		write(f, createProperties("second"));
+		assertTrue(f.setLastModified(f.lastModified() + 2000));
+		assertTrue(first.isModified());
+		AwsKmsPropertiesSnapshot second = AwsKmsPropertiesSnapshot.get(path);
+		assertNotSame(first, second);
+		assertEquals("second",
+				second.getCredentials().getAWSAccessKeyId());
+	}
+
+	@Test
+	public void testCheckInterval() throws Exception {
+		AwsKmsPropertiesSnapshot.setCheckInterval(60 * 1000);
+		File f = createFile(createProperties("first"));
+		final String path = f.getPath();
+
+		AwsKmsPropertiesSnapshot first = AwsKmsPropertiesSnapshot.get(path);
+		write(f, createProperties("second"));
+		assertTrue(f.setLastModified(f.lastModified() + 2000));
+		assertSame(first, AwsKmsPropertiesSnapshot.get(path));
+	}
+
+	@Test
+	public void testCredentialSetCachesCredentials() {
+		AwsKmsCredentialSet cs =
+			new AwsKmsCredentialSet("test", createProperties("first"));
+		AWSCredentials creds = cs.getAWSCredentials();
+		assertSame(creds, cs.getAWSCredentials());
+		assertSame(creds,
+				new AwsKmsEncryptionScheme().getAwsKmsCredentials(cs));
+
+		cs.put(AwsKmsProperties.PN_ACCESSKEY, "second");
+		assertEquals("second", cs.getAWSCredentials().getAWSAccessKeyId());
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.NotFoundException;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class AwsKmsRetryHandlerTest {
+
+	private static final String ENDPOINT = "https://kms.test.invalid";
+
+	private static AmazonServiceException throttle() {
+		AmazonServiceException retVal =
+			new AmazonServiceException("Rate exceeded");
+		retVal.setErrorCode("ThrottlingException");
+		retVal.setStatusCode(400);
+		return retVal;
+	}
+
+	@Before
+	public void setUp() {
+		AwsKmsRetryHandler.setRetryPolicy(new KmsRetryPolicy(4, 1, 10,
+				1000.0, 10.0));
+		AwsKmsRetryHandler.resetRateLimiters();
+		AwsKmsRetryHandler.resetCircuitBreakers();
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsRetryHandler.setRetryPolicy(KmsRetryPolicy.DEFAULT);
+		AwsKmsRetryHandler.resetRateLimiters();
+		AwsKmsRetryHandler.resetCircuitBreakers();
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testThrottledRequestIsRetried() {
+		final String op = "testThrottledRequestIsRetried";
+		final AtomicInteger calls = new AtomicInteger();
+		String result = AwsKmsRetryHandler.execute(op, ENDPOINT, () -> {
+			if (calls.incrementAndGet() < 3) {
+				throw throttle();
+			}
+			return "ok";
+		});
+		assertEquals("ok", result);
+
+		KmsOperationMetrics m = AwsKmsRetryHandler.getMetrics(op);
+		assertEquals(1, m.getRequestCount());
+		assertEquals(3, m.getAttemptCount());
+		assertEquals(2, m.getRetryCount());
+		assertEquals(2, m.getThrottleCount());
+		assertEquals(0, m.getFailureCount());
+		AdaptiveRateLimiter limiter =
+			AwsKmsRetryHandler.getRateLimiter(ENDPOINT);
+		assertTrue(limiter.getRate() < limiter.getMaxRate());
+	}
+
+	@Test
+	public void testNonRetryableFailureIsNotRetried() {
+		final String op = "testNonRetryableFailureIsNotRetried";
+		try {
+			AwsKmsRetryHandler.execute(op, ENDPOINT, () -> {
+				throw new NotFoundException("no such key");
+			});
+			fail("expected NotFoundException");
+		} catch (NotFoundException x) {
+			// expected
+		}
+		KmsOperationMetrics m = AwsKmsRetryHandler.getMetrics(op);
+		assertEquals(1, m.getAttemptCount());
+		assertEquals(0, m.getRetryCount());
+		assertEquals(1, m.getFailureCount());
+	}
+
+	@Test
+	public void testClientFailureIsRetriedOnlyForIO() {
+		final String op = "testClientFailureIsRetriedOnlyForIO";
+		try {
+			AwsKmsRetryHandler.execute(op, ENDPOINT, () -> {
+				throw new AmazonClientException("Unable to unmarshall");
+			});
+			fail("expected AmazonClientException");
+		} catch (AmazonClientException x) {
+			// expected
+		}
+		KmsOperationMetrics m = AwsKmsRetryHandler.getMetrics(op);
+		assertEquals(1, m.getAttemptCount());
+		assertEquals(0, m.getRetryCount());
+
+		final AtomicInteger calls = new AtomicInteger();
+		String result = AwsKmsRetryHandler.execute(op, ENDPOINT, () -> {
+			if (calls.incrementAndGet() < 2) {
+				throw new AmazonClientException("Unable to execute",
+						new SocketTimeoutException("read timed out"));
+			}
+			return "ok";
+		});
+		assertEquals("ok", result);
+		assertEquals(3, m.getAttemptCount());
+		assertEquals(1, m.getRetryCount());
+	}
+
+	@Test
+	public void testAttemptsAreBounded() {
+		final String op = "testAttemptsAreBounded";
+		try {
+			AwsKmsRetryHandler.execute(op, ENDPOINT, () -> {
+				throw throttle();
+			});
+			fail("expected AmazonServiceException");
+		} catch (AmazonServiceException x) {
+			assertTrue(KmsRetryPolicy.isThrottle(x));
+		}
+		KmsOperationMetrics m = AwsKmsRetryHandler.getMetrics(op);
+		assertEquals(4, m.getAttemptCount());
+		assertEquals(3, m.getRetryCount());
+		assertEquals(1, m.getFailureCount());
+	}
+
+	@Test
+	public void testConfiguredMaxAttemptsIsHonoured() {
+		final String endpoint = "local://maxAttempts?throttle=1&seed=m";
+		Properties p = new Properties();
+		p.putAll(TestUtils.createLocalCredentialSet(endpoint).getProperties());
+		p.setProperty(AwsKmsProperties.PN_RETRY_MAX_ATTEMPTS, "2");
+		p.setProperty(AwsKmsProperties.PN_RETRY_BASE_DELAY, "0");
+		p.setProperty(AwsKmsProperties.PN_RETRY_MAX_DELAY, "0");
+		p.setProperty(AwsKmsProperties.PN_RATE_LIMIT_MIN, "0.5");
+		SecretKeyInfoFactory skif = new AwsKmsSecretKeyInfoFactory(p);
+		try {
+			skif.createSessionKey();
+			fail("expected AmazonClientException");
+		} catch (AmazonClientException x) {
+			assertTrue(KmsRetryPolicy.isThrottle(x));
+		}
+		// The process-wide policy set up by this test allows 4 attempts
+		LocalKms kms =
+			(LocalKms) AwsKmsClientRegistry.getClient(
+					AwsKmsCredentialSet.createAWSCredentials(p), endpoint);
+		assertEquals(2, kms.getGenerateDataKeyCount());
+		assertEquals(0.5, AwsKmsRetryHandler.getRateLimiter(endpoint)
+				.getMinRate(), 0.001);
+	}
+
+	@Test
+	public void testRateLimitWaitIsBoundedByDeadline() {
+		final String op = "testRateLimitWaitIsBoundedByDeadline";
+		final KmsRetryPolicy policy = new KmsRetryPolicy(1, 0, 0, 1.0, 1.0);
+		final GenerateDataKeyRequest request = new GenerateDataKeyRequest();
+		assertEquals("sent", AwsKmsRetryHandler.execute(op, ENDPOINT, "k",
+				policy, KmsDeadline.NONE, request, r -> "sent"));
+		// The next token is a second away, beyond the deadline
+		final long start = System.nanoTime();
+		try {
+			AwsKmsRetryHandler.execute(op, ENDPOINT, "k", policy,
+					KmsDeadline.after(50, TimeUnit.MILLISECONDS), request,
+					r -> "sent");
+			fail("expected KmsDeadlineExceededException");
+		} catch (KmsDeadlineExceededException x) {
+			// expected
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS
+				.toNanos(500));
+		assertEquals(1, AwsKmsRetryHandler.getMetrics(op).getAttemptCount());
+	}
+
+	@Test
+	public void testRateAdaptsToThrottling() throws InterruptedException {
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100.0, 10.0);
+		limiter.onThrottle();
+		assertEquals(50.0, limiter.getRate(), 0.001);
+		// A second throttle from the same burst does not reduce the rate
+		limiter.onThrottle();
+		assertEquals(50.0, limiter.getRate(), 0.001);
+		Thread.sleep(AdaptiveRateLimiter.DECREASE_INTERVAL + 10);
+		limiter.onThrottle();
+		assertEquals(25.0, limiter.getRate(), 0.001);
+		for (int i = 0; i < 200; i++) {
+			limiter.onSuccess();
+		}
+		assertEquals(100.0, limiter.getRate(), 0.001);
+	}
+
+	@Test
+	public void testBackoffIsBounded() {
+		KmsRetryPolicy policy = new KmsRetryPolicy(10, 10, 100, 1.0, 1.0);
+		for (int retry = 1; retry < 10; retry++) {
+			long ceiling = Math.min(100, 10L << (retry - 1));
+			long delay = policy.computeDelay(retry);
+			assertTrue(delay >= 0 && delay <= ceiling);
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class BatchTest {
+
+	private static final String ENDPOINT = "local://batch";
+
+	private static String plaintext(int i) {
+		return "<root xmlns=\"urn:test\"><id>" + i + "</id><a>alpha</a></root>";
+	}
+
+	private static List<Document> parse(int count) throws Exception {
+		List<Document> retVal = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			retVal.add(TestUtils.parse(plaintext(i)));
+		}
+		return retVal;
+	}
+
+	private static AwsKmsCredentialSet credentials() {
+		return TestUtils.createLocalCredentialSet(ENDPOINT);
+	}
+
+	private static LocalKms getKms(AwsKmsCredentialSet cs) {
+		return (LocalKms) AwsKmsClientRegistry.getClient(AwsKmsCredentialSet
+				.createAWSCredentials(cs.getProperties()), ENDPOINT);
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testOrderedRoundTrip() throws Exception {
+		final int count = 20;
+		final AwsKmsCredentialSet cs = credentials();
+		final LocalKms kms = getKms(cs);
+		final List<Document> docs = parse(count);
+
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs);
+		final long generated = kms.getGenerateDataKeyCount();
+		List<BatchResult> results = encryptor.encryptAll(docs);
+		assertEquals(count, kms.getGenerateDataKeyCount() - generated);
+		assertEquals(count, results.size());
+		for (int i = 0; i < count; i++) {
+			BatchResult r = results.get(i);
+			assertTrue(r.toString(), r.isSuccess());
+			assertEquals(i, r.getIndex());
+			assertSame(docs.get(i), r.getDocument());
+			assertFalse(r.getDocument().getDocumentElement().getTextContent()
+					.contains("alpha"));
+		}
+
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(), cs);
+		final long decrypted = kms.getDecryptCount();
+		results = decryptor.decryptAll(docs);
+		assertEquals(count, kms.getDecryptCount() - decrypted);
+		for (int i = 0; i < count; i++) {
+			BatchResult r = results.get(i);
+			assertTrue(r.toString(), r.isSuccess());
+			assertEquals(String.valueOf(i), r.getDocument()
+					.getDocumentElement().getFirstChild().getTextContent());
+		}
+	}
+
+	@Test
+	public void testKeyFactoryLimitsReuse() throws Exception {
+		final int count = 10;
+		final AwsKmsCredentialSet cs = credentials();
+		final LocalKms kms = getKms(cs);
+		final List<Document> docs = parse(count);
+
+		final EncryptionScheme es = new AwsKmsEncryptionScheme();
+		final CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(es.getSecretKeyInfoFactory(cs,
+					es.getKeyEncryptionAlgorithm(), Collections.emptyMap()),
+					4, CachingSecretKeyInfoFactory.DEFAULT_MAX_BYTES,
+					CachingSecretKeyInfoFactory.DEFAULT_MAX_AGE);
+		DocumentEncryptor encryptor = new DocumentEncryptor(es, cs, skif);
+		final long generated = kms.getGenerateDataKeyCount();
+		for (BatchResult r : encryptor.encryptAll(docs)) {
+			assertTrue(r.toString(), r.isSuccess());
+		}
+		assertEquals(3, kms.getGenerateDataKeyCount() - generated);
+		assertEquals(3, skif.getRotationCount());
+
+		DocumentDecryptor decryptor = new DocumentDecryptor(es, cs);
+		for (BatchResult r : decryptor.decryptAll(docs)) {
+			assertTrue(r.toString(), r.isSuccess());
+		}
+	}
+
+	@Test
+	public void testUnorderedGroups() throws Exception {
+		final int count = 7;
+		final AwsKmsCredentialSet cs = credentials();
+		final LocalKms kms = getKms(cs);
+		final List<Document> docs = parse(count);
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			DocumentEncryptor encryptor =
+				new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs);
+			final long generated = kms.getGenerateDataKeyCount();
+			final BitSet delivered = new BitSet();
+			encryptor.encryptAll(docs.stream(),
+					DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+					DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, 3, executor, 2,
+					false, r -> {
+						assertTrue(r.toString(), r.isSuccess());
+						assertFalse(delivered.get(r.getIndex()));
+						delivered.set(r.getIndex());
+					});
+			assertEquals(count, delivered.cardinality());
+			assertEquals(3, kms.getGenerateDataKeyCount() - generated);
+
+			DocumentDecryptor decryptor =
+				new DocumentDecryptor(new AwsKmsEncryptionScheme(), cs);
+			final long decrypted = kms.getDecryptCount();
+			delivered.clear();
+			decryptor.decryptAll(docs.stream(), executor, 2, false, r -> {
+				assertTrue(r.toString(), r.isSuccess());
+				delivered.set(r.getIndex());
+			});
+			assertEquals(count, delivered.cardinality());
+			assertEquals(3, kms.getDecryptCount() - decrypted);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailuresDoNotStopBatch() throws Exception {
+		final AwsKmsCredentialSet cs = credentials();
+		final List<Document> docs = parse(4);
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs);
+		encryptor.encryptAll(docs.subList(0, 3));
+
+		// The last document is not encrypted
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(), cs);
+		List<BatchResult> results = decryptor.decryptAll(docs);
+		assertEquals(4, results.size());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(results.get(i).isSuccess());
+		}
+		assertTrue(results.get(3).getFailure() instanceof
+				IllegalArgumentException);
+		assertEquals("3", docs.get(3).getDocumentElement().getFirstChild()
+				.getTextContent());
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class CachingSecretKeyInfoFactoryTest {
+
+	@Test
+	public void testMaxMessages() {
+		CountingSecretKeyInfoFactory delegate =
+			new CountingSecretKeyInfoFactory();
+		CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(delegate, 3, Long.MAX_VALUE,
+					Long.MAX_VALUE);
+		SecretKeyInfo ski = skif.createSessionKey();
+		assertSame(ski, skif.createSessionKey());
+		assertSame(ski, skif.createSessionKey());
+		assertFalse(ski == skif.createSessionKey());
+		assertEquals(2, delegate.count.get());
+		assertEquals(2, skif.getRotationCount());
+	}
+
+	@Test
+	public void testMaxBytes() {
+		CountingSecretKeyInfoFactory delegate =
+			new CountingSecretKeyInfoFactory();
+		CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(delegate, Long.MAX_VALUE, 100,
+					Long.MAX_VALUE);
+		SecretKeyInfo ski = skif.createSessionKey();
+		skif.recordUsage(ski, 60);
+		assertSame(ski, skif.createSessionKey());
+		skif.recordUsage(ski, 60);
+		assertFalse(ski == skif.createSessionKey());
+		assertEquals(2, delegate.count.get());
+	}
+
+	@Test
+	public void testMaxAge() throws InterruptedException {
+		CountingSecretKeyInfoFactory delegate =
+			new CountingSecretKeyInfoFactory();
+		CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(delegate, Long.MAX_VALUE,
+					Long.MAX_VALUE, 1);
+		SecretKeyInfo ski = skif.createSessionKey();
+		Thread.sleep(10);
+		assertFalse(ski == skif.createSessionKey());
+		assertEquals(2, delegate.count.get());
+	}
+
+	@Test
+	public void testRotationDoesNotBlockOtherCallers() throws Exception {
+		final CountDownLatch rotating = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingSecretKeyInfoFactory delegate =
+			new CountingSecretKeyInfoFactory() {
+				@Override
+				public SecretKeyInfo createSessionKey() {
+					if (count.get() > 0) {
+						rotating.countDown();
+						try {
+							release.await(5, TimeUnit.SECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					return super.createSessionKey();
+				}
+			};
+		final CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(delegate, 2, Long.MAX_VALUE,
+					Long.MAX_VALUE);
+		final SecretKeyInfo first = skif.createSessionKey();
+		assertSame(first, skif.createSessionKey());
+
+		// One caller requests the second key, and blocks in the delegate
+		ExecutorService es = Executors.newFixedThreadPool(2);
+		try {
+			Future<SecretKeyInfo> leader = es.submit(() -> skif
+					.createSessionKey());
+			assertTrue(rotating.await(5, TimeUnit.SECONDS));
+
+			// The factory is not locked by the request
+			skif.recordUsage(first, 10);
+			assertEquals(1, skif.getRotationCount());
+
+			// A caller with a short deadline fails at its deadline
+			final long start = System.currentTimeMillis();
+			try {
+				skif.createSessionKey(KmsDeadline.after(100,
+						TimeUnit.MILLISECONDS));
+				fail("expected KmsDeadlineExceededException");
+			} catch (KmsDeadlineExceededException x) {
+				// expected
+			}
+			assertTrue(System.currentTimeMillis() - start < 2000);
+
+			// A concurrent caller shares the request for the second key
+			Future<SecretKeyInfo> follower = es.submit(() -> skif
+					.createSessionKey());
+			Thread.sleep(50);
+			release.countDown();
+			SecretKeyInfo second = leader.get(5, TimeUnit.SECONDS);
+			SecretKeyInfo third = follower.get(5, TimeUnit.SECONDS);
+			assertFalse(first == second);
+			assertSame(second, third);
+			assertEquals(2, delegate.count.get());
+			assertEquals(2, skif.getRotationCount());
+		} finally {
+			release.countDown();
+			es.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testReuseProperties() {
+		Properties p = new Properties();
+		assertFalse(CachingSecretKeyInfoFactory.hasReuseProperties(p));
+		p.setProperty(AwsKmsProperties.PN_DATAKEY_MAX_MESSAGES, "10");
+		assertTrue(CachingSecretKeyInfoFactory.hasReuseProperties(p));
+		CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(
+					new CountingSecretKeyInfoFactory(), p);
+		assertEquals(10, skif.getMaxMessages());
+		assertEquals(CachingSecretKeyInfoFactory.DEFAULT_MAX_BYTES,
+				skif.getMaxBytes());
+		assertEquals(CachingSecretKeyInfoFactory.DEFAULT_MAX_AGE,
+				skif.getMaxAge());
+	}
+
+}
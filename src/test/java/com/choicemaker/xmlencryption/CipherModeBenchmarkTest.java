@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.junit.Assume;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.choicemaker.utilcopy01.KeyUtils;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Compares the throughput of CBC and GCM document encryption, by document
+ * size, on the running JVM. For each algorithm and size, it reports the
+ * throughput of encrypting and decrypting the content of a DOM document,
+ * which includes serializing and parsing the content, and the throughput of
+ * the JCE cipher alone. It also reports whether the JVM uses AES and GHASH
+ * intrinsics (AES-NI and carry-less multiplication on x86), which decide how
+ * fast each mode is. An option reported as "n/a" is not visible to the
+ * benchmark; some are diagnostic options that are visible only with
+ * <code>-XX:+UnlockDiagnosticVMOptions</code>.
+ * <p/>
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties. The benchmark is skipped unless the System property
+ * {@link #PN_BENCHMARK} is "true":
+ *
+ * <pre>
+ * mvn test -Dtest=CipherModeBenchmarkTest -Dbenchmark=true
+ * </pre>
+ */
+public class CipherModeBenchmarkTest {
+
+	/** The name of the System property that enables the benchmark */
+	public static final String PN_BENCHMARK = "benchmark";
+
+	static {
+		org.apache.xml.security.Init.init();
+	}
+
+	private static final String[] ALGORITHMS = new String[] {
+			DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO,
+			DefaultAlgorithms.AES128_GCM_DOC_ENCRYPT_ALGO,
+			DefaultAlgorithms.STRONG_DOC_ENCRYPT_ALGORITHM,
+			DefaultAlgorithms.AES256_GCM_DOC_ENCRYPT_ALGO };
+
+	private static final int[] SIZES = new int[] {
+			1 << 10, 16 << 10, 256 << 10, 1 << 20 };
+
+	private static final String[] INTRINSICS = new String[] {
+			"UseAES", "UseAESIntrinsics", "UseAESCTRIntrinsics",
+			"UseGHASHIntrinsics" };
+
+	/** Time spent on each measurement, after the same time of warm-up */
+	private static final long MEASURE_NANOS = 500L * 1000 * 1000;
+
+	private static final double MB = 1024.0 * 1024.0;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** Returns the JVM options that enable AES and GHASH intrinsics */
+	static String describeIntrinsics() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(System.getProperty("java.vm.name")).append(' ')
+				.append(System.getProperty("java.version")).append(" on ")
+				.append(System.getProperty("os.arch"));
+		HotSpotDiagnosticMXBean hotspot = null;
+		try {
+			hotspot =
+				ManagementFactory
+						.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+		} catch (RuntimeException x) {
+			// Not a HotSpot JVM
+		}
+		for (String option : INTRINSICS) {
+			String value = "n/a";
+			if (hotspot != null) {
+				try {
+					value = hotspot.getVMOption(option).getValue();
+				} catch (IllegalArgumentException x) {
+					// Not an option of this JVM or platform
+				}
+			}
+			sb.append(", ").append(option).append('=').append(value);
+		}
+		return sb.toString();
+	}
+
+	/** Creates a document whose root content is about the specified size */
+	static Document createDocument(int size) throws Exception {
+		StringBuilder sb = new StringBuilder("<root xmlns=\"urn:test\">");
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("<record id=\"").append(i).append("\"><name>Name ")
+					.append(i).append("</name><ssn>").append(100000000 + i)
+					.append("</ssn></record>");
+		}
+		sb.append("</root>");
+		return TestUtils.parse(sb.toString());
+	}
+
+	static SecretKey createKey(String algorithm) {
+		// The key of a GCM algorithm is not truncated, so it must have the
+		// size the algorithm names
+		final int length = algorithm.contains("256") ? 32 : 16;
+		byte[] raw = new byte[length];
+		RANDOM.nextBytes(raw);
+		return KeyUtils.prepareSecretKey(algorithm, raw);
+	}
+
+	/**
+	 * Returns the encryption and decryption throughput, in MB per second, of
+	 * the root content of a DOM document
+	 */
+	static double[] measureDocument(String algorithm, int size)
+			throws Exception {
+		final XMLCipherPool pool = XMLCipherPool.getDefault();
+		final SecretKey key = createKey(algorithm);
+		final Document doc = createDocument(size);
+		final Element root = doc.getDocumentElement();
+		long encryptNanos = 0;
+		long decryptNanos = 0;
+		long count = 0;
+		boolean warm = false;
+		final long start = System.nanoTime();
+		while (true) {
+			long t0 = System.nanoTime();
+			XMLCipher c = pool.acquire(algorithm, XMLCipher.ENCRYPT_MODE, key);
+			c.doFinal(doc, root, true);
+			pool.release(algorithm, c);
+			long t1 = System.nanoTime();
+			DocumentDecryptor.decryptElement(doc, root, algorithm, key);
+			long t2 = System.nanoTime();
+			if (warm) {
+				encryptNanos += t1 - t0;
+				decryptNanos += t2 - t1;
+				++count;
+				if (t2 - start > 2 * MEASURE_NANOS) {
+					break;
+				}
+			} else {
+				warm = t2 - start > MEASURE_NANOS;
+			}
+		}
+		return new double[] { throughput(size, count, encryptNanos),
+				throughput(size, count, decryptNanos) };
+	}
+
+	/** Returns the encryption throughput, in MB per second, of the cipher */
+	static double measureCipher(String algorithm, int size) throws Exception {
+		final SecretKey key = createKey(algorithm);
+		final boolean gcm = algorithm.endsWith("gcm");
+		final Cipher cipher =
+			Cipher.getInstance(JCEMapper.translateURItoJCEID(algorithm));
+		final byte[] plaintext = new byte[size];
+		final byte[] iv = new byte[gcm ? 12 : 16];
+		long nanos = 0;
+		long count = 0;
+		boolean warm = false;
+		final long start = System.nanoTime();
+		while (true) {
+			long t0 = System.nanoTime();
+			RANDOM.nextBytes(iv);
+			AlgorithmParameterSpec spec =
+				gcm ? new GCMParameterSpec(128, iv) : new IvParameterSpec(iv);
+			cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+			cipher.doFinal(plaintext);
+			long t1 = System.nanoTime();
+			if (warm) {
+				nanos += t1 - t0;
+				++count;
+				if (t1 - start > 2 * MEASURE_NANOS) {
+					break;
+				}
+			} else {
+				warm = t1 - start > MEASURE_NANOS;
+			}
+		}
+		return throughput(size, count, nanos);
+	}
+
+	private static double throughput(int size, long count, long nanos) {
+		return nanos == 0 ? 0 : (size * (double) count / MB)
+				/ (nanos / 1.0e9);
+	}
+
+	private static String shortName(String algorithm) {
+		return algorithm.substring(algorithm.indexOf('#') + 1);
+	}
+
+	@Test
+	public void testThroughput() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean(PN_BENCHMARK));
+		System.out.println(describeIntrinsics());
+		System.out.println(String.format("%-12s %9s %12s %12s %12s",
+				"algorithm", "bytes", "DOM enc MB/s", "DOM dec MB/s",
+				"cipher MB/s"));
+		for (int size : SIZES) {
+			for (String algorithm : ALGORITHMS) {
+				double[] dom = measureDocument(algorithm, size);
+				double cipher = measureCipher(algorithm, size);
+				System.out.println(String.format(
+						"%-12s %9d %12.1f %12.1f %12.1f",
+						shortName(algorithm), size, dom[0], dom[1], cipher));
+				assertTrue(dom[0] > 0 && dom[1] > 0 && cipher > 0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates random keys without contacting AWS KMS, and counts the keys it
+ * creates. The "encrypted" secret is random, so the keys can not be recovered
+ * by a decryptor. The KeyInfo of each key names {@link #MASTER_KEY_ID}.
+ */
+public class CountingSecretKeyInfoFactory implements SecretKeyInfoFactory {
+
+	public static final String MASTER_KEY_ID = "test-master-key";
+
+	final SecureRandom random = new SecureRandom();
+	final AtomicInteger count = new AtomicInteger();
+
+	@Override
+	public SecretKeyInfo createSessionKey() {
+		count.incrementAndGet();
+		byte[] key = new byte[16];
+		random.nextBytes(key);
+		byte[] encKey = new byte[32];
+		random.nextBytes(encKey);
+		return new SecretKeyInfo(KeyMaterial.copyOf(key), encKey,
+				MASTER_KEY_ID);
+	}
+
+}
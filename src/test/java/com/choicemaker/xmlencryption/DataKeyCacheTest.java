@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class DataKeyCacheTest {
+
+	private static final String MASTER_KEY = "alias/test";
+	private static final String ENDPOINT = "local://cache";
+	private static final byte[] BLOB_1 = new byte[] {
+			1, 2, 3 };
+	private static final byte[] BLOB_2 = new byte[] {
+			4, 5, 6 };
+	private static final byte[] KEY_1 = new byte[] {
+			11, 12, 13, 14 };
+	private static final byte[] KEY_2 = new byte[] {
+			21, 22, 23, 24 };
+
+	@Test
+	public void testHitAndMiss() {
+		DataKeyCache cache = new DataKeyCache();
+		assertNull(cache.get(MASTER_KEY, BLOB_1));
+		cache.put(MASTER_KEY, BLOB_1, KEY_1);
+		assertArrayEquals(KEY_1, cache.get(MASTER_KEY, BLOB_1.clone()));
+		assertNull(cache.get("alias/other", BLOB_1));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void testReturnedKeyIsACopy() {
+		DataKeyCache cache = new DataKeyCache();
+		byte[] plaintext = KEY_1.clone();
+		cache.put(MASTER_KEY, BLOB_1, plaintext);
+		plaintext[0] = 0;
+		byte[] cached = cache.get(MASTER_KEY, BLOB_1);
+		assertArrayEquals(KEY_1, cached);
+		cache.clear();
+		assertArrayEquals(KEY_1, cached);
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testMaxEntries() {
+		DataKeyCache cache = new DataKeyCache(1, DataKeyCache.DEFAULT_MAX_AGE,
+				DataKeyCache.DEFAULT_MAX_USES);
+		cache.put(MASTER_KEY, BLOB_1, KEY_1);
+		cache.put(MASTER_KEY, BLOB_2, KEY_2);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertNull(cache.get(MASTER_KEY, BLOB_1));
+		assertArrayEquals(KEY_2, cache.get(MASTER_KEY, BLOB_2));
+	}
+
+	@Test
+	public void testMaxUses() {
+		DataKeyCache cache = new DataKeyCache(10,
+				DataKeyCache.DEFAULT_MAX_AGE, 2);
+		cache.put(MASTER_KEY, BLOB_1, KEY_1);
+		assertTrue(cache.get(MASTER_KEY, BLOB_1) != null);
+		assertTrue(cache.get(MASTER_KEY, BLOB_1) != null);
+		assertNull(cache.get(MASTER_KEY, BLOB_1));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testMaxAge() throws InterruptedException {
+		DataKeyCache cache = new DataKeyCache(10, 1,
+				DataKeyCache.DEFAULT_MAX_USES);
+		cache.put(MASTER_KEY, BLOB_1, KEY_1);
+		Thread.sleep(10);
+		assertNull(cache.get(MASTER_KEY, BLOB_1));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testEntriesAreScopedByCredentialsAndEndpoint() {
+		DataKeyCache cache = new DataKeyCache();
+		AWSCredentials creds = new BasicAWSCredentials("access", "secret");
+		cache.put(creds, ENDPOINT, MASTER_KEY, BLOB_1, KEY_1);
+		assertArrayEquals(KEY_1, cache.get(new BasicAWSCredentials("access",
+				"secret"), ENDPOINT, MASTER_KEY, BLOB_1));
+		assertNull(cache.get(new BasicAWSCredentials("access", "other"),
+				ENDPOINT, MASTER_KEY, BLOB_1));
+		assertNull(cache.get(new BasicAWSCredentials("other", "secret"),
+				ENDPOINT, MASTER_KEY, BLOB_1));
+		assertNull(cache.get(creds, "local://other", MASTER_KEY, BLOB_1));
+		assertNull(cache.get(MASTER_KEY, BLOB_1));
+	}
+
+	@Test
+	public void testPutRemovesExpiredEntries() throws InterruptedException {
+		DataKeyCache cache = new DataKeyCache(10, 20,
+				DataKeyCache.DEFAULT_MAX_USES);
+		cache.put(MASTER_KEY, BLOB_1, KEY_1);
+		Thread.sleep(50);
+		cache.put(MASTER_KEY, BLOB_2, KEY_2);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testExpiredEntriesAreSwept() throws InterruptedException {
+		DataKeyCache cache = new DataKeyCache(10, 1,
+				DataKeyCache.DEFAULT_MAX_USES);
+		cache.put(MASTER_KEY, BLOB_1, KEY_1);
+		final long start = System.currentTimeMillis();
+		while (cache.size() > 0
+				&& System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class DiagnosticsTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><ssn type=\"private\">123-45-6789</ssn>"
+				+ "<!-- comment --><note>a &lt; b</note></root>";
+
+	@Test
+	public void testRedactsContent() throws Exception {
+		Element root = TestUtils.parse(PLAINTEXT).getDocumentElement();
+
+		String redacted = Diagnostics.toPreview(root, 1000, false);
+		assertEquals("<root xmlns=\"urn:test\"><ssn type=\"[7 chars]\">"
+				+ "[11 chars]</ssn><note>[5 chars]</note></root>", redacted);
+
+		String shown = Diagnostics.toPreview(root, 1000, true);
+		assertEquals("<root xmlns=\"urn:test\"><ssn type=\"private\">"
+				+ "123-45-6789</ssn><note>a &lt; b</note></root>", shown);
+
+		assertNull(Diagnostics.toPreview(null, 1000, false));
+	}
+
+	@Test
+	public void testTruncates() throws Exception {
+		Element root = TestUtils.parse(PLAINTEXT).getDocumentElement();
+		String full = Diagnostics.toPreview(root, 1000, true);
+
+		String preview = Diagnostics.toPreview(root, 20, true);
+		assertEquals(full.substring(0, 20) + Diagnostics.TRUNCATED, preview);
+		assertEquals(Diagnostics.TRUNCATED,
+				Diagnostics.toPreview(root, 0, true));
+	}
+
+	@Test
+	public void testDeferredPreview() throws Exception {
+		Document doc = TestUtils.parse(PLAINTEXT);
+		Object preview = Diagnostics.preview(doc);
+		doc.getDocumentElement().setAttributeNS(null, "Id", "late");
+		assertTrue(preview.toString().contains("Id="));
+	}
+
+	@Test
+	public void testEncryptedContent() throws Exception {
+		final String endpoint = "local://diagnostics";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs,
+					new CountingSecretKeyInfoFactory());
+		Document doc = TestUtils.parse(PLAINTEXT);
+		encryptor.encrypt(doc);
+		AwsKmsClientRegistry.shutdown();
+
+		String preview = Diagnostics.toPreview(doc, 100000, true);
+		assertTrue(preview.contains("EncryptedData"));
+		final String masterKeyId = CountingSecretKeyInfoFactory.MASTER_KEY_ID;
+		assertTrue(preview.contains(masterKeyId));
+		assertFalse(preview.contains("123-45-6789"));
+		// Cipher values are replaced by their length, even when text is shown
+		assertTrue(preview.matches("(?s).*CipherValue>\\[\\d+ chars\\]<.*"));
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.choicemaker.utilcopy01.DOMUtils;
+import com.choicemaker.utilcopy01.DocumentBuilderPool;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class DocumentBuilderPoolTest {
+
+	private static final String DOCTYPE_XML =
+		"<!DOCTYPE root [<!ENTITY e \"entity\">]><root>&e;</root>";
+
+	private static Document parse(DocumentBuilderPool pool, String xml)
+			throws Exception {
+		DocumentBuilder builder = pool.acquire();
+		try {
+			return builder.parse(new InputSource(new StringReader(xml)));
+		} finally {
+			pool.release(builder);
+		}
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		DocumentBuilderPool pool = new DocumentBuilderPool(true, true, 1);
+		DocumentBuilder first = pool.acquire();
+		pool.release(first);
+		assertSame(first, pool.acquire());
+		DocumentBuilder second = pool.acquire();
+		pool.release(first);
+		pool.release(second);
+		assertEquals(2, pool.getCreatedCount());
+		assertSame(first, pool.acquire());
+		assertEquals(2, pool.getCreatedCount());
+	}
+
+	@Test
+	public void testSecureProcessing() throws Exception {
+		DocumentBuilderPool secure = new DocumentBuilderPool(true, true, 1);
+		try {
+			parse(secure, DOCTYPE_XML);
+			fail("expected SAXException");
+		} catch (SAXException x) {
+			// expected
+		}
+		DocumentBuilderPool lenient = new DocumentBuilderPool(false, false, 1);
+		assertEquals("entity", parse(lenient, DOCTYPE_XML)
+				.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testConcurrentParsing() throws Exception {
+		final int threads = 8;
+		final int iterations = 200;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int id = t;
+				results.add(executor.submit(() -> {
+					boolean retVal = true;
+					for (int i = 0; i < iterations; i++) {
+						String text = id + "-" + i;
+						Document doc =
+							TestUtils.parse("<root xmlns=\"urn:test\"><a>"
+									+ text + "</a></root>");
+						retVal &=
+							text.equals(doc.getDocumentElement()
+									.getTextContent())
+									&& "urn:test".equals(doc
+											.getDocumentElement()
+											.getNamespaceURI());
+						Document empty = DOMUtils.newDocument();
+						retVal &= empty.getFirstChild() == null;
+					}
+					return retVal;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		DocumentBuilderPool pool = DocumentBuilderPool.getDefault();
+		assertTrue(pool.toString(), pool.getCreatedCount() <= 2 * threads);
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class EncryptedDataHeaderTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	private static Document encrypt(EncryptionScheme scheme) throws Exception {
+		final String endpoint = "local://header";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		Document retVal = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(scheme, cs).encrypt(retVal);
+		return retVal;
+	}
+
+	private static byte[] serialize(Document doc) throws Exception {
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		XMLPrettyPrint.write(doc, retVal);
+		return retVal.toByteArray();
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testDomAndStreamAgree() throws Exception {
+		EncryptionScheme scheme = new AwsKmsEncryptionScheme();
+		Document doc = encrypt(scheme);
+		EncryptedDataHeader header =
+			EncryptedDataHeader.parseContent(doc.getDocumentElement());
+		assertTrue(header.hasKmsKey());
+		assertEquals(CountingSecretKeyInfoFactory.MASTER_KEY_ID,
+				header.getMasterKeyId());
+		assertEquals(scheme.getDocumentEncryptionAlgorithm(),
+				header.getDataAlgorithm());
+		assertNotNull(header.getKeyAlgorithm());
+		assertNotNull(header.getEncryptedKey());
+		assertFalse(header.isWrapped());
+		assertFalse(header.isDerived());
+		assertFalse(header.hasEscrowKey());
+
+		EncryptedDataHeader read =
+			EncryptedDataHeader.read(new ByteArrayInputStream(serialize(doc)));
+		assertEquals(header, read);
+		assertEquals(header.hashCode(), read.hashCode());
+	}
+
+	@Test
+	public void testWrappedAndDerivedKeys() throws Exception {
+		Document doc = encrypt(new AwsKmsKeyWrappingScheme());
+		EncryptedDataHeader header =
+			EncryptedDataHeader.parseContent(doc.getDocumentElement());
+		assertTrue(header.isWrapped());
+		assertFalse(header.isDerived());
+		assertEquals(CountingSecretKeyInfoFactory.MASTER_KEY_ID,
+				header.getMasterKeyId());
+		assertEquals(header, EncryptedDataHeader.read(
+				new ByteArrayInputStream(serialize(doc))));
+
+		doc = encrypt(new AwsKmsKeyDerivationScheme());
+		header = EncryptedDataHeader.parseContent(doc.getDocumentElement());
+		assertTrue(header.isDerived());
+		assertFalse(header.isWrapped());
+		assertNull(header.getWrappedKey());
+		assertEquals(header, EncryptedDataHeader.read(
+				new ByteArrayInputStream(serialize(doc))));
+	}
+
+	@Test
+	public void testPeekResetsStream() throws Exception {
+		byte[] bytes = serialize(encrypt(new AwsKmsEncryptionScheme()));
+		InputStream is = new ByteArrayInputStream(bytes);
+		EncryptedDataHeader header = StreamDecryptor.peekHeader(is);
+		assertTrue(header.hasKmsKey());
+		assertEquals(bytes.length, is.available());
+	}
+
+	@Test
+	public void testInvalidHeaders() throws Exception {
+		Element root = TestUtils.parse(PLAINTEXT).getDocumentElement();
+		try {
+			EncryptedDataHeader.parseContent(root);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+
+		final String noMethod =
+			"<root><xenc:EncryptedData xmlns:xenc=\""
+					+ "http://www.w3.org/2001/04/xmlenc#\"><xenc:CipherData>"
+					+ "<xenc:CipherValue>AAAA</xenc:CipherValue>"
+					+ "</xenc:CipherData></xenc:EncryptedData></root>";
+		root = TestUtils.parse(noMethod).getDocumentElement();
+		try {
+			EncryptedDataHeader.parseContent(root);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+		try {
+			EncryptedDataHeader.read(new ByteArrayInputStream(noMethod
+					.getBytes("UTF-8")));
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+	}
+
+}
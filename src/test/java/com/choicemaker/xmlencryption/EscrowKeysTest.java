@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.choicemaker.utilcopy01.WSS4JConstants;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class EscrowKeysTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	private static final char[] PASSWORD = "hello".toCharArray();
+
+	private static InputStream getResource(String name) {
+		return EscrowKeysTest.class.getClassLoader().getResourceAsStream(
+				"openssl/" + name);
+	}
+
+	private static PrivateKey readPrivateKey() throws Exception {
+		try (InputStream is = getResource("enc-key.pem")) {
+			return EscrowKeys.readPrivateKey(is, PASSWORD);
+		}
+	}
+
+	/**
+	 * Returns the public key that matches {@link #readPrivateKey()}. (The
+	 * resource pub-key.pem belongs to a different key pair.)
+	 */
+	private static PublicKey readPublicKey() throws Exception {
+		RSAPrivateCrtKey key = (RSAPrivateCrtKey) readPrivateKey();
+		RSAPublicKeySpec spec =
+			new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent());
+		return KeyFactory.getInstance("RSA").generatePublic(spec);
+	}
+
+	private static void assertDecrypted(Document doc) {
+		Element root = doc.getDocumentElement();
+		assertEquals("beta", root.getElementsByTagNameNS("urn:test", "b")
+				.item(0).getTextContent());
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testReadKeys() throws Exception {
+		try (InputStream is = getResource("pub-key.pem")) {
+			RSAPublicKey key = (RSAPublicKey) EscrowKeys.readPublicKey(is);
+			assertEquals(2048, key.getModulus().bitLength());
+		}
+		try (InputStream is = getResource("noenc-key.pem")) {
+			assertEquals(readPrivateKey(), EscrowKeys.readPrivateKey(is, null));
+		}
+		try (InputStream is = getResource("enc-key.pem")) {
+			EscrowKeys.readPrivateKey(is, "wrong".toCharArray());
+			fail("expected GeneralSecurityException");
+		} catch (GeneralSecurityException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWrapUnwrap() throws Exception {
+		PublicKey publicKey = readPublicKey();
+		PrivateKey privateKey = readPrivateKey();
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 5);
+		byte[] wrapped = EscrowKeys.wrap(publicKey, key);
+		assertEquals(256, wrapped.length);
+		assertArrayEquals(key, EscrowKeys.unwrap(privateKey, wrapped));
+	}
+
+	@Test
+	public void testDocumentEscrow() throws Exception {
+		final String endpoint = "local://escrow";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		AwsKmsEncryptionScheme scheme = new AwsKmsEncryptionScheme();
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(scheme, cs,
+					scheme.getSecretKeyInfoFactory(cs,
+							scheme.getKeyEncryptionAlgorithm(), null),
+					readPublicKey());
+
+		Document[] docs = new Document[3];
+		for (int i = 0; i < docs.length; i++) {
+			docs[i] = TestUtils.parse(PLAINTEXT);
+			encryptor.encrypt(docs[i]);
+		}
+		NodeList ekList =
+			docs[0].getElementsByTagNameNS(WSS4JConstants.ENC_NS,
+					WSS4JConstants.ENC_KEY_LN);
+		assertEquals(2, ekList.getLength());
+		assertEquals(EscrowKeys.ESCROW_RECIPIENT, ((Element) ekList.item(1))
+				.getAttributeNS(null, EncryptionConstants._ATT_RECIPIENT));
+
+		// The escrow key decrypts without KMS
+		DocumentDecryptor escrowDecryptor =
+			new DocumentDecryptor(readPrivateKey());
+		escrowDecryptor.decrypt(docs[0]);
+		assertDecrypted(docs[0]);
+		escrowDecryptor.decryptAsync(docs[1]).get(10, TimeUnit.SECONDS);
+		assertDecrypted(docs[1]);
+
+		AWSCredentials creds =
+			AwsKmsCredentialSet.createAWSCredentials(cs.getProperties());
+		LocalKms kms =
+			(LocalKms) AwsKmsClientRegistry.getClient(creds, endpoint);
+		assertEquals(0, kms.getDecryptCount());
+
+		// KMS still decrypts a document with an escrow key
+		new DocumentDecryptor(scheme, cs).decrypt(docs[2]);
+		assertDecrypted(docs[2]);
+		assertEquals(1, kms.getDecryptCount());
+
+		// A document without an escrow key is rejected
+		Document doc = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(scheme, cs).encrypt(doc);
+		try {
+			escrowDecryptor.decrypt(doc);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStreamEscrow() throws Exception {
+		final String docAlgo = XMLCipher.AES_128;
+		SecretKeyInfoFactory skif = new CountingSecretKeyInfoFactory();
+		SecretKeyInfo ski = skif.createSessionKey();
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		StreamEncryptor.encrypt(new ByteArrayInputStream(PLAINTEXT
+				.getBytes(StandardCharsets.UTF_8)),
+				DefaultAlgorithms.DECLARED_KEY_ENCRYPTION, docAlgo, encrypted,
+				ski, true, readPublicKey());
+		String xml = encrypted.toString("UTF-8");
+		assertTrue(xml, xml.contains(EscrowKeys.KEY_TRANSPORT_ALGORITHM));
+		EncryptedDataHeader header =
+			StreamDecryptor.peekHeader(new ByteArrayInputStream(encrypted
+					.toByteArray()));
+		assertTrue(header.hasEscrowKey());
+		assertFalse(header.hasKmsKey());
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		StreamDecryptor.decrypt(new ByteArrayInputStream(encrypted
+				.toByteArray()), decrypted, readPrivateKey());
+		assertDecrypted(TestUtils.parse(decrypted.toString("UTF-8")));
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import org.apache.xml.security.encryption.XMLEncryptionException;
+import org.apache.xml.security.utils.Base64;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class GcmSchemeTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	private static AwsKmsCredentialSet credentials() {
+		return TestUtils.createLocalCredentialSet("local://gcm");
+	}
+
+	private static void roundTrip(AwsKmsEncryptionScheme scheme)
+			throws Exception {
+		final AwsKmsCredentialSet cs = credentials();
+		Document doc = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(scheme, cs).encrypt(doc);
+		EncryptedDataHeader header =
+			EncryptedDataHeader.parseContent(doc.getDocumentElement());
+		assertEquals(scheme.getDocumentEncryptionAlgorithm(),
+				header.getDataAlgorithm());
+		assertFalse(doc.getDocumentElement().getTextContent()
+				.contains("alpha"));
+
+		new DocumentDecryptor(scheme, cs).decrypt(doc);
+		assertEquals("beta", doc.getDocumentElement().getLastChild()
+				.getTextContent());
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testSchemes() {
+		AwsKmsEncryptionScheme scheme =
+			AwsKmsEncryptionScheme.createAes128GcmScheme();
+		assertEquals(AwsKmsEncryptionScheme.AES128_GCM_SCHEME_ID,
+				scheme.getSchemeId());
+		assertEquals(DefaultAlgorithms.DEFAULT_AWS_KEY_ENCRYPTION_ALGORITHM,
+				scheme.getKeyEncryptionAlgorithm());
+
+		scheme = AwsKmsEncryptionScheme.createAes256GcmScheme();
+		assertEquals(DefaultAlgorithms.AES256_GCM_DOC_ENCRYPT_ALGO,
+				scheme.getDocumentEncryptionAlgorithm());
+		assertEquals(DefaultAlgorithms.STRONG_AWS_KEY_ENCRYPTION_ALGORITHM,
+				scheme.getKeyEncryptionAlgorithm());
+	}
+
+	@Test
+	public void testDomRoundTrip() throws Exception {
+		roundTrip(AwsKmsEncryptionScheme.createAes128GcmScheme());
+		roundTrip(AwsKmsEncryptionScheme.createAes256GcmScheme());
+	}
+
+	@Test
+	public void testAlteredContentIsRejected() throws Exception {
+		final AwsKmsEncryptionScheme scheme =
+			AwsKmsEncryptionScheme.createAes128GcmScheme();
+		final AwsKmsCredentialSet cs = credentials();
+		Document doc = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(scheme, cs).encrypt(doc);
+
+		// Flip one bit of the encrypted content, which follows the cipher
+		// value of the EncryptedKey
+		NodeList cipherValues =
+			doc.getElementsByTagNameNS(EncryptionConstants.EncryptionSpecNS,
+					EncryptionConstants._TAG_CIPHERVALUE);
+		Element cv = (Element) cipherValues.item(cipherValues.getLength() - 1);
+		byte[] bytes = Base64.decode(cv.getTextContent());
+		bytes[bytes.length / 2] ^= 1;
+		cv.setTextContent(Base64.encode(bytes));
+
+		try {
+			new DocumentDecryptor(scheme, cs).decrypt(doc);
+			fail("expected XMLEncryptionException");
+		} catch (XMLEncryptionException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStreamRoundTrip() throws Exception {
+		for (AwsKmsEncryptionScheme scheme : new AwsKmsEncryptionScheme[] {
+				AwsKmsEncryptionScheme.createAes128GcmScheme(),
+				AwsKmsEncryptionScheme.createAes256GcmScheme() }) {
+			final String keyEncAlgo = DefaultAlgorithms.DECLARED_KEY_ENCRYPTION;
+			final String docEncAlgo = scheme.getDocumentEncryptionAlgorithm();
+			final SecretKeyInfo ski =
+				scheme.getSecretKeyInfoFactory(credentials(),
+						scheme.getKeyEncryptionAlgorithm(),
+						Collections.emptyMap()).createSessionKey();
+
+			ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+			StreamEncryptor.encrypt(
+					new ByteArrayInputStream(PLAINTEXT.getBytes("UTF-8")),
+					keyEncAlgo, docEncAlgo, encrypted, ski, true);
+			EncryptedDataHeader header =
+				EncryptedDataHeader.read(new ByteArrayInputStream(encrypted
+						.toByteArray()));
+			assertEquals(docEncAlgo, header.getDataAlgorithm());
+
+			ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+			StreamDecryptor.decrypt(
+					new ByteArrayInputStream(encrypted.toByteArray()),
+					keyEncAlgo, docEncAlgo, decrypted, ski);
+			assertTrue(decrypted.toString("UTF-8").contains("beta"));
+		}
+	}
+
+}
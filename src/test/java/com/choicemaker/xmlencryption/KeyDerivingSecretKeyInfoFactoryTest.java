@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.amazonaws.auth.AWSCredentials;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class KeyDerivingSecretKeyInfoFactoryTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	private static byte[] fromHex(String hex) {
+		byte[] retVal = new byte[hex.length() / 2];
+		for (int i = 0; i < retVal.length; i++) {
+			retVal[i] =
+				(byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return retVal;
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	/** Test case 1 of RFC 5869 */
+	@Test
+	public void testRfc5869Vector() throws Exception {
+		byte[] ikm = new byte[22];
+		Arrays.fill(ikm, (byte) 0x0b);
+		byte[] salt = fromHex("000102030405060708090a0b0c");
+		byte[] info = fromHex("f0f1f2f3f4f5f6f7f8f9");
+		byte[] expected =
+			fromHex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db0"
+					+ "2d56ecc4c5bf34007208d5b887185865");
+		assertArrayEquals(expected,
+				KeyDerivingSecretKeyInfoFactory.derive(ikm, salt, info, 42));
+	}
+
+	@Test
+	public void testDerivedKeysAreDistinct() throws Exception {
+		CountingSecretKeyInfoFactory counting =
+			new CountingSecretKeyInfoFactory();
+		SecretKeyInfoFactory baseKeyFactory =
+			new CachingSecretKeyInfoFactory(counting, 3, Long.MAX_VALUE,
+					Long.MAX_VALUE);
+		KeyDerivingSecretKeyInfoFactory skif =
+			new KeyDerivingSecretKeyInfoFactory(baseKeyFactory);
+
+		Set<String> keys = new HashSet<>();
+		Set<String> encryptedKeys = new HashSet<>();
+		for (int i = 0; i < 6; i++) {
+			SecretKeyInfo ski = skif.createSessionKey();
+			keys.add(Arrays.toString(ski.getKey()));
+			encryptedKeys.add(Arrays.toString(ski.getEncryptedSecret()));
+
+			// The KeyInfo records the salt
+			Element kd =
+				DocumentDecryptor.findSingleChildElementByTagNameNS(
+						ski.getKeyInfoReference(),
+						KeyDerivingSecretKeyInfoFactory.KDF_NS,
+						KeyDerivingSecretKeyInfoFactory.KDF_PREFIX + ":"
+								+ KeyDerivingSecretKeyInfoFactory
+										.KEY_DERIVATION_LN);
+			assertNotNull(kd.getTextContent());
+		}
+		assertEquals(6, keys.size());
+		assertEquals(2, encryptedKeys.size());
+		assertEquals(2, counting.count.get());
+	}
+
+	@Test
+	public void testOneKmsRequestPerBaseKey() throws Exception {
+		final String endpoint = "local://deriving";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		AwsKmsKeyDerivationScheme scheme = new AwsKmsKeyDerivationScheme();
+		DocumentEncryptor encryptor = new DocumentEncryptor(scheme, cs);
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(scheme, cs, new DataKeyCache());
+
+		final int count = 5;
+		Set<String> cipherValues = new HashSet<>();
+		Document[] docs = new Document[count];
+		for (int i = 0; i < count; i++) {
+			docs[i] = TestUtils.parse(PLAINTEXT);
+			encryptor.encrypt(docs[i]);
+			cipherValues.add(docs[i].getDocumentElement().getTextContent());
+		}
+		assertEquals(count, cipherValues.size());
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0) {
+				decryptor.decrypt(docs[i]);
+			} else {
+				decryptor.decryptAsync(docs[i]).get(10, TimeUnit.SECONDS);
+			}
+			Element root = docs[i].getDocumentElement();
+			assertEquals("beta", root.getElementsByTagNameNS("urn:test", "b")
+					.item(0).getTextContent());
+		}
+
+		AWSCredentials creds =
+			AwsKmsCredentialSet.createAWSCredentials(cs.getProperties());
+		LocalKms kms = (LocalKms) AwsKmsClientRegistry.getClient(creds,
+				endpoint);
+		assertEquals(1, kms.getGenerateDataKeyCount());
+		assertEquals(1, kms.getDecryptCount());
+	}
+
+	@Test
+	public void testModifiedSaltFails() throws Exception {
+		AwsKmsCredentialSet cs =
+			TestUtils.createLocalCredentialSet("local://salted");
+		AwsKmsKeyDerivationScheme scheme = new AwsKmsKeyDerivationScheme();
+		Document doc = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(scheme, cs).encrypt(doc);
+
+		Element kd =
+			(Element) doc.getElementsByTagNameNS(
+					KeyDerivingSecretKeyInfoFactory.KDF_NS,
+					KeyDerivingSecretKeyInfoFactory.KEY_DERIVATION_LN).item(0);
+		String salt = kd.getTextContent();
+		kd.setTextContent((salt.charAt(0) == 'A' ? 'B' : 'A')
+				+ salt.substring(1));
+		boolean decrypted;
+		try {
+			new DocumentDecryptor(scheme, cs).decrypt(doc);
+			Element root = doc.getDocumentElement();
+			decrypted =
+				root.getElementsByTagNameNS("urn:test", "b").getLength() == 1;
+		} catch (Exception x) {
+			decrypted = false;
+		}
+		assertFalse(decrypted);
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.apache.xml.security.encryption.XMLCipher;
+import org.junit.Test;
+
+import com.choicemaker.utilcopy01.KeyUtils;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class KeyMaterialTest {
+
+	private static byte[] createKey(int length) {
+		byte[] retVal = new byte[length];
+		for (int i = 0; i < length; i++) {
+			retVal[i] = (byte) (i + 1);
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testCloseZeroizesAndPools() {
+		for (boolean direct : new boolean[] {
+				false, true }) {
+			KeyMaterialPool pool = new KeyMaterialPool(direct, 4);
+			ByteBuffer source = ByteBuffer.wrap(createKey(32));
+			KeyMaterial km = KeyMaterial.copyOf(source, pool);
+			assertEquals(0, source.remaining());
+			assertEquals(32, km.length());
+			assertArrayEquals(createKey(32), km.getBytes());
+
+			SecretKey view = km.toSecretKey(XMLCipher.AES_256);
+			assertFalse(view.isDestroyed());
+			km.close();
+			assertTrue(km.isClosed());
+			assertTrue(view.isDestroyed());
+			try {
+				view.getEncoded();
+				fail("expected IllegalStateException");
+			} catch (IllegalStateException x) {
+				// expected
+			}
+
+			// The zeroized buffer is reused for a key of the same slot size
+			KeyMaterial km2 =
+				KeyMaterial.copyOf(ByteBuffer.wrap(createKey(24)), pool);
+			assertEquals(1, pool.getAllocatedCount());
+			assertEquals(1, pool.getReusedCount());
+			assertArrayEquals(createKey(24), km2.getBytes());
+			km2.close();
+		}
+	}
+
+	@Test
+	public void testReferenceCounting() {
+		KeyMaterial km = KeyMaterial.copyOf(createKey(16));
+		assertSame(km, km.retain());
+		km.close();
+		assertFalse(km.isClosed());
+		km.close();
+		assertTrue(km.isClosed());
+		try {
+			km.retain();
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSecretKeyView() throws Exception {
+		final byte[] raw = createKey(32);
+		final byte[] iv = new byte[16];
+		final byte[] plaintext =
+			"The quick brown fox".getBytes(StandardCharsets.UTF_8);
+		try (KeyMaterial km = KeyMaterial.copyOf(raw)) {
+			SecretKey view = km.toSecretKey(XMLCipher.AES_128);
+			SecretKey spec = KeyUtils.prepareSecretKey(XMLCipher.AES_128, raw);
+			assertEquals(spec.getAlgorithm(), view.getAlgorithm());
+			assertArrayEquals(spec.getEncoded(), view.getEncoded());
+			assertEquals(16, view.getEncoded().length);
+
+			Cipher c1 = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			c1.init(Cipher.ENCRYPT_MODE, view, new IvParameterSpec(iv));
+			Cipher c2 = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			c2.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(iv));
+			assertArrayEquals(c2.doFinal(plaintext), c1.doFinal(plaintext));
+		}
+	}
+
+	@Test
+	public void testCachedKeyOutlivesCallers() {
+		CachingSecretKeyInfoFactory skif =
+			new CachingSecretKeyInfoFactory(
+					new CountingSecretKeyInfoFactory(), 2, Long.MAX_VALUE,
+					Long.MAX_VALUE);
+		SecretKeyInfo first = skif.createSessionKey();
+		first.close();
+		assertFalse("cached key was zeroized", first.isClosed());
+
+		SecretKeyInfo second = skif.createSessionKey();
+		assertSame(first, second);
+		SecretKeyInfo third = skif.createSessionKey();
+		assertNotSame(first, third);
+
+		// The replaced key survives until its last caller closes it
+		assertFalse(second.isClosed());
+		second.close();
+		assertTrue(second.isClosed());
+
+		skif.rotate();
+		assertFalse(third.isClosed());
+		third.close();
+		assertTrue(third.isClosed());
+	}
+
+	@Test
+	public void testEncryptorClosesKeys() throws Exception {
+		CountingSecretKeyInfoFactory delegate =
+			new CountingSecretKeyInfoFactory();
+		final SecretKeyInfo[] created = new SecretKeyInfo[1];
+		SecretKeyInfoFactory skif = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				created[0] = delegate.createSessionKey();
+				return created[0];
+			}
+		};
+		final String endpoint = "local://key-material";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs, skif);
+		encryptor.encrypt(TestUtils.parse("<root><a>alpha</a></root>"));
+		assertTrue(created[0].isClosed());
+		AwsKmsClientRegistry.shutdown();
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.xml.security.encryption.XMLEncryptionException;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.choicemaker.utilcopy01.WSS4JConstants;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class KeyWrappingSecretKeyInfoFactoryTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testWrapUnwrap() throws Exception {
+		byte[] kek = new byte[16];
+		Arrays.fill(kek, (byte) 7);
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 3);
+		byte[] wrapped = KeyWrappingSecretKeyInfoFactory.wrap(kek, key);
+		assertEquals(key.length + 8, wrapped.length);
+		assertArrayEquals(key,
+				KeyWrappingSecretKeyInfoFactory.unwrap(kek, wrapped));
+
+		byte[] otherKek = kek.clone();
+		otherKek[0] ^= 1;
+		try {
+			KeyWrappingSecretKeyInfoFactory.unwrap(otherKek, wrapped);
+			fail("expected GeneralSecurityException");
+		} catch (GeneralSecurityException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testKekRotation() {
+		CountingSecretKeyInfoFactory counting =
+			new CountingSecretKeyInfoFactory();
+		SecretKeyInfoFactory kekFactory =
+			new CachingSecretKeyInfoFactory(counting, 2, Long.MAX_VALUE,
+					Long.MAX_VALUE);
+		KeyWrappingSecretKeyInfoFactory skif =
+			new KeyWrappingSecretKeyInfoFactory(kekFactory, 16);
+
+		Set<String> keys = new HashSet<>();
+		SecretKeyInfo first = skif.createSessionKey();
+		SecretKeyInfo second = skif.createSessionKey();
+		assertSame(first.getKeyInfoReference(), second.getKeyInfoReference());
+		keys.add(Arrays.toString(first.getKey()));
+		keys.add(Arrays.toString(second.getKey()));
+		for (int i = 0; i < 3; i++) {
+			keys.add(Arrays.toString(skif.createSessionKey().getKey()));
+		}
+		assertEquals(5, keys.size());
+		assertEquals(3, counting.count.get());
+
+		// The KeyInfo holds the EncryptedKey of the KEK
+		Element ek =
+			DocumentDecryptor.findSingleChildElementByTagNameNS(
+					first.getKeyInfoReference(), WSS4JConstants.ENC_NS,
+					WSS4JConstants.ENC_PREFIX + ":"
+							+ WSS4JConstants.ENC_KEY_LN);
+		assertEquals(EncryptionConstants._TAG_ENCRYPTEDKEY, ek.getLocalName());
+	}
+
+	@Test
+	public void testOneKmsRequestPerKek() throws Exception {
+		final String endpoint = "local://wrapping";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		AwsKmsKeyWrappingScheme scheme = new AwsKmsKeyWrappingScheme();
+		DocumentEncryptor encryptor = new DocumentEncryptor(scheme, cs);
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(scheme, cs, new DataKeyCache());
+
+		final int count = 5;
+		Set<String> cipherValues = new HashSet<>();
+		Document[] docs = new Document[count];
+		for (int i = 0; i < count; i++) {
+			docs[i] = TestUtils.parse(PLAINTEXT);
+			encryptor.encrypt(docs[i]);
+			cipherValues.add(docs[i].getDocumentElement().getTextContent());
+		}
+		assertEquals(count, cipherValues.size());
+		for (Document doc : docs) {
+			decryptor.decrypt(doc);
+			Element root = doc.getDocumentElement();
+			assertEquals("beta", root.getElementsByTagNameNS("urn:test", "b")
+					.item(0).getTextContent());
+		}
+
+		AWSCredentials creds =
+			AwsKmsCredentialSet.createAWSCredentials(cs.getProperties());
+		LocalKms kms = (LocalKms) AwsKmsClientRegistry.getClient(creds,
+				endpoint);
+		assertEquals(1, kms.getGenerateDataKeyCount());
+		assertEquals(1, kms.getDecryptCount());
+	}
+
+	@Test
+	public void testTamperedWrappedKeyFails() throws Exception {
+		AwsKmsCredentialSet cs =
+			TestUtils.createLocalCredentialSet("local://tampered");
+		AwsKmsKeyWrappingScheme scheme = new AwsKmsKeyWrappingScheme();
+		Document doc = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(scheme, cs).encrypt(doc);
+
+		// In document order: the KEK, the wrapped key, the document
+		Element cv =
+			(Element) doc.getElementsByTagNameNS(WSS4JConstants.ENC_NS,
+					"CipherValue").item(1);
+		String value = cv.getTextContent();
+		cv.setTextContent((value.charAt(0) == 'A' ? 'B' : 'A')
+				+ value.substring(1));
+		try {
+			new DocumentDecryptor(scheme, cs).decrypt(doc);
+			fail("expected XMLEncryptionException");
+		} catch (XMLEncryptionException x) {
+			assertFalse(x.getMessage().isEmpty());
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xml.security.utils.Base64;
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.kms.model.InvalidCiphertextException;
+import com.choicemaker.xmlencryption.KmsCircuitBreaker.State;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class KmsCircuitBreakerTest {
+
+	private static final String KEY_ID =
+		CountingSecretKeyInfoFactory.MASTER_KEY_ID;
+
+	private static AWSCredentials createCredentials(String endpoint) {
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		return AwsKmsCredentialSet.createAWSCredentials(cs.getProperties());
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+		AwsKmsRetryHandler.setRetryPolicy(KmsRetryPolicy.DEFAULT);
+		AwsKmsRetryHandler.resetRateLimiters();
+		AwsKmsRetryHandler.resetCircuitBreakers();
+	}
+
+	@Test
+	public void testStates() throws Exception {
+		KmsCircuitBreaker b = new KmsCircuitBreaker("e", "k", 2, 50);
+		assertTrue(b.tryAcquire());
+		b.onFailure();
+		assertEquals(State.CLOSED, b.getState());
+		assertTrue(b.tryAcquire());
+		b.onFailure();
+		assertEquals(State.OPEN, b.getState());
+		assertEquals(1, b.getOpenCount());
+
+		assertFalse(b.tryAcquire());
+		assertEquals(1, b.getRejectedCount());
+
+		// One trial request after the open duration
+		Thread.sleep(100);
+		assertTrue(b.tryAcquire());
+		assertEquals(State.HALF_OPEN, b.getState());
+		assertFalse(b.tryAcquire());
+		b.onFailure();
+		assertEquals(State.OPEN, b.getState());
+		assertEquals(2, b.getOpenCount());
+
+		Thread.sleep(100);
+		assertTrue(b.tryAcquire());
+		b.onSuccess();
+		assertEquals(State.CLOSED, b.getState());
+		assertEquals(0, b.getConsecutiveFailures());
+		assertTrue(b.tryAcquire());
+	}
+
+	@Test
+	public void testOpenBreakerFailsFast() {
+		AwsKmsRetryHandler.setRetryPolicy(new KmsRetryPolicy(1, 0, 0, 1000.0,
+				1.0, 2, 60 * 1000L));
+		final String endpoint = "local://down?throttle=1.0&seed=b";
+		AWSCredentials creds = createCredentials(endpoint);
+		for (int i = 0; i < 2; i++) {
+			try {
+				AwsKmsUtils.generateDataKey(creds, KEY_ID, "AES_128",
+						endpoint);
+				fail("expected AmazonServiceException");
+			} catch (AmazonServiceException x) {
+				// expected
+			}
+		}
+		KmsCircuitBreaker breaker =
+			AwsKmsRetryHandler.getCircuitBreaker(endpoint, KEY_ID);
+		assertEquals(State.OPEN, breaker.getState());
+
+		final long rejections =
+			AwsKmsRetryHandler.getMetrics(
+					AwsKmsRetryHandler.OP_GENERATE_DATA_KEY)
+					.getRejectionCount();
+		try {
+			AwsKmsUtils.generateDataKey(creds, KEY_ID, "AES_128", endpoint);
+			fail("expected KmsCircuitOpenException");
+		} catch (KmsCircuitOpenException x) {
+			// expected
+		}
+		LocalKms kms =
+			(LocalKms) AwsKmsClientRegistry.getClient(creds, endpoint);
+		assertEquals(2, kms.getGenerateDataKeyCount());
+		assertEquals(1, breaker.getRejectedCount());
+		assertEquals(rejections + 1, AwsKmsRetryHandler.getMetrics(
+				AwsKmsRetryHandler.OP_GENERATE_DATA_KEY).getRejectionCount());
+
+		// Another master key on the same endpoint has its own breaker
+		assertEquals(State.CLOSED, AwsKmsRetryHandler.getCircuitBreaker(
+				endpoint, "alias/other").getState());
+	}
+
+	@Test
+	public void testExpiredDeadlineDoesNotOpenBreaker() {
+		AwsKmsRetryHandler.setRetryPolicy(new KmsRetryPolicy(1, 0, 0, 1000.0,
+				1.0, 1, 60 * 1000L));
+		final String endpoint = "local://late?seed=b";
+		AWSCredentials creds = createCredentials(endpoint);
+		for (int i = 0; i < 2; i++) {
+			try {
+				AwsKmsUtils.generateDataKey(creds, KEY_ID, "AES_128",
+						endpoint, null, KmsDeadline.after(0, TimeUnit.SECONDS));
+				fail("expected KmsDeadlineExceededException");
+			} catch (KmsDeadlineExceededException x) {
+				// expected
+			}
+		}
+		assertEquals(State.CLOSED, AwsKmsRetryHandler.getCircuitBreaker(
+				endpoint, KEY_ID).getState());
+	}
+
+	@Test
+	public void testBreakersAreBounded() {
+		final String endpoint = "https://kms.test.invalid";
+		KmsCircuitBreaker open =
+			AwsKmsRetryHandler.getCircuitBreaker(endpoint, "alias/open");
+		for (int i = 0; i < open.getFailureThreshold(); i++) {
+			open.onFailure();
+		}
+		assertEquals(State.OPEN, open.getState());
+		// Master key ids come from documents, so there may be any number
+		final int count = 2 * AwsKmsRetryHandler.MAX_CIRCUIT_BREAKERS;
+		for (int i = 0; i < count; i++) {
+			AwsKmsRetryHandler.getCircuitBreaker(endpoint, "alias/key" + i);
+		}
+		final int kept = AwsKmsRetryHandler.getAllCircuitBreakers().size();
+		assertTrue(kept <= AwsKmsRetryHandler.MAX_CIRCUIT_BREAKERS);
+		// A breaker that is not idle is kept
+		assertSame(open, AwsKmsRetryHandler.getCircuitBreaker(endpoint,
+				"alias/open"));
+	}
+
+	@Test
+	public void testBadRequestsDoNotOpenBreaker() throws Exception {
+		AwsKmsRetryHandler.setRetryPolicy(new KmsRetryPolicy(1, 0, 0, 1000.0,
+				1.0, 2, 60 * 1000L));
+		final String endpoint = "local://healthy?seed=b";
+		AWSCredentials creds = createCredentials(endpoint);
+		final String garbage = Base64.encode(new byte[] {
+				1, 2, 3, 4, 5 });
+		for (int i = 0; i < 3; i++) {
+			try {
+				AwsKmsUtils.computeSecretBytes(creds, KEY_ID, null, garbage,
+						endpoint);
+				fail("expected InvalidCiphertextException");
+			} catch (InvalidCiphertextException x) {
+				// expected
+			}
+		}
+		assertEquals(State.CLOSED, AwsKmsRetryHandler.getCircuitBreaker(
+				endpoint, KEY_ID).getState());
+	}
+
+}
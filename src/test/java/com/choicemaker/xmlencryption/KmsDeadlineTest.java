@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.amazonaws.auth.AWSCredentials;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class KmsDeadlineTest {
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a></root>";
+
+	/** Answers immediately */
+	private static final String FAST = "local://fast?seed=d";
+
+	/** Shares the master keys of FAST, but answers very slowly */
+	private static final String HUNG = "local://hung?latency=10000&seed=d";
+
+	private static Document encryptedDocument() throws Exception {
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(FAST);
+		Document retVal = TestUtils.parse(PLAINTEXT);
+		new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs)
+				.encrypt(retVal);
+		return retVal;
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+		AwsKmsRetryHandler.resetCircuitBreakers();
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		assertFalse(KmsDeadline.NONE.isBounded());
+		assertFalse(KmsDeadline.NONE.isExpired());
+		assertEquals(Long.MAX_VALUE,
+				KmsDeadline.NONE.remaining(TimeUnit.MILLISECONDS));
+		assertFalse(KmsDeadline.afterMillis(0).isBounded());
+
+		KmsDeadline d = KmsDeadline.after(1, TimeUnit.HOURS);
+		assertTrue(d.isBounded());
+		assertFalse(d.isExpired());
+		assertTrue(d.remaining(TimeUnit.MINUTES) > 58);
+
+		d = KmsDeadline.after(0, TimeUnit.MILLISECONDS);
+		assertTrue(d.isExpired());
+		assertEquals(0, d.remaining(TimeUnit.NANOSECONDS));
+	}
+
+	@Test
+	public void testDeadlineBoundsDecrypt() throws Exception {
+		Document doc = encryptedDocument();
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(HUNG);
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(), cs);
+		final long before =
+			AwsKmsRetryHandler.getMetrics(AwsKmsRetryHandler.OP_DECRYPT)
+					.getDeadlineExceededCount();
+
+		final long start = System.currentTimeMillis();
+		try {
+			decryptor.decrypt(doc, KmsDeadline.after(200,
+					TimeUnit.MILLISECONDS));
+			fail("expected KmsDeadlineExceededException");
+		} catch (KmsDeadlineExceededException x) {
+			// expected
+		}
+		final long elapsed = System.currentTimeMillis() - start;
+		assertTrue("elapsed: " + elapsed, elapsed < 5000);
+		assertEquals(before + 1,
+				AwsKmsRetryHandler.getMetrics(AwsKmsRetryHandler.OP_DECRYPT)
+						.getDeadlineExceededCount());
+
+		// The same document decrypts from an endpoint that answers
+		DocumentDecryptor fast =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(),
+					TestUtils.createLocalCredentialSet(FAST));
+		fast.decrypt(doc, KmsDeadline.after(5, TimeUnit.SECONDS));
+		assertEquals("alpha", doc.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testDefaultTimeoutProperty() throws Exception {
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(HUNG);
+		cs.put(AwsKmsProperties.PN_KMS_TIMEOUT, "100");
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(), cs);
+		assertEquals(100, decryptor.getDefaultTimeout());
+		try {
+			decryptor.decrypt(encryptedDocument());
+			fail("expected KmsDeadlineExceededException");
+		} catch (KmsDeadlineExceededException x) {
+			// expected
+		}
+
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), cs);
+		assertEquals(100, encryptor.getDefaultTimeout());
+		try {
+			encryptor.encrypt(TestUtils.parse(PLAINTEXT));
+			fail("expected KmsDeadlineExceededException");
+		} catch (KmsDeadlineExceededException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testExpiredDeadlineSendsNoRequest() {
+		final String endpoint = "local://expired?seed=d";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		AWSCredentials creds =
+			AwsKmsCredentialSet.createAWSCredentials(cs.getProperties());
+		try {
+			AwsKmsUtils.generateDataKey(creds,
+					CountingSecretKeyInfoFactory.MASTER_KEY_ID, "AES_128",
+					endpoint, null, KmsDeadline.after(0, TimeUnit.SECONDS));
+			fail("expected KmsDeadlineExceededException");
+		} catch (KmsDeadlineExceededException x) {
+			// expected
+		}
+		LocalKms kms = (LocalKms) AwsKmsClientRegistry.getClient(creds,
+				endpoint);
+		assertEquals(0, kms.getGenerateDataKeyCount());
+	}
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xml.security.utils.Base64;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.amazonaws.services.kms.model.InvalidCiphertextException;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class KmsEndpointRouterTest {
+
+	private static final String KEY_ID = "alias/test";
+
+	private static AWSCredentials createCredentials(String endpoint) {
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		return AwsKmsCredentialSet.createAWSCredentials(cs.getProperties());
+	}
+
+	private static byte[] toArray(ByteBuffer bb) {
+		byte[] retVal = new byte[bb.remaining()];
+		bb.duplicate().get(retVal);
+		return retVal;
+	}
+
+	@After
+	public void tearDown() {
+		KmsEndpointRouter.resetRouters();
+		AwsKmsClientRegistry.shutdown();
+		AwsKmsRetryHandler.setRetryPolicy(KmsRetryPolicy.DEFAULT);
+		AwsKmsRetryHandler.resetRateLimiters();
+		AwsKmsRetryHandler.resetCircuitBreakers();
+	}
+
+	@Test
+	public void testParseEndpoints() {
+		assertFalse(KmsEndpointRouter.isEndpointList("local://a"));
+		assertFalse(KmsEndpointRouter.isEndpointList(null));
+		assertTrue(KmsEndpointRouter.isEndpointList("local://a,local://b"));
+		assertEquals(Arrays.asList("local://a", "local://b"),
+				KmsEndpointRouter.parseEndpoints(" local://a, ,local://b "));
+		try {
+			KmsEndpointRouter.getRouter("local://a");
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPrefersFastestEndpoint() {
+		final String slow = "local://slow?latency=30&seed=s";
+		final String fast = "local://fast?seed=s";
+		final String endpoints = slow + "," + fast;
+		KmsEndpointRouter router = KmsEndpointRouter.getRouter(endpoints);
+		router.setProbeFraction(0);
+
+		AWSCredentials creds = createCredentials(endpoints);
+		final int count = 10;
+		for (int i = 0; i < count; i++) {
+			AwsKmsUtils.generateDataKey(creds, KEY_ID, "AES_128", endpoints);
+		}
+		assertEquals(fast, router.getPreferredEndpoints().get(0));
+		assertTrue(router.getSmoothedLatency(slow) > router
+				.getSmoothedLatency(fast));
+
+		LocalKms slowKms =
+			(LocalKms) AwsKmsClientRegistry.getClient(creds, slow);
+		LocalKms fastKms =
+			(LocalKms) AwsKmsClientRegistry.getClient(creds, fast);
+		assertEquals(1, slowKms.getGenerateDataKeyCount());
+		assertEquals(count - 1, fastKms.getGenerateDataKeyCount());
+	}
+
+	@Test
+	public void testHedgedDecryptBoundsLatency() throws Exception {
+		final String stuck = "local://stuck?latency=3000&seed=h";
+		final String quick = "local://quick?seed=h";
+		final String endpoints = stuck + "," + quick;
+		KmsEndpointRouter router = KmsEndpointRouter.getRouter(endpoints);
+		router.setProbeFraction(0);
+		router.setHedgePercentile(95);
+		router.setDefaultHedgeDelay(50);
+		assertEquals(stuck, router.getPreferredEndpoints().get(0));
+
+		GenerateDataKeyResult gdk =
+			new LocalKms("h").generateDataKey(new GenerateDataKeyRequest()
+					.withKeyId(KEY_ID).withKeySpec("AES_128"));
+		final String encKey = Base64.encode(toArray(gdk.getCiphertextBlob()));
+
+		final long start = System.currentTimeMillis();
+		ByteBuffer key =
+			AwsKmsUtils.computeSecretBytes(createCredentials(endpoints),
+					KEY_ID, null, encKey, endpoints);
+		final long elapsed = System.currentTimeMillis() - start;
+
+		assertArrayEquals(toArray(gdk.getPlaintext()), toArray(key));
+		assertTrue("elapsed: " + elapsed, elapsed < 2000);
+		assertEquals(1, router.getHedgeCount());
+	}
+
+	@Test
+	public void testDecryptorHedgePercentile() throws Exception {
+		final String stuck = "local://stuck?latency=3000&seed=p";
+		final String quick = "local://quick?seed=p";
+		final String endpoints = stuck + "," + quick;
+		KmsEndpointRouter router = KmsEndpointRouter.getRouter(endpoints);
+		router.setProbeFraction(0);
+		router.setDefaultHedgeDelay(50);
+
+		Document doc = TestUtils.parse("<a><b>secret</b></a>");
+		new DocumentEncryptor(new AwsKmsEncryptionScheme(),
+				TestUtils.createLocalCredentialSet("local://enc?seed=p"))
+				.encrypt(doc);
+
+		Properties p = new Properties();
+		p.putAll(TestUtils.createLocalCredentialSet(endpoints).getProperties());
+		p.setProperty(AwsKmsProperties.PN_HEDGE_PERCENTILE, "99.5");
+		DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(),
+					new AwsKmsCredentialSet("hedged", p));
+		final long start = System.currentTimeMillis();
+		decryptor.decrypt(doc);
+		final long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals("secret", doc.getDocumentElement().getTextContent());
+		assertTrue("elapsed: " + elapsed, elapsed < 2000);
+		assertEquals(1, router.getHedgeCount());
+		// The shared router is not reconfigured by the decryptor
+		assertEquals(0, router.getHedgePercentile(), 0);
+	}
+
+	@Test
+	public void testAsyncHedgedDecryptDoesNotBlockExecutor()
+			throws Exception {
+		final String stuck = "local://stuck?latency=3000&seed=a";
+		final String quick = "local://quick?seed=a";
+		final String endpoints = stuck + "," + quick;
+		KmsEndpointRouter router = KmsEndpointRouter.getRouter(endpoints);
+		router.setProbeFraction(0);
+		router.setHedgePercentile(95);
+		router.setDefaultHedgeDelay(50);
+
+		GenerateDataKeyResult gdk =
+			new LocalKms("a").generateDataKey(new GenerateDataKeyRequest()
+					.withKeyId(KEY_ID).withKeySpec("AES_128"));
+		final String encKey = Base64.encode(toArray(gdk.getCiphertextBlob()));
+
+		// One thread runs the stuck request; the other must be free for the
+		// hedged request rather than waiting for the race
+		ExecutorService es = AwsKmsExecutor.createExecutor(2, 16);
+		AwsKmsExecutor.setExecutor(es);
+		try {
+			final long start = System.currentTimeMillis();
+			ByteBuffer key =
+				AwsKmsUtils.computeSecretBytesAsync(
+						createCredentials(endpoints), KEY_ID, null, encKey,
+						endpoints, null, null).get(5, TimeUnit.SECONDS);
+			final long elapsed = System.currentTimeMillis() - start;
+			assertArrayEquals(toArray(gdk.getPlaintext()), toArray(key));
+			assertTrue("elapsed: " + elapsed, elapsed < 2000);
+		} finally {
+			es.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testHedgedDecryptIsBoundedByDeadline() throws Exception {
+		final String slow = "local://slow?latency=3000&seed=d";
+		final String slower = "local://slower?latency=3000&seed=d";
+		final String endpoints = slow + "," + slower;
+		KmsEndpointRouter router = KmsEndpointRouter.getRouter(endpoints);
+		router.setHedgePercentile(95);
+		router.setDefaultHedgeDelay(50);
+
+		GenerateDataKeyResult gdk =
+			new LocalKms("d").generateDataKey(new GenerateDataKeyRequest()
+					.withKeyId(KEY_ID).withKeySpec("AES_128"));
+		final String encKey = Base64.encode(toArray(gdk.getCiphertextBlob()));
+
+		final long start = System.currentTimeMillis();
+		try {
+			AwsKmsUtils.computeSecretBytesAsync(createCredentials(endpoints),
+					KEY_ID, null, encKey, endpoints, null, null,
+					KmsDeadline.after(200, TimeUnit.MILLISECONDS)).get();
+			fail("expected KmsDeadlineExceededException");
+		} catch (ExecutionException x) {
+			assertTrue(String.valueOf(x.getCause()),
+					x.getCause() instanceof KmsDeadlineExceededException);
+		}
+		final long elapsed = System.currentTimeMillis() - start;
+		assertTrue("elapsed: " + elapsed, elapsed < 2000);
+		AwsKmsExecutor.shutdown();
+	}
+
+	@Test
+	public void testUnhealthyEndpointFailsOver() {
+		AwsKmsRetryHandler.setRetryPolicy(new KmsRetryPolicy(1, 0, 0,
+				1000.0, 1.0));
+		final String down = "local://down?throttle=1.0&seed=f";
+		final String up = "local://up?seed=f";
+		final String endpoints = down + "," + up;
+		KmsEndpointRouter router = KmsEndpointRouter.getRouter(endpoints);
+		router.setProbeFraction(0);
+
+		AWSCredentials creds = createCredentials(endpoints);
+		final int count = 2 * KmsEndpointRouter.DEFAULT_FAILURE_THRESHOLD;
+		for (int i = 0; i < count; i++) {
+			AwsKmsUtils.generateDataKey(creds, KEY_ID, "AES_128", endpoints);
+		}
+		assertFalse(router.isHealthy(down));
+		assertTrue(router.isHealthy(up));
+		assertEquals(up, router.getPreferredEndpoints().get(0));
+		assertEquals(KmsEndpointRouter.DEFAULT_FAILURE_THRESHOLD,
+				router.getFailoverCount());
+	}
+
+	@Test
+	public void testBadRequestDoesNotFailOver() {
+		KmsEndpointRouter router =
+			new KmsEndpointRouter(Arrays.asList("local://a", "local://b"));
+		router.setProbeFraction(0);
+		router.setFailureThreshold(1);
+		for (Class<?> expected : Arrays.asList(
+				InvalidCiphertextException.class,
+				KmsDeadlineExceededException.class)) {
+			final List<String> tried = new CopyOnWriteArrayList<>();
+			try {
+				router.execute(ep -> {
+					tried.add(ep);
+					if (expected == InvalidCiphertextException.class) {
+						throw new InvalidCiphertextException("bad");
+					}
+					throw new KmsDeadlineExceededException("late");
+				});
+				fail("expected " + expected.getSimpleName());
+			} catch (InvalidCiphertextException
+					| KmsDeadlineExceededException x) {
+				assertEquals(expected, x.getClass());
+			}
+			assertEquals(Arrays.asList("local://a"), tried);
+		}
+		assertTrue(router.isHealthy("local://a"));
+		assertEquals(0, router.getFailoverCount());
+
+		// An open circuit breaker fails over, but does not mark the endpoint
+		final List<String> tried = new CopyOnWriteArrayList<>();
+		assertEquals("local://b", router.execute(ep -> {
+			tried.add(ep);
+			if (ep.equals("local://a")) {
+				throw new KmsCircuitOpenException("open");
+			}
+			return ep;
+		}));
+		assertEquals(Arrays.asList("local://a", "local://b"), tried);
+		assertTrue(router.isHealthy("local://a"));
+	}
+
+}
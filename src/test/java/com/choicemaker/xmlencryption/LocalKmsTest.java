@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.amazonaws.services.kms.model.InvalidCiphertextException;
+import com.choicemaker.xmlencryption.LocalKms.RecordedDataKey;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class LocalKmsTest {
+
+	private static final String KEY_ID = "alias/test";
+
+	private static final String PLAINTEXT =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	private static GenerateDataKeyRequest newRequest() {
+		return new GenerateDataKeyRequest().withKeyId(KEY_ID).withKeySpec(
+				"AES_128");
+	}
+
+	private static byte[] toArray(ByteBuffer bb) {
+		byte[] retVal = new byte[bb.remaining()];
+		bb.duplicate().get(retVal);
+		return retVal;
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+		AwsKmsRetryHandler.setRetryPolicy(KmsRetryPolicy.DEFAULT);
+		AwsKmsRetryHandler.resetRateLimiters();
+		AwsKmsRetryHandler.resetCircuitBreakers();
+	}
+
+	@Test
+	public void testDocumentRoundTrip() throws Exception {
+		AwsKmsEncryptionScheme scheme = new AwsKmsEncryptionScheme();
+		AwsKmsCredentialSet cs =
+			TestUtils.createLocalCredentialSet("local://roundTrip");
+		DocumentEncryptor encryptor = new DocumentEncryptor(scheme, cs);
+		DocumentDecryptor decryptor = new DocumentDecryptor(scheme, cs);
+
+		Document doc = TestUtils.parse(PLAINTEXT);
+		encryptor.encrypt(doc);
+		Element root = doc.getDocumentElement();
+		assertEquals(EncryptionConstants._TAG_ENCRYPTEDDATA, root
+				.getFirstChild().getLocalName());
+
+		decryptor.decrypt(doc);
+		assertEquals("beta", root.getElementsByTagNameNS("urn:test", "b")
+				.item(0).getTextContent());
+
+		AWSKMS kms =
+			AwsKmsClientRegistry.getClient(
+					AwsKmsCredentialSet.createAWSCredentials(cs
+							.getProperties()), "local://roundTrip");
+		assertTrue(kms instanceof LocalKms);
+		assertEquals(1, ((LocalKms) kms).getGenerateDataKeyCount());
+		assertEquals(1, ((LocalKms) kms).getDecryptCount());
+	}
+
+	@Test
+	public void testMasterKeysAreDeterministic() {
+		GenerateDataKeyResult gdk = new LocalKms("seed").generateDataKey(
+				newRequest());
+		final byte[] blob = toArray(gdk.getCiphertextBlob());
+		final byte[] plaintext = toArray(gdk.getPlaintext());
+		assertEquals(16, plaintext.length);
+
+		DecryptRequest request =
+			new DecryptRequest().withCiphertextBlob(ByteBuffer.wrap(blob));
+		LocalKms other = new LocalKms("seed");
+		assertArrayEquals(plaintext, toArray(other.decrypt(request)
+				.getPlaintext()));
+		assertEquals(KEY_ID, other.decrypt(request).getKeyId());
+
+		try {
+			new LocalKms("another seed").decrypt(request);
+			fail("expected InvalidCiphertextException");
+		} catch (InvalidCiphertextException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		LocalKms recorder = new LocalKms();
+		recorder.setRecording(true);
+		byte[] first = toArray(recorder.generateDataKey(newRequest())
+				.getCiphertextBlob());
+		byte[] second = toArray(recorder.generateDataKey(newRequest())
+				.getCiphertextBlob());
+		assertFalse(Arrays.equals(first, second));
+
+		StringWriter w = new StringWriter();
+		LocalKms.writeRecording(recorder.getRecording(), w);
+		List<RecordedDataKey> keys =
+			LocalKms.readRecording(new StringReader(w.toString()));
+		assertEquals(2, keys.size());
+
+		LocalKms player = new LocalKms();
+		player.replay(keys);
+		assertArrayEquals(first, toArray(player.generateDataKey(newRequest())
+				.getCiphertextBlob()));
+		assertArrayEquals(second, toArray(player
+				.generateDataKey(newRequest()).getCiphertextBlob()));
+		assertEquals(0, player.getReplayRemaining());
+	}
+
+	@Test
+	public void testInjectedThrottlingIsRetried() {
+		AwsKmsRetryHandler.setRetryPolicy(new KmsRetryPolicy(50, 0, 1,
+				100000.0, 1000.0));
+		final String endpoint = "local://throttled?throttle=0.3&seed=t";
+		AwsKmsCredentialSet cs = TestUtils.createLocalCredentialSet(endpoint);
+		final int count = 20;
+		for (int i = 0; i < count; i++) {
+			AwsKmsUtils.generateDataKey(
+					AwsKmsCredentialSet.createAWSCredentials(cs
+							.getProperties()), KEY_ID, "AES_128", endpoint);
+		}
+		LocalKms kms =
+			(LocalKms) AwsKmsClientRegistry.getClient(
+					AwsKmsCredentialSet.createAWSCredentials(cs
+							.getProperties()), endpoint);
+		assertTrue(kms.getThrottleCount() > 0);
+		assertEquals(count + kms.getThrottleCount(),
+				kms.getGenerateDataKeyCount());
+	}
+
+	@Test
+	public void testEndpointOptions() {
+		LocalKms.fromEndpoint("local:");
+		LocalKms.fromEndpoint("local://x?latency=1&jitter=2&throttle=0&seed=s");
+		try {
+			LocalKms.fromEndpoint("local://x?colour=blue");
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class PrefetchingSecretKeyInfoFactoryTest {
+
+	private static final long MAX_WAIT = 5000;
+
+	private static void awaitAvailable(PrefetchingSecretKeyInfoFactory skif,
+			int count) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		while (skif.getAvailableCount() < count
+				&& System.currentTimeMillis() - start < MAX_WAIT) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testPrefetchedKeysAreUnique() throws InterruptedException {
+		final int low = 2;
+		final int high = 6;
+		CountingSecretKeyInfoFactory delegate =
+			new CountingSecretKeyInfoFactory();
+		try (PrefetchingSecretKeyInfoFactory skif =
+			new PrefetchingSecretKeyInfoFactory(delegate, low, high, 2, 1000)) {
+			awaitAvailable(skif, high);
+			assertEquals(high, skif.getAvailableCount());
+
+			Set<SecretKeyInfo> keys =
+				Collections.newSetFromMap(new IdentityHashMap<>());
+			final int requests = 3 * high;
+			for (int i = 0; i < requests; i++) {
+				keys.add(skif.createSessionKey());
+			}
+			assertEquals(requests, keys.size());
+			assertEquals(requests,
+					skif.getPrefetchedCount() + skif.getFallbackCount());
+			assertTrue(skif.getPrefetchedCount() >= high);
+		}
+	}
+
+	@Test
+	public void testFallbackWhenEmpty() {
+		SecretKeyInfoFactory failing = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				if (Thread.currentThread().isDaemon()) {
+					throw new IllegalStateException("background failure");
+				}
+				return new SecretKeyInfo(new byte[16], new byte[16], null);
+			}
+		};
+		try (PrefetchingSecretKeyInfoFactory skif =
+			new PrefetchingSecretKeyInfoFactory(failing, 1, 2, 1, 10)) {
+			SecretKeyInfo ski = skif.createSessionKey();
+			assertTrue(ski != null);
+			assertEquals(1, skif.getFallbackCount());
+		}
+	}
+
+	@Test
+	public void testFailuresSuspendRefills() throws InterruptedException {
+		final AtomicInteger backgroundCalls = new AtomicInteger();
+		SecretKeyInfoFactory failing = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				if (Thread.currentThread().isDaemon()) {
+					backgroundCalls.incrementAndGet();
+					throw new IllegalStateException("background failure");
+				}
+				return new SecretKeyInfo(new byte[16], new byte[16], null);
+			}
+		};
+		final int high = 6;
+		try (PrefetchingSecretKeyInfoFactory skif =
+			new PrefetchingSecretKeyInfoFactory(failing, 2, high, 2, 1)) {
+			// The initial refill fails
+			final long start = System.currentTimeMillis();
+			while (skif.getFailureCount() < high
+					&& System.currentTimeMillis() - start < MAX_WAIT) {
+				Thread.sleep(5);
+			}
+			assertEquals(high, backgroundCalls.get());
+
+			// Callers fall back without scheduling more background requests
+			final int requests = 20;
+			for (int i = 0; i < requests; i++) {
+				assertTrue(skif.createSessionKey() != null);
+			}
+			assertEquals(requests, skif.getFallbackCount());
+			assertTrue("background calls: " + backgroundCalls.get(),
+					backgroundCalls.get() <= high + 1);
+		}
+	}
+
+	@Test
+	public void testKeyPrefetchedDuringCloseIsClosed()
+			throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<SecretKeyInfo> lastKey = new AtomicReference<>();
+		SecretKeyInfoFactory slow = new SecretKeyInfoFactory() {
+			@Override
+			public SecretKeyInfo createSessionKey() {
+				started.countDown();
+				// Ignore the interrupt from close(), as a KMS call would
+				boolean released = false;
+				while (!released) {
+					try {
+						released =
+							release.await(MAX_WAIT, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						// Keep waiting
+					}
+				}
+				SecretKeyInfo retVal =
+					new SecretKeyInfo(new byte[16], new byte[16], null);
+				lastKey.set(retVal);
+				return retVal;
+			}
+		};
+		PrefetchingSecretKeyInfoFactory skif =
+			new PrefetchingSecretKeyInfoFactory(slow, 0, 1, 1, 0);
+		assertTrue(started.await(MAX_WAIT, TimeUnit.MILLISECONDS));
+		skif.close();
+		release.countDown();
+
+		final long start = System.currentTimeMillis();
+		while ((lastKey.get() == null || !lastKey.get().isClosed())
+				&& System.currentTimeMillis() - start < MAX_WAIT) {
+			Thread.sleep(5);
+		}
+		assertTrue(lastKey.get().isClosed());
+		assertEquals(0, skif.getAvailableCount());
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.choicemaker.utilcopy01.DOMUtils;
+import com.choicemaker.utilcopy01.WSS4JConstants;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class SecretKeyInfoTest {
+
+	private static final String MASTER_KEY_ID = "alias/test";
+
+	private static String getKeyName(Element keyInfo) {
+		return keyInfo
+				.getElementsByTagNameNS(WSS4JConstants.SIG_NS,
+						WSS4JConstants.KEYNAME_LN).item(0).getTextContent();
+	}
+
+	@Test
+	public void testKeyInfoFromMasterKeyId() {
+		SecretKeyInfo ski =
+			new SecretKeyInfo(KeyMaterial.copyOf(new byte[16]), new byte[32],
+					MASTER_KEY_ID);
+		assertEquals(MASTER_KEY_ID, ski.getMasterKeyId());
+
+		// Built directly in the target document
+		Document doc = DOMUtils.newDocument();
+		Element keyInfo = ski.createKeyInfo(doc);
+		assertSame(doc, keyInfo.getOwnerDocument());
+		assertEquals(WSS4JConstants.KEYINFO_LN, keyInfo.getLocalName());
+		assertEquals(MASTER_KEY_ID, getKeyName(keyInfo));
+
+		// Built once, on demand, for callers that want an element
+		Element reference = ski.getKeyInfoReference();
+		assertSame(reference, ski.getKeyInfoReference());
+		assertEquals(MASTER_KEY_ID, getKeyName(reference));
+
+		Element ek =
+			new EncryptedKeyFactory().createEncryptedKeyElement(doc, ski);
+		assertSame(doc, ek.getOwnerDocument());
+		assertEquals(MASTER_KEY_ID, getKeyName(ek));
+	}
+
+	@Test
+	public void testKeyInfoFromElement() {
+		Element keyInfo =
+			SecretKeyInfo.createKeyInfo(DOMUtils.newDocument(), MASTER_KEY_ID);
+		SecretKeyInfo ski =
+			new SecretKeyInfo(new byte[16], new byte[32], keyInfo);
+		assertEquals(MASTER_KEY_ID, ski.getMasterKeyId());
+		assertSame(keyInfo, ski.getKeyInfoReference());
+
+		Document doc = DOMUtils.newDocument();
+		Element copy = ski.createKeyInfo(doc);
+		assertSame(doc, copy.getOwnerDocument());
+		assertEquals(MASTER_KEY_ID, getKeyName(copy));
+	}
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.encryption.XMLEncryptionException;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.keys.content.RetrievalMethod;
+import org.apache.xml.security.utils.EncryptionConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class SelectiveEncryptionTest {
+
+	private static final String NS = "urn:test";
+
+	private static final String PLAINTEXT = "<root xmlns=\"" + NS
+			+ "\" xmlns:p=\"urn:p\">" + "<header>public</header>"
+			+ "<record><ssn>secret-1</ssn><name>alpha</name>"
+			+ "<p:note p:kind=\"memo\">prefixed</p:note></record>"
+			+ "<record><ssn>secret-2</ssn><name>beta</name></record>"
+			+ "<record><ssn>secret-3</ssn><name>gamma</name></record>"
+			+ "</root>";
+
+	private static final ElementSelector RECORDS = ElementSelectors.path(
+			new QName(NS, "root"), new QName(NS, "record"));
+
+	private static AwsKmsCredentialSet credentials() {
+		return TestUtils.createLocalCredentialSet("local://selective");
+	}
+
+	private static List<Element> encryptedData(Document doc) {
+		NodeList nl =
+			doc.getElementsByTagNameNS(EncryptionConstants.EncryptionSpecNS,
+					EncryptionConstants._TAG_ENCRYPTEDDATA);
+		List<Element> retVal = new ArrayList<>();
+		for (int i = 0; i < nl.getLength(); i++) {
+			retVal.add((Element) nl.item(i));
+		}
+		return retVal;
+	}
+
+	/** Decrypts an encrypted element by copying it into a new document */
+	private static Element decryptCopy(Element encrypted) throws Exception {
+		Document doc = TestUtils.parse("<copy/>");
+		Element copy = (Element) doc.importNode(encrypted, true);
+		doc.replaceChild(copy, doc.getDocumentElement());
+		new DocumentDecryptor(new AwsKmsEncryptionScheme(), credentials())
+				.decrypt(doc);
+		return doc.getDocumentElement();
+	}
+
+	private static String serialize(Document doc) {
+		return XMLPrettyPrint.print(doc);
+	}
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testPathSelector() throws Exception {
+		Document doc = TestUtils.parse(PLAINTEXT);
+		List<Element> selected = RECORDS.select(doc);
+		assertEquals(3, selected.size());
+		assertEquals("secret-2", selected.get(1).getFirstChild()
+				.getTextContent());
+
+		ElementSelector none =
+			ElementSelectors.path(new QName("root"), new QName("record"));
+		assertTrue(none.select(doc).isEmpty());
+	}
+
+	@Test
+	public void testXPathSelector() throws Exception {
+		Document doc = TestUtils.parse(PLAINTEXT);
+		ElementSelector ssns =
+			ElementSelectors.xpath("//t:ssn",
+					Collections.singletonMap("t", NS));
+		List<Element> selected = ssns.select(doc);
+		assertEquals(3, selected.size());
+		assertEquals("secret-3", selected.get(2).getTextContent());
+
+		// Only elements are selected
+		ElementSelector text =
+			ElementSelectors.xpath("//t:ssn/text()",
+					Collections.singletonMap("t", NS));
+		assertTrue(text.select(doc).isEmpty());
+
+		try {
+			ElementSelectors.xpath("//[", Collections.emptyMap());
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testEncryptSelectedElements() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Document doc = TestUtils.parse(PLAINTEXT);
+			List<Element> records = RECORDS.select(doc);
+			DocumentEncryptor encryptor =
+				new DocumentEncryptor(new AwsKmsEncryptionScheme(),
+						credentials());
+			int count =
+				encryptor.encrypt(doc, RECORDS,
+						DefaultAlgorithms.DECLARED_KEY_ENCRYPTION,
+						DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO, executor);
+			assertEquals(3, count);
+
+			// Unselected content is unchanged
+			final Element root = doc.getDocumentElement();
+			assertEquals("public", root.getFirstChild().getTextContent());
+			final String text = root.getTextContent();
+			assertFalse(text.contains("secret"));
+			assertFalse(text.contains("alpha"));
+
+			// Each record holds one EncryptedData with the same session key
+			List<Element> parts = encryptedData(doc);
+			assertEquals(3, parts.size());
+			EncryptedDataHeader first = null;
+			for (int i = 0; i < parts.size(); i++) {
+				assertSame(records.get(i), parts.get(i).getParentNode());
+				EncryptedDataHeader header =
+					EncryptedDataHeader.parseContent(records.get(i));
+				if (first == null) {
+					first = header;
+				} else {
+					assertEquals(first, header);
+				}
+			}
+
+			// Each copy of the shared EncryptedKey has its own Id
+			NodeList keys =
+				doc.getElementsByTagNameNS(
+						EncryptionConstants.EncryptionSpecNS,
+						EncryptionConstants._TAG_ENCRYPTEDKEY);
+			assertEquals(3, keys.getLength());
+			Set<String> ids = new HashSet<>();
+			for (int i = 0; i < keys.getLength(); i++) {
+				String id = ((Element) keys.item(i)).getAttribute("Id");
+				assertFalse(id.isEmpty());
+				assertTrue(ids.add(id));
+			}
+
+			// Each record decrypts to its original content
+			Element decrypted = decryptCopy(records.get(1));
+			assertEquals("secret-2", decrypted.getFirstChild()
+					.getTextContent());
+			assertEquals("beta", decrypted.getLastChild().getTextContent());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNestedAndEmptySelections() throws Exception {
+		Document doc = TestUtils.parse(PLAINTEXT);
+		DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), credentials());
+
+		// Nothing selected: the document is unchanged
+		ElementSelector none =
+			ElementSelectors.path(new QName(NS, "missing"));
+		assertEquals(0, encryptor.encrypt(doc, none));
+		assertTrue(encryptedData(doc).isEmpty());
+
+		// Names are nested in records, so only records are encrypted
+		ElementSelector nested =
+			ElementSelectors.xpath("//t:name | //t:record",
+					Collections.singletonMap("t", NS));
+		assertEquals(3, encryptor.encrypt(doc, nested));
+		assertEquals(3, encryptedData(doc).size());
+	}
+
+	@Test
+	public void testDecryptAll() throws Exception {
+		final AwsKmsCredentialSet cs = credentials();
+		final LocalKms kms =
+			(LocalKms) AwsKmsClientRegistry.getClient(AwsKmsCredentialSet
+					.createAWSCredentials(cs.getProperties()),
+					"local://selective");
+		final Document doc = TestUtils.parse(PLAINTEXT);
+		final String expected = serialize(doc);
+		final DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), credentials());
+
+		// The first record is encrypted under one session key, and the
+		// others under a second
+		ElementSelector first =
+			ElementSelectors.xpath("/t:root/t:record[1]",
+					Collections.singletonMap("t", NS));
+		assertEquals(1, encryptor.encrypt(doc, first));
+		ElementSelector others =
+			ElementSelectors.xpath("/t:root/t:record[position() > 1]",
+					Collections.singletonMap("t", NS));
+		assertEquals(2, encryptor.encrypt(doc, others));
+		assertEquals(3, encryptedData(doc).size());
+
+		final DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(), credentials());
+		final long before = kms.getDecryptCount();
+		assertEquals(3, decryptor.decryptAll(doc, KmsDeadline.NONE,
+				ForkJoinPool.commonPool(), 2));
+		assertEquals(2, kms.getDecryptCount() - before);
+		assertTrue(encryptedData(doc).isEmpty());
+		assertEquals(expected, serialize(doc));
+
+		// A document without EncryptedData is unchanged
+		assertEquals(0, decryptor.decryptAll(doc));
+		assertEquals(expected, serialize(doc));
+	}
+
+	/**
+	 * Encrypts an element with XMLCipher rather than with an encryptor, under
+	 * a KeyInfo that references its EncryptedKey
+	 */
+	private static void encryptWithCipher(Document doc, Element element,
+			SecretKeyInfo ski, KeyInfo keyInfo) throws Exception {
+		final String algorithm = DefaultAlgorithms.DEFAULT_DOC_ENCRYPT_ALGO;
+		XMLCipher cipher = XMLCipher.getInstance(algorithm);
+		cipher.init(XMLCipher.ENCRYPT_MODE, ski.toSecretKey(algorithm));
+		cipher.getEncryptedData().setKeyInfo(keyInfo);
+		cipher.doFinal(doc, element, true);
+	}
+
+	@Test
+	public void testDecryptAllResolvesKeyReferences() throws Exception {
+		final AwsKmsCredentialSet cs = credentials();
+		final LocalKms kms =
+			(LocalKms) AwsKmsClientRegistry.getClient(AwsKmsCredentialSet
+					.createAWSCredentials(cs.getProperties()),
+					"local://selective");
+		final EncryptionScheme es = new AwsKmsEncryptionScheme();
+		final SecretKeyInfo ski =
+			es.getSecretKeyInfoFactory(cs, es.getKeyEncryptionAlgorithm(),
+					Collections.emptyMap()).createSessionKey();
+
+		// One EncryptedKey, outside the encrypted parts, carries the key
+		final Document doc = TestUtils.parse(PLAINTEXT);
+		final Element ek =
+			new EncryptedKeyFactory().createEncryptedKeyElement(doc, ski);
+		final Element carriedKeyName =
+			doc.createElementNS(EncryptionConstants.EncryptionSpecNS,
+					"xenc:" + EncryptionConstants._TAG_CARRIEDKEYNAME);
+		carriedKeyName.setTextContent("session");
+		ek.appendChild(carriedKeyName);
+		final Element root = doc.getDocumentElement();
+		root.insertBefore(ek, root.getFirstChild());
+		final String expected = serialize(doc);
+
+		// Parts reference the key by RetrievalMethod and by KeyName
+		final List<Element> records = RECORDS.select(doc);
+		KeyInfo byUri = new KeyInfo(doc);
+		byUri.add(new RetrievalMethod(doc, "#" + ek.getAttribute("Id"), null,
+				EncryptionConstants.EncryptionSpecNS
+						+ EncryptionConstants._TAG_ENCRYPTEDKEY));
+		encryptWithCipher(doc, records.get(0), ski, byUri);
+		KeyInfo byName = new KeyInfo(doc);
+		byName.addKeyName("session");
+		encryptWithCipher(doc, records.get(2), ski, byName);
+		ski.close();
+		assertEquals(2, encryptedData(doc).size());
+
+		final DocumentDecryptor decryptor = new DocumentDecryptor(es, cs);
+		final long before = kms.getDecryptCount();
+		assertEquals(2, decryptor.decryptAll(doc, KmsDeadline.NONE,
+				ForkJoinPool.commonPool(), 2));
+		assertEquals(1, kms.getDecryptCount() - before);
+		assertEquals(expected, serialize(doc));
+
+		// A reference to a missing key is rejected
+		Document missing = TestUtils.parse(PLAINTEXT);
+		KeyInfo dangling = new KeyInfo(missing);
+		dangling.add(new RetrievalMethod(missing, "#missing", null, null));
+		try (SecretKeyInfo other =
+			es.getSecretKeyInfoFactory(cs, es.getKeyEncryptionAlgorithm(),
+					Collections.emptyMap()).createSessionKey()) {
+			encryptWithCipher(missing, RECORDS.select(missing).get(0), other,
+					dangling);
+		}
+		try {
+			decryptor.decryptAll(missing);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException x) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDecryptAllLeavesDocumentOnFailure() throws Exception {
+		final Document doc = TestUtils.parse(PLAINTEXT);
+		final DocumentEncryptor encryptor =
+			new DocumentEncryptor(new AwsKmsEncryptionScheme(), credentials());
+		assertEquals(3, encryptor.encrypt(doc, RECORDS));
+
+		// Corrupt the encrypted content of the last part, which follows the
+		// cipher value of its EncryptedKey
+		List<Element> parts = encryptedData(doc);
+		NodeList cipherValues =
+			parts.get(2).getElementsByTagNameNS(
+					EncryptionConstants.EncryptionSpecNS,
+					EncryptionConstants._TAG_CIPHERVALUE);
+		cipherValues.item(cipherValues.getLength() - 1).setTextContent(
+				"AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+		final String expected = serialize(doc);
+
+		final DocumentDecryptor decryptor =
+			new DocumentDecryptor(new AwsKmsEncryptionScheme(), credentials());
+		try {
+			decryptor.decryptAll(doc);
+			fail("expected XMLEncryptionException");
+		} catch (XMLEncryptionException x) {
+			// expected
+		}
+		assertEquals(expected, serialize(doc));
+	}
+
+}
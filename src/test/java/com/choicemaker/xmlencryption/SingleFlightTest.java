@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.xml.security.utils.Base64;
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class SingleFlightTest {
+
+	private static final int THREADS = 8;
+
+	@After
+	public void tearDown() {
+		AwsKmsClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneOperation() throws Exception {
+		final SingleFlight<String, byte[]> sf = new SingleFlight<>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final byte[] result = new byte[] { 1, 2, 3 };
+
+		ExecutorService es = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<byte[]>> futures = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				futures.add(es.submit(() -> sf.execute("blob", () -> {
+					calls.incrementAndGet();
+					awaitQuietly(release);
+					return result;
+				})));
+			}
+			// Wait until every caller has joined the in-flight operation
+			final long start = System.currentTimeMillis();
+			while (sf.getLeaderCount() + sf.getFollowerCount() < THREADS
+					&& System.currentTimeMillis() - start < 5000) {
+				Thread.sleep(5);
+			}
+			release.countDown();
+			for (Future<byte[]> f : futures) {
+				assertSame(result, f.get(5, TimeUnit.SECONDS));
+			}
+		} finally {
+			es.shutdownNow();
+		}
+		assertEquals(1, calls.get());
+		assertEquals(1, sf.getLeaderCount());
+		assertEquals(THREADS - 1, sf.getFollowerCount());
+		assertEquals(0, sf.getInFlightCount());
+	}
+
+	@Test
+	public void testFailureIsSharedAndForgotten() throws Exception {
+		final SingleFlight<String, String> sf = new SingleFlight<>();
+		final CompletableFuture<String> pending = new CompletableFuture<>();
+		CompletableFuture<String> leader =
+			sf.executeAsync("blob", () -> pending);
+		CompletableFuture<String> follower =
+			sf.executeAsync("blob", () -> CompletableFuture
+					.completedFuture("unexpected"));
+		assertSame(leader, follower);
+
+		pending.completeExceptionally(new IllegalStateException("throttled"));
+		assertTrue(follower.isCompletedExceptionally());
+		assertEquals(0, sf.getInFlightCount());
+
+		// A later request runs the operation again
+		assertEquals("retried", sf.execute("blob", () -> "retried"));
+		assertEquals(2, sf.getLeaderCount());
+	}
+
+	@Test
+	public void testDifferentSecretsAreNotCoalesced() throws Exception {
+		final String keyId = CountingSecretKeyInfoFactory.MASTER_KEY_ID;
+		final String endpoint = "local://secrets?latency=200&seed=s";
+		ByteBuffer blob =
+			new LocalKms("s").generateDataKey(
+					new GenerateDataKeyRequest().withKeyId(keyId)
+							.withKeySpec("AES_128")).getCiphertextBlob();
+		final byte[] encKey = new byte[blob.remaining()];
+		blob.get(encKey);
+
+		// Same access key and encrypted key, different secret keys
+		AWSCredentials a = new BasicAWSCredentials("test-access-key", "a");
+		AWSCredentials b = new BasicAWSCredentials("test-access-key", "b");
+		final long coalesced = AwsKmsUtils.getCoalescedDecryptCount();
+		CompletableFuture<ByteBuffer> first =
+			AwsKmsUtils.computeSecretBytesAsync(a, keyId, null,
+					Base64.encode(encKey), endpoint, null, null);
+		CompletableFuture<ByteBuffer> second =
+			AwsKmsUtils.computeSecretBytesAsync(b, keyId, null,
+					Base64.encode(encKey), endpoint, null, null);
+		assertEquals(first.get(5, TimeUnit.SECONDS),
+				second.get(5, TimeUnit.SECONDS));
+
+		assertEquals(coalesced, AwsKmsUtils.getCoalescedDecryptCount());
+		assertEquals(1, ((LocalKms) AwsKmsClientRegistry.getClient(a,
+				endpoint)).getDecryptCount());
+		assertEquals(1, ((LocalKms) AwsKmsClientRegistry.getClient(b,
+				endpoint)).getDecryptCount());
+	}
+
+	@Test
+	public void testLeaderRechecksCache() throws Exception {
+		final String keyId = CountingSecretKeyInfoFactory.MASTER_KEY_ID;
+		final String endpoint = "local://recheck?seed=r";
+		GenerateDataKeyResult gdk =
+			new LocalKms("r").generateDataKey(new GenerateDataKeyRequest()
+					.withKeyId(keyId).withKeySpec("AES_128"));
+		final byte[] encKey = toArray(gdk.getCiphertextBlob());
+		final byte[] plaintext = toArray(gdk.getPlaintext());
+
+		// The key is cached by a previous request just after each caller
+		// misses the cache
+		final AtomicInteger lookups = new AtomicInteger();
+		DataKeyCache cache = new DataKeyCache() {
+			@Override
+			public byte[] get(AWSCredentials creds, String endpoint,
+					String masterKeyId, byte[] encryptedKey) {
+				byte[] retVal =
+					super.get(creds, endpoint, masterKeyId, encryptedKey);
+				if (lookups.incrementAndGet() % 2 == 1) {
+					retVal = null;
+				}
+				return retVal;
+			}
+		};
+		AWSCredentials creds = new BasicAWSCredentials("test-access-key", "r");
+		cache.put(creds, endpoint, keyId, encKey, plaintext);
+
+		ByteBuffer key =
+			AwsKmsUtils.computeSecretBytes(creds, keyId, null,
+					Base64.encode(encKey), endpoint, null, cache);
+		assertEquals(ByteBuffer.wrap(plaintext), key);
+		key =
+			AwsKmsUtils.computeSecretBytesAsync(creds, keyId, null,
+					Base64.encode(encKey), endpoint, null, cache).get(5,
+					TimeUnit.SECONDS);
+		assertEquals(ByteBuffer.wrap(plaintext), key);
+		assertEquals(0, ((LocalKms) AwsKmsClientRegistry.getClient(creds,
+				endpoint)).getDecryptCount());
+	}
+
+	private static byte[] toArray(ByteBuffer bb) {
+		final byte[] retVal = new byte[bb.remaining()];
+		bb.duplicate().get(retVal);
+		return retVal;
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.Properties;
 
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
@@ -12,6 +13,7 @@ import org.apache.xml.security.utils.XMLUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 
+import com.choicemaker.utilcopy01.DOMUtils;
 import com.choicemaker.utilcopy01.SystemPropertyUtils;
 
 public class TestUtils {
@@ -37,6 +39,27 @@ public class TestUtils {
 		return retVal;
 	}
 
+	/**
+	 * Creates credentials that do not require AWS KMS properties. If the
+	 * endpoint is a {@link LocalKms#isLocalEndpoint(String) local endpoint},
+	 * the credentials can be used to encrypt and decrypt documents offline.
+	 */
+	static AwsKmsCredentialSet createLocalCredentialSet(String endpoint) {
+		Properties p = new Properties();
+		p.setProperty(AwsKmsProperties.PN_ACCESSKEY, "test-access-key");
+		p.setProperty(AwsKmsProperties.PN_SECRETKEY, "test-secret-key");
+		p.setProperty(AwsKmsProperties.PN_MASTERKEY,
+				CountingSecretKeyInfoFactory.MASTER_KEY_ID);
+		if (endpoint != null) {
+			p.setProperty(AwsKmsProperties.PN_ENDPOINT, endpoint);
+		}
+		return new AwsKmsCredentialSet("test", p);
+	}
+
+	static Document parse(String xml) throws Exception {
+		return DOMUtils.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+
 	static AwsKmsEncryptionScheme getEncryptionScheme() {
 		AwsKmsEncryptionScheme retVal = new AwsKmsEncryptionScheme();
 		return retVal;
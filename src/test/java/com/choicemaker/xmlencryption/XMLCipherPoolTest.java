@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import javax.crypto.SecretKey;
+
+import org.apache.xml.security.encryption.XMLCipher;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.choicemaker.utilcopy01.KeyUtils;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class XMLCipherPoolTest {
+
+	static {
+		org.apache.xml.security.Init.init();
+	}
+
+	private static final String XML =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>beta</b></root>";
+
+	private static SecretKey createKey(String algorithm, int seed) {
+		byte[] raw = new byte[32];
+		for (int i = 0; i < raw.length; i++) {
+			raw[i] = (byte) (seed + i);
+		}
+		return KeyUtils.prepareSecretKey(algorithm, raw);
+	}
+
+	private static void roundTrip(XMLCipherPool pool, String algorithm,
+			SecretKey key) throws Exception {
+		Document doc = TestUtils.parse(XML);
+		Element root = doc.getDocumentElement();
+		final boolean content = true;
+
+		XMLCipher c = pool.acquire(algorithm, XMLCipher.ENCRYPT_MODE, key);
+		c.doFinal(doc, root, content);
+		pool.release(algorithm, c);
+		assertEquals(1, root.getChildNodes().getLength());
+
+		c = pool.acquire(algorithm, XMLCipher.DECRYPT_MODE, key);
+		c.doFinal(doc, root, content);
+		pool.release(algorithm, c);
+		assertEquals(2, root.getChildNodes().getLength());
+		assertEquals("beta", root.getLastChild().getTextContent());
+	}
+
+	@Test
+	public void testReuseAcrossKeysAndModes() throws Exception {
+		XMLCipherPool pool = new XMLCipherPool(4);
+		for (int i = 0; i < 3; i++) {
+			roundTrip(pool, XMLCipher.AES_128,
+					createKey(XMLCipher.AES_128, i));
+		}
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(5, pool.getReusedCount());
+
+		roundTrip(pool, XMLCipher.AES_256, createKey(XMLCipher.AES_256, 7));
+		assertEquals(2, pool.getCreatedCount());
+	}
+
+	@Test
+	public void testIdleLimitAndDiscard() throws Exception {
+		final String algo = XMLCipher.AES_128;
+		final SecretKey key = createKey(algo, 0);
+		XMLCipherPool pool = new XMLCipherPool(1);
+		XMLCipher c1 = pool.acquire(algo, XMLCipher.ENCRYPT_MODE, key);
+		XMLCipher c2 = pool.acquire(algo, XMLCipher.ENCRYPT_MODE, key);
+		assertNotSame(c1, c2);
+		pool.release(algo, c1);
+		pool.release(algo, c2);
+		assertSame(c1, pool.acquire(algo, XMLCipher.ENCRYPT_MODE, key));
+
+		// A discarded cipher is never handed out again
+		XMLCipher c3 = pool.acquire(algo, XMLCipher.ENCRYPT_MODE, key);
+		pool.discard(c3);
+		XMLCipher c4 = pool.acquire(algo, XMLCipher.ENCRYPT_MODE, key);
+		assertNotSame(c3, c4);
+		assertEquals(4, pool.getCreatedCount());
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016 ChoiceMaker LLC and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License
+ * v1.0 which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     ChoiceMaker LLC - initial API and implementation
+ */
+package com.choicemaker.xmlencryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Unlike most tests in this package, these tests do not require AWS KMS
+ * properties.
+ */
+public class XMLPrettyPrintTest {
+
+	private static final String XML =
+		"<root xmlns=\"urn:test\"><a>alpha</a><b>\u00e9t\u00e9</b></root>";
+
+	@Test
+	public void testPrint() throws Exception {
+		Document doc = TestUtils.parse(XML);
+		Element root = doc.getDocumentElement();
+
+		String compact = XMLPrettyPrint.print(root, false);
+		assertEquals(XML, compact);
+		String indented = XMLPrettyPrint.print(root);
+		assertTrue(indented, indented.contains("\n"));
+		assertFalse(indented, indented.startsWith("<?xml"));
+		String document = XMLPrettyPrint.print(doc);
+		assertTrue(document, document.startsWith("<?xml"));
+
+		// Cached transformers keep their own output properties
+		assertEquals(compact, XMLPrettyPrint.print(root, false));
+		assertEquals(indented, XMLPrettyPrint.print(root, true));
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		Document doc = TestUtils.parse(XML);
+		Element root = doc.getDocumentElement();
+
+		StringWriter writer = new StringWriter();
+		XMLPrettyPrint.write(root, false, writer);
+		assertEquals(XMLPrettyPrint.print(root, false), writer.toString());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XMLPrettyPrint.write(root, true, bytes);
+		assertEquals(XMLPrettyPrint.print(root, true), bytes.toString("UTF-8"));
+
+		writer = new StringWriter();
+		XMLPrettyPrint.write(doc, writer);
+		assertEquals(XMLPrettyPrint.print(doc), writer.toString());
+	}
+
+	@Test
+	public void testConcurrentPrint() throws Exception {
+		final int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int id = t;
+				results.add(executor.submit(() -> {
+					boolean retVal = true;
+					for (int i = 0; i < 100; i++) {
+						String xml = "<r><v>" + id + "-" + i + "</v></r>";
+						Element e = TestUtils.parse(xml).getDocumentElement();
+						retVal &= xml.equals(XMLPrettyPrint.print(e, false));
+					}
+					return retVal;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}